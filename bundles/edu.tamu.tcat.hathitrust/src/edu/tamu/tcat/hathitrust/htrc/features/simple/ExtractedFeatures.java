@@ -17,6 +17,7 @@ package edu.tamu.tcat.hathitrust.htrc.features.simple;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import edu.tamu.tcat.hathitrust.HathiTrustClientException;
 
@@ -100,6 +101,55 @@ public interface ExtractedFeatures extends AutoCloseable
     */
    ExtractedPageFeatures getPage(int page) throws HathiTrustClientException;
    
+   /**
+    * Get page features for the given page once the data they read has been loaded, so that
+    * accessing page-level values does not block.
+    * <p>
+    * Cancelling the returned future may interrupt a load started for this page alone; loads
+    * shared with other pages continue.
+    * <p>
+    * The default implementation calls {@link #getPage(int)} and returns a completed future.
+    * 
+    * @param page Zero-based page index
+    * @return A future completed with the {@link ExtractedPageFeatures} for the given page index,
+    *         or exceptionally if the page data could not be loaded.
+    * @since 1.2
+    */
+   default CompletableFuture<ExtractedPageFeatures> getPageAsync(int page)
+   {
+      CompletableFuture<ExtractedPageFeatures> result = new CompletableFuture<>();
+      try
+      {
+         result.complete(getPage(page));
+      }
+      catch (HathiTrustClientException | RuntimeException e)
+      {
+         result.completeExceptionally(e);
+      }
+      return result;
+   }
+   
+   /**
+    * Visit the token part-of-speech counts of the body of every page, in page order. The visitor's
+    * {@link TokenPosVisitor#startPage(int)} is called before the tokens of each page.
+    * <p>
+    * The default implementation visits each page's {@link ExtractedPageFeatures#getBodyData()};
+    * implementations may traverse their data directly without allocating per token.
+    * 
+    * @param visitor
+    * @throws HathiTrustClientException
+    * @since 1.2
+    */
+   default void forEachTokenPos(TokenPosVisitor visitor) throws HathiTrustClientException
+   {
+      int pages = pageCount();
+      for (int i = 0; i < pages; ++i)
+      {
+         visitor.startPage(i);
+         getPage(i).getBodyData().forEachTokenPos(visitor);
+      }
+   }
+   
    interface ExtractedPageFeatures
    {
       /**
@@ -124,6 +174,29 @@ public interface ExtractedFeatures extends AutoCloseable
       //TODO: add header API
       //ExtractedPagePartOfSpeechData getHeaderData();
       ExtractedPagePartOfSpeechData getBodyData() throws HathiTrustClientException;
+      
+      /**
+       * Get the token data for the body of this page once it has been loaded, so that accessing
+       * tokens and their counts does not block.
+       * <p>
+       * The default implementation calls {@link #getBodyData()} and returns a completed future.
+       * 
+       * @return A future completed with the body data, or exceptionally if it could not be loaded.
+       * @since 1.2
+       */
+      default CompletableFuture<ExtractedPagePartOfSpeechData> getBodyDataAsync()
+      {
+         CompletableFuture<ExtractedPagePartOfSpeechData> result = new CompletableFuture<>();
+         try
+         {
+            result.complete(getBodyData());
+         }
+         catch (HathiTrustClientException | RuntimeException e)
+         {
+            result.completeExceptionally(e);
+         }
+         return result;
+      }
       //TODO: add footer API
       //ExtractedPagePartOfSpeechData getFooterData();
    }
@@ -175,6 +248,58 @@ public interface ExtractedFeatures extends AutoCloseable
        * @return The number of times the token appeared in the data. May be zero.
        */
       int getCount(String token) throws HathiTrustClientException;
+      
+      /**
+       * Get the counts per part of speech of the given token as an array indexed by
+       * {@link PartOfSpeechCode#ordinal()}, with counts of codes that do not match a
+       * {@link PartOfSpeechCode} summed at {@link PartOfSpeechCode#UNKNOWN_ORDINAL}.
+       * 
+       * @param token
+       * @return A new array of length {@link PosCounts#SIZE}; all zero if the token has no POS data.
+       * @since 1.2
+       */
+      default int[] getPosCounts(String token) throws HathiTrustClientException
+      {
+         return getPosCounts(token, new PosCounts()).counts();
+      }
+      
+      /**
+       * Get the counts per part of speech of the given token into a reusable holder. The holder
+       * is cleared first.
+       * 
+       * @param token
+       * @param counts The holder to fill.
+       * @return The provided holder.
+       * @since 1.2
+       */
+      default PosCounts getPosCounts(String token, PosCounts counts) throws HathiTrustClientException
+      {
+         counts.clear();
+         for (Map.Entry<String, Integer> entry : getPosCount(token).entrySet())
+            counts.add(PartOfSpeechCode.ordinalOf(entry.getKey()), entry.getValue().intValue());
+         return counts;
+      }
+      
+      /**
+       * Visit the part-of-speech counts of every token in this data set.
+       * <p>
+       * The default implementation is based on {@link #tokens()} and {@link #getPosCount(String)};
+       * implementations may traverse their data directly without allocating per token.
+       * 
+       * @param visitor
+       * @throws HathiTrustClientException
+       * @since 1.2
+       */
+      default void forEachTokenPos(TokenPosVisitor visitor) throws HathiTrustClientException
+      {
+         for (String token : tokens())
+         {
+            for (Map.Entry<String, Integer> entry : getPosCount(token).entrySet())
+            {
+               visitor.visit(token, PartOfSpeechCode.ordinalOf(entry.getKey()), entry.getValue().intValue());
+            }
+         }
+      }
    }
 }
 
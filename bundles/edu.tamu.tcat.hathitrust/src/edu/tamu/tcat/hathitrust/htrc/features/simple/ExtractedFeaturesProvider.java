@@ -15,6 +15,15 @@
  */
 package edu.tamu.tcat.hathitrust.htrc.features.simple;
 
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 import edu.tamu.tcat.hathitrust.HathiTrustClientException;
 
 /**
@@ -30,8 +39,209 @@ public interface ExtractedFeaturesProvider
     *
     * @param htrcVolumeId
     * @return An {@link ExtractedFeatures} to access data for the volume. Does not
-    *         return {@code null}
+    *         return {@code null}. The caller should close it when done;
+    *         other callers may share the same instance.
     * @throws HathiTrustClientException If no volume feature metadata can be found.
     */
    ExtractedFeatures getExtractedFeatures(String htrcVolumeId) throws HathiTrustClientException;
+
+   /**
+    * Get an {@link ExtractedFeatures} for the given HTRC Volume Identifier, loading at least the
+    * data selected by the given options. Data not selected may be unavailable.
+    * <p>
+    * The default implementation ignores the options and returns the complete volume.
+    *
+    * @param htrcVolumeId
+    * @param options The data the caller needs.
+    * @return An {@link ExtractedFeatures} to access data for the volume. Does not
+    *         return {@code null}
+    * @throws HathiTrustClientException If no volume feature metadata can be found.
+    * @since 1.2
+    */
+   default ExtractedFeatures getExtractedFeatures(String htrcVolumeId, LoadOptions options) throws HathiTrustClientException
+   {
+      return getExtractedFeatures(htrcVolumeId);
+   }
+
+   /**
+    * Get an {@link ExtractedFeatures} for the given HTRC Volume Identifier without blocking the
+    * calling thread while the volume loads. The returned future completes once volume-level
+    * values such as {@link ExtractedFeatures#pageCount()} can be read without blocking.
+    * <p>
+    * On successful completion the caller holds the volume and should close it when done, as for
+    * {@link #getExtractedFeatures(String)}. Cancelling the future before it completes releases
+    * the volume and may interrupt its load if no other caller holds it.
+    * <p>
+    * The default implementation calls {@link #getExtractedFeatures(String)} and returns a
+    * completed future.
+    *
+    * @param htrcVolumeId
+    * @return A future completed with the volume, or exceptionally with a
+    *         {@link HathiTrustClientException} if it cannot be found or loaded.
+    * @since 1.2
+    */
+   default CompletableFuture<ExtractedFeatures> getExtractedFeaturesAsync(String htrcVolumeId)
+   {
+      CompletableFuture<ExtractedFeatures> result = new CompletableFuture<>();
+      try
+      {
+         result.complete(getExtractedFeatures(htrcVolumeId));
+      }
+      catch (HathiTrustClientException | RuntimeException e)
+      {
+         result.completeExceptionally(e);
+      }
+      return result;
+   }
+
+   /**
+    * Get an {@link ExtractedFeatures} for the given HTRC Volume Identifier without blocking,
+    * loading at least the data selected by the given options.
+    * <p>
+    * The default implementation calls {@link #getExtractedFeatures(String, LoadOptions)} and
+    * returns a completed future.
+    *
+    * @see #getExtractedFeaturesAsync(String)
+    * @since 1.2
+    */
+   default CompletableFuture<ExtractedFeatures> getExtractedFeaturesAsync(String htrcVolumeId, LoadOptions options)
+   {
+      CompletableFuture<ExtractedFeatures> result = new CompletableFuture<>();
+      try
+      {
+         result.complete(getExtractedFeatures(htrcVolumeId, options));
+      }
+      catch (HathiTrustClientException | RuntimeException e)
+      {
+         result.completeExceptionally(e);
+      }
+      return result;
+   }
+
+   /**
+    * Stream the volumes with the given identifiers, in order. Equivalent to
+    * {@code stream(htrcVolumeIds, options, true)}.
+    *
+    * @since 1.2
+    * @see #stream(Iterable, LoadOptions, boolean)
+    */
+   default Stream<ExtractedFeatures> stream(Iterable<String> htrcVolumeIds, LoadOptions options)
+   {
+      return stream(htrcVolumeIds, options, true);
+   }
+
+   /**
+    * Stream the volumes with the given identifiers for bulk processing. Each volume is valid only
+    * while the stream's action for it runs, and is closed once the action returns; callers must
+    * not retain volumes or data views obtained from them. The stream should be closed, for
+    * example with try-with-resources, to release volumes acquired but not yet consumed when the
+    * stream is abandoned early.
+    * <p>
+    * Failure to access a volume terminates the stream with an {@link IllegalStateException}
+    * wrapping the {@link HathiTrustClientException}.
+    * <p>
+    * The default implementation accesses each volume as the stream reaches it. Implementations
+    * may load volumes ahead of the consumer and, when unordered, supply volumes as their loads
+    * complete and process a parallel stream on several threads.
+    *
+    * @param htrcVolumeIds The volumes to stream. Iterated once, lazily.
+    * @param options The data the caller needs from each volume.
+    * @param ordered Whether volumes must be supplied in the order of their identifiers.
+    * @since 1.2
+    */
+   default Stream<ExtractedFeatures> stream(Iterable<String> htrcVolumeIds, LoadOptions options, boolean ordered)
+   {
+      Iterator<String> ids = htrcVolumeIds.iterator();
+      Spliterator<ExtractedFeatures> volumes = new Spliterators.AbstractSpliterator<ExtractedFeatures>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL)
+      {
+         @Override
+         public boolean tryAdvance(Consumer<? super ExtractedFeatures> action)
+         {
+            if (!ids.hasNext())
+               return false;
+
+            String id = ids.next();
+            try (ExtractedFeatures ef = getExtractedFeatures(id, options))
+            {
+               action.accept(ef);
+            }
+            catch (HathiTrustClientException e)
+            {
+               throw new IllegalStateException("Failed accessing volume [" + id + "]", e);
+            }
+            catch (RuntimeException e)
+            {
+               throw e;
+            }
+            catch (Exception e)
+            {
+               throw new IllegalStateException("Failed closing volume [" + id + "]", e);
+            }
+            return true;
+         }
+      };
+
+      return StreamSupport.stream(volumes, false);
+   }
+
+   /**
+    * Stream the pages of a volume in order, for a single forward pass over a volume too large to
+    * hold in memory. Each page should be used only while the stream's action for it runs, so that
+    * it can be discarded before the next page is read. The stream must be closed, for example
+    * with try-with-resources, to release the volume.
+    * <p>
+    * Failure to access a page terminates the stream with an {@link IllegalStateException}
+    * wrapping the {@link HathiTrustClientException}.
+    * <p>
+    * The default implementation accesses the pages of the volume returned by
+    * {@link #getExtractedFeatures(String, LoadOptions)}. Implementations may instead decode pages
+    * as the stream advances, so that memory use is bounded by a single page.
+    *
+    * @param htrcVolumeId The volume to read.
+    * @param options The data the caller needs from each page.
+    * @throws HathiTrustClientException If the volume could not be accessed.
+    * @since 1.2
+    */
+   default Stream<ExtractedFeatures.ExtractedPageFeatures> streamPages(String htrcVolumeId, LoadOptions options) throws HathiTrustClientException
+   {
+      ExtractedFeatures ef = getExtractedFeatures(htrcVolumeId, options);
+      Runnable close = () ->
+      {
+         try
+         {
+            ef.close();
+         }
+         catch (RuntimeException e)
+         {
+            throw e;
+         }
+         catch (Exception e)
+         {
+            throw new IllegalStateException("Failed closing volume [" + htrcVolumeId + "]", e);
+         }
+      };
+
+      int pages;
+      try
+      {
+         pages = ef.pageCount();
+      }
+      catch (HathiTrustClientException | RuntimeException e)
+      {
+         close.run();
+         throw e;
+      }
+
+      return IntStream.range(0, pages).mapToObj(i ->
+      {
+         try
+         {
+            return ef.getPage(i);
+         }
+         catch (HathiTrustClientException e)
+         {
+            throw new IllegalStateException("Failed accessing page [" + i + "] of volume [" + htrcVolumeId + "]", e);
+         }
+      }).onClose(close);
+   }
 }
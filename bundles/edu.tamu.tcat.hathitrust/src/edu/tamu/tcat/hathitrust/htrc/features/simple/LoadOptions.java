@@ -0,0 +1,303 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Describes the data a caller needs from a volume, so that a provider may avoid decoding and
+ * retaining the rest. Options select the page sections to keep, whether their token
+ * part-of-speech counts are kept, and which tokens and parts of speech are kept.
+ * <p>
+ * Options are a lower bound: data selected by the options is complete, while data outside them
+ * may or may not be available. Accessing a section that was not selected may fail as though the
+ * section were absent, and tokens that were filtered out report no counts. A provider may ignore
+ * the options entirely, for example when it already holds the complete volume.
+ * <p>
+ * Page-level values (<tt>seq</tt>, <tt>tokenCount</tt>, <tt>lineCount</tt>) and volume metadata
+ * are always available.
+ * <p>
+ * For listings which read only volume-level values, {@link #METADATA} lets a provider read these
+ * without decoding page data.
+ *
+ * @see ExtractedFeaturesProvider#getExtractedFeatures(String, LoadOptions)
+ * @since 1.2
+ */
+public final class LoadOptions
+{
+   /**
+    * The sections of a page holding token data.
+    */
+   public enum Section
+   {
+      HEADER, BODY, FOOTER
+   }
+
+   /**
+    * Options selecting all data.
+    */
+   public static final LoadOptions ALL = new Builder().build();
+
+   /**
+    * Options selecting volume-level values only: volume metadata, <tt>features.dateCreated</tt>
+    * and <tt>features.pageCount</tt>. No page sections are selected.
+    *
+    * @see Builder#setMetadataOnly(boolean)
+    */
+   public static final LoadOptions METADATA = new Builder().setMetadataOnly(true).build();
+
+   private final Set<Section> sections;
+   private final boolean tokenPosCount;
+   private final Set<String> vocabulary;
+   private final Set<String> stopwords;
+   private final Set<PartOfSpeechCode> partsOfSpeech;
+   private final boolean[] posAccepted;
+   private final boolean metadataOnly;
+   private final int hash;
+
+   private LoadOptions(Builder b)
+   {
+      metadataOnly = b.metadataOnly;
+      // the builder holds an EnumSet, so copying is safe when empty
+      sections = Collections.unmodifiableSet(metadataOnly ? EnumSet.noneOf(Section.class) : EnumSet.copyOf(b.sections));
+      tokenPosCount = b.tokenPosCount && !metadataOnly;
+      vocabulary = b.vocabulary == null ? null : Collections.unmodifiableSet(new HashSet<>(b.vocabulary));
+      stopwords = Collections.unmodifiableSet(new HashSet<>(b.stopwords));
+      if (b.partsOfSpeech == null)
+         partsOfSpeech = null;
+      else
+      {
+         Set<PartOfSpeechCode> pos = EnumSet.noneOf(PartOfSpeechCode.class);
+         pos.addAll(b.partsOfSpeech);
+         partsOfSpeech = Collections.unmodifiableSet(pos);
+      }
+
+      posAccepted = new boolean[PartOfSpeechCode.UNKNOWN_ORDINAL + 1];
+      for (PartOfSpeechCode pc : PartOfSpeechCode.values())
+         posAccepted[pc.ordinal()] = partsOfSpeech == null || partsOfSpeech.contains(pc);
+      posAccepted[PartOfSpeechCode.UNKNOWN_ORDINAL] = partsOfSpeech == null;
+
+      // vocabularies may be large; hash once
+      hash = Objects.hash(sections, Boolean.valueOf(tokenPosCount), vocabulary, stopwords, partsOfSpeech, Boolean.valueOf(metadataOnly));
+   }
+
+   public static Builder builder()
+   {
+      return new Builder();
+   }
+
+   /**
+    * @return The page sections whose data is kept.
+    */
+   public Set<Section> getSections()
+   {
+      return sections;
+   }
+
+   /**
+    * @return Whether the token part-of-speech counts of the selected sections are kept.
+    */
+   public boolean isTokenPosCount()
+   {
+      return tokenPosCount;
+   }
+
+   /**
+    * @return The tokens to keep, or {@code null} to keep all tokens not in {@link #getStopwords()}.
+    */
+   public Set<String> getVocabulary()
+   {
+      return vocabulary;
+   }
+
+   /**
+    * @return Tokens to discard. Does not return {@code null}.
+    */
+   public Set<String> getStopwords()
+   {
+      return stopwords;
+   }
+
+   /**
+    * @return The parts of speech to keep, or {@code null} to keep all, including raw codes which
+    *         do not match a {@link PartOfSpeechCode}.
+    */
+   public Set<PartOfSpeechCode> getPartsOfSpeech()
+   {
+      return partsOfSpeech;
+   }
+
+   /**
+    * @return Whether only volume-level values are selected, so that these may be read without
+    *         decoding page data.
+    */
+   public boolean isMetadataOnly()
+   {
+      return metadataOnly;
+   }
+
+   /**
+    * @return {@code true} if these options select all data.
+    */
+   public boolean isComplete()
+   {
+      return equals(ALL);
+   }
+
+   public boolean accepts(Section section)
+   {
+      return sections.contains(section);
+   }
+
+   /**
+    * @return Whether the given token passes the vocabulary and stopword filters.
+    */
+   public boolean acceptsToken(String token)
+   {
+      if (vocabulary != null && !vocabulary.contains(token))
+         return false;
+      return !stopwords.contains(token);
+   }
+
+   /**
+    * @param posOrdinal A {@link PartOfSpeechCode#ordinal()} or {@link PartOfSpeechCode#UNKNOWN_ORDINAL}
+    * @return Whether the part of speech passes the part-of-speech filter.
+    */
+   public boolean acceptsPartOfSpeech(int posOrdinal)
+   {
+      return posAccepted[posOrdinal];
+   }
+
+   @Override
+   public boolean equals(Object obj)
+   {
+      if (this == obj)
+         return true;
+      if (!(obj instanceof LoadOptions))
+         return false;
+
+      LoadOptions o = (LoadOptions)obj;
+      return hash == o.hash
+            && metadataOnly == o.metadataOnly
+            && tokenPosCount == o.tokenPosCount
+            && sections.equals(o.sections)
+            && Objects.equals(partsOfSpeech, o.partsOfSpeech)
+            && stopwords.equals(o.stopwords)
+            && Objects.equals(vocabulary, o.vocabulary);
+   }
+
+   @Override
+   public int hashCode()
+   {
+      return hash;
+   }
+
+   @Override
+   public String toString()
+   {
+      if (metadataOnly)
+         return "load options[metadata only]";
+      return "load options[sections " + sections
+            + (tokenPosCount ? "" : ", no tokens")
+            + (vocabulary == null ? "" : ", vocabulary of " + vocabulary.size())
+            + (stopwords.isEmpty() ? "" : ", " + stopwords.size() + " stopwords")
+            + (partsOfSpeech == null ? "" : ", parts of speech " + partsOfSpeech)
+            + "]";
+   }
+
+   public static class Builder
+   {
+      private Set<Section> sections = EnumSet.allOf(Section.class);
+      private boolean tokenPosCount = true;
+      private Collection<String> vocabulary;
+      private Collection<String> stopwords = Collections.emptySet();
+      private Collection<PartOfSpeechCode> partsOfSpeech;
+      private boolean metadataOnly;
+
+      /**
+       * Select the page sections to keep. Defaults to all sections.
+       */
+      public Builder setSections(Section... sections)
+      {
+         this.sections = EnumSet.noneOf(Section.class);
+         this.sections.addAll(Arrays.asList(sections));
+         return this;
+      }
+
+      /**
+       * Set whether token part-of-speech counts are kept. Disable when only page-level values such
+       * as <tt>tokenCount</tt> are needed. Defaults to {@code true}.
+       */
+      public Builder setTokenPosCount(boolean keep)
+      {
+         this.tokenPosCount = keep;
+         return this;
+      }
+
+      /**
+       * Keep only the given tokens, or all tokens if {@code null} (the default). Tokens are
+       * matched exactly, including case.
+       */
+      public Builder setVocabulary(Collection<String> vocabulary)
+      {
+         this.vocabulary = vocabulary;
+         return this;
+      }
+
+      /**
+       * Discard the given tokens. Tokens are matched exactly, including case.
+       */
+      public Builder setStopwords(Collection<String> stopwords)
+      {
+         this.stopwords = Objects.requireNonNull(stopwords);
+         return this;
+      }
+
+      /**
+       * Keep only counts of the given parts of speech, or all counts if {@code null} (the default).
+       * When set, counts of raw codes which do not match a {@link PartOfSpeechCode} are discarded.
+       */
+      public Builder setPartsOfSpeech(Collection<PartOfSpeechCode> partsOfSpeech)
+      {
+         this.partsOfSpeech = partsOfSpeech;
+         return this;
+      }
+
+      /**
+       * Select only volume-level values. Volume metadata, <tt>features.dateCreated</tt> and
+       * <tt>features.pageCount</tt> are then read by parsing only until they are found, which
+       * avoids decoding the pages of most archives. Page-level values remain available, but are
+       * decoded separately on first access. Overrides the section and token selections.
+       * Defaults to {@code false}.
+       */
+      public Builder setMetadataOnly(boolean metadataOnly)
+      {
+         this.metadataOnly = metadataOnly;
+         return this;
+      }
+
+      public LoadOptions build()
+      {
+         return new LoadOptions(this);
+      }
+   }
+}
@@ -15,6 +15,9 @@
  */
 package edu.tamu.tcat.hathitrust.htrc.features.simple;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Codes for parts of speech as used by the Penn Treebank Project.
  *
@@ -60,6 +63,23 @@ public enum PartOfSpeechCode
    WP$("Possessive wh-pronoun"),
    WRB("Wh-adverb");
 
+   /**
+    * The part-of-speech ordinal used for tags that do not match any {@link PartOfSpeechCode}.
+    * This is one greater than the largest {@link #ordinal()}, so arrays indexed by ordinal can
+    * reserve it as an overflow slot.
+    *
+    * @see TokenPosVisitor
+    * @since 1.2
+    */
+   public static final int UNKNOWN_ORDINAL = values().length;
+
+   private static final Map<String, PartOfSpeechCode> CODES = new HashMap<>();
+   static
+   {
+      for (PartOfSpeechCode pc : values())
+         CODES.put(pc.name(), pc);
+   }
+
    private final String title;
 
    private PartOfSpeechCode(String title)
@@ -82,10 +102,21 @@ public enum PartOfSpeechCode
     */
    public static PartOfSpeechCode get(String code)
    {
-      try {
-         return PartOfSpeechCode.valueOf(code);
-      } catch (Exception e) {
-         return null;
-      }
+      // table lookup; valueOf throws for the many unmatched codes in the data
+      return code == null ? null : CODES.get(code);
+   }
+
+   /**
+    * Get the ordinal of the {@link PartOfSpeechCode} matching the provided code without
+    * resolving an instance.
+    *
+    * @param code
+    * @return The ordinal of the matching instance, or {@link #UNKNOWN_ORDINAL} if no match is found.
+    * @since 1.2
+    */
+   public static int ordinalOf(String code)
+   {
+      PartOfSpeechCode pc = get(code);
+      return pc == null ? UNKNOWN_ORDINAL : pc.ordinal();
    }
 }
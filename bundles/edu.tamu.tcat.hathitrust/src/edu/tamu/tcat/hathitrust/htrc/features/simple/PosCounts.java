@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple;
+
+import java.util.Arrays;
+
+/**
+ * A mutable holder of counts per part of speech, indexed by {@link PartOfSpeechCode#ordinal()}
+ * with an overflow slot at {@link PartOfSpeechCode#UNKNOWN_ORDINAL} for codes which do not match
+ * a {@link PartOfSpeechCode}. Instances are intended to be reused across calls to
+ * {@link ExtractedFeatures.ExtractedPagePartOfSpeechData#getPosCounts(String, PosCounts)}, or to
+ * accumulate counts across tokens and pages.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @since 1.2
+ */
+public final class PosCounts
+{
+   /** The length of arrays of counts indexed by part-of-speech ordinal, including the overflow slot. */
+   public static final int SIZE = PartOfSpeechCode.UNKNOWN_ORDINAL + 1;
+
+   private final int[] counts = new int[SIZE];
+
+   /**
+    * Reset all counts to zero.
+    */
+   public PosCounts clear()
+   {
+      Arrays.fill(counts, 0);
+      return this;
+   }
+
+   /**
+    * @param posOrdinal A {@link PartOfSpeechCode#ordinal()} or {@link PartOfSpeechCode#UNKNOWN_ORDINAL}
+    * @param count The count to add.
+    */
+   public PosCounts add(int posOrdinal, int count)
+   {
+      counts[posOrdinal] += count;
+      return this;
+   }
+
+   /**
+    * @param posOrdinal A {@link PartOfSpeechCode#ordinal()} or {@link PartOfSpeechCode#UNKNOWN_ORDINAL}
+    */
+   public int get(int posOrdinal)
+   {
+      return counts[posOrdinal];
+   }
+
+   public int get(PartOfSpeechCode code)
+   {
+      return counts[code.ordinal()];
+   }
+
+   /**
+    * @return The count of codes which do not match a {@link PartOfSpeechCode}.
+    */
+   public int getUnknown()
+   {
+      return counts[PartOfSpeechCode.UNKNOWN_ORDINAL];
+   }
+
+   /**
+    * @return The sum of all counts, including unknown codes.
+    */
+   public int total()
+   {
+      int sum = 0;
+      for (int c : counts)
+         sum += c;
+      return sum;
+   }
+
+   /**
+    * @return The backing array of counts, of length {@link #SIZE}. Changes to the array are
+    *         reflected in this holder.
+    */
+   public int[] counts()
+   {
+      return counts;
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder("pos counts[");
+      PartOfSpeechCode[] codes = PartOfSpeechCode.values();
+      boolean first = true;
+      for (int i = 0; i < counts.length; ++i)
+      {
+         if (counts[i] == 0)
+            continue;
+         if (!first)
+            sb.append(", ");
+         first = false;
+         sb.append(i < codes.length ? codes[i].name() : "unknown").append('=').append(counts[i]);
+      }
+      return sb.append(']').toString();
+   }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple;
+
+/**
+ * A callback receiving the token part-of-speech counts of page data, as an alternative to
+ * {@link ExtractedFeatures.ExtractedPagePartOfSpeechData#tokens()} and
+ * {@link ExtractedFeatures.ExtractedPagePartOfSpeechData#getPosCount(String)} which avoids
+ * allocating per token.
+ * <p>
+ * A token appearing as several parts of speech is visited once per part of speech, in
+ * consecutive calls.
+ *
+ * @see ExtractedFeatures.ExtractedPagePartOfSpeechData#forEachTokenPos(TokenPosVisitor)
+ * @see ExtractedFeatures#forEachTokenPos(TokenPosVisitor)
+ * @since 1.2
+ */
+@FunctionalInterface
+public interface TokenPosVisitor
+{
+   /**
+    * Called before the tokens of each page when visiting a whole volume. Not called when visiting
+    * a single page.
+    *
+    * @param page The zero-based index of the page whose tokens follow.
+    */
+   default void startPage(int page)
+   {
+      // no-op
+   }
+
+   /**
+    * @param token The token. Implementations may reuse the instance between calls, so it must
+    *        not be retained or used after this method returns; use {@link CharSequence#toString()}
+    *        to keep a copy.
+    * @param posOrdinal The {@link PartOfSpeechCode#ordinal()} of the token's part of speech, or
+    *        {@link PartOfSpeechCode#UNKNOWN_ORDINAL} if the raw code does not match a
+    *        {@link PartOfSpeechCode}.
+    * @param count The number of times the token appears as this part of speech.
+    */
+   void visit(CharSequence token, int posOrdinal, int count);
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decodes the content of an archive into the JSON of an Extracted Features volume. The codec of
+ * each archive is detected from its leading bytes rather than its file name, so a dataset may be
+ * re-encoded without renaming its files.
+ *
+ * @see StandardArchiveCodec
+ * @see DefaultExtractedFeaturesProvider.Builder#setCodecs(ArchiveCodec...)
+ * @since 1.2
+ */
+public interface ArchiveCodec
+{
+   /**
+    * The number of leading bytes of an archive passed to {@link #matches(ByteBuffer)}.
+    */
+   int HEADER_LENGTH = 16;
+
+   /**
+    * @return A short name for the encoding, for logging.
+    */
+   String getName();
+
+   /**
+    * @param header Up to {@link #HEADER_LENGTH} leading bytes of an archive, from the buffer's
+    *        position to its limit. Fewer bytes are supplied only if the archive is shorter.
+    * @return Whether this codec decodes the archive.
+    */
+   boolean matches(ByteBuffer header);
+
+   /**
+    * Decode a stream of archive content.
+    *
+    * @param in The encoded archive. Closing the returned stream closes this stream.
+    * @return The decoded JSON.
+    */
+   InputStream decode(InputStream in) throws IOException;
+
+   /**
+    * Decode a complete archive held in memory. Codecs able to decode parts of an archive
+    * independently may do so concurrently on the given pool.
+    *
+    * @param archive The encoded archive, from its position to its limit. Must not be modified
+    *        while the returned stream is in use.
+    * @param pool A pool for concurrent decoding, or {@code null} if the archive should be decoded
+    *        on the calling thread.
+    * @return The decoded JSON.
+    */
+   default InputStream decode(ByteBuffer archive, ForkJoinPool pool) throws IOException
+   {
+      return decode(new ByteBufferInputStream(archive));
+   }
+
+   /**
+    * Decode an archive stream with the codec detected from its leading bytes.
+    *
+    * @param in The encoded archive. Closing the returned stream closes this stream; if decoding
+    *        fails, it is closed before the exception is thrown.
+    * @return The decoded JSON.
+    * @throws IOException If no codec matches or the stream could not be read.
+    */
+   static InputStream decode(List<? extends ArchiveCodec> codecs, InputStream in) throws IOException
+   {
+      try
+      {
+         if (!in.markSupported())
+            in = new BufferedInputStream(in, 1 << 16);
+         return detect(codecs, in).decode(in);
+      }
+      catch (IOException | RuntimeException e)
+      {
+         in.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Find the codec of an archive held in memory.
+    *
+    * @return The first of the given codecs matching the archive's leading bytes.
+    * @throws IOException If no codec matches.
+    */
+   static ArchiveCodec detect(List<? extends ArchiveCodec> codecs, ByteBuffer archive) throws IOException
+   {
+      ByteBuffer header = archive.duplicate();
+      header.limit(header.position() + Math.min(header.remaining(), HEADER_LENGTH));
+      return detectHeader(codecs, header);
+   }
+
+   /**
+    * Find the codec of an archive stream without consuming any of its bytes.
+    *
+    * @param in The archive, which must support {@link InputStream#mark(int)}.
+    * @return The first of the given codecs matching the archive's leading bytes.
+    * @throws IOException If no codec matches or the stream could not be read.
+    */
+   static ArchiveCodec detect(List<? extends ArchiveCodec> codecs, InputStream in) throws IOException
+   {
+      if (!in.markSupported())
+         throw new IllegalArgumentException("Stream does not support mark [" + in + "]");
+
+      byte[] header = new byte[HEADER_LENGTH];
+      int len = 0;
+      in.mark(HEADER_LENGTH);
+      try
+      {
+         while (len < header.length)
+         {
+            int n = in.read(header, len, header.length - len);
+            if (n < 0)
+               break;
+            len += n;
+         }
+      }
+      finally
+      {
+         in.reset();
+      }
+
+      return detectHeader(codecs, ByteBuffer.wrap(header, 0, len));
+   }
+
+   static ArchiveCodec detectHeader(List<? extends ArchiveCodec> codecs, ByteBuffer header) throws IOException
+   {
+      for (ArchiveCodec codec : codecs)
+      {
+         if (codec.matches(header.duplicate()))
+            return codec;
+      }
+
+      throw new IOException("Unrecognized archive encoding " + codecs);
+   }
+}
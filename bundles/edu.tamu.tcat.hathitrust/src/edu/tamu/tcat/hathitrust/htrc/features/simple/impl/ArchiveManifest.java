@@ -0,0 +1,708 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.tamu.tcat.pairtree.Pairtree;
+
+/**
+ * A persistent index of the archives present in an Extracted Features dataset, so that volumes
+ * are resolved without probing the file system. This matters on network storage, where each
+ * probe of a deep pairtree path is a round trip.
+ * <p>
+ * The manifest is built once by walking the "basic" and "advanced" pairtrees in parallel, and is
+ * memory-mapped and binary searched on lookup. Volumes not in the manifest are probed by the
+ * caller, which reports the outcome through {@link #found(String, Path, Path)}: volumes found are
+ * held in memory until {@link #refresh()} merges them into the file, and volumes not found are
+ * remembered for a while so repeated requests for missing volumes do not probe again. Volumes
+ * whose archives disappear are dropped through {@link #remove(String)}.
+ * <p>
+ * Entries are keyed by the volume's pairtree file name prefix (the source and the cleaned
+ * object identifier), and store the relative path of each archive only when it differs from the
+ * path derived from the key. The file layout (all values big-endian) is:
+ * <pre>
+ *   int     magic ("HTMF")
+ *   int     format version
+ *   int     entry count
+ *   int[]   record offsets, relative to the first record [entries + 1]
+ *   records, sorted by key bytes:
+ *     short   key length, followed by the UTF-8 key
+ *     byte    flags: basic present, advanced present, basic path stored, advanced path stored
+ *     [short  length, followed by the UTF-8 basic path, if stored]
+ *     [short  length, followed by the UTF-8 advanced path, if stored]
+ * </pre>
+ * Stored paths are relative to the dataset root and use '/' separators.
+ *
+ * @since 1.2
+ */
+class ArchiveManifest
+{
+   private static final Logger debug = Logger.getLogger(ArchiveManifest.class.getName());
+
+   static final int MAGIC = 0x48544D46;
+   static final int FORMAT_VERSION = 1;
+
+   static final String TYPE_BASIC = "basic";
+   static final String TYPE_ADVANCED = "advanced";
+   private static final String ARCHIVE_SUFFIX = ".json.bz2";
+
+   private static final int FLAG_BASIC = 1;
+   private static final int FLAG_ADVANCED = 2;
+   private static final int FLAG_BASIC_PATH = 4;
+   private static final int FLAG_ADVANCED_PATH = 8;
+   private static final int HEADER_SIZE = 12;
+
+   // missing volumes are probed again after this long, in case they have been added
+   private static final long NEGATIVE_TTL_NANOS = TimeUnit.MINUTES.toNanos(10);
+   private static final int NEGATIVE_CAPACITY = 1 << 16;
+
+   /**
+    * The archives of a volume; either may be {@code null} if absent.
+    */
+   static final class Entry
+   {
+      final Path basic;
+      final Path advanced;
+
+      Entry(Path basic, Path advanced)
+      {
+         this.basic = basic;
+         this.advanced = advanced;
+      }
+
+      boolean isEmpty()
+      {
+         return basic == null && advanced == null;
+      }
+   }
+
+   /**
+    * Returned by {@link ArchiveManifest#lookup(String)} for volumes known to be missing.
+    */
+   static final Entry MISSING = new Entry(null, null);
+
+   private final Path root;
+   private final Path file;
+
+   private volatile ByteBuffer mapped;
+   // volumes found or removed since the file was written; removed volumes map to MISSING
+   private final Map<String, Entry> overlay = new ConcurrentHashMap<>();
+   //@GuardedBy("negative")
+   private final LinkedHashMap<String, Long> negative = new LinkedHashMap<String, Long>(16, 0.75f, true)
+   {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+      {
+         return size() > NEGATIVE_CAPACITY;
+      }
+   };
+
+   private ArchiveManifest(Path root, Path file, ByteBuffer mapped)
+   {
+      this.root = root;
+      this.file = file;
+      this.mapped = mapped;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "manifest[" + file + "]";
+   }
+
+   /**
+    * Open the manifest of a dataset, building it first if the file does not exist or cannot be
+    * read.
+    *
+    * @param root The dataset root, containing the "basic" and "advanced" pairtrees.
+    * @param file The manifest file.
+    */
+   static ArchiveManifest open(Path root, Path file) throws IOException
+   {
+      ByteBuffer buf = map(file);
+      if (buf == null)
+      {
+         build(root, file);
+         buf = map(file);
+         if (buf == null)
+            throw new IOException("Failed reading manifest after building it " + file);
+      }
+      return new ArchiveManifest(root, file, buf);
+   }
+
+   /**
+    * @return The mapped file, or {@code null} if it does not exist or has an unknown format.
+    */
+   private static ByteBuffer map(Path file) throws IOException
+   {
+      if (!Files.isRegularFile(file))
+         return null;
+
+      ByteBuffer buf;
+      try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      }
+
+      if (buf.remaining() < HEADER_SIZE + 4 || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION)
+      {
+         debug.fine("Ignoring manifest with unknown format " + file);
+         return null;
+      }
+      return buf;
+   }
+
+   /**
+    * Build the manifest of a dataset by walking its pairtrees.
+    */
+   static void build(Path root, Path file) throws IOException
+   {
+      long start = System.nanoTime();
+      Map<String, Record> records = walk(root);
+      write(file, records.values());
+      debug.info("Built manifest of " + records.size() + " volumes in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms " + file);
+   }
+
+   /**
+    * Find the archives of all volumes of a dataset by walking its pairtrees.
+    *
+    * @return The archives of each volume, keyed by manifest {@link #key(String) key}.
+    */
+   static Map<String, Entry> scan(Path root) throws IOException
+   {
+      Map<String, Entry> entries = new HashMap<>();
+      for (Record r : walk(root).values())
+         entries.put(r.key, new Entry(r.basicFile, r.advancedFile));
+      return entries;
+   }
+
+   /**
+    * Walk the pairtrees of a dataset, one pairtree branch per task.
+    */
+   private static Map<String, Record> walk(Path root) throws IOException
+   {
+      List<Branch> branches = new ArrayList<>();
+      for (String type : new String[] { TYPE_BASIC, TYPE_ADVANCED })
+      {
+         Path typeRoot = root.resolve(type);
+         if (!Files.isDirectory(typeRoot))
+            continue;
+
+         try (DirectoryStream<Path> sources = Files.newDirectoryStream(typeRoot))
+         {
+            for (Path src : sources)
+            {
+               Path ptRoot = src.resolve("pairtree_root");
+               if (!Files.isDirectory(ptRoot))
+                  continue;
+
+               try (DirectoryStream<Path> children = Files.newDirectoryStream(ptRoot))
+               {
+                  for (Path child : children)
+                     branches.add(new Branch(type, child));
+               }
+            }
+         }
+      }
+
+      Map<String, Record> records = new ConcurrentHashMap<>();
+      try
+      {
+         branches.parallelStream().forEach(b -> b.walk(root, records));
+      }
+      catch (UncheckedIOException e)
+      {
+         throw e.getCause();
+      }
+      return records;
+   }
+
+   /**
+    * A directory below a <tt>pairtree_root</tt>, or an archive directly within it.
+    */
+   private static class Branch
+   {
+      private final String type;
+      private final Path dir;
+
+      Branch(String type, Path dir)
+      {
+         this.type = type;
+         this.dir = dir;
+      }
+
+      void walk(Path root, Map<String, Record> records)
+      {
+         String suffix = "." + type + ARCHIVE_SUFFIX;
+         try
+         {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+            {
+               @Override
+               public FileVisitResult visitFile(Path f, BasicFileAttributes attrs)
+               {
+                  String name = f.getFileName().toString();
+                  if (attrs.isRegularFile() && name.endsWith(suffix))
+                  {
+                     String key = name.substring(0, name.length() - suffix.length());
+                     records.computeIfAbsent(key, Record::new).add(root, type, f);
+                  }
+                  return FileVisitResult.CONTINUE;
+               }
+
+               @Override
+               public FileVisitResult visitFileFailed(Path f, IOException e)
+               {
+                  debug.log(Level.WARNING, "Skipping unreadable path while building manifest " + f, e);
+                  return FileVisitResult.CONTINUE;
+               }
+            });
+         }
+         catch (IOException e)
+         {
+            throw new UncheckedIOException(e);
+         }
+      }
+   }
+
+   /**
+    * A manifest entry while building or merging.
+    */
+   private static class Record
+   {
+      final String key;
+      final byte[] keyBytes;
+      int flags;
+      String basicPath;
+      String advancedPath;
+      Path basicFile;
+      Path advancedFile;
+
+      Record(String key)
+      {
+         this.key = key;
+         this.keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      }
+
+      synchronized void add(Path root, String type, Path archive)
+      {
+         boolean isBasic = type.equals(TYPE_BASIC);
+         flags |= isBasic ? FLAG_BASIC : FLAG_ADVANCED;
+         if (isBasic)
+            basicFile = archive;
+         else
+            advancedFile = archive;
+
+         // most archives lie where their key places them, so their paths need not be stored
+         if (archive.equals(derivePath(root, key, type)))
+            return;
+
+         StringBuilder sb = new StringBuilder();
+         for (Path part : root.relativize(archive))
+            sb.append(sb.length() == 0 ? "" : "/").append(part);
+         if (isBasic)
+         {
+            flags |= FLAG_BASIC_PATH;
+            basicPath = sb.toString();
+         }
+         else
+         {
+            flags |= FLAG_ADVANCED_PATH;
+            advancedPath = sb.toString();
+         }
+      }
+   }
+
+   private static void write(Path file, Collection<Record> records) throws IOException
+   {
+      // sort by key bytes, the order of lookup
+      List<Record> sorted = new ArrayList<>(records);
+      sorted.sort((a, b) -> compare(a.keyBytes, b.keyBytes));
+
+      int[] offsets = new int[sorted.size() + 1];
+      List<byte[]> encoded = new ArrayList<>(sorted.size());
+      for (int i = 0; i < sorted.size(); ++i)
+      {
+         byte[] rec = encode(sorted.get(i));
+         encoded.add(rec);
+         long end = (long)offsets[i] + rec.length;
+         if (end > Integer.MAX_VALUE - HEADER_SIZE - 4L * offsets.length)
+            throw new IOException("Manifest too large " + file);
+         offsets[i + 1] = (int)end;
+      }
+
+      SidecarCache.writeAtomically(file, out ->
+      {
+         out.writeInt(MAGIC);
+         out.writeInt(FORMAT_VERSION);
+         out.writeInt(encoded.size());
+         for (int off : offsets)
+            out.writeInt(off);
+         for (byte[] rec : encoded)
+            out.write(rec);
+      });
+   }
+
+   private static byte[] encode(Record r) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(r.keyBytes.length + 8);
+      DataOutputStream out = new DataOutputStream(bytes);
+      writeShortString(out, r.keyBytes);
+      out.writeByte(r.flags);
+      if ((r.flags & FLAG_BASIC_PATH) != 0)
+         writeShortString(out, r.basicPath.getBytes(StandardCharsets.UTF_8));
+      if ((r.flags & FLAG_ADVANCED_PATH) != 0)
+         writeShortString(out, r.advancedPath.getBytes(StandardCharsets.UTF_8));
+      return bytes.toByteArray();
+   }
+
+   private static void writeShortString(DataOutputStream out, byte[] b) throws IOException
+   {
+      if (b.length > 0xFFFF)
+         throw new IOException("Manifest value too long [" + b.length + " bytes]");
+      out.writeShort(b.length);
+      out.write(b);
+   }
+
+   private static int compare(byte[] a, byte[] b)
+   {
+      int n = Math.min(a.length, b.length);
+      for (int i = 0; i < n; ++i)
+      {
+         int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+         if (d != 0)
+            return d;
+      }
+      return a.length - b.length;
+   }
+
+   /**
+    * @return The manifest key of a volume: its source and cleaned object identifier, as in its
+    *         archive file names.
+    */
+   static String key(String htrcVolumeId)
+   {
+      int sepPos = htrcVolumeId.indexOf('.');
+      if (sepPos < 0)
+         throw new IllegalArgumentException("Parameter does not 'look like' a volume id ["+htrcVolumeId+"]");
+
+      return htrcVolumeId.substring(0, sepPos) + "." + Pairtree.toCleanEncodedId(htrcVolumeId.substring(sepPos+1));
+   }
+
+   /**
+    * Derive the path of a volume's archive from the volume identifier, following the layout of
+    * the Extracted Features dataset.
+    */
+   static Path archivePath(Path root, String htrcVolumeId, String type)
+   {
+      // Volume-id looks like "xxx.123456" and needs to be split into
+      // "xxx", "12", "34", "56", "xxx.123456.basic.json.bz2" parts
+
+      int sepPos = htrcVolumeId.indexOf('.');
+      if (sepPos < 0)
+         throw new IllegalArgumentException("Parameter does not 'look like' a volume id ["+htrcVolumeId+"]");
+
+      String src = htrcVolumeId.substring(0, sepPos);
+      String objId = htrcVolumeId.substring(sepPos+1);
+
+      Path ppath = Pairtree.toPPath(objId);
+      objId = Pairtree.toCleanEncodedId(objId);
+
+      return root.resolve(type)
+                 .resolve(src)
+                 .resolve("pairtree_root")
+                 .resolve(ppath)
+                 .resolve(objId)
+                 .resolve(src + "." + objId + "." + type + ARCHIVE_SUFFIX);
+   }
+
+   /**
+    * @return The path derived from a manifest key, or {@code null} if the key does not decode to
+    *         a volume identifier.
+    */
+   private static Path derivePath(Path root, String key, String type)
+   {
+      String vid = volumeId(key);
+      if (vid == null)
+         return null;
+
+      try
+      {
+         return archivePath(root, vid, type);
+      }
+      catch (IllegalArgumentException e)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * @return The volume identifier a manifest key was derived from, or {@code null} if the key
+    *         does not decode to a volume identifier.
+    */
+   static String volumeId(String key)
+   {
+      int sepPos = key.indexOf('.');
+      if (sepPos < 0)
+         return null;
+
+      try
+      {
+         return key.substring(0, sepPos) + "." + Pairtree.toRawDecodedId(key.substring(sepPos+1));
+      }
+      catch (IllegalArgumentException e)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * Find the archives of a volume.
+    *
+    * @return The volume's archives, {@link #MISSING} if the volume is known to be absent, or
+    *         {@code null} if the volume is unknown and should be probed.
+    */
+   Entry lookup(String htrcVolumeId)
+   {
+      String key = key(htrcVolumeId);
+      Entry entry = overlay.get(key);
+      if (entry == null)
+         entry = find(htrcVolumeId, key);
+      // a removed volume only shadows its mapped entry, and is probed unless known to be missing
+      if (entry != null && entry != MISSING)
+         return entry;
+
+      synchronized (negative)
+      {
+         Long expires = negative.get(key);
+         if (expires == null)
+            return null;
+         if (expires.longValue() - System.nanoTime() > 0)
+            return MISSING;
+         negative.remove(key);
+         return null;
+      }
+   }
+
+   /**
+    * Binary search the mapped file.
+    */
+   private Entry find(String htrcVolumeId, String key)
+   {
+      ByteBuffer buf = mapped;
+      byte[] k = key.getBytes(StandardCharsets.UTF_8);
+      int count = buf.getInt(8);
+      int base = HEADER_SIZE + 4 * (count + 1);
+
+      int lo = 0;
+      int hi = count - 1;
+      while (lo <= hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         int rec = base + buf.getInt(HEADER_SIZE + 4 * mid);
+         int c = compare(buf, rec, k);
+         if (c < 0)
+            lo = mid + 1;
+         else if (c > 0)
+            hi = mid - 1;
+         else
+            return decode(buf, rec, htrcVolumeId);
+      }
+      return null;
+   }
+
+   private static int compare(ByteBuffer buf, int rec, byte[] key)
+   {
+      int len = buf.getShort(rec) & 0xFFFF;
+      int n = Math.min(len, key.length);
+      for (int i = 0; i < n; ++i)
+      {
+         int d = (buf.get(rec + 2 + i) & 0xFF) - (key[i] & 0xFF);
+         if (d != 0)
+            return d;
+      }
+      return len - key.length;
+   }
+
+   private Entry decode(ByteBuffer buf, int rec, String htrcVolumeId)
+   {
+      int pos = rec + 2 + (buf.getShort(rec) & 0xFFFF);
+      int flags = buf.get(pos++);
+
+      Path basic = null;
+      Path advanced = null;
+      if ((flags & FLAG_BASIC_PATH) != 0)
+      {
+         int len = buf.getShort(pos) & 0xFFFF;
+         basic = root.resolve(readString(buf, pos + 2, len));
+         pos += 2 + len;
+      }
+      else if ((flags & FLAG_BASIC) != 0)
+         basic = archivePath(root, htrcVolumeId, TYPE_BASIC);
+
+      if ((flags & FLAG_ADVANCED_PATH) != 0)
+      {
+         int len = buf.getShort(pos) & 0xFFFF;
+         advanced = root.resolve(readString(buf, pos + 2, len));
+      }
+      else if ((flags & FLAG_ADVANCED) != 0)
+         advanced = archivePath(root, htrcVolumeId, TYPE_ADVANCED);
+
+      return new Entry(basic, advanced);
+   }
+
+   private static String readString(ByteBuffer buf, int pos, int len)
+   {
+      byte[] b = new byte[len];
+      for (int i = 0; i < len; ++i)
+         b[i] = buf.get(pos + i);
+      return new String(b, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Record the outcome of probing for a volume which was not in the manifest.
+    *
+    * @param basic The basic archive, or {@code null} if absent.
+    * @param advanced The advanced archive, or {@code null} if absent.
+    */
+   void found(String htrcVolumeId, Path basic, Path advanced)
+   {
+      String key = key(htrcVolumeId);
+      if (basic == null && advanced == null)
+      {
+         synchronized (negative)
+         {
+            negative.put(key, Long.valueOf(System.nanoTime() + NEGATIVE_TTL_NANOS));
+         }
+         return;
+      }
+
+      overlay.put(key, new Entry(basic, advanced));
+   }
+
+   /**
+    * Drop a volume whose archives were not found where the manifest placed them. The volume is
+    * probed on its next lookup.
+    */
+   void remove(String htrcVolumeId)
+   {
+      String key = key(htrcVolumeId);
+      // shadows the mapped entry until the file is refreshed
+      overlay.put(key, MISSING);
+      synchronized (negative)
+      {
+         negative.remove(key);
+      }
+   }
+
+   /**
+    * Merge volumes found and removed since the manifest was written into the file, without
+    * walking the dataset again. On platforms which cannot replace a mapped file, this fails and
+    * the changes remain in memory.
+    *
+    * @return The number of entries changed.
+    */
+   synchronized int refresh() throws IOException
+   {
+      if (overlay.isEmpty())
+         return 0;
+
+      Map<String, Entry> changes = new LinkedHashMap<>(overlay);
+      ByteBuffer buf = mapped;
+
+      Map<String, Record> records = new HashMap<>();
+      int count = buf.getInt(8);
+      int base = HEADER_SIZE + 4 * (count + 1);
+      for (int i = 0; i < count; ++i)
+      {
+         int rec = base + buf.getInt(HEADER_SIZE + 4 * i);
+         int len = buf.getShort(rec) & 0xFFFF;
+         String key = readString(buf, rec + 2, len);
+         if (changes.containsKey(key))
+            continue;
+
+         Record r = new Record(key);
+         int pos = rec + 2 + len;
+         r.flags = buf.get(pos++);
+         if ((r.flags & FLAG_BASIC_PATH) != 0)
+         {
+            int n = buf.getShort(pos) & 0xFFFF;
+            r.basicPath = readString(buf, pos + 2, n);
+            pos += 2 + n;
+         }
+         if ((r.flags & FLAG_ADVANCED_PATH) != 0)
+         {
+            int n = buf.getShort(pos) & 0xFFFF;
+            r.advancedPath = readString(buf, pos + 2, n);
+         }
+         records.put(key, r);
+      }
+
+      for (Map.Entry<String, Entry> change : changes.entrySet())
+      {
+         Entry e = change.getValue();
+         if (e.isEmpty())
+            continue;
+
+         Record r = new Record(change.getKey());
+         if (e.basic != null)
+            r.add(root, TYPE_BASIC, e.basic);
+         if (e.advanced != null)
+            r.add(root, TYPE_ADVANCED, e.advanced);
+         records.put(r.key, r);
+      }
+
+      write(file, records.values());
+      ByteBuffer updated = map(file);
+      if (updated == null)
+         throw new IOException("Failed reading refreshed manifest " + file);
+
+      mapped = updated;
+      // entries added while merging remain in the overlay
+      for (Map.Entry<String, Entry> change : changes.entrySet())
+         overlay.remove(change.getKey(), change.getValue());
+
+      debug.fine("Merged " + changes.size() + " changes into " + file);
+      return changes.size();
+   }
+}
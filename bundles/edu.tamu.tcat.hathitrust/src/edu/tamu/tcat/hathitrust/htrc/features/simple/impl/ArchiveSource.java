@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Obtains the bytes of the archives of an Extracted Features dataset. Archives are identified by
+ * the paths at which the dataset layout places them; a source may read them from those paths or
+ * from elsewhere. Archive content is decoded separately by an {@link ArchiveCodec}.
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @see DefaultExtractedFeaturesProvider.Builder#setArchiveSource(ArchiveSource)
+ * @since 1.2
+ */
+public interface ArchiveSource
+{
+   /**
+    * @return Whether the given archive exists.
+    */
+   boolean exists(Path archive);
+
+   /**
+    * Read a complete archive for decoding.
+    *
+    * @return The archive's bytes between the buffer's position and limit. The caller may change
+    *         the buffer's position and limit, but not its content.
+    * @throws IOException If the archive does not exist or could not be read.
+    */
+   ByteBuffer read(Path archive) throws IOException;
+
+   /**
+    * Open an archive for sequential reading, such as when only part of it is decoded.
+    *
+    * @return A stream of the archive's bytes, which the caller closes.
+    * @throws IOException If the archive does not exist or could not be opened.
+    */
+   InputStream open(Path archive) throws IOException;
+
+   /**
+    * @return Whether archives are the files at their paths. Sidecar caches, page indexes and
+    *         manifests record the state of archive files, so are used only if this is
+    *         {@code true}.
+    */
+   default boolean isFileBacked()
+   {
+      return true;
+   }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A stream of the bytes of a buffer between its position and limit, supporting mark and reset.
+ *
+ * @since 1.2
+ */
+class ByteBufferInputStream extends InputStream
+{
+   private final ByteBuffer buf;
+   private int mark;
+
+   /**
+    * @param buf The buffer to read. The stream reads a duplicate, so the buffer's own position is
+    *        not changed.
+    */
+   ByteBufferInputStream(ByteBuffer buf)
+   {
+      this.buf = buf.duplicate();
+      this.mark = this.buf.position();
+   }
+
+   @Override
+   public int read()
+   {
+      return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len)
+   {
+      if (len == 0)
+         return 0;
+      if (!buf.hasRemaining())
+         return -1;
+
+      int n = Math.min(len, buf.remaining());
+      buf.get(b, off, n);
+      return n;
+   }
+
+   @Override
+   public long skip(long n)
+   {
+      int k = (int)Math.max(0, Math.min(n, buf.remaining()));
+      buf.position(buf.position() + k);
+      return k;
+   }
+
+   @Override
+   public int available()
+   {
+      return buf.remaining();
+   }
+
+   @Override
+   public boolean markSupported()
+   {
+      return true;
+   }
+
+   @Override
+   public synchronized void mark(int readlimit)
+   {
+      mark = buf.position();
+   }
+
+   @Override
+   public synchronized void reset()
+   {
+      buf.position(mark);
+   }
+}
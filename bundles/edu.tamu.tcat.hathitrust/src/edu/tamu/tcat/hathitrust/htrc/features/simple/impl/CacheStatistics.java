@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+/**
+ * A snapshot of the state and cumulative counters of the {@link DefaultExtractedFeaturesProvider}
+ * volume cache.
+ *
+ * @see DefaultExtractedFeaturesProvider#getCacheStatistics()
+ * @since 1.2
+ */
+public final class CacheStatistics
+{
+   private final int entries;
+   private final int referenced;
+   private final long retainedBytes;
+   private final long budget;
+   private final long hits;
+   private final long misses;
+   private final long evictions;
+
+   CacheStatistics(int entries, int referenced, long retainedBytes, long budget, long hits, long misses, long evictions)
+   {
+      this.entries = entries;
+      this.referenced = referenced;
+      this.retainedBytes = retainedBytes;
+      this.budget = budget;
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+   }
+
+   /**
+    * @return The number of cached volumes.
+    */
+   public int getEntries()
+   {
+      return entries;
+   }
+
+   /**
+    * @return The number of cached volumes which have not been closed by all of their holders, and
+    *         so cannot be evicted.
+    */
+   public int getReferenced()
+   {
+      return referenced;
+   }
+
+   /**
+    * @return The estimated heap size, in bytes, of the loaded data of all cached volumes.
+    */
+   public long getRetainedBytes()
+   {
+      return retainedBytes;
+   }
+
+   public long getBudget()
+   {
+      return budget;
+   }
+
+   public long getHits()
+   {
+      return hits;
+   }
+
+   public long getMisses()
+   {
+      return misses;
+   }
+
+   public long getEvictions()
+   {
+      return evictions;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "cache[" + entries + " volumes (" + referenced + " referenced), " + retainedBytes + "/" + budget + " bytes"
+            + ", hits " + hits + ", misses " + misses + ", evictions " + evictions + "]";
+   }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import edu.tamu.tcat.hathitrust.HathiTrustClientException;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeaturesProvider;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
+
+/**
+ * Computes corpus-wide term and document frequencies of the body tokens of a set of volumes.
+ * <p>
+ * Volumes are streamed from the provider in parallel on a fork-join pool, and the pages of
+ * volumes longer than twice the page range size are further split into ranges counted
+ * concurrently. Each worker accumulates into its own primitive token count map; the maps are
+ * merged as the work joins, and the result is sorted by token.
+ * <p>
+ * Vocabularies which do not fit in memory may be aggregated with a
+ * {@link Builder#setMemoryBudget(long) memory budget}. A worker whose counts exceed its share of
+ * the budget spills them to a sorted, compressed run file on disk, and the result merges the
+ * runs as it is streamed.
+ *
+ * @since 1.2
+ */
+public class CorpusAggregator
+{
+   private static final Logger debug = Logger.getLogger(CorpusAggregator.class.getName());
+
+   private static final LoadOptions OPTIONS = LoadOptions.builder().setSections(LoadOptions.Section.BODY).build();
+
+   private final ExtractedFeaturesProvider provider;
+   private final ForkJoinPool pool;
+   private final int pageRangeSize;
+   private final long memoryBudget;
+   private final Path spillDirectory;
+
+   private CorpusAggregator(Builder builder)
+   {
+      this.provider = builder.provider;
+      this.pool = builder.pool;
+      this.pageRangeSize = builder.pageRangeSize;
+      this.memoryBudget = builder.memoryBudget;
+      this.spillDirectory = builder.spillDirectory;
+   }
+
+   public static class Builder
+   {
+      private final ExtractedFeaturesProvider provider;
+      private ForkJoinPool pool = ForkJoinPool.commonPool();
+      private int pageRangeSize = 128;
+      private long memoryBudget = Long.MAX_VALUE;
+      private Path spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+      public Builder(ExtractedFeaturesProvider provider)
+      {
+         this.provider = Objects.requireNonNull(provider);
+      }
+
+      /**
+       * Set the pool on which volumes and page ranges are counted. Defaults to the common pool.
+       */
+      public Builder setPool(ForkJoinPool pool)
+      {
+         this.pool = Objects.requireNonNull(pool);
+         return this;
+      }
+
+      /**
+       * Set the number of pages counted by a single task when a volume is split into page ranges.
+       * Volumes of up to twice this many pages are counted by a single task. Defaults to 128; use
+       * {@link Integer#MAX_VALUE} to never split volumes.
+       */
+      public Builder setPageRangeSize(int pages)
+      {
+         if (pages < 1)
+            throw new IllegalArgumentException("Page range size must be positive [" + pages + "]");
+         this.pageRangeSize = pages;
+         return this;
+      }
+
+      /**
+       * Set the approximate heap, in bytes, to be occupied by partial counts, divided evenly
+       * between the pool's workers. Counts exceeding a worker's share are spilled to disk.
+       * Defaults to {@link Long#MAX_VALUE}, which holds all counts in memory.
+       */
+      public Builder setMemoryBudget(long bytes)
+      {
+         if (bytes < 1)
+            throw new IllegalArgumentException("Memory budget must be positive [" + bytes + "]");
+         this.memoryBudget = bytes;
+         return this;
+      }
+
+      /**
+       * Set the directory in which counts exceeding the memory budget are spilled. Each
+       * aggregation creates its own directory within it, which is deleted when the counts are
+       * closed. Defaults to the system temporary directory.
+       */
+      public Builder setSpillDirectory(Path dir)
+      {
+         this.spillDirectory = Objects.requireNonNull(dir);
+         return this;
+      }
+
+      public CorpusAggregator build()
+      {
+         return new CorpusAggregator(this);
+      }
+   }
+
+   /**
+    * Count the body tokens of the given volumes.
+    *
+    * @param htrcVolumeIds The volumes to count; duplicates are counted once.
+    * @return The counts, which must be closed to delete any spilled runs.
+    * @throws HathiTrustClientException If any volume could not be read, or spilled counts could
+    *         not be written.
+    */
+   public TokenCounts aggregate(Collection<String> htrcVolumeIds) throws HathiTrustClientException
+   {
+      long start = System.nanoTime();
+      Collection<String> ids = new LinkedHashSet<>(htrcVolumeIds);
+      AtomicInteger split = new AtomicInteger();
+      TokenCountRuns runs = null;
+      try
+      {
+         if (memoryBudget != Long.MAX_VALUE)
+            runs = TokenCountRuns.create(spillDirectory);
+         Spill spill = new Spill(runs, Math.max(1, memoryBudget / pool.getParallelism()));
+
+         TokenCountMap counts = pool.invoke(ForkJoinTask.adapt(() ->
+         {
+            try (Stream<ExtractedFeatures> volumes = provider.stream(ids, OPTIONS, false))
+            {
+               return volumes.parallel().collect(TokenCountMap::new,
+                     (map, ef) -> spill.check(count(map, ef, split)),
+                     (a, b) -> spill.check(merge(a, b)));
+            }
+         }));
+
+         TokenCounts result;
+         if (runs == null || runs.getRunCount() == 0)
+         {
+            result = TokenCounts.of(counts, ids.size());
+            if (runs != null)
+               runs.close();
+         }
+         else
+         {
+            if (counts.size() > 0)
+               runs.spill(counts);
+            result = runs.toCounts(ids.size());
+         }
+
+         debug.info("Aggregated " + result + " (" + split.get() + " volumes split into page ranges) in "
+               + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+         return result;
+      }
+      catch (IOException | RuntimeException e)
+      {
+         if (runs != null)
+            runs.close();
+         throw new HathiTrustClientException("Failed aggregating token counts over [" + ids.size() + "] volumes", e);
+      }
+   }
+
+   private static TokenCountMap merge(TokenCountMap a, TokenCountMap b)
+   {
+      a.merge(b);
+      return a;
+   }
+
+   /**
+    * Spills a worker's counts once they exceed its share of the memory budget.
+    */
+   private static class Spill
+   {
+      private final TokenCountRuns runs;
+      private final long limit;
+
+      Spill(TokenCountRuns runs, long limit)
+      {
+         this.runs = runs;
+         this.limit = limit;
+      }
+
+      void check(TokenCountMap map)
+      {
+         if (runs == null || map.estimatedBytes() <= limit)
+            return;
+
+         try
+         {
+            runs.spill(map);
+         }
+         catch (IOException e)
+         {
+            throw new IllegalStateException("Failed spilling token counts to [" + runs + "]", e);
+         }
+      }
+   }
+
+   private TokenCountMap count(TokenCountMap map, ExtractedFeatures ef, AtomicInteger split)
+   {
+      try
+      {
+         int pages = ef.pageCount();
+         map.startDocument();
+         if (pages <= 2L * pageRangeSize)
+         {
+            ef.forEachTokenPos(map);
+            return map;
+         }
+
+         split.incrementAndGet();
+         map.mergeDocumentPart(new PageRangeTask(ef, 0, pages).invoke());
+         return map;
+      }
+      catch (HathiTrustClientException e)
+      {
+         throw new IllegalStateException("Failed accessing token data on [" + ef.getVolumeId() + "]", e);
+      }
+   }
+
+   /**
+    * Counts a range of the pages of a volume as a single document, splitting the range in two
+    * until it is no larger than the page range size.
+    */
+   private class PageRangeTask extends RecursiveTask<TokenCountMap>
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final ExtractedFeatures ef;
+      private final int from;
+      private final int to;
+
+      PageRangeTask(ExtractedFeatures ef, int from, int to)
+      {
+         this.ef = ef;
+         this.from = from;
+         this.to = to;
+      }
+
+      @Override
+      protected TokenCountMap compute()
+      {
+         if (to - from > pageRangeSize)
+         {
+            int mid = (from + to) >>> 1;
+            PageRangeTask right = new PageRangeTask(ef, mid, to);
+            right.fork();
+            TokenCountMap left = new PageRangeTask(ef, from, mid).compute();
+            left.mergeDocumentPart(right.join());
+            return left;
+         }
+
+         TokenCountMap map = new TokenCountMap();
+         map.startDocument();
+         try
+         {
+            // skips pages without body token data, as whole volumes are counted
+            if (ef instanceof DefaultExtractedFeatures)
+               ((DefaultExtractedFeatures)ef).forEachTokenPos(from, to, map);
+            else
+            {
+               for (int i = from; i < to; ++i)
+                  ef.getPage(i).getBodyData().forEachTokenPos(map);
+            }
+         }
+         catch (HathiTrustClientException e)
+         {
+            throw new IllegalStateException("Failed accessing token data on [" + ef.getVolumeId() + "] pages [" + from + "," + to + ")", e);
+         }
+         return map;
+      }
+   }
+}
@@ -15,28 +15,36 @@
  */
 package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
-import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import edu.tamu.tcat.hathitrust.HathiTrustClientException;
 import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PosCounts;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.TokenPosVisitor;
 
 /**
  * A default implementation of {@link ExtractedFeatures} which is used with {@link DefaultExtractedFeaturesProvider}.
@@ -46,19 +54,60 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
 {
    private static final Logger debug = Logger.getLogger(DefaultExtractedFeatures.class.getName());
 
+   // after this many single-page decodes, assume a sequential scan and decode the full volume instead
+   private static final int PAGE_INDEX_READ_LIMIT = 8;
+   private static final int UNRESOLVED = -2;
+   // marks a page handle slot whose handle has been copied to a larger array
+   private static final Object MOVED = new Object();
+   // pages beyond this index get a new handle on each access rather than growing the array
+   private static final int MAX_PAGE_HANDLES = 1 << 16;
+
    private final DefaultExtractedFeaturesProvider parent;
    private final String vid;
+   private final LoadOptions options;
    private final Path basic;
    private final Path advanced;
 
-   private Future<Map<String, ?>> basicData;
-   private Future<Map<String, ?>> advancedData;
+   private volatile LoadPipeline pipeline;
+   //@GuardedBy("this")
+   private CompletableFuture<VolumeData> basicData;
+   //@GuardedBy("this")
+   private CompletableFuture<VolumeData> advancedData;
+   // volume-level values only, loaded for metadata-only options
+   //@GuardedBy("this")
+   private CompletableFuture<VolumeData> headerData;
+   // if present, the full basic volume is decoded only when whole-volume data is needed
+   private PageIndex basicPageIndex;
+   //@GuardedBy("this")
+   private int pageIndexReads;
+   //@GuardedBy("this")
+   private int catalogRow = UNRESOLVED;
+   // page handles by index, created on first access; read without locking, grown under pageHandleLock
+   private volatile AtomicReferenceArray<Object> pageHandles = new AtomicReferenceArray<>(16);
+   private final Object pageHandleLock = new Object();
+   // set when removed from the provider's cache; cached volumes are shared, so holders must not
+   // use a volume after closing it
+   private volatile boolean evicted;
 
    public DefaultExtractedFeatures(DefaultExtractedFeaturesProvider parent,
                                    String vid,
                                    Path basic,
                                    Path advanced)
    {
+      this(parent, vid, basic, advanced, LoadOptions.ALL);
+   }
+
+   /**
+    * @param options The data to load from the archives.
+    * @since 1.2
+    */
+   public DefaultExtractedFeatures(DefaultExtractedFeaturesProvider parent,
+                                   String vid,
+                                   Path basic,
+                                   Path advanced,
+                                   LoadOptions options)
+   {
+      this.options = Objects.requireNonNull(options);
       this.parent = Objects.requireNonNull(parent);
       this.vid = Objects.requireNonNull(vid);
       this.basic = basic;
@@ -72,86 +121,520 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
    }
 
    /**
-    * Load the basic and advanced data from disk archive in the given executor.
+    * Prepare to load the basic and advanced data from disk archive in the given pipeline. Unless
+    * eager, each archive is loaded only when data it holds is first accessed.
     *
-    * @param exec
+    * @param pipeline
+    * @param eager {@code true} to start loading both archives immediately.
+    * @param wait Whether eager loads wait for space in the pipeline; see
+    *        {@link #submit(LoadPipeline.Task, CompletableFuture, boolean)}.
     */
-   //TODO: this could be done less agressively to not load basic/advanced if not needed
-   public void load(ExecutorService exec)
+   void load(LoadPipeline pipeline, boolean eager, boolean wait)
    {
-      if (basic != null)
-         basicData = exec.submit(() -> doLoad(basic, ExtractedFeatures.schemaVersionBasic));
-      if (advanced != null)
-         advancedData = exec.submit(() -> doLoad(advanced, ExtractedFeatures.schemaVersionAdvanced));
+      CompletableFuture<VolumeData> b = null;
+      CompletableFuture<VolumeData> a = null;
+      synchronized (this)
+      {
+         // volumes are shared through the provider's cache; only the first holder starts loading
+         if (this.pipeline != null)
+            return;
 
-      if (basicData == null && advancedData == null)
+         this.pipeline = pipeline;
+         if (basic != null)
+         {
+            Path idx = parent.getPageIndexPath(basic);
+            if (idx != null)
+               basicPageIndex = PageIndex.open(idx, basic, ExtractedFeatures.schemaVersionBasic);
+
+            // with a page index, page access decodes single pages, so the full volume is still deferred
+            if (eager && basicPageIndex == null)
+               b = basicData = new CompletableFuture<>();
+         }
+         if (eager && advanced != null)
+            a = advancedData = new CompletableFuture<>();
+      }
+
+      if (b != null)
+         submit(new ArchiveLoad(basic, ExtractedFeatures.schemaVersionBasic), b, wait);
+      if (a != null)
+         submit(new ArchiveLoad(advanced, ExtractedFeatures.schemaVersionAdvanced), a, wait);
+
+      if (basic == null && advanced == null)
          debug.log(Level.WARNING, "No basic or advanced data provided for volume ["+vid+"]");
    }
 
-   private Map<String, ?> doLoad(Path p, String ver) throws Exception
+   /**
+    * Submit a load to complete a future already published under this volume's monitor. Must be
+    * called without holding the monitor: the submission may wait for space in the pipeline,
+    * whose threads lock this volume.
+    *
+    * @param wait Whether to wait for space in the pipeline. Asynchronous accessors do not wait,
+    *        so that the load is held by the pipeline rather than by the calling thread.
+    */
+   private void submit(LoadPipeline.Task<VolumeData> load, CompletableFuture<VolumeData> f, boolean wait)
    {
-      try
+      f.thenAccept(data -> parent.loaded(this, data.estimatedBytes()));
+      if (wait)
+         pipeline.submit(load, f);
+      else
+         pipeline.submitAsync(load, f);
+   }
+
+   /**
+    * Mark this volume as removed from the provider's cache. Loaded data is released when the
+    * volume is no longer referenced.
+    */
+   void evict()
+   {
+      evicted = true;
+   }
+
+   private void checkEvicted()
+   {
+      if (evicted)
+         throw new IllegalStateException("Volume has been closed and evicted from the cache [" + vid + "]");
+   }
+
+   /**
+    * Loads one archive on the provider's pipeline: the archive bytes (or a current sidecar) are
+    * read on the I/O stage, then decompressed and parsed on the CPU stage.
+    */
+   private class ArchiveLoad implements LoadPipeline.Task<VolumeData>
+   {
+      protected final Path p;
+      protected final String ver;
+      private ByteBuffer archive;
+      private long size;
+
+      ArchiveLoad(Path p, String ver)
       {
-         debug.fine("loading " + p);
-         Map<?,?> value = null;
-         // open basic path as a bz2 and use Jackson to parse into raw data vehicles
-         try (InputStream str = Files.newInputStream(p);
-              BZip2CompressorInputStream bzIn = new BZip2CompressorInputStream(str))
+         this.p = p;
+         this.ver = ver;
+      }
+
+      @Override
+      public VolumeData read() throws Exception
+      {
+         try
          {
-            ObjectMapper mapper = new ObjectMapper();
-            value = mapper.readValue(bzIn, Map.class);
+            SidecarCache sidecar = parent.getSidecarCache();
+            if (sidecar != null)
+            {
+               // holds all data, which satisfies any load options
+               VolumeData data = sidecar.open(p, ver);
+               if (data != null)
+                  return data;
+            }
+
+            debug.fine("loading " + p);
+            archive = parent.getArchiveSource().read(p);
+            size = archive.remaining();
+            return null;
          }
+         catch (Exception e)
+         {
+            throw failed(e);
+         }
+      }
 
-         Map<String, ?> data = (Map)value;
+      @Override
+      public VolumeData parse() throws Exception
+      {
+         try
+         {
+            // page data is only read from the basic archive, so only it is indexed, and only when
+            // this volume found no current index to defer decoding with
+            Path idx = p.equals(basic) && getBasicPageIndex() == null ? parent.getPageIndexPath(p) : null;
+
+            // decode the bytes with the codec detected from their content and stream-parse
+            // directly into page structures; the parser validates the schema version
+            VolumeParser parser = newParser(idx != null);
+            VolumeData data;
+            try (InputStream in = parent.decode(archive, p))
+            {
+               data = parser.parse(in);
+            }
+            catch (ParallelBZip2InputStream.BlockFormatException e)
+            {
+               debug.log(Level.WARNING, "Decoding sequentially after parallel decoding failed " + p, e);
+               parser = newParser(idx != null);
+               data = parseSequential(parser);
+            }
+            // release the compressed bytes while the derived files are written
+            archive = null;
+
+            SidecarCache sidecar = parent.getSidecarCache();
+            // a sidecar is read in place of parsing for any options, so it must hold all data;
+            // page offsets do not depend on the options
+            if (sidecar != null && options.isComplete())
+               sidecar.write(p, data);
+            if (idx != null)
+               new PageIndex(data.metadata, data.schemaVersion, data.dateCreated, data.pageCount,
+                             parser.getPageStarts(), parser.getPageEnds()).write(idx, p);
+
+            return data;
+         }
+         catch (Exception e)
+         {
+            throw failed(e);
+         }
+      }
 
-         // validate schema
-         Map<String, ?> features = (Map)data.get("features");
-         if (features == null)
-            throw new HathiTrustClientException("Data missing element 'features'");
+      private VolumeParser newParser(boolean recordPageOffsets)
+      {
+         VolumeParser parser = createParser(ver);
+         if (recordPageOffsets)
+            parser.recordPageOffsets();
+         return parser;
+      }
 
-         Object sv = features.get("schemaVersion");
-         if (!Objects.equals(sv, ver))
-            throw new HathiTrustClientException("Unexpected schema version ["+sv+"] expecting ["+ver+"]");
+      private VolumeData parseSequential(VolumeParser parser) throws Exception
+      {
+         try (InputStream bzIn = StandardArchiveCodec.BZIP2.decode(new ByteBufferInputStream(archive)))
+         {
+            return parser.parse(bzIn);
+         }
+      }
 
-         // Return entire validated data vehicle in raw format
-         return data;
+      @Override
+      public long bytesRead()
+      {
+         // a mapped sidecar is not read up front, so counts as zero
+         return size;
       }
-      catch (ClosedByInterruptException ie)
+
+      protected Exception failed(Exception e)
       {
-         debug.log(Level.FINE, "Failed loading (due to interrupt) "+p+" "+ver+" ["+vid+"]");
-         throw ie;
+         if (e instanceof NoSuchFileException)
+            parent.archiveMissing(vid);
+         if (e instanceof ClosedByInterruptException || e instanceof InterruptedIOException)
+            debug.log(Level.FINE, "Failed loading (due to interrupt) "+p+" "+ver+" ["+vid+"]");
+         else
+            debug.log(Level.SEVERE, "Failed loading "+p+" "+ver+" ["+vid+"]", e);
+         return e;
       }
-      catch (Exception e)
+   }
+
+   /**
+    * Loads only the volume-level values of an archive, decoding and parsing only until they have
+    * been read. The archive is streamed on the CPU stage rather than read in full up front, since
+    * usually only its start is needed.
+    */
+   private class HeaderLoad extends ArchiveLoad
+   {
+      HeaderLoad(Path p, String ver)
+      {
+         super(p, ver);
+      }
+
+      @Override
+      public VolumeData read() throws Exception
+      {
+         try
+         {
+            // a mapped sidecar is cheaper still
+            SidecarCache sidecar = parent.getSidecarCache();
+            return sidecar == null ? null : sidecar.open(p, ver);
+         }
+         catch (Exception e)
+         {
+            throw failed(e);
+         }
+      }
+
+      @Override
+      public VolumeData parse() throws Exception
+      {
+         debug.fine("loading metadata " + p);
+         try (InputStream in = parent.openDecoded(p))
+         {
+            return createParser(ver).parseHeader(in);
+         }
+         catch (Exception e)
+         {
+            throw failed(e);
+         }
+      }
+   }
+
+   /**
+    * Get the "basic" parsed data. Does not return {@code null}
+    */
+   private VolumeData getBasic() throws Exception
+   {
+      checkEvicted();
+      return await(() -> basicFuture(true), "basic");
+   }
+
+   /**
+    * Wait, up to the provider's load timeout, for data loaded by the given source.
+    */
+   private VolumeData await(Supplier<CompletableFuture<VolumeData>> source, String type) throws Exception
+   {
+      CompletableFuture<VolumeData> f = source.get();
+      if (f == null)
+         throw new IllegalStateException("No " + type + " data available");
+
+      long timeout = parent.getLoadTimeoutNanos();
+      try
+      {
+         return f.get(timeout, TimeUnit.NANOSECONDS);
+      }
+      catch (CancellationException e)
+      {
+         // an abandoned load may be cancelled just as another holder acquires this volume
+         f = source.get();
+         if (f == null || f.isCancelled())
+            throw e;
+         return f.get(timeout, TimeUnit.NANOSECONDS);
+      }
+   }
+
+   /**
+    * @return The load of the basic archive, submitted on first access, or {@code null} if there is
+    *         no basic archive.
+    */
+   private CompletableFuture<VolumeData> basicFuture(boolean wait)
+   {
+      CompletableFuture<VolumeData> f;
+      synchronized (this)
+      {
+         if ((basicData != null && !basicData.isCancelled()) || basic == null)
+            return basicData;
+         f = basicData = new CompletableFuture<>();
+      }
+
+      submit(new ArchiveLoad(basic, ExtractedFeatures.schemaVersionBasic), f, wait);
+      return f;
+   }
+
+   /**
+    * @return The load of the advanced archive, submitted on first access, or {@code null} if there
+    *         is no advanced archive.
+    */
+   private CompletableFuture<VolumeData> advancedFuture(boolean wait)
+   {
+      CompletableFuture<VolumeData> f;
+      synchronized (this)
+      {
+         if ((advancedData != null && !advancedData.isCancelled()) || advanced == null)
+            return advancedData;
+         f = advancedData = new CompletableFuture<>();
+      }
+
+      submit(new ArchiveLoad(advanced, ExtractedFeatures.schemaVersionAdvanced), f, wait);
+      return f;
+   }
+
+   /**
+    * @return The load of the volume-level values, submitted on first access, or {@code null} if
+    *         there is no archive.
+    */
+   private CompletableFuture<VolumeData> headerFuture(boolean wait)
+   {
+      CompletableFuture<VolumeData> f;
+      synchronized (this)
       {
-         debug.log(Level.SEVERE, "Failed loading "+p+" "+ver+" ["+vid+"]", e);
-         throw e;
+         if ((headerData != null && !headerData.isCancelled()) || (basic == null && advanced == null))
+            return headerData;
+         f = headerData = new CompletableFuture<>();
       }
+
+      if (basic != null)
+         submit(new HeaderLoad(basic, ExtractedFeatures.schemaVersionBasic), f, wait);
+      else
+         submit(new HeaderLoad(advanced, ExtractedFeatures.schemaVersionAdvanced), f, wait);
+      return f;
+   }
+
+   /**
+    * Start loading the data volume-level values are read from, unless they are already available.
+    *
+    * @return A future completed when volume-level values can be read without blocking. Never
+    *         waits for space in the pipeline.
+    */
+   CompletableFuture<?> loadAsync()
+   {
+      // the catalog and page index hold volume-level values
+      if (getCatalogRow() >= 0 || getBasicPageIndex() != null)
+         return CompletableFuture.completedFuture(null);
+      return prefetch(false);
    }
 
    /**
-    * Get the "basic" JSON data vehicle. Does not return {@code null}
+    * Cancel loads which have not completed, interrupting their decoding. Loads are submitted
+    * again if the data is later accessed.
     */
-   private Map<String, ?> getBasic() throws Exception
+   void cancelLoads()
    {
-      if (basicData == null)
-         throw new IllegalStateException("No basic data available");
+      CompletableFuture<VolumeData> b;
+      CompletableFuture<VolumeData> a;
+      CompletableFuture<VolumeData> h;
+      synchronized (this)
+      {
+         b = basicData;
+         a = advancedData;
+         h = headerData;
+      }
 
-      // Don't allow unbounded 'get'; could be configurable
-      Map<String, ?> data = basicData.get(10, TimeUnit.MINUTES);
-      return data;
+      if (b != null)
+         b.cancel(true);
+      if (a != null)
+         a.cancel(true);
+      if (h != null)
+         h.cancel(true);
    }
 
    /**
-    * Get the "advanced" JSON data vehicle. Does not return {@code null}
+    * Start loading the archive which volume-level values are read from, ahead of access.
+    *
+    * @return A future completed when the load completes, successfully or not.
     */
-   private Map<String, ?> getAdvanced() throws Exception
+   CompletableFuture<?> prefetch()
+   {
+      return prefetch(true);
+   }
+
+   private CompletableFuture<?> prefetch(boolean wait)
    {
-      if (advancedData == null)
-         throw new IllegalStateException("No advanced data available");
+      if (evicted)
+         return CompletableFuture.completedFuture(null);
+
+      CompletableFuture<VolumeData> f = options.isMetadataOnly() ? headerFuture(wait) : preferBasic() ? basicFuture(wait) : advancedFuture(wait);
+      return f == null ? CompletableFuture.completedFuture(null) : f;
+   }
+
+   /**
+    * @return The page index to use for decoding a single page, or {@code null} if pages should be
+    *         read from the full basic volume, either because there is no index, because the full
+    *         volume has been requested, or because enough pages have been read individually that
+    *         decoding the full volume is likely cheaper.
+    */
+   private PageIndex getPageIndex(boolean wait)
+   {
+      CompletableFuture<VolumeData> f;
+      synchronized (this)
+      {
+         if (basicPageIndex == null || basicData != null)
+            return null;
+
+         if (++pageIndexReads <= PAGE_INDEX_READ_LIMIT)
+            return basicPageIndex;
+
+         f = basicData = new CompletableFuture<>();
+      }
+
+      debug.fine("Decoding full volume after " + PAGE_INDEX_READ_LIMIT + " page reads [" + vid + "]");
+      submit(new ArchiveLoad(basic, ExtractedFeatures.schemaVersionBasic), f, wait);
+      return null;
+   }
+
+   /**
+    * Decode a single page of the basic archive using its page index.
+    */
+   private HeapVolumeData readPage(PageIndex idx, int page) throws Exception
+   {
+      try (InputStream in = parent.openDecoded(basic))
+      {
+         return idx.readPage(in, basic, page, options, parent.getVocabulary());
+      }
+   }
+
+   /**
+    * @return A parser resolving tokens against the provider's vocabulary, if it has one.
+    */
+   private VolumeParser createParser(String ver)
+   {
+      return new VolumeParser(ver, options).setVocabulary(parent.getVocabulary());
+   }
+
+   /**
+    * Open a sequential reader of the pages of the basic archive, decoding each page as the reader
+    * advances. Pages are not retained by this volume, so each becomes garbage once its caller
+    * releases it. The reader must be closed.
+    */
+   PageSpliterator readPages() throws HathiTrustClientException
+   {
+      if (basic == null)
+         throw new HathiTrustClientException("No basic data available for volume [" + vid + "]");
+
+      InputStream in = null;
+      try
+      {
+         in = parent.openDecoded(basic);
+         VolumeParser.PageReader reader = createParser(ExtractedFeatures.schemaVersionBasic).readPages(in);
+         return new PageSpliterator(in, reader);
+      }
+      catch (Exception e)
+      {
+         closeQuietly(in);
+         throw new HathiTrustClientException("Failed accessing pages on [" + vid + "]", e);
+      }
+   }
+
+   private static void closeQuietly(Closeable c)
+   {
+      try
+      {
+         if (c != null)
+            c.close();
+      }
+      catch (IOException e)
+      {
+         debug.log(Level.FINE, "Failed closing " + c, e);
+      }
+   }
+
+   /**
+    * Supplies the pages of the basic archive in order, holding only the page being decoded.
+    */
+   class PageSpliterator extends Spliterators.AbstractSpliterator<ExtractedPageFeatures> implements Closeable
+   {
+      private final InputStream in;
+      private final VolumeParser.PageReader reader;
+      private int index;
+
+      private PageSpliterator(InputStream in, VolumeParser.PageReader reader)
+      {
+         super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+         this.in = in;
+         this.reader = reader;
+      }
+
+      @Override
+      public boolean tryAdvance(Consumer<? super ExtractedPageFeatures> action)
+      {
+         HeapVolumeData data;
+         try
+         {
+            data = reader.next();
+         }
+         catch (HathiTrustClientException | IOException e)
+         {
+            throw new IllegalStateException("Failed accessing page [" + index + "] on [" + vid + "]", e);
+         }
+
+         if (data == null)
+            return false;
+         action.accept(new DefaultPage(DefaultExtractedFeatures.this, index++, data));
+         return true;
+      }
+
+      @Override
+      public void close()
+      {
+         closeQuietly(reader);
+         closeQuietly(in);
+      }
+   }
 
-      // Don't allow unbounded 'get'; could be configurable
-      Map<String, ?> data = advancedData.get(10, TimeUnit.MINUTES);
-      return data;
+   /**
+    * Get the "advanced" parsed data. Does not return {@code null}
+    */
+   private VolumeData getAdvanced() throws Exception
+   {
+      checkEvicted();
+      return await(() -> advancedFuture(true), "advanced");
    }
 
    @Override
@@ -160,6 +643,20 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
       parent.closed(this);
    }
 
+   /**
+    * @return The key identifying this volume and its load options in the provider's cache.
+    */
+   Object getCacheKey()
+   {
+      return getCacheKey(vid, options);
+   }
+
+   static Object getCacheKey(String vid, LoadOptions options)
+   {
+      // volumes loaded with different options hold different data
+      return options.isComplete() ? vid : Arrays.asList(vid, options);
+   }
+
    @Override
    public String getVolumeId()
    {
@@ -184,7 +681,7 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
    {
       try
       {
-         return getMetaValue("title", String.class);
+         return getMetaValue("title");
       }
       catch (Exception e)
       {
@@ -197,7 +694,7 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
    {
       try
       {
-         return getMetaValue("dateCreated", String.class);
+         return getMetaValue("dateCreated");
       }
       catch (Exception e)
       {
@@ -205,30 +702,83 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
       }
    }
 
-   private <T> T getMetaValue(String key, Class<T> type) throws Exception
+   private String getMetaValue(String key) throws Exception
    {
-      Map<String, ?> map = null;
-      if (basicData != null)
-         map = getBasic();
-      else
-         map = getAdvanced();
+      // the catalog and page index hold volume-level values without decoding the archive
+      int row = getCatalogRow();
+      if (row >= 0)
+         return parent.getCatalog().getString(row, key);
+
+      PageIndex idx = getBasicPageIndex();
+      if (idx != null)
+         return idx.metadata.get(key);
+      return getVolumeLevelData().metadata.get(key);
+   }
+
+   /**
+    * Get parsed data holding the volume-level values. For metadata-only options, this holds only
+    * those values, unless full data has already been loaded.
+    */
+   private VolumeData getVolumeLevelData() throws Exception
+   {
+      if (!options.isMetadataOnly() || isLoaded())
+         return getAnyData();
 
-      Map<String, ?> meta = (Map)map.get("metadata");
-      Object v = meta.get(key);
-      return (T)v;
+      checkEvicted();
+      return await(() -> headerFuture(true), "metadata");
    }
 
-   private <T> T getFeaturesValue(String key, Class<T> type) throws Exception
+   private synchronized boolean isLoaded()
    {
-      Map<String, ?> map = null;
-      if (basicData != null)
-         map = getBasic();
-      else
-         map = getAdvanced();
+      return basicData != null && basicData.isDone() && !basicData.isCompletedExceptionally()
+            || advancedData != null && advancedData.isDone() && !advancedData.isCompletedExceptionally();
+   }
+
+   /**
+    * Get the parsed data of either the basic or advanced archive for volume-level values. Prefers
+    * an archive which has already been loaded, then one which is loading, then basic.
+    */
+   private VolumeData getAnyData() throws Exception
+   {
+      return preferBasic() ? getBasic() : getAdvanced();
+   }
+
+   private synchronized boolean preferBasic()
+   {
+      if (basic == null)
+         return false;
+      if (advanced == null || basicData != null && basicData.isDone())
+         return true;
+      if (advancedData != null && advancedData.isDone())
+         return false;
+      return basicData != null || advancedData == null;
+   }
+
+   private synchronized PageIndex getBasicPageIndex()
+   {
+      return basicPageIndex;
+   }
 
-      Map<String, ?> meta = (Map)map.get("features");
-      Object v = meta.get(key);
-      return (T)v;
+   /**
+    * @return This volume's row in the provider's metadata catalog, or {@code -1} if there is no
+    *         catalog, the volume is not in it, or its archive changed after the catalog was built.
+    */
+   private synchronized int getCatalogRow()
+   {
+      if (catalogRow == UNRESOLVED)
+      {
+         MetadataCatalog catalog = parent.getCatalog();
+         int row = catalog == null ? -1 : catalog.find(vid);
+         // the catalog is read from the basic archive, or the advanced if there is none
+         Path archive = basic != null ? basic : advanced;
+         if (row >= 0 && (archive == null || !catalog.isCurrent(row, archive)))
+         {
+            debug.fine("Ignoring stale catalog row of volume [" + vid + "]");
+            row = -1;
+         }
+         catalogRow = row;
+      }
+      return catalogRow;
    }
 
    @Override
@@ -236,7 +786,11 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
    {
       try
       {
-         Number v = getFeaturesValue("pageCount", Number.class);
+         int row = getCatalogRow();
+         PageIndex idx = getBasicPageIndex();
+         Integer v = row >= 0 ? parent.getCatalog().getInt(row, MetadataCatalog.COLUMN_PAGE_COUNT)
+                   : idx != null ? idx.pageCount
+                   : getVolumeLevelData().pageCount;
          if (v == null)
             throw new IllegalStateException("Missing value 'features.pageCount'");
 
@@ -251,7 +805,171 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
    @Override
    public ExtractedPageFeatures getPage(int page)
    {
-      return new DefaultPage(this, page);
+      return getPageHandle(page);
+   }
+
+   @Override
+   public CompletableFuture<ExtractedPageFeatures> getPageAsync(int page)
+   {
+      DefaultPage p = getPageHandle(page);
+      return p.loadAsync(p);
+   }
+
+   /**
+    * Get the single handle of a page, so that the data it memoizes is shared by all accesses.
+    * Handles are created on first access; an invalid index fails when the page's data is accessed.
+    * Indices at or beyond the page count, if it is known, get an unshared handle.
+    */
+   private DefaultPage getPageHandle(int page)
+   {
+      if (page < 0 || page >= MAX_PAGE_HANDLES)
+         return new DefaultPage(this, page);
+
+      while (true)
+      {
+         AtomicReferenceArray<Object> handles = pageHandles;
+         if (page >= handles.length())
+         {
+            // an index beyond the pages only fails on access, so is not worth growing the array
+            int count = knownPageCount();
+            if (count >= 0 && page >= count)
+               return new DefaultPage(this, page);
+
+            growPageHandles(page + 1, count);
+            continue;
+         }
+
+         Object h = handles.get(page);
+         if (h instanceof DefaultPage)
+            return (DefaultPage)h;
+         if (h == MOVED)
+         {
+            awaitPageHandles();
+            continue;
+         }
+
+         DefaultPage p = new DefaultPage(this, page);
+         if (handles.compareAndSet(page, null, p))
+            return p;
+      }
+   }
+
+   /**
+    * Wait for the page handle array being grown by another thread to be published. Slots are
+    * marked {@link #MOVED} while that thread holds the lock, so acquiring it waits for the larger
+    * array.
+    */
+   private void awaitPageHandles()
+   {
+      synchronized (pageHandleLock)
+      {
+         // nothing to do once the lock is released
+      }
+   }
+
+   /**
+    * @return The number of pages if known without loading data, otherwise {@code -1}.
+    */
+   private synchronized int knownPageCount()
+   {
+      Integer count = null;
+      if (catalogRow >= 0)
+         count = parent.getCatalog().getInt(catalogRow, MetadataCatalog.COLUMN_PAGE_COUNT);
+      else if (basicPageIndex != null)
+         count = basicPageIndex.pageCount;
+      else
+      {
+         for (CompletableFuture<VolumeData> f : Arrays.asList(basicData, advancedData, headerData))
+         {
+            VolumeData data = f != null && f.isDone() && !f.isCompletedExceptionally() ? f.join() : null;
+            if (data != null && data.pageCount != null)
+            {
+               count = data.pageCount;
+               break;
+            }
+         }
+      }
+      return count == null ? -1 : count.intValue();
+   }
+
+   /**
+    * @param min The least length of the grown array.
+    * @param limit The number of pages, which caps the length, or {@code -1} if not known.
+    */
+   private void growPageHandles(int min, int limit)
+   {
+      synchronized (pageHandleLock)
+      {
+         AtomicReferenceArray<Object> handles = pageHandles;
+         if (handles.length() >= min)
+            return;
+
+         int length = Math.min(MAX_PAGE_HANDLES, Math.max(min, handles.length() * 2));
+         if (limit >= min)
+            length = Math.min(length, limit);
+         AtomicReferenceArray<Object> grown = new AtomicReferenceArray<>(length);
+         // mark each copied slot so a handle cannot be added to the old array once copied
+         for (int i = 0; i < handles.length(); ++i)
+            grown.set(i, handles.getAndSet(i, MOVED));
+         pageHandles = grown;
+      }
+   }
+
+   @Override
+   public void forEachTokenPos(TokenPosVisitor visitor) throws HathiTrustClientException
+   {
+      forEachTokenPos(0, Integer.MAX_VALUE, visitor);
+   }
+
+   /**
+    * Visit the token part-of-speech counts of the body of a range of pages, in page order. As for
+    * {@link #forEachTokenPos(TokenPosVisitor)}, the visitor's
+    * {@link TokenPosVisitor#startPage(int)} is called for each page, and pages without body token
+    * data have no tokens.
+    *
+    * @param from The index of the first page to visit.
+    * @param to The index after the last page to visit; clipped to the number of pages.
+    * @param visitor
+    * @throws HathiTrustClientException
+    * @since 1.2
+    */
+   public void forEachTokenPos(int from, int to, TokenPosVisitor visitor) throws HathiTrustClientException
+   {
+      if (from < 0)
+         throw new IndexOutOfBoundsException("Page index ["+from+"] out of range");
+
+      try
+      {
+         VolumeData data = getBasic();
+         TokenChars scratch = new TokenChars();
+         int end = Math.min(to, data.pages());
+         for (int i = from; i < end; ++i)
+         {
+            visitor.startPage(i);
+            if (data.hasTokenPosCount(i, VolumeData.SECTION_BODY))
+               data.forEachTokenPos(i, VolumeData.SECTION_BODY, visitor, scratch);
+         }
+      }
+      catch (Exception e)
+      {
+         throw new HathiTrustClientException("Failed accessing token data on ["+vid+"]", e);
+      }
+   }
+
+   /**
+    * Volume data verified to contain a page, with the index of the page within it. The index
+    * differs from the page's index in the volume if only that page was decoded.
+    */
+   private static final class PageData
+   {
+      final VolumeData data;
+      final int index;
+
+      PageData(VolumeData data, int index)
+      {
+         this.data = data;
+         this.index = index;
+      }
    }
 
    public static class DefaultPage implements ExtractedFeatures.ExtractedPageFeatures
@@ -259,11 +977,11 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
       private final DefaultExtractedFeatures parent;
       private final int index;
 
-      // cache basic/advanced data to improve performance of repeated access, such as for token POS counts
-      //@GuardedBy("this")
-      private Map<String, ?> pageDataBasic;
-      //@GuardedBy("this")
-      private Map<String, ?> pageDataAdvanced;
+      // cache basic/advanced data to improve performance of repeated access, such as for token POS counts.
+      // Published once the volume data has been verified to contain this page, and read without
+      // locking; published only while holding this page's monitor.
+      private volatile PageData pageDataBasic;
+      private volatile VolumeData pageDataAdvanced;
 
       public DefaultPage(DefaultExtractedFeatures parent, int index)
       {
@@ -271,6 +989,15 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
          this.parent = Objects.requireNonNull(parent);
       }
 
+      /**
+       * A page whose basic data has already been decoded, alone.
+       */
+      DefaultPage(DefaultExtractedFeatures parent, int index, VolumeData data)
+      {
+         this(parent, index);
+         this.pageDataBasic = new PageData(data, 0);
+      }
+
       @Override
       public String toString()
       {
@@ -289,37 +1016,161 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
          return index;
       }
 
-      private synchronized Map<String, ?> loadPageBasicData() throws Exception
+      /**
+       * Get the basic data containing this page.
+       */
+      private PageData loadPageBasicData() throws Exception
       {
-         if (pageDataBasic == null)
+         PageData data = pageDataBasic;
+         if (data != null)
+            return data;
+
+         // loads without holding this page's monitor, which pipeline threads take to publish
+         // loaded data; concurrent first accesses may decode the page more than once
+         PageIndex idx = parent.getPageIndex(true);
+         // with a page index, decode only this page
+         data = idx != null ? new PageData(parent.readPage(idx, index), 0)
+                            : new PageData(checkIndex(parent.getBasic()), index);
+         return publish(data);
+      }
+
+      /**
+       * Start loading the basic data containing this page.
+       *
+       * @param value The value to complete the returned future with.
+       * @return A future completed once {@link #loadPageBasicData()} does not block. Cancelling
+       *         it cancels a decode of this page alone, but not a load of the full volume, which
+       *         is shared with other pages.
+       */
+      <T> CompletableFuture<T> loadAsync(T value)
+      {
+         CompletableFuture<T> result = new CompletableFuture<>();
+         CompletableFuture<VolumeData> load;
+         boolean single;
+         if (pageDataBasic != null)
+         {
+            result.complete(value);
+            return result;
+         }
+
+         // submits without holding this page's monitor, which pipeline threads take to publish
+         // loaded data; a concurrent access may load the page as well
+         try
+         {
+            parent.checkEvicted();
+            PageIndex idx = parent.getPageIndex(false);
+            single = idx != null;
+            load = single ? parent.pipeline.submitAsync(new PageLoad(idx)) : parent.basicFuture(false);
+            if (load == null)
+               throw new IllegalStateException("No basic data available");
+         }
+         catch (RuntimeException e)
+         {
+            result.completeExceptionally(e);
+            return result;
+         }
+
+         load.whenComplete((data, e) ->
+         {
+            if (e != null)
+            {
+               result.completeExceptionally(e);
+               return;
+            }
+
+            try
+            {
+               loaded(data, single);
+               result.complete(value);
+            }
+            catch (RuntimeException ex)
+            {
+               result.completeExceptionally(ex);
+            }
+         });
+         if (single)
          {
-            Map<String, ?> data = parent.getBasic();
-            Map<String, ?> features = (Map)data.get("features");
-            if (features == null)
-               throw new IllegalStateException("Basic data missing 'features' element");
-            List<?> pages = (List<?>)features.get("pages");
-            if (pages == null)
-               throw new IllegalStateException("Basic data missing 'features.pages' element");
-            pageDataBasic = (Map)pages.get(index);
+            result.whenComplete((v, e) ->
+            {
+               if (result.isCancelled())
+                  load.cancel(true);
+            });
          }
+         return result;
+      }
+
+      private void loaded(VolumeData data, boolean single)
+      {
+         // a concurrent access may have loaded the page
+         if (pageDataBasic != null)
+            return;
+
+         publish(single ? new PageData(data, 0) : new PageData(checkIndex(data), index));
+      }
 
+      /**
+       * @return The data published for this page, which is the given data unless a concurrent
+       *         access published first.
+       */
+      private synchronized PageData publish(PageData data)
+      {
+         if (pageDataBasic == null)
+            pageDataBasic = data;
          return pageDataBasic;
       }
 
-      private synchronized Map<String, ?> loadPageAdvancedData() throws Exception
+      /**
+       * Decodes this page alone on the provider's pipeline.
+       */
+      private class PageLoad implements LoadPipeline.Task<VolumeData>
       {
-         if (pageDataAdvanced == null)
+         private final PageIndex idx;
+
+         PageLoad(PageIndex idx)
          {
-            Map<String, ?> data = parent.getAdvanced();
-            Map<String, ?> features = (Map)data.get("features");
-            if (features == null)
-               throw new IllegalStateException("Advanced data missing 'features' element");
-            List<?> pages = (List<?>)features.get("pages");
-            if (pages == null)
-               throw new IllegalStateException("Advanced data missing 'features.pages' element");
-            pageDataAdvanced = (Map)pages.get(index);
+            this.idx = idx;
+         }
+
+         @Override
+         public VolumeData read()
+         {
+            // reading the page requires decompressing the preceding pages, so runs on the CPU stage
+            return null;
+         }
+
+         @Override
+         public VolumeData parse() throws Exception
+         {
+            return parent.readPage(idx, index);
+         }
+
+         @Override
+         public long bytesRead()
+         {
+            return 0;
          }
-         return pageDataAdvanced;
+      }
+
+      private VolumeData loadPageAdvancedData() throws Exception
+      {
+         VolumeData data = pageDataAdvanced;
+         if (data != null)
+            return data;
+
+         synchronized (this)
+         {
+            if (pageDataAdvanced == null)
+               pageDataAdvanced = checkIndex(parent.getAdvanced());
+
+            return pageDataAdvanced;
+         }
+      }
+
+      private VolumeData checkIndex(VolumeData data)
+      {
+         if (index < 0 || index >= data.pages())
+            throw new IndexOutOfBoundsException("Page index ["+index+"] out of range [0,"+data.pages()+")");
+         return data;
       }
 
       @Override
@@ -327,7 +1178,8 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
       {
          try
          {
-            return (String)loadPageBasicData().get("seq");
+            PageData d = loadPageBasicData();
+            return d.data.seq(d.index);
          }
          catch (Exception e)
          {
@@ -340,8 +1192,8 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
       {
          try
          {
-            Number v = (Number)loadPageBasicData().get("tokenCount");
-            return v.intValue();
+            PageData d = loadPageBasicData();
+            return d.data.tokenCount(d.index);
          }
          catch (Exception e)
          {
@@ -354,8 +1206,8 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
       {
          try
          {
-            Number v = (Number)loadPageBasicData().get("lineCount");
-            return v.intValue();
+            PageData d = loadPageBasicData();
+            return d.data.lineCount(d.index);
          }
          catch (Exception e)
          {
@@ -368,17 +1220,25 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
       {
          return new DefaultPOS(this, "body");
       }
+
+      @Override
+      public CompletableFuture<ExtractedFeatures.ExtractedPagePartOfSpeechData> getBodyDataAsync()
+      {
+         return loadAsync(new DefaultPOS(this, "body"));
+      }
    }
 
    public static class DefaultPOS implements ExtractedFeatures.ExtractedPagePartOfSpeechData
    {
       private final DefaultPage parent;
       private final String section;
+      private final int sectionIndex;
 
       public DefaultPOS(DefaultPage parent, String section)
       {
          this.parent = Objects.requireNonNull(parent);
          this.section = Objects.requireNonNull(section);
+         this.sectionIndex = VolumeData.sectionIndex(section);
       }
 
       @Override
@@ -411,20 +1271,28 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
          return section.equals("footer");
       }
 
+      /**
+       * Get the basic volume data, verified to contain token data for this section. Does not return {@code null}
+       */
+      private PageData getSectionData() throws Exception
+      {
+         PageData d = parent.loadPageBasicData();
+         if (!d.data.hasSection(d.index, sectionIndex))
+            throw new IllegalStateException("Section ["+section+"] has no basic data");
+
+         if (!d.data.hasTokenPosCount(d.index, sectionIndex))
+            throw new IllegalStateException("Section ["+section+"] has no basic 'tokenPosCount' data");
+
+         return d;
+      }
+
       @Override
       public Set<String> tokens() throws HathiTrustClientException
       {
          try
          {
-            Map<String, ?> secData = (Map)parent.loadPageBasicData().get(section);
-            if (secData == null)
-               throw new IllegalStateException("Section ["+section+"] has no basic data");
-
-            Map<String, ?> tokensData = (Map)secData.get("tokenPosCount");
-            if (tokensData == null)
-               throw new IllegalStateException("Section ["+section+"] has no basic 'tokenPosCount' data");
-
-            return Collections.unmodifiableSet(tokensData.keySet());
+            PageData d = getSectionData();
+            return d.data.tokenSet(d.index, sectionIndex);
          }
          catch (Exception e)
          {
@@ -437,33 +1305,20 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
       {
          try
          {
-            Map<String, ?> secData = (Map)parent.loadPageBasicData().get(section);
-            if (secData == null)
-               throw new IllegalStateException("Section ["+section+"] has no basic data");
-
-            Map<String, ?> tokensData = (Map)secData.get("tokenPosCount");
-            if (tokensData == null)
-               throw new IllegalStateException("Section ["+section+"] has no basic 'tokenPosCount' data");
-
-            // This map is typically of size=1
-            Map<String, ?> tokData = (Map)tokensData.get(token);
+            PageData d = getSectionData();
+            VolumeData data = d.data;
+            int id = data.lookupToken(token);
+            int end = data.sectionEnd(d.index, sectionIndex);
+            int ix = id < 0 ? -1 : data.find(data.sectionStart(d.index, sectionIndex), end, id);
 
             // Asked for invalid token
-            if (tokData == null)
+            if (ix < 0)
                return Collections.emptyMap();
 
+            // This map is typically of size=1
             Map<String, Integer> rv = new HashMap<>();
-
-            for (Map.Entry<String, ?> entry : tokData.entrySet())
-            {
-               Number n = (Number)entry.getValue();
-               Integer v = null;
-               if (n instanceof Integer)
-                  v = (Integer)n;
-               else
-                  v = Integer.valueOf(n.intValue());
-               rv.put(entry.getKey(), v);
-            }
+            for (int i = ix; i < end && data.tokenAt(i) == id; ++i)
+               rv.put(data.posTag(data.posAt(i)), Integer.valueOf(data.countAt(i)));
 
             return rv;
          }
@@ -476,9 +1331,46 @@ public class DefaultExtractedFeatures implements ExtractedFeatures, ExtractedFea
       @Override
       public int getCount(String token) throws HathiTrustClientException
       {
-         // sum counts of all parts of speech for the given token
-         int count = getPosCount(token).values().stream().mapToInt(Integer::intValue).sum();
-         return count;
+         try
+         {
+            // sum counts of all parts of speech for the given token
+            PageData d = getSectionData();
+            return d.data.count(d.index, sectionIndex, token);
+         }
+         catch (Exception e)
+         {
+            throw new HathiTrustClientException("Failed accessing token data on ["+this+"]", e);
+         }
+      }
+
+      @Override
+      public PosCounts getPosCounts(String token, PosCounts counts) throws HathiTrustClientException
+      {
+         try
+         {
+            PageData d = getSectionData();
+            counts.clear();
+            d.data.addPosCounts(d.index, sectionIndex, token, counts);
+            return counts;
+         }
+         catch (Exception e)
+         {
+            throw new HathiTrustClientException("Failed accessing token data on ["+this+"]", e);
+         }
+      }
+
+      @Override
+      public void forEachTokenPos(TokenPosVisitor visitor) throws HathiTrustClientException
+      {
+         try
+         {
+            PageData d = getSectionData();
+            d.data.forEachTokenPos(d.index, sectionIndex, visitor, new TokenChars());
+         }
+         catch (Exception e)
+         {
+            throw new HathiTrustClientException("Failed accessing token data on ["+this+"]", e);
+         }
       }
    }
 }
@@ -15,21 +15,29 @@
  */
 package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
 
-import java.nio.file.Files;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import edu.tamu.tcat.hathitrust.HathiTrustClientException;
 import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
 import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeaturesProvider;
-import edu.tamu.tcat.pairtree.Pairtree;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
 
 /**
  * @since 1.1
@@ -37,20 +45,495 @@ import edu.tamu.tcat.pairtree.Pairtree;
 public class DefaultExtractedFeaturesProvider implements ExtractedFeaturesProvider, AutoCloseable
 {
    private static final Logger debug = Logger.getLogger(DefaultExtractedFeaturesProvider.class.getName());
-   private static final String TYPE_BASIC = "basic";
-   private static final String TYPE_ADVANCED = "advanced";
 
    private final AtomicBoolean isDisposed = new AtomicBoolean(false);
-   private final ConcurrentHashMap<String, DefaultExtractedFeatures> cache;
+   private final VolumeCache cache;
    private final Path root;
+   private final SidecarCache sidecar;
+   private final boolean pageIndex;
+   private final boolean eagerLoading;
+   private final LoadOptions loadOptions;
+   private final Path cacheRoot;
+   private final int prefetch;
+   private final long loadTimeoutNanos;
+   private final ArchiveManifest manifest;
+   private final MetadataCatalog catalog;
+   private final SharedVocabulary vocabulary;
+   private final long parallelDecodeThreshold;
+   private final ForkJoinPool decodePool;
+   private final ArchiveSource source;
+   private final List<ArchiveCodec> codecs;
 
-   private final ExecutorService exec;
+   private final LoadPipeline pipeline;
 
    public DefaultExtractedFeaturesProvider(Path root)
    {
-      this.root = root;
-      cache = new ConcurrentHashMap<>();
-      exec = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("def ext feat %1$d").build());
+      this(new Builder(root));
+   }
+
+   private DefaultExtractedFeaturesProvider(Builder builder)
+   {
+      this.root = builder.root;
+      this.source = builder.source;
+      this.codecs = builder.codecs;
+      // derived files record the state of the archive files, so need archives to be files
+      boolean files = source.isFileBacked();
+      this.sidecar = builder.sidecar && files ? new SidecarCache(root, builder.cacheRoot) : null;
+      this.pageIndex = builder.pageIndex && files;
+      this.eagerLoading = builder.eagerLoading;
+      this.loadOptions = builder.loadOptions;
+      this.cacheRoot = builder.cacheRoot;
+      this.prefetch = builder.prefetch < 0 ? 2 * builder.cpuThreads : builder.prefetch;
+      this.loadTimeoutNanos = builder.loadTimeoutNanos;
+      this.manifest = builder.manifest == null || !files ? null : openManifest(root, builder.manifest);
+      this.catalog = builder.catalog == null ? null : openCatalog(builder.catalog);
+      this.vocabulary = builder.vocabulary == null ? null : openVocabulary(builder.vocabulary);
+      cache = new VolumeCache(builder.cacheBudget);
+      pipeline = new LoadPipeline(builder.ioThreads, builder.cpuThreads, builder.queueCapacity);
+      this.parallelDecodeThreshold = builder.parallelDecodeThreshold;
+      // separate from the common pool, whose threads may be blocked waiting on loads
+      decodePool = new ForkJoinPool(builder.cpuThreads);
+   }
+
+   /**
+    * Configures and creates a {@link DefaultExtractedFeaturesProvider}.
+    * @since 1.2
+    */
+   public static class Builder
+   {
+      private final Path root;
+      private boolean sidecar;
+      private boolean pageIndex;
+      private boolean eagerLoading;
+      private LoadOptions loadOptions = LoadOptions.ALL;
+      private Path cacheRoot;
+      private int ioThreads = 2;
+      private int cpuThreads = Runtime.getRuntime().availableProcessors();
+      private int queueCapacity = 64;
+      private long cacheBudget = Runtime.getRuntime().maxMemory() / 4;
+      private int prefetch = -1;
+      private long loadTimeoutNanos = TimeUnit.MINUTES.toNanos(10);
+      private Path manifest;
+      private Path catalog;
+      private Path vocabulary;
+      private long parallelDecodeThreshold = 1 << 20;
+      private ArchiveSource source = new FileArchiveSource();
+      private List<ArchiveCodec> codecs = Collections.unmodifiableList(Arrays.asList(StandardArchiveCodec.values()));
+
+      /**
+       * @param root The root of the Extracted Features dataset, containing the "basic" and
+       *        "advanced" pairtrees.
+       */
+      public Builder(Path root)
+      {
+         this.root = Objects.requireNonNull(root);
+      }
+
+      /**
+       * Enable or disable the binary sidecar cache. When enabled, the first load of each archive
+       * writes a binary transcoding of the parsed data which later loads memory-map instead of
+       * decompressing and parsing the archive. Disabled by default.
+       * <p>
+       * Sidecar files are written next to the archives unless {@link #setCacheRoot(Path)} is used.
+       */
+      public Builder setSidecarCache(boolean enabled)
+      {
+         this.sidecar = enabled;
+         return this;
+      }
+
+      /**
+       * Enable or disable page offset indexes. When enabled, the first full load of a volume
+       * records where each page lies in the decompressed archive and writes an index file. Later
+       * loads defer decoding the volume, and a page access decodes only that page. Volume-level
+       * metadata is also answered from the index. Disabled by default.
+       * <p>
+       * This suits interactive tools which access a few pages of large volumes. When the sidecar
+       * cache is also enabled and holds the volume, the sidecar is used instead.
+       */
+      public Builder setPageIndex(boolean enabled)
+      {
+         this.pageIndex = enabled;
+         return this;
+      }
+
+      /**
+       * Enable or disable eager loading. By default, each of a volume's "basic" and "advanced"
+       * archives is loaded when data it holds is first accessed, and volume-level metadata is
+       * read from whichever archive is already loaded. When enabled, both archives start loading
+       * as soon as the volume is requested, which suits callers that are known to need both.
+       */
+      public Builder setEagerLoading(boolean enabled)
+      {
+         this.eagerLoading = enabled;
+         return this;
+      }
+
+      /**
+       * Set the data loaded for volumes requested through
+       * {@link DefaultExtractedFeaturesProvider#getExtractedFeatures(String)}. Defaults to
+       * {@link LoadOptions#ALL}.
+       * <p>
+       * Options are applied while parsing, so sections and tokens which are not selected are
+       * never built. Only complete volumes are written to the sidecar cache, but a sidecar which
+       * already exists is used for any options.
+       */
+      public Builder setLoadOptions(LoadOptions options)
+      {
+         this.loadOptions = Objects.requireNonNull(options);
+         return this;
+      }
+
+      /**
+       * Enable the binary sidecar cache, writing sidecar (and page index) files under the given
+       * directory rather than next to the archives. This is useful when the dataset is read-only
+       * or on network storage.
+       */
+      public Builder setCacheRoot(Path cacheRoot)
+      {
+         this.cacheRoot = Objects.requireNonNull(cacheRoot);
+         this.sidecar = true;
+         return this;
+      }
+
+      /**
+       * Set the number of threads reading archives from storage. Defaults to 2; raise this for
+       * storage which benefits from concurrent requests, such as network file systems.
+       */
+      public Builder setIoThreads(int threads)
+      {
+         if (threads < 1)
+            throw new IllegalArgumentException("I/O thread count must be positive [" + threads + "]");
+         this.ioThreads = threads;
+         return this;
+      }
+
+      /**
+       * Set the number of threads decompressing and parsing archives. Defaults to the number of
+       * available processors.
+       */
+      public Builder setCpuThreads(int threads)
+      {
+         if (threads < 1)
+            throw new IllegalArgumentException("CPU thread count must be positive [" + threads + "]");
+         this.cpuThreads = threads;
+         return this;
+      }
+
+      /**
+       * Set the number of loads each pipeline stage may queue while its threads are busy. When the
+       * I/O stage's queue is full, threads requesting volumes wait for space, and when the CPU
+       * stage's queue is full, I/O threads wait before reading further archives, which throttles
+       * callers of {@link DefaultExtractedFeaturesProvider#getExtractedFeatures(String)} without
+       * running loads on their threads. Asynchronous requests, such as
+       * {@link DefaultExtractedFeaturesProvider#getExtractedFeaturesAsync(String)}, do not wait;
+       * their loads are held until the I/O stage's queue has space. Defaults to 64.
+       */
+      public Builder setQueueCapacity(int capacity)
+      {
+         if (capacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be positive [" + capacity + "]");
+         this.queueCapacity = capacity;
+         return this;
+      }
+
+      /**
+       * Set the estimated heap size, in bytes, of loaded volumes to retain after all holders have
+       * closed them. Closed volumes are evicted in least-recently-used order once the cache exceeds
+       * this size; volumes which are still open are never evicted. Defaults to a quarter of the
+       * maximum heap size.
+       */
+      public Builder setCacheBudget(long bytes)
+      {
+         if (bytes < 0)
+            throw new IllegalArgumentException("Cache budget must not be negative [" + bytes + "]");
+         this.cacheBudget = bytes;
+         return this;
+      }
+
+      /**
+       * Set the number of volumes each consumer of a stream returned by
+       * {@link DefaultExtractedFeaturesProvider#stream(Iterable, LoadOptions, boolean)} keeps
+       * loading ahead of the volume it is processing. Defaults to twice the number of CPU threads,
+       * which keeps the pipeline busy while the consumer works.
+       */
+      public Builder setPrefetch(int volumes)
+      {
+         if (volumes < 1)
+            throw new IllegalArgumentException("Prefetch depth must be positive [" + volumes + "]");
+         this.prefetch = volumes;
+         return this;
+      }
+
+      /**
+       * Set how long a blocking accessor waits for a volume's data to load before failing.
+       * Defaults to 10 minutes. The load itself continues; callers which must not block should use
+       * the asynchronous accessors, such as
+       * {@link DefaultExtractedFeaturesProvider#getExtractedFeaturesAsync(String)}, and cancel
+       * their futures to abandon loads.
+       */
+      public Builder setLoadTimeout(long timeout, TimeUnit unit)
+      {
+         if (timeout <= 0)
+            throw new IllegalArgumentException("Load timeout must be positive [" + timeout + " " + unit + "]");
+         this.loadTimeoutNanos = unit.toNanos(timeout);
+         return this;
+      }
+
+      /**
+       * Set the compressed size, in bytes, above which an archive's bzip2 blocks are decompressed
+       * concurrently rather than in sequence, which reduces the time to load a large volume.
+       * Defaults to 1 MiB; use {@link Long#MAX_VALUE} to always decompress sequentially.
+       */
+      public Builder setParallelDecodeThreshold(long bytes)
+      {
+         if (bytes < 0)
+            throw new IllegalArgumentException("Parallel decode threshold must not be negative [" + bytes + "]");
+         this.parallelDecodeThreshold = bytes;
+         return this;
+      }
+
+      /**
+       * Resolve volumes through a manifest of the dataset's archives rather than probing the file
+       * system for each volume, which is slow on network storage. If the manifest file does not
+       * exist, it is built when the provider is created by walking the dataset in parallel, which
+       * may take some time for a full dataset.
+       * <p>
+       * Volumes not in the manifest are probed as before; those found are merged into the
+       * manifest by {@link DefaultExtractedFeaturesProvider#refreshManifest()} and when the
+       * provider is closed, and those missing are not probed again for some minutes. To pick up
+       * volumes added in bulk, delete the manifest file so that it is rebuilt.
+       */
+      public Builder setManifest(Path file)
+      {
+         this.manifest = Objects.requireNonNull(file);
+         return this;
+      }
+
+      /**
+       * Answer volume-level values (metadata, {@link ExtractedFeatures#dateCreated()} and
+       * {@link ExtractedFeatures#pageCount()}) from a {@link MetadataCatalog} rather than the
+       * archives, for volumes the catalog holds. The catalog must already have been built by
+       * {@link MetadataCatalog#build(Path, Path)}; if it cannot be opened, values are read from
+       * the archives.
+       */
+      public Builder setCatalog(Path file)
+      {
+         this.catalog = Objects.requireNonNull(file);
+         return this;
+      }
+
+      /**
+       * Resolve the tokens of parsed volumes against a vocabulary file shared by all volumes,
+       * rather than a dictionary of each volume's own, so that volumes hold token identifiers
+       * rather than copies of common token strings. Tokens the vocabulary does not hold are
+       * appended to it; the file is created if it does not exist. Several processes may share the
+       * file, in which case the token characters are held once in the operating system's page
+       * cache.
+       * <p>
+       * Volumes read from sidecar caches already hold their tokens outside the heap, and sidecars
+       * written from volumes parsed against the vocabulary do not depend on it. If the file cannot
+       * be opened, volumes are parsed with their own dictionaries.
+       */
+      public Builder setVocabulary(Path file)
+      {
+         this.vocabulary = Objects.requireNonNull(file);
+         return this;
+      }
+
+      /**
+       * Set how archive bytes are obtained. Defaults to a {@link FileArchiveSource}; a
+       * {@link MappedArchiveSource} avoids copying archives onto the heap, and a
+       * {@link MemoryArchiveSource} serves archives without a file system.
+       * <p>
+       * Archives are still addressed by their paths under the dataset root. Sidecar caches, page
+       * indexes and the manifest are disabled for sources which are not
+       * {@link ArchiveSource#isFileBacked() file-backed}.
+       */
+      public Builder setArchiveSource(ArchiveSource source)
+      {
+         this.source = Objects.requireNonNull(source);
+         return this;
+      }
+
+      /**
+       * Set the encodings archives may use, in the order they are tried against each archive's
+       * leading bytes. Defaults to all {@link StandardArchiveCodec}s: bzip2, gzip and plain JSON.
+       */
+      public Builder setCodecs(ArchiveCodec... codecs)
+      {
+         if (codecs.length == 0)
+            throw new IllegalArgumentException("At least one codec is required");
+         List<ArchiveCodec> list = new ArrayList<>(codecs.length);
+         for (ArchiveCodec codec : codecs)
+            list.add(Objects.requireNonNull(codec));
+         this.codecs = Collections.unmodifiableList(list);
+         return this;
+      }
+
+      public DefaultExtractedFeaturesProvider build()
+      {
+         return new DefaultExtractedFeaturesProvider(this);
+      }
+   }
+
+   private static ArchiveManifest openManifest(Path root, Path file)
+   {
+      try
+      {
+         return ArchiveManifest.open(root, file);
+      }
+      catch (Exception e)
+      {
+         // volumes are still found by probing, only more slowly
+         debug.log(Level.SEVERE, "Failed opening manifest " + file + "; resolving volumes without it", e);
+         return null;
+      }
+   }
+
+   private static MetadataCatalog openCatalog(Path file)
+   {
+      try
+      {
+         return MetadataCatalog.open(file);
+      }
+      catch (Exception e)
+      {
+         // volume-level values are still read from the archives, only more slowly
+         debug.log(Level.SEVERE, "Failed opening metadata catalog " + file + "; reading metadata from archives", e);
+         return null;
+      }
+   }
+
+   private static SharedVocabulary openVocabulary(Path file)
+   {
+      try
+      {
+         return SharedVocabulary.open(file);
+      }
+      catch (Exception e)
+      {
+         // volumes are still parsed, only with their own dictionaries
+         debug.log(Level.SEVERE, "Failed opening vocabulary " + file + "; parsing volumes without it", e);
+         return null;
+      }
+   }
+
+   /**
+    * @return The metadata catalog volume-level values are answered from, or {@code null} if none
+    *         was configured.
+    * @since 1.2
+    */
+   public MetadataCatalog getCatalog()
+   {
+      return catalog;
+   }
+
+   /**
+    * @return The vocabulary tokens are resolved against, or {@code null} if none was configured.
+    */
+   SharedVocabulary getVocabulary()
+   {
+      return vocabulary;
+   }
+
+   /**
+    * @return The sidecar cache, or {@code null} if disabled.
+    */
+   SidecarCache getSidecarCache()
+   {
+      return sidecar;
+   }
+
+   /**
+    * @return The page index file for the given archive, or {@code null} if page indexes are disabled.
+    */
+   Path getPageIndexPath(Path archive)
+   {
+      if (!pageIndex)
+         return null;
+      return SidecarCache.resolve(root, cacheRoot, archive, PageIndex.SUFFIX);
+   }
+
+   /**
+    * @return The source of archive bytes.
+    */
+   ArchiveSource getArchiveSource()
+   {
+      return source;
+   }
+
+   /**
+    * Decode a complete archive read from the {@link #getArchiveSource() source}.
+    *
+    * @param archive The encoded archive.
+    * @param name The archive's path, for logging.
+    */
+   InputStream decode(ByteBuffer archive, Path name) throws IOException
+   {
+      ArchiveCodec codec = ArchiveCodec.detect(codecs, archive);
+      // large archives are decompressed on the pool where the codec supports it
+      ForkJoinPool pool = archive.remaining() >= parallelDecodeThreshold ? decodePool : null;
+      debug.fine("decoding " + codec.getName() + " " + name);
+      return codec.decode(archive, pool);
+   }
+
+   /**
+    * Open an archive from the {@link #getArchiveSource() source} for sequential decoding.
+    */
+   InputStream openDecoded(Path archive) throws IOException
+   {
+      return ArchiveCodec.decode(codecs, source.open(archive));
+   }
+
+   /**
+    * @return The time, in nanoseconds, blocking accessors wait for data to load.
+    */
+   long getLoadTimeoutNanos()
+   {
+      return loadTimeoutNanos;
+   }
+
+   /**
+    * @return A snapshot of the statistics of each stage of the load pipeline, in pipeline order:
+    *         archive reading ("io") followed by decompression and parsing ("cpu").
+    * @since 1.2
+    */
+   public List<StageStatistics> getLoadStatistics()
+   {
+      return Arrays.asList(pipeline.getStatistics());
+   }
+
+   /**
+    * @return A snapshot of the volume cache size and hit, miss and eviction counts.
+    * @since 1.2
+    */
+   public CacheStatistics getCacheStatistics()
+   {
+      return cache.getStatistics();
+   }
+
+   /**
+    * Merge the volumes found by probing, and those dropped because their archives disappeared,
+    * into the manifest file. Does nothing if no manifest is configured.
+    *
+    * @return The number of manifest entries changed.
+    * @throws HathiTrustClientException If the manifest could not be written.
+    * @since 1.2
+    */
+   public int refreshManifest() throws HathiTrustClientException
+   {
+      if (manifest == null)
+         return 0;
+
+      try
+      {
+         return manifest.refresh();
+      }
+      catch (IOException e)
+      {
+         throw new HathiTrustClientException("Failed refreshing " + manifest, e);
+      }
    }
 
    @Override
@@ -66,38 +549,65 @@ public class DefaultExtractedFeaturesProvider implements ExtractedFeaturesProvid
       // prevent any new cache entries from being created
       isDisposed.set(true);
 
-      exec.shutdownNow();
+      pipeline.shutdownNow();
+      decodePool.shutdownNow();
+
+      int dangling = cache.clear();
+      if (dangling > 0)
+         debug.log(Level.SEVERE, "Provider had " + dangling + " dangling cache entries");
 
-      cache.forEachValue(1, ef ->
+      try
       {
-         try
-         {
-            ef.close();
-         }
-         catch (Exception e)
-         {
-            debug.log(Level.SEVERE, "Error disposing [" + ef + "]", e);
-         }
-      });
-      if (!cache.isEmpty())
+         refreshManifest();
+      }
+      catch (HathiTrustClientException e)
       {
-         debug.log(Level.SEVERE, "Provider had " + cache.size() + " dangling cache entries");
-         cache.clear();
+         debug.log(Level.WARNING, "Failed saving manifest changes", e);
       }
+
+      if (vocabulary != null)
+         vocabulary.close();
    }
 
+   /**
+    * Release a reference to a volume returned by {@link #getExtractedFeatures(String)}.
+    */
    public void closed(DefaultExtractedFeatures ch)
    {
       if (isDisposed.get())
          return;
 
-      String vid = ch.getVolumeId();
-      DefaultExtractedFeatures ef = cache.remove(vid);
-      if (ef == null)
-      {
-         debug.log(Level.WARNING, "Extracted features closing but not in cache [" + vid + "]");
+      cache.release(ch);
+   }
+
+   /**
+    * Release a reference to a volume whose asynchronous access failed or was cancelled before
+    * the caller received it. A cancelled volume which is no longer referenced stops loading.
+    */
+   private void abandoned(DefaultExtractedFeatures ef, boolean cancelled)
+   {
+      if (isDisposed.get())
          return;
-      }
+
+      if (cache.release(ef) == 0 && cancelled)
+         ef.cancelLoads();
+   }
+
+   /**
+    * Record the estimated size of data loaded for a cached volume.
+    */
+   void loaded(DefaultExtractedFeatures ef, long bytes)
+   {
+      cache.loaded(ef, bytes);
+   }
+
+   /**
+    * Record that an archive the manifest placed was not found, so the volume is probed again.
+    */
+   void archiveMissing(String htrcVolumeId)
+   {
+      if (manifest != null)
+         manifest.remove(htrcVolumeId);
    }
 
    /**
@@ -111,48 +621,172 @@ public class DefaultExtractedFeaturesProvider implements ExtractedFeaturesProvid
     */
    private Path getArchivePath(String htrcVolumeId, String type) throws HathiTrustClientException
    {
-      // Volume-id looks like "xxx.123456" and needs to be split into
-      // "xxx", "12", "34", "56", "xxx.123456.basic.json.bz2" parts
+      Path file = ArchiveManifest.archivePath(root, htrcVolumeId, type);
+      if (!source.exists(file))
+         return null;
+
+      return file;
+   }
+
+   /**
+    * Find the basic and advanced archives of a volume, through the manifest if configured.
+    */
+   private ArchiveManifest.Entry findArchives(String htrcVolumeId) throws HathiTrustClientException
+   {
+      ArchiveManifest.Entry entry = manifest == null ? null : manifest.lookup(htrcVolumeId);
+      if (entry != null)
+         return entry;
 
-      int sepPos = htrcVolumeId.indexOf('.');
-      if (sepPos < 0)
-         throw new IllegalArgumentException("Parameter does not 'look like' a volume id ["+htrcVolumeId+"]");
+      entry = new ArchiveManifest.Entry(getArchivePath(htrcVolumeId, ArchiveManifest.TYPE_BASIC),
+                                        getArchivePath(htrcVolumeId, ArchiveManifest.TYPE_ADVANCED));
+      if (manifest != null)
+         manifest.found(htrcVolumeId, entry.basic, entry.advanced);
+      return entry;
+   }
 
-      String src = htrcVolumeId.substring(0, sepPos);
-      String objId = htrcVolumeId.substring(sepPos+1);
+   @Override
+   public ExtractedFeatures getExtractedFeatures(String htrcVolumeId) throws HathiTrustClientException
+   {
+      return getExtractedFeatures(htrcVolumeId, loadOptions);
+   }
 
-      Path ppath = Pairtree.toPPath(objId);
-      objId = Pairtree.toCleanEncodedId(objId);
+   /**
+    * {@inheritDoc}
+    * <p>
+    * Volumes loaded with different options are cached separately.
+    */
+   @Override
+   public ExtractedFeatures getExtractedFeatures(String htrcVolumeId, LoadOptions options) throws HathiTrustClientException
+   {
+      return acquire(htrcVolumeId, options);
+   }
 
-      Path file = root.resolve(type)
-                      .resolve(src)
-                      .resolve("pairtree_root")
-                      .resolve(ppath)
-                      .resolve(objId)
-                      .resolve(src + "." + objId + "." + type + ".json.bz2");
-      if (!Files.exists(file))
-         return null;
+   @Override
+   public CompletableFuture<ExtractedFeatures> getExtractedFeaturesAsync(String htrcVolumeId)
+   {
+      return getExtractedFeaturesAsync(htrcVolumeId, loadOptions);
+   }
 
-      return file;
+   /**
+    * {@inheritDoc}
+    * <p>
+    * The volume loads on the provider's pipeline threads, never on the calling thread, and the
+    * call does not wait for space in the pipeline. When the pipeline's I/O queue is full, the
+    * load is held until the queue has space, so the future completes later; see
+    * {@link Builder#setQueueCapacity(int)}.
+    */
+   @Override
+   public CompletableFuture<ExtractedFeatures> getExtractedFeaturesAsync(String htrcVolumeId, LoadOptions options)
+   {
+      CompletableFuture<ExtractedFeatures> result = new CompletableFuture<>();
+      DefaultExtractedFeatures ef;
+      try
+      {
+         ef = acquire(htrcVolumeId, options, eagerLoading, false);
+      }
+      catch (HathiTrustClientException | RuntimeException e)
+      {
+         result.completeExceptionally(e);
+         return result;
+      }
+
+      // on success the caller holds the reference; otherwise it is released here
+      result.whenComplete((v, e) ->
+      {
+         if (e != null)
+            abandoned(ef, result.isCancelled());
+      });
+      ef.loadAsync().whenComplete((v, e) ->
+      {
+         if (e == null)
+            result.complete(ef);
+         else
+         {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            result.completeExceptionally(new HathiTrustClientException("Failed loading volume [" + htrcVolumeId + "]", cause));
+         }
+      });
+      return result;
    }
 
+   /**
+    * {@inheritDoc}
+    * <p>
+    * Volumes are loaded up to the configured {@link Builder#setPrefetch(int) prefetch} depth
+    * ahead of the consumer. Decoding is concurrent in the load pipeline in either mode; only an
+    * unordered stream is split so that a parallel stream runs its actions on several threads,
+    * and it supplies volumes as their loads complete. It splits for each thread of the
+    * fork/join pool its terminal operation starts in, or of the common pool when started
+    * elsewhere.
+    */
    @Override
-   public ExtractedFeatures getExtractedFeatures(String htrcVolumeId) throws HathiTrustClientException
+   public Stream<ExtractedFeatures> stream(Iterable<String> htrcVolumeIds, LoadOptions options, boolean ordered)
    {
+      Objects.requireNonNull(options);
       if (isDisposed.get())
          throw new IllegalStateException("Provider is disposed");
 
-      Path basic = getArchivePath(htrcVolumeId, TYPE_BASIC);
-      Path advanced = getArchivePath(htrcVolumeId, TYPE_ADVANCED);
+      VolumeSpliterator volumes = new VolumeSpliterator(this, htrcVolumeIds, options, prefetch, ordered);
+      return StreamSupport.stream(volumes, false).onClose(volumes::close);
+   }
+
+   /**
+    * {@inheritDoc}
+    * <p>
+    * Pages are decoded from the volume's basic archive as the stream advances and are not
+    * cached, so memory use is bounded by the largest page. The volume is acquired without
+    * loading, so data accessed through {@link ExtractedFeatures.ExtractedPageFeatures#getVolume()}
+    * is loaded only when first used.
+    */
+   @Override
+   public Stream<ExtractedFeatures.ExtractedPageFeatures> streamPages(String htrcVolumeId, LoadOptions options) throws HathiTrustClientException
+   {
+      DefaultExtractedFeatures ef = acquire(htrcVolumeId, options, false, true);
+      DefaultExtractedFeatures.PageSpliterator pages;
+      try
+      {
+         pages = ef.readPages();
+      }
+      catch (HathiTrustClientException | RuntimeException e)
+      {
+         closed(ef);
+         throw e;
+      }
+
+      return StreamSupport.stream(pages, false).onClose(() ->
+      {
+         pages.close();
+         closed(ef);
+      });
+   }
+
+   /**
+    * Get a volume from the cache, creating it if absent, and add a reference which the caller
+    * releases by closing it.
+    */
+   DefaultExtractedFeatures acquire(String htrcVolumeId, LoadOptions options) throws HathiTrustClientException
+   {
+      return acquire(htrcVolumeId, options, eagerLoading, true);
+   }
+
+   /**
+    * @param eager Whether to start loading a newly cached volume immediately.
+    * @param wait Whether starting to load waits for space in the load pipeline.
+    */
+   private DefaultExtractedFeatures acquire(String htrcVolumeId, LoadOptions options, boolean eager, boolean wait) throws HathiTrustClientException
+   {
+      Objects.requireNonNull(options);
+      if (isDisposed.get())
+         throw new IllegalStateException("Provider is disposed");
 
-      // These are cheap enough to create and destroy if already in the cache
-      DefaultExtractedFeatures ef = new DefaultExtractedFeatures(this, htrcVolumeId, basic, advanced);
-      DefaultExtractedFeatures old = cache.putIfAbsent(htrcVolumeId, ef);
-      if (old != null)
-         // return 'old', don't bother calling "ef.close()"
-         return old;
+      ArchiveManifest.Entry archives = findArchives(htrcVolumeId);
+      Path basic = archives.basic;
+      Path advanced = archives.advanced;
 
-      ef.load(exec);
+      Object key = DefaultExtractedFeatures.getCacheKey(htrcVolumeId, options);
+      DefaultExtractedFeatures ef = cache.acquire(key, () -> new DefaultExtractedFeatures(this, htrcVolumeId, basic, advanced, options));
+      // prepares loading only for a newly cached volume
+      ef.load(pipeline, eager, wait);
       return ef;
    }
 }
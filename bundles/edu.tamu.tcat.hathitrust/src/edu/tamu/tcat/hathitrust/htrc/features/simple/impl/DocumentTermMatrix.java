@@ -0,0 +1,666 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import edu.tamu.tcat.hathitrust.HathiTrustClientException;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeaturesProvider;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.TokenPosVisitor;
+
+/**
+ * Exports the body token counts of a set of volumes as a sparse document-term matrix, with a row
+ * per volume or per page and a column per token, summing the counts of each part of speech.
+ * <p>
+ * Volumes are read in batches, each counted in parallel on a fork-join pool into primitive
+ * arrays of (column, count) pairs per row, then written in the order of the volume identifiers.
+ * Only the rows of the current batch are held in memory; neither a dense nor a boxed matrix is
+ * built. Columns are either a fixed vocabulary, in its iteration order, or the tokens of the
+ * volumes in order of first appearance.
+ * <p>
+ * The export writes the following files to a directory:
+ * <ul>
+ *   <li>{@value #ROWS}: the label of each row, one per line: the volume identifier, followed for
+ *       page rows by a tab and the zero-based page index.</li>
+ *   <li>{@value #COLUMNS}: the token of each column, one per line.</li>
+ *   <li>for {@link Format#CSR}, {@value #INDPTR} (little-endian int64, rows + 1),
+ *       {@value #INDICES} (little-endian int32 column of each value) and {@value #DATA}
+ *       (little-endian int32 values): the compressed sparse row arrays, as read by
+ *       {@code scipy.sparse.csr_matrix((data, indices, indptr))}.</li>
+ *   <li>for {@link Format#MATRIX_MARKET}, {@value #MATRIX_MARKET}: a coordinate integer matrix
+ *       with one-based indices.</li>
+ *   <li>for {@link Format#LIBSVM}, {@value #LIBSVM}: a line per row of {@code 0 column:value}
+ *       pairs with one-based columns; rows carry no labels, so the label is always zero.</li>
+ * </ul>
+ * Within a row, columns are in ascending order.
+ *
+ * @since 1.2
+ */
+public class DocumentTermMatrix
+{
+   private static final Logger debug = Logger.getLogger(DocumentTermMatrix.class.getName());
+
+   public static final String ROWS = "rows.txt";
+   public static final String COLUMNS = "columns.txt";
+   public static final String INDPTR = "indptr.bin";
+   public static final String INDICES = "indices.bin";
+   public static final String DATA = "data.bin";
+   public static final String MATRIX_MARKET = "matrix.mtx";
+   public static final String LIBSVM = "matrix.svm";
+
+   // bounds the rows held in memory
+   private static final int BATCH_SIZE = 64;
+
+   public enum Granularity
+   {
+      /** A row per volume. */
+      VOLUME,
+      /** A row per page, in page order within each volume. */
+      PAGE
+   }
+
+   public enum Format
+   {
+      /** Binary compressed sparse row arrays. */
+      CSR,
+      /** MatrixMarket coordinate text. */
+      MATRIX_MARKET,
+      /** LibSVM (SVMlight) text. */
+      LIBSVM
+   }
+
+   private final ExtractedFeaturesProvider provider;
+   private final ForkJoinPool pool;
+   private final Granularity granularity;
+   private final Format format;
+   private final Collection<String> vocabulary;
+
+   private DocumentTermMatrix(Builder builder)
+   {
+      this.provider = builder.provider;
+      this.pool = builder.pool;
+      this.granularity = builder.granularity;
+      this.format = builder.format;
+      this.vocabulary = builder.vocabulary;
+   }
+
+   public static class Builder
+   {
+      private final ExtractedFeaturesProvider provider;
+      private ForkJoinPool pool = ForkJoinPool.commonPool();
+      private Granularity granularity = Granularity.VOLUME;
+      private Format format = Format.CSR;
+      private Collection<String> vocabulary;
+
+      public Builder(ExtractedFeaturesProvider provider)
+      {
+         this.provider = Objects.requireNonNull(provider);
+      }
+
+      /**
+       * Set the pool on which volumes are counted. Defaults to the common pool.
+       */
+      public Builder setPool(ForkJoinPool pool)
+      {
+         this.pool = Objects.requireNonNull(pool);
+         return this;
+      }
+
+      /**
+       * Set whether rows are volumes or pages. Defaults to {@link Granularity#VOLUME}.
+       */
+      public Builder setGranularity(Granularity granularity)
+      {
+         this.granularity = Objects.requireNonNull(granularity);
+         return this;
+      }
+
+      /**
+       * Set the format of the matrix. Defaults to {@link Format#CSR}.
+       */
+      public Builder setFormat(Format format)
+      {
+         this.format = Objects.requireNonNull(format);
+         return this;
+      }
+
+      /**
+       * Set the tokens to count, in column order; other tokens are not decoded. Tokens are matched
+       * exactly, including case, and repeated tokens are ignored. Defaults to {@code null}, which
+       * counts all tokens, in order of their first appearance.
+       */
+      public Builder setVocabulary(Collection<String> vocabulary)
+      {
+         this.vocabulary = vocabulary;
+         return this;
+      }
+
+      public DocumentTermMatrix build()
+      {
+         return new DocumentTermMatrix(this);
+      }
+   }
+
+   /**
+    * The dimensions of an exported matrix.
+    */
+   public static final class Shape
+   {
+      private final long rows;
+      private final int columns;
+      private final long nonZeros;
+
+      Shape(long rows, int columns, long nonZeros)
+      {
+         this.rows = rows;
+         this.columns = columns;
+         this.nonZeros = nonZeros;
+      }
+
+      @Override
+      public String toString()
+      {
+         return rows + "x" + columns + " matrix[" + nonZeros + " non-zero]";
+      }
+
+      public long getRows()
+      {
+         return rows;
+      }
+
+      public int getColumns()
+      {
+         return columns;
+      }
+
+      public long getNonZeros()
+      {
+         return nonZeros;
+      }
+   }
+
+   /**
+    * Export the matrix of the given volumes.
+    *
+    * @param htrcVolumeIds The volumes, in row order; duplicates are exported once.
+    * @param dir The directory to write to, created if necessary. Existing files are replaced.
+    * @return The dimensions of the matrix written.
+    * @throws HathiTrustClientException If any volume could not be read, or the matrix could not
+    *         be written.
+    */
+   public Shape export(Collection<String> htrcVolumeIds, Path dir) throws HathiTrustClientException
+   {
+      long start = System.nanoTime();
+      List<String> ids = new ArrayList<>(new LinkedHashSet<>(htrcVolumeIds));
+      LoadOptions.Builder options = LoadOptions.builder().setSections(LoadOptions.Section.BODY);
+      TokenDictionary columns = new TokenDictionary();
+      boolean fixed = vocabulary != null;
+      if (fixed)
+      {
+         options.setVocabulary(vocabulary);
+         for (String token : vocabulary)
+            columns.add(token);
+      }
+
+      try
+      {
+         Files.createDirectories(dir);
+         try (MatrixWriter out = newWriter(dir);
+              Writer rows = Files.newBufferedWriter(dir.resolve(ROWS), StandardCharsets.UTF_8))
+         {
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE)
+            {
+               List<String> batch = ids.subList(from, Math.min(ids.size(), from + BATCH_SIZE));
+               VolumeRows[] results = count(batch, options.build(), fixed ? columns : null);
+
+               if (!fixed)
+               {
+                  // columns are assigned in row order so that they do not depend on scheduling
+                  for (VolumeRows r : results)
+                     r.assignColumns(columns);
+                  pool.invoke(ForkJoinTask.adapt(() -> Arrays.stream(results).parallel().forEach(VolumeRows::remap)));
+               }
+
+               for (VolumeRows r : results)
+                  r.write(out, rows);
+            }
+
+            writeColumns(dir.resolve(COLUMNS), columns);
+            Shape shape = out.finish(columns.size());
+            debug.info("Exported " + shape + " of " + ids.size() + " volumes to " + dir + " in "
+                  + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            return shape;
+         }
+      }
+      catch (IOException | RuntimeException e)
+      {
+         throw new HathiTrustClientException("Failed exporting document-term matrix of [" + ids.size() + "] volumes to [" + dir + "]", e);
+      }
+   }
+
+   /**
+    * Count the rows of a batch of volumes in parallel.
+    *
+    * @param columns The fixed columns, or {@code null} to number each volume's tokens itself.
+    * @return The rows of each volume, in batch order.
+    */
+   private VolumeRows[] count(List<String> batch, LoadOptions options, TokenDictionary columns)
+   {
+      Map<String, Integer> positions = new HashMap<>();
+      for (int i = 0; i < batch.size(); ++i)
+         positions.put(batch.get(i), Integer.valueOf(i));
+
+      VolumeRows[] results = new VolumeRows[batch.size()];
+      pool.invoke(ForkJoinTask.adapt(() ->
+      {
+         try (Stream<ExtractedFeatures> volumes = provider.stream(batch, options, false))
+         {
+            volumes.parallel().forEach(ef ->
+            {
+               VolumeRows r = new VolumeRows(ef.getVolumeId(), granularity == Granularity.PAGE, columns);
+               try
+               {
+                  ef.forEachTokenPos(r);
+               }
+               catch (HathiTrustClientException e)
+               {
+                  throw new IllegalStateException("Failed accessing token data on [" + ef.getVolumeId() + "]", e);
+               }
+               r.finish();
+               results[positions.get(ef.getVolumeId()).intValue()] = r;
+            });
+         }
+      }));
+      return results;
+   }
+
+   private MatrixWriter newWriter(Path dir) throws IOException
+   {
+      switch (format)
+      {
+         case CSR:
+            return new CsrWriter(dir);
+         case MATRIX_MARKET:
+            return new MatrixMarketWriter(dir.resolve(MATRIX_MARKET));
+         case LIBSVM:
+            return new LibSvmWriter(dir.resolve(LIBSVM));
+         default:
+            throw new IllegalStateException("Unknown format [" + format + "]");
+      }
+   }
+
+   private static void writeColumns(Path file, TokenDictionary columns) throws IOException
+   {
+      try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+      {
+         for (int i = 0; i < columns.size(); ++i)
+         {
+            w.write(columns.get(i));
+            w.write('\n');
+         }
+      }
+   }
+
+   /**
+    * The rows of a single volume, as (column, count) pairs in primitive arrays. Without fixed
+    * columns, the volume's tokens are numbered by a dictionary of its own until the rows are
+    * {@link #remap() remapped} to the matrix's columns.
+    */
+   private static class VolumeRows implements TokenPosVisitor
+   {
+      private final String vid;
+      private final boolean pages;
+      private final TokenDictionary columns;
+      private final TokenDictionary local;
+      // local column of each of the volume's own tokens, once assigned
+      private int[] map;
+
+      private int rows;
+      // the pairs of row i are at [rowStart[i], rowStart[i + 1])
+      private int[] rowStart = new int[16];
+      private int[] cols = new int[256];
+      private int[] counts = new int[256];
+      private int length;
+      private long[] scratch = new long[64];
+      private boolean started;
+
+      VolumeRows(String vid, boolean pages, TokenDictionary columns)
+      {
+         this.vid = vid;
+         this.pages = pages;
+         this.columns = columns;
+         this.local = columns == null ? new TokenDictionary() : null;
+      }
+
+      @Override
+      public void startPage(int page)
+      {
+         if (pages && started)
+            endRow();
+         started = true;
+      }
+
+      @Override
+      public void visit(CharSequence token, int posOrdinal, int count)
+      {
+         int col;
+         if (columns != null)
+         {
+            col = columns.lookup(token);
+            if (col < 0)
+               return;
+         }
+         else
+         {
+            col = local.lookup(token);
+            if (col < 0)
+               col = local.add(token.toString());
+         }
+
+         if (length == cols.length)
+         {
+            cols = Arrays.copyOf(cols, length * 2);
+            counts = Arrays.copyOf(counts, length * 2);
+         }
+         cols[length] = col;
+         counts[length] = count;
+         length++;
+      }
+
+      /**
+       * Complete the last row, once all tokens are visited. A volume has a single row, even if
+       * empty, but no page rows if it has no pages.
+       */
+      void finish()
+      {
+         if (!pages || started)
+            endRow();
+      }
+
+      /**
+       * Complete the current row, summing the counts of each column.
+       */
+      private void endRow()
+      {
+         if (rows + 2 > rowStart.length)
+            rowStart = Arrays.copyOf(rowStart, rowStart.length * 2);
+         length = rowStart[rows] + sortRow(rowStart[rows], length);
+         rowStart[++rows] = length;
+      }
+
+      /**
+       * Number the volume's own tokens as columns of the matrix, adding those not yet present.
+       */
+      void assignColumns(TokenDictionary matrixColumns)
+      {
+         map = new int[local.size()];
+         for (int i = 0; i < map.length; ++i)
+            map[i] = matrixColumns.add(local.get(i));
+      }
+
+      /**
+       * Replace the volume's own token numbers with the assigned columns.
+       */
+      void remap()
+      {
+         for (int i = 0; i < length; ++i)
+            cols[i] = map[cols[i]];
+         for (int r = 0; r < rows; ++r)
+            sortRow(rowStart[r], rowStart[r + 1]);
+      }
+
+      /**
+       * Sort the pairs in {@code [from, to)} by column, merging pairs of the same column.
+       *
+       * @return The number of pairs remaining, from {@code from}.
+       */
+      private int sortRow(int from, int to)
+      {
+         int n = to - from;
+         if (scratch.length < n)
+            scratch = new long[Math.max(n, scratch.length * 2)];
+         for (int i = 0; i < n; ++i)
+            scratch[i] = ((long)cols[from + i] << 32) | (counts[from + i] & 0xFFFFFFFFL);
+         Arrays.sort(scratch, 0, n);
+
+         int out = from - 1;
+         for (int i = 0; i < n; ++i)
+         {
+            int col = (int)(scratch[i] >>> 32);
+            int count = (int)scratch[i];
+            if (out >= from && cols[out] == col)
+               counts[out] += count;
+            else
+            {
+               cols[++out] = col;
+               counts[out] = count;
+            }
+         }
+         return out + 1 - from;
+      }
+
+      void write(MatrixWriter out, Writer labels) throws IOException
+      {
+         for (int r = 0; r < rows; ++r)
+         {
+            labels.write(vid);
+            if (pages)
+            {
+               labels.write('\t');
+               labels.write(Integer.toString(r));
+            }
+            labels.write('\n');
+            out.row(cols, counts, rowStart[r], rowStart[r + 1]);
+         }
+      }
+   }
+
+   /**
+    * Streams rows to the files of a matrix format.
+    */
+   private static abstract class MatrixWriter implements Closeable
+   {
+      protected long rows;
+      protected long nonZeros;
+
+      /**
+       * Append a row of the pairs {@code [from, to)}, in ascending column order.
+       */
+      abstract void row(int[] cols, int[] counts, int from, int to) throws IOException;
+
+      /**
+       * Complete the matrix once all rows are written.
+       */
+      Shape finish(int columns) throws IOException
+      {
+         return new Shape(rows, columns, nonZeros);
+      }
+
+      static DataOutputStream open(Path file) throws IOException
+      {
+         return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+      }
+   }
+
+   private static class CsrWriter extends MatrixWriter
+   {
+      private final DataOutputStream indptr;
+      private final DataOutputStream indices;
+      private final DataOutputStream data;
+
+      CsrWriter(Path dir) throws IOException
+      {
+         indptr = open(dir.resolve(INDPTR));
+         try
+         {
+            indices = open(dir.resolve(INDICES));
+            try
+            {
+               data = open(dir.resolve(DATA));
+            }
+            catch (IOException e)
+            {
+               indices.close();
+               throw e;
+            }
+         }
+         catch (IOException e)
+         {
+            indptr.close();
+            throw e;
+         }
+         indptr.writeLong(0);
+      }
+
+      @Override
+      void row(int[] cols, int[] counts, int from, int to) throws IOException
+      {
+         for (int i = from; i < to; ++i)
+         {
+            indices.writeInt(Integer.reverseBytes(cols[i]));
+            data.writeInt(Integer.reverseBytes(counts[i]));
+         }
+         rows++;
+         nonZeros += to - from;
+         indptr.writeLong(Long.reverseBytes(nonZeros));
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         try (OutputStream a = indptr; OutputStream b = indices; OutputStream c = data)
+         {
+            // closes all three
+         }
+      }
+   }
+
+   /**
+    * Writes entries to a temporary file, as the header preceding them holds the dimensions,
+    * which are only known once all rows are written.
+    */
+   private static class MatrixMarketWriter extends MatrixWriter
+   {
+      private final Path file;
+      private final Path entries;
+      private final Writer out;
+
+      MatrixMarketWriter(Path file) throws IOException
+      {
+         this.file = file;
+         this.entries = file.resolveSibling(file.getFileName() + ".entries");
+         this.out = Files.newBufferedWriter(entries, StandardCharsets.US_ASCII);
+      }
+
+      @Override
+      void row(int[] cols, int[] counts, int from, int to) throws IOException
+      {
+         rows++;
+         String row = Long.toString(rows);
+         for (int i = from; i < to; ++i)
+         {
+            out.write(row);
+            out.write(' ');
+            out.write(Integer.toString(cols[i] + 1));
+            out.write(' ');
+            out.write(Integer.toString(counts[i]));
+            out.write('\n');
+         }
+         nonZeros += to - from;
+      }
+
+      @Override
+      Shape finish(int columns) throws IOException
+      {
+         out.close();
+         try (OutputStream dst = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))
+         {
+            String header = "%%MatrixMarket matrix coordinate integer general\n" + rows + " " + columns + " " + nonZeros + "\n";
+            dst.write(header.getBytes(StandardCharsets.US_ASCII));
+            Files.copy(entries, dst);
+         }
+         return super.finish(columns);
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         try
+         {
+            out.close();
+         }
+         finally
+         {
+            Files.deleteIfExists(entries);
+         }
+      }
+   }
+
+   private static class LibSvmWriter extends MatrixWriter
+   {
+      private final Writer out;
+
+      LibSvmWriter(Path file) throws IOException
+      {
+         this.out = Files.newBufferedWriter(file, StandardCharsets.US_ASCII);
+      }
+
+      @Override
+      void row(int[] cols, int[] counts, int from, int to) throws IOException
+      {
+         out.write('0');
+         for (int i = from; i < to; ++i)
+         {
+            out.write(' ');
+            out.write(Integer.toString(cols[i] + 1));
+            out.write(':');
+            out.write(Integer.toString(counts[i]));
+         }
+         out.write('\n');
+         rows++;
+         nonZeros += to - from;
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         out.close();
+      }
+   }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads archives from the file system. Complete archives are read into heap buffers with a
+ * single positional read where the file system allows, and sequential reads use large buffers
+ * which are pooled across streams.
+ *
+ * @since 1.2
+ */
+public class FileArchiveSource implements ArchiveSource
+{
+   private static final int DEFAULT_BUFFER_SIZE = 1 << 18;
+
+   private final int bufferSize;
+   private final ArrayBlockingQueue<ByteBuffer> pool;
+
+   /**
+    * Create a source with 256 KiB stream buffers, pooling as many as there are processors.
+    */
+   public FileArchiveSource()
+   {
+      this(DEFAULT_BUFFER_SIZE, Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * @param bufferSize The size of the buffers used by streams from {@link #open(Path)}.
+    * @param pooled The number of idle buffers to retain for reuse.
+    */
+   public FileArchiveSource(int bufferSize, int pooled)
+   {
+      if (bufferSize < 1 || pooled < 0)
+         throw new IllegalArgumentException("Invalid buffer size [" + bufferSize + "] or pool size [" + pooled + "]");
+      this.bufferSize = bufferSize;
+      this.pool = new ArrayBlockingQueue<>(Math.max(1, pooled));
+   }
+
+   @Override
+   public String toString()
+   {
+      return "file archive source";
+   }
+
+   @Override
+   public boolean exists(Path archive)
+   {
+      return Files.exists(archive);
+   }
+
+   @Override
+   public ByteBuffer read(Path archive) throws IOException
+   {
+      try (FileChannel ch = FileChannel.open(archive, StandardOpenOption.READ))
+      {
+         long size = ch.size();
+         if (size > Integer.MAX_VALUE - 8)
+            throw new IOException("Archive too large [" + size + " bytes] " + archive);
+
+         ByteBuffer buf = ByteBuffer.allocate((int)size);
+         while (buf.hasRemaining())
+         {
+            if (ch.read(buf, buf.position()) < 0)
+               throw new EOFException("Archive shorter than its size " + archive);
+         }
+         buf.flip();
+         return buf;
+      }
+   }
+
+   @Override
+   public InputStream open(Path archive) throws IOException
+   {
+      FileChannel ch = FileChannel.open(archive, StandardOpenOption.READ);
+      ByteBuffer buf = pool.poll();
+      if (buf == null)
+         buf = ByteBuffer.allocate(bufferSize);
+      buf.clear().flip();
+      return new ChannelInputStream(ch, buf);
+   }
+
+   /**
+    * A buffered stream over a file channel which returns its buffer to the pool when closed.
+    */
+   private class ChannelInputStream extends InputStream
+   {
+      private final FileChannel ch;
+      private ByteBuffer buf;
+
+      ChannelInputStream(FileChannel ch, ByteBuffer buf)
+      {
+         this.ch = ch;
+         this.buf = buf;
+      }
+
+      /**
+       * @return {@code false} at the end of the file.
+       */
+      private boolean fill() throws IOException
+      {
+         if (buf == null)
+            throw new IOException("Stream closed");
+         if (buf.hasRemaining())
+            return true;
+
+         buf.clear();
+         int n;
+         do
+         {
+            n = ch.read(buf);
+         }
+         while (n == 0);
+         buf.flip();
+         return n > 0;
+      }
+
+      @Override
+      public int read() throws IOException
+      {
+         return fill() ? buf.get() & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (len == 0)
+            return 0;
+         if (!fill())
+            return -1;
+
+         int n = Math.min(len, buf.remaining());
+         buf.get(b, off, n);
+         return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException
+      {
+         if (n <= 0 || buf == null)
+            return 0;
+
+         long buffered = Math.min(n, buf.remaining());
+         buf.position(buf.position() + (int)buffered);
+         long rest = Math.min(n - buffered, ch.size() - ch.position());
+         if (rest > 0)
+            ch.position(ch.position() + rest);
+         return buffered + Math.max(rest, 0);
+      }
+
+      @Override
+      public int available()
+      {
+         return buf == null ? 0 : buf.remaining();
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         if (buf == null)
+            return;
+
+         ByteBuffer b = buf;
+         buf = null;
+         pool.offer(b);
+         ch.close();
+      }
+   }
+}
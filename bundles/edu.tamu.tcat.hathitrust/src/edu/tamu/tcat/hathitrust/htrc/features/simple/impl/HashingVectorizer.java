@@ -0,0 +1,455 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import edu.tamu.tcat.hathitrust.HathiTrustClientException;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures.ExtractedPagePartOfSpeechData;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PartOfSpeechCode;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.TokenPosVisitor;
+
+/**
+ * Maps token counts to sparse vectors of a fixed dimension by feature hashing, without a
+ * vocabulary, so pages can be vectorized as they are streamed.
+ * <p>
+ * Each feature, the token or, if {@link Builder#setPartOfSpeech(boolean) enabled}, the token and
+ * its part of speech as {@code token/NN}, is hashed by the 32-bit x86 variant of MurmurHash3 over
+ * its UTF-8 bytes. The index of the feature is the absolute value of the hash modulo the
+ * dimension. With {@link Builder#setSigned(boolean) signed} hashing, the count is added if the
+ * hash is non-negative and subtracted otherwise, so colliding features tend to cancel rather
+ * than accumulate. Indices and signs are derived from the hash as by scikit-learn's
+ * {@code HashingVectorizer}.
+ * <p>
+ * Counts are accumulated in a primitive hash table reused by each thread, so vectorizing
+ * allocates only the vector returned. Instances are thread-safe.
+ *
+ * @since 1.2
+ */
+public class HashingVectorizer
+{
+   private static final String UNKNOWN_POS = "UNK";
+
+   // UTF-8 "/" followed by the code, indexed by part-of-speech ordinal
+   private static final byte[][] POS_SUFFIXES = new byte[PartOfSpeechCode.UNKNOWN_ORDINAL + 1][];
+   static
+   {
+      for (PartOfSpeechCode code : PartOfSpeechCode.values())
+         POS_SUFFIXES[code.ordinal()] = ("/" + code.name()).getBytes(StandardCharsets.UTF_8);
+      POS_SUFFIXES[PartOfSpeechCode.UNKNOWN_ORDINAL] = ("/" + UNKNOWN_POS).getBytes(StandardCharsets.UTF_8);
+   }
+
+   private final int dimension;
+   private final boolean partOfSpeech;
+   private final boolean signed;
+   private final int seed;
+   private final ThreadLocal<Accumulator> accumulators = ThreadLocal.withInitial(Accumulator::new);
+
+   private HashingVectorizer(Builder builder)
+   {
+      this.dimension = builder.dimension;
+      this.partOfSpeech = builder.partOfSpeech;
+      this.signed = builder.signed;
+      this.seed = builder.seed;
+   }
+
+   public static class Builder
+   {
+      private int dimension = 1 << 20;
+      private boolean partOfSpeech;
+      private boolean signed = true;
+      private int seed;
+
+      /**
+       * Set the dimension of the vectors. Defaults to 2<sup>20</sup>.
+       */
+      public Builder setDimension(int dimension)
+      {
+         if (dimension < 1)
+            throw new IllegalArgumentException("Dimension must be positive [" + dimension + "]");
+         this.dimension = dimension;
+         return this;
+      }
+
+      /**
+       * Set whether each part of speech of a token is a separate feature. Parts of speech which do
+       * not match a {@link PartOfSpeechCode} are hashed as {@code token/UNK}. Defaults to
+       * {@code false}, which sums the counts of all parts of speech of a token.
+       */
+      public Builder setPartOfSpeech(boolean partOfSpeech)
+      {
+         this.partOfSpeech = partOfSpeech;
+         return this;
+      }
+
+      /**
+       * Set whether the sign of each count is taken from the hash. Defaults to {@code true}.
+       */
+      public Builder setSigned(boolean signed)
+      {
+         this.signed = signed;
+         return this;
+      }
+
+      /**
+       * Set the MurmurHash3 seed. Defaults to zero.
+       */
+      public Builder setSeed(int seed)
+      {
+         this.seed = seed;
+         return this;
+      }
+
+      public HashingVectorizer build()
+      {
+         return new HashingVectorizer(this);
+      }
+   }
+
+   public int getDimension()
+   {
+      return dimension;
+   }
+
+   /**
+    * Vectorize the token counts of a page section.
+    */
+   public SparseVector vectorize(ExtractedPagePartOfSpeechData data) throws HathiTrustClientException
+   {
+      Accumulator acc = accumulators.get();
+      try
+      {
+         data.forEachTokenPos(acc);
+         return acc.toVector();
+      }
+      finally
+      {
+         acc.clear();
+      }
+   }
+
+   /**
+    * Vectorize the body token counts of all pages of a volume.
+    */
+   public SparseVector vectorize(ExtractedFeatures volume) throws HathiTrustClientException
+   {
+      Accumulator acc = accumulators.get();
+      try
+      {
+         volume.forEachTokenPos(acc);
+         return acc.toVector();
+      }
+      finally
+      {
+         acc.clear();
+      }
+   }
+
+   /**
+    * @return The index of the given hash in a vector of the given dimension.
+    */
+   static int index(int hash, int dimension)
+   {
+      // the absolute value of Integer.MIN_VALUE overflows
+      if (hash == Integer.MIN_VALUE)
+         return (Integer.MAX_VALUE - (dimension - 1)) % dimension;
+      return Math.abs(hash) % dimension;
+   }
+
+   /**
+    * The 32-bit x86 variant of MurmurHash3.
+    */
+   static int murmur3(byte[] data, int length, int seed)
+   {
+      final int c1 = 0xcc9e2d51;
+      final int c2 = 0x1b873593;
+
+      int h = seed;
+      int blocks = length & ~3;
+      for (int i = 0; i < blocks; i += 4)
+      {
+         int k = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | data[i + 3] << 24;
+         k *= c1;
+         k = Integer.rotateLeft(k, 15);
+         k *= c2;
+         h ^= k;
+         h = Integer.rotateLeft(h, 13);
+         h = h * 5 + 0xe6546b64;
+      }
+
+      int k = 0;
+      switch (length & 3)
+      {
+         case 3:
+            k ^= (data[blocks + 2] & 0xFF) << 16;
+            // fall through
+         case 2:
+            k ^= (data[blocks + 1] & 0xFF) << 8;
+            // fall through
+         case 1:
+            k ^= data[blocks] & 0xFF;
+            k *= c1;
+            k = Integer.rotateLeft(k, 15);
+            k *= c2;
+            h ^= k;
+            break;
+         default:
+            break;
+      }
+
+      h ^= length;
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return h;
+   }
+
+   /**
+    * A sparse vector of integer values, with indices in ascending order. Values which are zero,
+    * including those cancelled by signed hashing, are omitted.
+    */
+   public static final class SparseVector
+   {
+      private final int dimension;
+      private final int[] indices;
+      private final int[] values;
+
+      SparseVector(int dimension, int[] indices, int[] values)
+      {
+         this.dimension = dimension;
+         this.indices = indices;
+         this.values = values;
+      }
+
+      @Override
+      public String toString()
+      {
+         return "sparse vector[" + indices.length + " of " + dimension + "]";
+      }
+
+      public int getDimension()
+      {
+         return dimension;
+      }
+
+      /**
+       * @return The number of non-zero values.
+       */
+      public int size()
+      {
+         return indices.length;
+      }
+
+      /**
+       * @return The index of the i-th non-zero value.
+       */
+      public int getIndex(int i)
+      {
+         return indices[i];
+      }
+
+      /**
+       * @return The i-th non-zero value.
+       */
+      public int getValue(int i)
+      {
+         return values[i];
+      }
+
+      /**
+       * @return The value at the given index of the vector.
+       */
+      public int get(int index)
+      {
+         int i = Arrays.binarySearch(indices, index);
+         return i < 0 ? 0 : values[i];
+      }
+
+      /**
+       * @return A copy of the indices of the non-zero values.
+       */
+      public int[] getIndices()
+      {
+         return indices.clone();
+      }
+
+      /**
+       * @return A copy of the non-zero values, in the order of {@link #getIndices()}.
+       */
+      public int[] getValues()
+      {
+         return values.clone();
+      }
+   }
+
+   /**
+    * Sums the counts of each index in an open-addressing table, which with the UTF-8 buffer is
+    * reused for each vector built on a thread.
+    */
+   private class Accumulator implements TokenPosVisitor
+   {
+      private byte[] bytes = new byte[64];
+      // slot holds (index + 1), zero marks an empty slot
+      private int[] keys = new int[256];
+      private int[] sums = new int[256];
+      private int mask = keys.length - 1;
+      private int size;
+      private long[] sorted = new long[128];
+
+      @Override
+      public void visit(CharSequence token, int posOrdinal, int count)
+      {
+         int length = encode(token);
+         if (partOfSpeech)
+         {
+            byte[] suffix = POS_SUFFIXES[posOrdinal];
+            if (bytes.length < length + suffix.length)
+               bytes = Arrays.copyOf(bytes, Math.max(length + suffix.length, bytes.length * 2));
+            System.arraycopy(suffix, 0, bytes, length, suffix.length);
+            length += suffix.length;
+         }
+
+         int hash = murmur3(bytes, length, seed);
+         add(index(hash, dimension), signed && hash < 0 ? -count : count);
+      }
+
+      /**
+       * Encode a token to UTF-8 in the buffer, replacing unpaired surrogates with '?' as
+       * {@link String#getBytes(java.nio.charset.Charset)} does.
+       *
+       * @return The number of bytes.
+       */
+      private int encode(CharSequence token)
+      {
+         int n = token.length();
+         // each char encodes to at most three bytes, a surrogate pair to four
+         if (bytes.length < n * 3)
+            bytes = new byte[Math.max(n * 3, bytes.length * 2)];
+
+         int len = 0;
+         for (int i = 0; i < n; ++i)
+         {
+            char c = token.charAt(i);
+            if (c < 0x80)
+               bytes[len++] = (byte)c;
+            else if (c < 0x800)
+            {
+               bytes[len++] = (byte)(0xC0 | c >> 6);
+               bytes[len++] = (byte)(0x80 | c & 0x3F);
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(token.charAt(i + 1)))
+            {
+               int cp = Character.toCodePoint(c, token.charAt(++i));
+               bytes[len++] = (byte)(0xF0 | cp >> 18);
+               bytes[len++] = (byte)(0x80 | cp >> 12 & 0x3F);
+               bytes[len++] = (byte)(0x80 | cp >> 6 & 0x3F);
+               bytes[len++] = (byte)(0x80 | cp & 0x3F);
+            }
+            else if (Character.isSurrogate(c))
+               bytes[len++] = '?';
+            else
+            {
+               bytes[len++] = (byte)(0xE0 | c >> 12);
+               bytes[len++] = (byte)(0x80 | c >> 6 & 0x3F);
+               bytes[len++] = (byte)(0x80 | c & 0x3F);
+            }
+         }
+         return len;
+      }
+
+      private void add(int index, int value)
+      {
+         int slot = spread(index) & mask;
+         int k;
+         while ((k = keys[slot]) != 0)
+         {
+            if (k == index + 1)
+            {
+               sums[slot] += value;
+               return;
+            }
+            slot = (slot + 1) & mask;
+         }
+
+         keys[slot] = index + 1;
+         sums[slot] = value;
+         // keep load factor at or below one half
+         if (++size * 2 > keys.length)
+            rehash();
+      }
+
+      private int spread(int index)
+      {
+         int h = index * 0x9E3779B9;
+         return h ^ (h >>> 16);
+      }
+
+      private void rehash()
+      {
+         int[] oldKeys = keys;
+         int[] oldSums = sums;
+         keys = new int[oldKeys.length * 2];
+         sums = new int[oldKeys.length * 2];
+         mask = keys.length - 1;
+         for (int s = 0; s < oldKeys.length; ++s)
+         {
+            if (oldKeys[s] == 0)
+               continue;
+            int slot = spread(oldKeys[s] - 1) & mask;
+            while (keys[slot] != 0)
+               slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[s];
+            sums[slot] = oldSums[s];
+         }
+      }
+
+      SparseVector toVector()
+      {
+         if (sorted.length < size)
+            sorted = new long[Math.max(size, sorted.length * 2)];
+
+         int n = 0;
+         for (int s = 0; s < keys.length; ++s)
+         {
+            if (keys[s] != 0 && sums[s] != 0)
+               sorted[n++] = ((long)(keys[s] - 1) << 32) | (sums[s] & 0xFFFFFFFFL);
+         }
+         Arrays.sort(sorted, 0, n);
+
+         int[] indices = new int[n];
+         int[] values = new int[n];
+         for (int i = 0; i < n; ++i)
+         {
+            indices[i] = (int)(sorted[i] >>> 32);
+            values[i] = (int)sorted[i];
+         }
+         return new SparseVector(dimension, indices, values);
+      }
+
+      void clear()
+      {
+         if (size > 0)
+         {
+            Arrays.fill(keys, 0);
+            size = 0;
+         }
+      }
+   }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.util.Map;
+
+/**
+ * A {@link VolumeData} holding its columns in heap arrays, as produced by {@link VolumeParser}.
+ *
+ * @since 1.2
+ */
+class HeapVolumeData extends VolumeData
+{
+   /** The volume's own dictionary, or a vocabulary shared with other volumes */
+   final TokenTable dictionary;
+   /** Raw part-of-speech tags indexed by the posId used in {@link #triples} */
+   final String[] posTags;
+
+   final String[] seq;
+   final int[] tokenCount;
+   final int[] lineCount;
+
+   /** Section flags indexed by {@code page * SECTIONS + section} */
+   final byte[] sectionFlags;
+   /** Start triple of each page section, indexed by {@code page * SECTIONS + section}, with a trailing end marker */
+   final int[] sectionOffsets;
+   final int[] triples;
+
+   HeapVolumeData(Map<String, String> metadata,
+                  String schemaVersion,
+                  String dateCreated,
+                  Integer pageCount,
+                  TokenTable dictionary,
+                  String[] posTags,
+                  String[] seq,
+                  int[] tokenCount,
+                  int[] lineCount,
+                  byte[] sectionFlags,
+                  int[] sectionOffsets,
+                  int[] triples)
+   {
+      super(metadata, schemaVersion, dateCreated, pageCount);
+      this.dictionary = dictionary;
+      this.posTags = posTags;
+      this.seq = seq;
+      this.tokenCount = tokenCount;
+      this.lineCount = lineCount;
+      this.sectionFlags = sectionFlags;
+      this.sectionOffsets = sectionOffsets;
+      this.triples = triples;
+   }
+
+   @Override
+   int pages()
+   {
+      return seq.length;
+   }
+
+   @Override
+   String seq(int page)
+   {
+      return seq[page];
+   }
+
+   @Override
+   int tokenCount(int page)
+   {
+      return tokenCount[page];
+   }
+
+   @Override
+   int lineCount(int page)
+   {
+      return lineCount[page];
+   }
+
+   @Override
+   int lookupToken(CharSequence token)
+   {
+      return dictionary.lookup(token);
+   }
+
+   @Override
+   String token(int tokenId)
+   {
+      return dictionary.get(tokenId);
+   }
+
+   @Override
+   CharSequence tokenChars(int tokenId, TokenChars scratch)
+   {
+      return dictionary.chars(tokenId, scratch);
+   }
+
+   @Override
+   int tokens()
+   {
+      return dictionary.size();
+   }
+
+   @Override
+   String posTag(int posId)
+   {
+      return posTags[posId];
+   }
+
+   @Override
+   int posTags()
+   {
+      return posTags.length;
+   }
+
+   @Override
+   int sectionFlags(int page, int section)
+   {
+      return sectionFlags[page * SECTIONS + section];
+   }
+
+   @Override
+   int sectionStart(int page, int section)
+   {
+      return sectionOffsets[page * SECTIONS + section];
+   }
+
+   @Override
+   int sectionEnd(int page, int section)
+   {
+      return sectionOffsets[page * SECTIONS + section + 1];
+   }
+
+   @Override
+   int triples()
+   {
+      return triples.length / 3;
+   }
+
+   @Override
+   int tokenAt(int triple)
+   {
+      return triples[triple * 3];
+   }
+
+   @Override
+   int posAt(int triple)
+   {
+      return triples[triple * 3 + 1];
+   }
+
+   @Override
+   int countAt(int triple)
+   {
+      return triples[triple * 3 + 2];
+   }
+
+   @Override
+   long estimatedBytes()
+   {
+      long bytes = 128 + dictionary.estimatedBytes();
+      for (String s : seq)
+         bytes += 8 + (s == null ? 0 : 40 + s.length() * 2L);
+      bytes += 4L * (tokenCount.length + lineCount.length + sectionOffsets.length + triples.length);
+      bytes += sectionFlags.length;
+      return bytes;
+   }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A two-stage pipeline for loading archives. The I/O stage reads archive bytes (or opens cached
+ * data which needs no parsing) and hands the bytes to the CPU stage, which decompresses and parses
+ * them.
+ * <p>
+ * Each stage has a fixed number of threads and a bounded queue, and runs its tasks only on its own
+ * threads. A caller submitting a load while the I/O stage's queue is full waits for space, and an
+ * I/O thread handing read bytes to a full CPU stage waits before reading another archive, so a
+ * flood of requests throttles its callers rather than queueing unbounded work and retaining the
+ * bytes of every pending archive.
+ * <p>
+ * Loads submitted {@link #submitAsync(Task, CompletableFuture) asynchronously} never wait: when the
+ * I/O stage's queue is full they are held as pending, and enter the queue in submission order as
+ * tasks leave it, so backpressure delays their futures rather than holding a thread. A pending
+ * load has not read its archive, so it holds no bytes. Threads of the pipeline itself, such as
+ * those running callbacks of completed loads, submit this way, since the stages could otherwise
+ * wait on each other.
+ * <p>
+ * Cancelling the future of a load interrupts the pipeline thread running it, if any. Tasks should
+ * check the interrupt status while decoding.
+ *
+ * @since 1.2
+ */
+class LoadPipeline
+{
+   /**
+    * A single archive load, run in two steps on the pipeline stages.
+    */
+   interface Task<T>
+   {
+      /**
+       * Run on the I/O stage to read the input.
+       *
+       * @return The loaded result if it was available without parsing, or {@code null} to continue
+       *         with {@link #parse()} on the CPU stage.
+       */
+      T read() throws Exception;
+
+      /**
+       * Run on the CPU stage to decode the input read by {@link #read()}.
+       */
+      T parse() throws Exception;
+
+      /**
+       * @return The number of bytes read by {@link #read()}, for throughput statistics.
+       */
+      long bytesRead();
+   }
+
+   private final Stage io;
+   private final Stage cpu;
+
+   /**
+    * @param ioThreads The number of threads reading archives.
+    * @param cpuThreads The number of threads decompressing and parsing archives.
+    * @param queueCapacity The number of tasks each stage may hold waiting for a thread.
+    */
+   LoadPipeline(int ioThreads, int cpuThreads, int queueCapacity)
+   {
+      io = new Stage("io", ioThreads, queueCapacity);
+      cpu = new Stage("cpu", cpuThreads, queueCapacity);
+   }
+
+   /**
+    * Submit a load to the pipeline. Waits while the I/O stage's queue is full, unless called by a
+    * thread of the pipeline.
+    *
+    * @return A future completed with the result of the task.
+    */
+   <T> CompletableFuture<T> submit(Task<T> task)
+   {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      submit(task, result);
+      return result;
+   }
+
+   /**
+    * Submit a load to the pipeline, completing a future the caller has already published. Waits
+    * while the I/O stage's queue is full, unless called by a thread of the pipeline, so callers
+    * should not hold locks which a pipeline thread may need.
+    *
+    * @param result The future to complete with the result of the task. Cancelling it cancels
+    *        the task.
+    */
+   <T> void submit(Task<T> task, CompletableFuture<T> result)
+   {
+      submit(task, result, !(Thread.currentThread() instanceof PipelineThread));
+   }
+
+   /**
+    * Submit a load to the pipeline without waiting. If the I/O stage's queue is full, the load
+    * is held until the queue has space.
+    *
+    * @return A future completed with the result of the task.
+    */
+   <T> CompletableFuture<T> submitAsync(Task<T> task)
+   {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      submitAsync(task, result);
+      return result;
+   }
+
+   /**
+    * Submit a load to the pipeline without waiting, completing a future the caller has already
+    * published. If the I/O stage's queue is full, the load is held until the queue has space.
+    *
+    * @param result The future to complete with the result of the task. Cancelling it cancels
+    *        the task, and a held load is then dropped when it would enter the queue.
+    */
+   <T> void submitAsync(Task<T> task, CompletableFuture<T> result)
+   {
+      submit(task, result, false);
+   }
+
+   private <T> void submit(Task<T> task, CompletableFuture<T> result, boolean wait)
+   {
+      io.execute(result, wait, () ->
+      {
+         T value = task.read();
+         if (value != null)
+         {
+            result.complete(value);
+            return task.bytesRead();
+         }
+
+         // hold off reading further archives until the CPU stage accepts these bytes
+         cpu.execute(result, true, () ->
+         {
+            result.complete(task.parse());
+            return task.bytesRead();
+         });
+         return task.bytesRead();
+      });
+   }
+
+   StageStatistics[] getStatistics()
+   {
+      return new StageStatistics[] { io.getStatistics(), cpu.getStatistics() };
+   }
+
+   /**
+    * Stop accepting work and interrupt running tasks. Pending loads complete exceptionally.
+    */
+   void shutdownNow()
+   {
+      io.shutdownNow();
+      cpu.shutdownNow();
+   }
+
+   @FunctionalInterface
+   private interface Step
+   {
+      /**
+       * @return The number of bytes processed.
+       */
+      long run() throws Exception;
+   }
+
+   /**
+    * Identifies the threads of the pipeline, which never wait to submit a load.
+    */
+   private static class PipelineThread extends Thread
+   {
+      PipelineThread(Runnable r)
+      {
+         super(r);
+      }
+   }
+
+   private static class Stage
+   {
+      private final String name;
+      private final int threads;
+      private final int queueCapacity;
+      private final ThreadPoolExecutor exec;
+      // permits for tasks waiting in the queue; the queue itself is unbounded so that a task
+      // holding no permit, such as the CPU step of a load whose read has completed, may enter it
+      private final Semaphore slots;
+      // tasks submitted without waiting while the queue was full, which enter it as permits free
+      private final ConcurrentLinkedQueue<StageTask> pending = new ConcurrentLinkedQueue<>();
+
+      private final AtomicLong completed = new AtomicLong();
+      private final AtomicLong failed = new AtomicLong();
+      private final AtomicLong bytes = new AtomicLong();
+      private final AtomicLong busyNanos = new AtomicLong();
+
+      Stage(String name, int threads, int queueCapacity)
+      {
+         this.name = name;
+         this.threads = threads;
+         this.queueCapacity = queueCapacity;
+         slots = new Semaphore(queueCapacity);
+         exec = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                       new LinkedBlockingQueue<>(),
+                                       new ThreadFactoryBuilder().setThreadFactory(PipelineThread::new)
+                                             .setNameFormat("def ext feat " + name + " %1$d").setDaemon(true).build());
+      }
+
+      /**
+       * @param wait Whether to wait while the queue is full; otherwise the task is held as
+       *        pending until the queue has space.
+       */
+      void execute(CompletableFuture<?> result, boolean wait, Step step)
+      {
+         StageTask task = new StageTask(result, step);
+         result.whenComplete((r, e) ->
+         {
+            if (result.isCancelled())
+               task.interrupt();
+         });
+
+         if (wait)
+         {
+            try
+            {
+               slots.acquire();
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               result.completeExceptionally(e);
+               return;
+            }
+            task.holdsSlot.set(true);
+            dispatch(task);
+         }
+         else if (exec.isShutdown())
+            dispatch(task);
+         else
+         {
+            pending.add(task);
+            // a slot may have been released before the task was added
+            drainPending();
+         }
+      }
+
+      /**
+       * Move pending tasks into the queue while it has space. Called after a task is added to
+       * the pending tasks and after a slot is released, so that one of the two sees the other.
+       */
+      private void drainPending()
+      {
+         while (!pending.isEmpty() && slots.tryAcquire())
+         {
+            StageTask task = pending.poll();
+            if (task == null)
+            {
+               // another thread took the task; check again for tasks added since
+               slots.release();
+               continue;
+            }
+            task.holdsSlot.set(true);
+            dispatch(task);
+         }
+      }
+
+      private void dispatch(StageTask task)
+      {
+         try
+         {
+            exec.execute(task);
+         }
+         catch (RejectedExecutionException e)
+         {
+            task.releaseSlot();
+            task.result.completeExceptionally(new RejectedExecutionException("Load pipeline stage [" + name + "] is shut down", e));
+         }
+      }
+
+      void shutdownNow()
+      {
+         for (Runnable r : exec.shutdownNow())
+         {
+            StageTask task = (StageTask)r;
+            // wakes a submitter waiting for space, which then finds the stage shut down
+            task.releaseSlot();
+            task.result.completeExceptionally(new CancellationException("Load pipeline stage [" + name + "] was shut down"));
+         }
+
+         StageTask task;
+         while ((task = pending.poll()) != null)
+            task.result.completeExceptionally(new CancellationException("Load pipeline stage [" + name + "] was shut down"));
+      }
+
+      StageStatistics getStatistics()
+      {
+         return new StageStatistics(name, threads, exec.getActiveCount(), exec.getQueue().size(), queueCapacity,
+                                    completed.get(), failed.get(), bytes.get(), busyNanos.get());
+      }
+
+      private class StageTask implements Runnable
+      {
+         private final CompletableFuture<?> result;
+         private final Step step;
+         private final AtomicBoolean holdsSlot = new AtomicBoolean();
+         //@GuardedBy("this")
+         private Thread runner;
+
+         StageTask(CompletableFuture<?> result, Step step)
+         {
+            this.result = result;
+            this.step = step;
+         }
+
+         void releaseSlot()
+         {
+            if (holdsSlot.compareAndSet(true, false))
+            {
+               slots.release();
+               drainPending();
+            }
+         }
+
+         @Override
+         public void run()
+         {
+            // the task has left the queue
+            releaseSlot();
+            if (result.isDone())
+               return;
+
+            synchronized (this)
+            {
+               runner = Thread.currentThread();
+            }
+
+            long start = System.nanoTime();
+            try
+            {
+               bytes.addAndGet(step.run());
+               completed.incrementAndGet();
+            }
+            catch (Throwable e)
+            {
+               failed.incrementAndGet();
+               result.completeExceptionally(e);
+            }
+            finally
+            {
+               busyNanos.addAndGet(System.nanoTime() - start);
+               synchronized (this)
+               {
+                  runner = null;
+               }
+               // do not carry a late cancellation into the next task
+               Thread.interrupted();
+            }
+         }
+
+         synchronized void interrupt()
+         {
+            if (runner != null)
+               runner.interrupt();
+         }
+      }
+   }
+}
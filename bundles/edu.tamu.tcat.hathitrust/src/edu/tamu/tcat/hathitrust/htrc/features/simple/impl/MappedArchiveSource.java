@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads archives by memory-mapping them, so that archive bytes are paged in by the operating
+ * system as they are decoded rather than copied onto the heap. This suits local storage with a
+ * warm page cache; on network storage, {@link FileArchiveSource} is usually faster.
+ *
+ * @since 1.2
+ */
+public class MappedArchiveSource implements ArchiveSource
+{
+   @Override
+   public String toString()
+   {
+      return "mapped archive source";
+   }
+
+   @Override
+   public boolean exists(Path archive)
+   {
+      return Files.exists(archive);
+   }
+
+   @Override
+   public ByteBuffer read(Path archive) throws IOException
+   {
+      try (FileChannel ch = FileChannel.open(archive, StandardOpenOption.READ))
+      {
+         return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      }
+   }
+
+   @Override
+   public InputStream open(Path archive) throws IOException
+   {
+      return new ByteBufferInputStream(read(archive));
+   }
+}
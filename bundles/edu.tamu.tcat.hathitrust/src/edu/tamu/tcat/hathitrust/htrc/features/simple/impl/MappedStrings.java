@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A mapped sequence of strings sorted by UTF-8 bytes, as written by
+ * {@link #write(DataOutputStream, byte[][])}:
+ * <pre>
+ *   int     count
+ *   int[]   offsets of each string relative to the first byte [count + 1]
+ *   bytes   UTF-8 strings
+ * </pre>
+ *
+ * @since 1.2
+ */
+class MappedStrings
+{
+   private final ByteBuffer buf;
+   private final int count;
+   private final int offsets;
+   private final int data;
+
+   MappedStrings(ByteBuffer buf, int pos)
+   {
+      this.buf = buf;
+      this.count = buf.getInt(pos);
+      this.offsets = pos + 4;
+      this.data = offsets + 4 * (count + 1);
+   }
+
+   int size()
+   {
+      return count;
+   }
+
+   /**
+    * @return The position in the buffer of the first byte following the strings.
+    */
+   int end()
+   {
+      return data + buf.getInt(offsets + 4 * count);
+   }
+
+   String get(int i)
+   {
+      int start = buf.getInt(offsets + 4 * i);
+      return decode(buf, data + start, buf.getInt(offsets + 4 * (i + 1)) - start);
+   }
+
+   /**
+    * @return The index of the given string, or {@code -1} if absent.
+    */
+   int find(byte[] key)
+   {
+      int i = lowerBound(key);
+      return i < count && compareAt(i, key) == 0 ? i : -1;
+   }
+
+   /**
+    * @return The index of the first string not less than the given one, or {@link #size()} if
+    *         there is none.
+    */
+   int lowerBound(byte[] key)
+   {
+      int lo = 0;
+      int hi = count;
+      while (lo < hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         if (compareAt(mid, key) < 0)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }
+      return lo;
+   }
+
+   /**
+    * @return Whether the string at the given index starts with the given bytes.
+    */
+   boolean startsWith(int i, byte[] prefix)
+   {
+      int start = data + buf.getInt(offsets + 4 * i);
+      int len = data + buf.getInt(offsets + 4 * (i + 1)) - start;
+      if (len < prefix.length)
+         return false;
+      for (int k = 0; k < prefix.length; ++k)
+      {
+         if (buf.get(start + k) != prefix[k])
+            return false;
+      }
+      return true;
+   }
+
+   private int compareAt(int i, byte[] key)
+   {
+      int start = data + buf.getInt(offsets + 4 * i);
+      int len = data + buf.getInt(offsets + 4 * (i + 1)) - start;
+      int n = Math.min(len, key.length);
+      for (int k = 0; k < n; ++k)
+      {
+         int d = (buf.get(start + k) & 0xFF) - (key[k] & 0xFF);
+         if (d != 0)
+            return d;
+      }
+      return len - key.length;
+   }
+
+   /**
+    * @return The number of bytes {@link #write(DataOutputStream, byte[][])} writes.
+    */
+   static long size(byte[][] strings)
+   {
+      long size = 4 + 4L * (strings.length + 1);
+      for (byte[] s : strings)
+         size += s.length;
+      return size;
+   }
+
+   /**
+    * @param strings UTF-8 strings, sorted by {@link #compare(byte[], byte[])}.
+    */
+   static void write(DataOutputStream out, byte[][] strings) throws IOException
+   {
+      out.writeInt(strings.length);
+      int off = 0;
+      out.writeInt(off);
+      for (byte[] s : strings)
+      {
+         off += s.length;
+         out.writeInt(off);
+      }
+      for (byte[] s : strings)
+         out.write(s);
+   }
+
+   /**
+    * Compares strings by their unsigned UTF-8 bytes, the order in which they are written.
+    */
+   static int compare(byte[] a, byte[] b)
+   {
+      int n = Math.min(a.length, b.length);
+      for (int i = 0; i < n; ++i)
+      {
+         int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+         if (d != 0)
+            return d;
+      }
+      return a.length - b.length;
+   }
+
+   static String decode(ByteBuffer buf, int pos, int len)
+   {
+      byte[] b = new byte[len];
+      for (int i = 0; i < len; ++i)
+         b[i] = buf.get(pos + i);
+      return new String(b, StandardCharsets.UTF_8);
+   }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link VolumeData} served directly from a memory-mapped sidecar file written by
+ * {@link SidecarCache}. Only the small scalar values (metadata, part-of-speech tags and page
+ * <tt>seq</tt> values) are copied to the heap; the dictionary, counts and triples are read from
+ * the mapped buffer on access.
+ *
+ * @since 1.2
+ */
+class MappedVolumeData extends VolumeData
+{
+   private final String[] posTags;
+   private final String[] seq;
+
+   private final int tokens;
+   private final IntBuffer tokenOffsets;
+   private final IntBuffer hashTable;
+   private final int hashMask;
+   private final IntBuffer tokenCount;
+   private final IntBuffer lineCount;
+   private final IntBuffer sectionOffsets;
+   private final IntBuffer triples;
+   private final ByteBuffer sectionFlags;
+   private final ByteBuffer tokenData;
+
+   /**
+    * @param buf A buffer positioned at the start of a sidecar file whose header has been verified.
+    */
+   MappedVolumeData(ByteBuffer buf)
+   {
+      this(buf.duplicate(), new Header(buf.duplicate()));
+   }
+
+   private MappedVolumeData(ByteBuffer buf, Header h)
+   {
+      super(h.metadata, h.schemaVersion, h.dateCreated, h.pageCount);
+      this.posTags = h.posTags;
+      this.seq = h.seq;
+      this.tokens = h.tokens;
+
+      int pages = seq.length;
+      int pos = h.dataStart;
+      tokenOffsets = ints(buf, pos, tokens + 1);
+      pos += 4 * (tokens + 1);
+      hashTable = ints(buf, pos, h.capacity);
+      hashMask = h.capacity - 1;
+      pos += 4 * h.capacity;
+      tokenCount = ints(buf, pos, pages);
+      pos += 4 * pages;
+      lineCount = ints(buf, pos, pages);
+      pos += 4 * pages;
+      sectionOffsets = ints(buf, pos, pages * SECTIONS + 1);
+      pos += 4 * (pages * SECTIONS + 1);
+      triples = ints(buf, pos, h.triples * 3);
+      pos += 12 * h.triples;
+      sectionFlags = bytes(buf, pos, pages * SECTIONS);
+      pos += pages * SECTIONS;
+      tokenData = bytes(buf, pos, tokenOffsets.get(tokens));
+   }
+
+   private static IntBuffer ints(ByteBuffer buf, int pos, int count)
+   {
+      return bytes(buf, pos, count * 4).asIntBuffer();
+   }
+
+   private static ByteBuffer bytes(ByteBuffer buf, int pos, int length)
+   {
+      ByteBuffer b = buf.duplicate();
+      b.position(pos);
+      b.limit(pos + length);
+      return b.slice();
+   }
+
+   /**
+    * Reads the variable-length header fields of a sidecar file onto the heap.
+    */
+   private static class Header
+   {
+      final String schemaVersion;
+      final String dateCreated;
+      final Integer pageCount;
+      final Map<String, String> metadata = new LinkedHashMap<>();
+      final String[] posTags;
+      final String[] seq;
+      final int tokens;
+      final int triples;
+      final int capacity;
+      final int dataStart;
+
+      Header(ByteBuffer buf)
+      {
+         // skip magic, version, source size and modified time; verified by SidecarCache
+         buf.position(24);
+         schemaVersion = readString(buf);
+         dateCreated = readString(buf);
+         int pc = buf.getInt();
+         pageCount = pc == Integer.MIN_VALUE ? null : Integer.valueOf(pc);
+
+         int entries = buf.getInt();
+         for (int i = 0; i < entries; ++i)
+         {
+            String k = readString(buf);
+            metadata.put(k, readString(buf));
+         }
+
+         posTags = new String[buf.getInt()];
+         for (int i = 0; i < posTags.length; ++i)
+            posTags[i] = readString(buf);
+
+         seq = new String[buf.getInt()];
+         for (int i = 0; i < seq.length; ++i)
+            seq[i] = readString(buf);
+
+         tokens = buf.getInt();
+         triples = buf.getInt();
+         capacity = buf.getInt();
+         dataStart = (buf.position() + 3) & ~3;
+      }
+
+      private static String readString(ByteBuffer buf)
+      {
+         int len = buf.getInt();
+         if (len < 0)
+            return null;
+
+         byte[] b = new byte[len];
+         buf.get(b);
+         return new String(b, StandardCharsets.UTF_8);
+      }
+   }
+
+   @Override
+   int pages()
+   {
+      return seq.length;
+   }
+
+   @Override
+   String seq(int page)
+   {
+      return seq[page];
+   }
+
+   @Override
+   int tokenCount(int page)
+   {
+      return tokenCount.get(page);
+   }
+
+   @Override
+   int lineCount(int page)
+   {
+      return lineCount.get(page);
+   }
+
+   @Override
+   int lookupToken(CharSequence token)
+   {
+      int slot = TokenDictionary.hash(token) & hashMask;
+      int v;
+      while ((v = hashTable.get(slot)) != 0)
+      {
+         int id = v - 1;
+         int start = tokenOffsets.get(id);
+         if (utf8Equals(tokenData, start, tokenOffsets.get(id + 1), token))
+            return id;
+         slot = (slot + 1) & hashMask;
+      }
+      return -1;
+   }
+
+   @Override
+   String token(int tokenId)
+   {
+      if (tokenId < 0 || tokenId >= tokens)
+         throw new IndexOutOfBoundsException("Token id ["+tokenId+"] out of range [0,"+tokens+")");
+
+      int start = tokenOffsets.get(tokenId);
+      int end = tokenOffsets.get(tokenId + 1);
+      byte[] b = new byte[end - start];
+      for (int i = 0; i < b.length; ++i)
+         b[i] = tokenData.get(start + i);
+      return new String(b, StandardCharsets.UTF_8);
+   }
+
+   @Override
+   CharSequence tokenChars(int tokenId, TokenChars scratch)
+   {
+      // consecutive triples often share a token
+      if (scratch.tokenId == tokenId)
+         return scratch;
+
+      int start = tokenOffsets.get(tokenId);
+      int end = tokenOffsets.get(tokenId + 1);
+      // UTF-8 never encodes to more chars than bytes
+      char[] chars = scratch.reset(end - start);
+      scratch.setLength(utf8Decode(tokenData, start, end, chars));
+      scratch.tokenId = tokenId;
+      return scratch;
+   }
+
+   @Override
+   int tokens()
+   {
+      return tokens;
+   }
+
+   @Override
+   String posTag(int posId)
+   {
+      return posTags[posId];
+   }
+
+   @Override
+   int posTags()
+   {
+      return posTags.length;
+   }
+
+   @Override
+   int sectionFlags(int page, int section)
+   {
+      return sectionFlags.get(page * SECTIONS + section);
+   }
+
+   @Override
+   int sectionStart(int page, int section)
+   {
+      return sectionOffsets.get(page * SECTIONS + section);
+   }
+
+   @Override
+   int sectionEnd(int page, int section)
+   {
+      return sectionOffsets.get(page * SECTIONS + section + 1);
+   }
+
+   @Override
+   int triples()
+   {
+      return triples.limit() / 3;
+   }
+
+   @Override
+   int tokenAt(int triple)
+   {
+      return triples.get(triple * 3);
+   }
+
+   @Override
+   int posAt(int triple)
+   {
+      return triples.get(triple * 3 + 1);
+   }
+
+   @Override
+   int countAt(int triple)
+   {
+      return triples.get(triple * 3 + 2);
+   }
+
+   @Override
+   long estimatedBytes()
+   {
+      // mapped pages belong to the OS page cache; count only what is copied to the heap
+      long bytes = 512;
+      for (String s : seq)
+         bytes += 48 + (s == null ? 0 : s.length() * 2L);
+      for (Map.Entry<String, String> e : metadata.entrySet())
+         bytes += 96 + (e.getKey().length() + (e.getValue() == null ? 0 : e.getValue().length())) * 2L;
+      return bytes;
+   }
+
+   /**
+    * Decode UTF-8 bytes {@code [start, end)} of the buffer into the given array.
+    *
+    * @return The number of chars written.
+    */
+   static int utf8Decode(ByteBuffer data, int start, int end, char[] chars)
+   {
+      int ci = 0;
+      int i = start;
+      while (i < end)
+      {
+         int b = data.get(i) & 0xFF;
+         int cp;
+         if (b < 0x80)
+         {
+            cp = b;
+            i += 1;
+         }
+         else if (b < 0xE0)
+         {
+            cp = ((b & 0x1F) << 6) | (data.get(i + 1) & 0x3F);
+            i += 2;
+         }
+         else if (b < 0xF0)
+         {
+            cp = ((b & 0x0F) << 12) | ((data.get(i + 1) & 0x3F) << 6) | (data.get(i + 2) & 0x3F);
+            i += 3;
+         }
+         else
+         {
+            cp = ((b & 0x07) << 18) | ((data.get(i + 1) & 0x3F) << 12) | ((data.get(i + 2) & 0x3F) << 6) | (data.get(i + 3) & 0x3F);
+            i += 4;
+         }
+
+         if (cp < 0x10000)
+            chars[ci++] = (char)cp;
+         else
+         {
+            chars[ci++] = Character.highSurrogate(cp);
+            chars[ci++] = Character.lowSurrogate(cp);
+         }
+      }
+      return ci;
+   }
+
+   /**
+    * Compare UTF-8 bytes {@code [start, end)} of the buffer to a character sequence without decoding
+    * to a new string.
+    */
+   static boolean utf8Equals(ByteBuffer data, int start, int end, CharSequence s)
+   {
+      int len = s.length();
+      int ci = 0;
+      int i = start;
+      while (i < end)
+      {
+         int b = data.get(i) & 0xFF;
+         int cp;
+         if (b < 0x80)
+         {
+            cp = b;
+            i += 1;
+         }
+         else if (b < 0xE0)
+         {
+            if (i + 1 >= end)
+               return false;
+            cp = ((b & 0x1F) << 6) | (data.get(i + 1) & 0x3F);
+            i += 2;
+         }
+         else if (b < 0xF0)
+         {
+            if (i + 2 >= end)
+               return false;
+            cp = ((b & 0x0F) << 12) | ((data.get(i + 1) & 0x3F) << 6) | (data.get(i + 2) & 0x3F);
+            i += 3;
+         }
+         else
+         {
+            if (i + 3 >= end)
+               return false;
+            cp = ((b & 0x07) << 18) | ((data.get(i + 1) & 0x3F) << 12) | ((data.get(i + 2) & 0x3F) << 6) | (data.get(i + 3) & 0x3F);
+            i += 4;
+         }
+
+         if (cp < 0x10000)
+         {
+            if (ci >= len || s.charAt(ci) != cp)
+               return false;
+            ci++;
+         }
+         else
+         {
+            if (ci + 1 >= len
+                  || s.charAt(ci) != Character.highSurrogate(cp)
+                  || s.charAt(ci + 1) != Character.lowSurrogate(cp))
+               return false;
+            ci += 2;
+         }
+      }
+      return ci == len;
+   }
+}
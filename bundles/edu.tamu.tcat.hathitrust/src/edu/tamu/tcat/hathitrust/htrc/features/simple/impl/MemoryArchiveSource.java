@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves archives held in memory, keyed by the paths at which the dataset layout places them.
+ * Intended for tests and for small, frequently used subsets of a dataset.
+ * <p>
+ * Sidecar caches, page indexes and manifests record the state of archive files, so are not used
+ * with this source.
+ *
+ * @since 1.2
+ */
+public class MemoryArchiveSource implements ArchiveSource
+{
+   private final Map<Path, byte[]> archives = new ConcurrentHashMap<>();
+
+   @Override
+   public String toString()
+   {
+      return "memory archive source[" + archives.size() + " archives]";
+   }
+
+   /**
+    * Add or replace an archive.
+    *
+    * @param archive The path of the archive in the dataset layout.
+    * @param content The archive content, which must not be modified afterwards.
+    */
+   public MemoryArchiveSource put(Path archive, byte[] content)
+   {
+      archives.put(archive, content);
+      return this;
+   }
+
+   public void remove(Path archive)
+   {
+      archives.remove(archive);
+   }
+
+   @Override
+   public boolean exists(Path archive)
+   {
+      return archives.containsKey(archive);
+   }
+
+   @Override
+   public ByteBuffer read(Path archive) throws IOException
+   {
+      byte[] content = archives.get(archive);
+      if (content == null)
+         throw new NoSuchFileException(archive.toString());
+      return ByteBuffer.wrap(content).asReadOnlyBuffer();
+   }
+
+   @Override
+   public InputStream open(Path archive) throws IOException
+   {
+      return new ByteBufferInputStream(read(archive));
+   }
+
+   @Override
+   public boolean isFileBacked()
+   {
+      return false;
+   }
+}
@@ -0,0 +1,699 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+
+/**
+ * A columnar catalog of the volume-level values of every volume in an Extracted Features
+ * dataset: the scalar values of each volume's <tt>metadata</tt> element, and
+ * <tt>features.pageCount</tt> and <tt>features.dateCreated</tt>. The catalog lets worksets be
+ * selected by title, date, language and so on, and answers the metadata accessors of
+ * {@link DefaultExtractedFeaturesProvider} volumes, without opening any archive.
+ * <p>
+ * The catalog is built once by {@link #build(Path, Path)}, which reads only the start of each
+ * volume's archive, and is memory-mapped when opened. It is not updated as the dataset changes;
+ * rebuild it when volumes are added or replaced. Each row records the size and modification time
+ * of the archive it was read from, and provider volumes whose archive no longer matches read
+ * their values from the archive instead; queries are still answered from the catalog.
+ * <p>
+ * Each metadata key is a column of the same name; {@link #COLUMN_PAGE_COUNT} and
+ * {@link #COLUMN_FEATURES_DATE_CREATED} hold the <tt>features</tt> values. Text columns are
+ * dictionary-encoded, so that a filter is evaluated once for each distinct value and then
+ * applied to each row by its integer code. Rows are sorted by volume identifier. The file layout
+ * (all values big-endian) is:
+ * <pre>
+ *   int     magic ("HTMC")
+ *   int     format version
+ *   int     row count
+ *   int     column count
+ *   long    offset of the volume identifier column
+ *   long    offset of the archive stamps
+ *   column descriptors [columns]:
+ *     short   name length, followed by the UTF-8 name
+ *     byte    type: text or int
+ *     long    offset of the column data
+ *   volume identifiers: strings, sorted by UTF-8 bytes
+ *   text columns:
+ *     strings, the distinct values sorted by UTF-8 bytes
+ *     int[]   value code of each row, or -1 if absent [rows]
+ *   int columns:
+ *     int[]   value of each row, or {@link Integer#MIN_VALUE} if absent [rows]
+ *   archive stamps:
+ *     long[]  size of the archive each row was read from [rows]
+ *     long[]  modification time of the archive, in milliseconds [rows]
+ *   strings:
+ *     int     count
+ *     int[]   offsets of each string relative to the first byte [count + 1]
+ *     bytes   UTF-8 strings
+ * </pre>
+ *
+ * @since 1.2
+ */
+public class MetadataCatalog
+{
+   private static final Logger debug = Logger.getLogger(MetadataCatalog.class.getName());
+
+   static final int MAGIC = 0x48544D43;
+   static final int FORMAT_VERSION = 2;
+
+   /** The column holding <tt>features.pageCount</tt>. */
+   public static final String COLUMN_PAGE_COUNT = "features.pageCount";
+   /** The column holding <tt>features.dateCreated</tt>. */
+   public static final String COLUMN_FEATURES_DATE_CREATED = "features.dateCreated";
+
+   private static final byte TYPE_TEXT = 1;
+   private static final byte TYPE_INT = 2;
+   private static final int ABSENT_CODE = -1;
+   private static final int ABSENT_INT = Integer.MIN_VALUE;
+   private static final int HEADER_SIZE = 32;
+
+   private final Path file;
+   private final ByteBuffer buf;
+   private final int rows;
+   private final MappedStrings ids;
+   private final int stamps;
+   private final Map<String, Column> columns;
+
+   private MetadataCatalog(Path file, ByteBuffer buf) throws IOException
+   {
+      this.file = file;
+      this.buf = buf;
+      this.rows = buf.getInt(8);
+      int count = buf.getInt(12);
+      this.ids = new MappedStrings(buf, checkOffset(buf.getLong(16)));
+      this.stamps = checkOffset(buf.getLong(24));
+
+      Map<String, Column> cols = new LinkedHashMap<>();
+      int pos = HEADER_SIZE;
+      for (int i = 0; i < count; ++i)
+      {
+         int len = buf.getShort(pos) & 0xFFFF;
+         String name = MappedStrings.decode(buf, pos + 2, len);
+         pos += 2 + len;
+         byte type = buf.get(pos);
+         int data = checkOffset(buf.getLong(pos + 1));
+         pos += 9;
+         cols.put(name, type == TYPE_TEXT ? new Column(name, new MappedStrings(buf, data)) : new Column(name, data));
+      }
+      this.columns = Collections.unmodifiableMap(cols);
+   }
+
+   private int checkOffset(long offset) throws IOException
+   {
+      if (offset < HEADER_SIZE || offset >= buf.limit())
+         throw new IOException("Invalid column offset [" + offset + "] in catalog " + file);
+      return (int)offset;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "metadata catalog[" + rows + " volumes, " + file + "]";
+   }
+
+   /**
+    * Open a catalog built by {@link #build(Path, Path)}.
+    *
+    * @throws IOException If the file does not exist or is not a catalog.
+    */
+   public static MetadataCatalog open(Path file) throws IOException
+   {
+      ByteBuffer buf;
+      try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      }
+
+      if (buf.remaining() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION)
+         throw new IOException("Not a metadata catalog, or an unknown format version " + file);
+      return new MetadataCatalog(file, buf);
+   }
+
+   /**
+    * Build the catalog of a dataset. The dataset's pairtrees are walked and each volume's
+    * volume-level values are read in parallel on the common fork-join pool, from its "basic"
+    * archive or, if it has none, its "advanced" archive. Each archive is decoded only until these
+    * values have been read. Volumes whose archives cannot be read are logged and omitted.
+    *
+    * @param root The dataset root, containing the "basic" and "advanced" pairtrees.
+    * @param file The catalog file to write.
+    */
+   public static void build(Path root, Path file) throws IOException
+   {
+      long start = System.nanoTime();
+      Map<String, ArchiveManifest.Entry> entries = ArchiveManifest.scan(root);
+
+      ArchiveSource source = new FileArchiveSource();
+      List<ArchiveCodec> codecs = Arrays.asList(StandardArchiveCodec.values());
+      // most values recur across volumes (languages, dates, rights), so share their instances
+      Map<String, String> interned = new ConcurrentHashMap<>();
+      List<Row> built = entries.entrySet().parallelStream()
+            .map(e -> read(e.getKey(), e.getValue(), source, codecs, interned))
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+
+      write(file, built);
+      debug.info("Built metadata catalog of " + built.size() + " of " + entries.size() + " volumes in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms " + file);
+   }
+
+   /**
+    * The values of one volume while building.
+    */
+   private static class Row
+   {
+      final String vid;
+      final byte[] vidBytes;
+      final Map<String, String> values;
+      final Integer pageCount;
+      final long size;
+      final long modified;
+
+      Row(String vid, Map<String, String> values, Integer pageCount, long size, long modified)
+      {
+         this.vid = vid;
+         this.vidBytes = vid.getBytes(StandardCharsets.UTF_8);
+         this.values = values;
+         this.pageCount = pageCount;
+         this.size = size;
+         this.modified = modified;
+      }
+   }
+
+   private static Row read(String key, ArchiveManifest.Entry entry, ArchiveSource source,
+                           List<ArchiveCodec> codecs, Map<String, String> interned)
+   {
+      String vid = ArchiveManifest.volumeId(key);
+      Path archive = entry.basic != null ? entry.basic : entry.advanced;
+      if (vid == null || archive == null)
+         return null;
+
+      String ver = entry.basic != null ? ExtractedFeatures.schemaVersionBasic : ExtractedFeatures.schemaVersionAdvanced;
+      try
+      {
+         // stamped before reading, so that an archive replaced while it is read is seen as changed
+         long size = Files.size(archive);
+         long modified = Files.getLastModifiedTime(archive).toMillis();
+         try (InputStream in = ArchiveCodec.decode(codecs, source.open(archive)))
+         {
+            HeapVolumeData data = new VolumeParser(ver).parseHeader(in);
+
+            Map<String, String> values = new HashMap<>();
+            for (Map.Entry<String, String> e : data.metadata.entrySet())
+               values.put(interned.computeIfAbsent(e.getKey(), k -> k), interned.computeIfAbsent(e.getValue(), v -> v));
+            if (data.dateCreated != null)
+               values.put(COLUMN_FEATURES_DATE_CREATED, interned.computeIfAbsent(data.dateCreated, v -> v));
+            return new Row(vid, values, data.pageCount, size, modified);
+         }
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.WARNING, "Omitting volume from catalog after failing to read " + archive, e);
+         return null;
+      }
+   }
+
+   private static void write(Path file, List<Row> built) throws IOException
+   {
+      built.sort((a, b) -> MappedStrings.compare(a.vidBytes, b.vidBytes));
+
+      Set<String> names = new TreeSet<>();
+      for (Row r : built)
+         names.addAll(r.values.keySet());
+      names.remove(COLUMN_PAGE_COUNT);
+
+      // encode each text column against its sorted dictionary
+      List<byte[][]> dictionaries = new ArrayList<>();
+      List<int[]> codes = new ArrayList<>();
+      for (String name : names)
+      {
+         TreeMap<byte[], Integer> dict = new TreeMap<>(MappedStrings::compare);
+         Map<String, byte[]> encoded = new HashMap<>();
+         for (Row r : built)
+         {
+            String v = r.values.get(name);
+            if (v != null)
+               dict.putIfAbsent(encoded.computeIfAbsent(v, s -> s.getBytes(StandardCharsets.UTF_8)), Integer.valueOf(0));
+         }
+
+         byte[][] values = dict.keySet().toArray(new byte[dict.size()][]);
+         for (int i = 0; i < values.length; ++i)
+            dict.put(values[i], Integer.valueOf(i));
+
+         int[] col = new int[built.size()];
+         for (int i = 0; i < col.length; ++i)
+         {
+            String v = built.get(i).values.get(name);
+            col[i] = v == null ? ABSENT_CODE : dict.get(encoded.get(v)).intValue();
+         }
+         dictionaries.add(values);
+         codes.add(col);
+      }
+
+      byte[][] vids = new byte[built.size()][];
+      int[] pageCounts = new int[built.size()];
+      for (int i = 0; i < vids.length; ++i)
+      {
+         Row r = built.get(i);
+         vids[i] = r.vidBytes;
+         pageCounts[i] = r.pageCount == null ? ABSENT_INT : r.pageCount.intValue();
+      }
+
+      List<byte[]> nameBytes = new ArrayList<>();
+      for (String name : names)
+         nameBytes.add(name.getBytes(StandardCharsets.UTF_8));
+      nameBytes.add(COLUMN_PAGE_COUNT.getBytes(StandardCharsets.UTF_8));
+
+      // lay out the sections to compute their offsets before writing
+      long pos = HEADER_SIZE;
+      for (byte[] n : nameBytes)
+      {
+         if (n.length > 0xFFFF)
+            throw new IOException("Catalog column name too long [" + n.length + " bytes]");
+         pos += 2 + n.length + 9;
+      }
+      long idsOffset = pos;
+      pos += MappedStrings.size(vids);
+      long[] offsets = new long[nameBytes.size()];
+      for (int i = 0; i < dictionaries.size(); ++i)
+      {
+         offsets[i] = pos;
+         pos += MappedStrings.size(dictionaries.get(i)) + 4L * built.size();
+      }
+      offsets[offsets.length - 1] = pos;
+      pos += 4L * built.size();
+      long stampsOffset = pos;
+      pos += 16L * built.size();
+      if (pos > Integer.MAX_VALUE)
+         throw new IOException("Catalog too large [" + pos + " bytes] " + file);
+
+      SidecarCache.writeAtomically(file, out ->
+      {
+         out.writeInt(MAGIC);
+         out.writeInt(FORMAT_VERSION);
+         out.writeInt(built.size());
+         out.writeInt(nameBytes.size());
+         out.writeLong(idsOffset);
+         out.writeLong(stampsOffset);
+         for (int i = 0; i < nameBytes.size(); ++i)
+         {
+            out.writeShort(nameBytes.get(i).length);
+            out.write(nameBytes.get(i));
+            out.writeByte(i < dictionaries.size() ? TYPE_TEXT : TYPE_INT);
+            out.writeLong(offsets[i]);
+         }
+
+         MappedStrings.write(out, vids);
+         for (int i = 0; i < dictionaries.size(); ++i)
+         {
+            MappedStrings.write(out, dictionaries.get(i));
+            for (int c : codes.get(i))
+               out.writeInt(c);
+         }
+         for (int c : pageCounts)
+            out.writeInt(c);
+         for (Row r : built)
+            out.writeLong(r.size);
+         for (Row r : built)
+            out.writeLong(r.modified);
+      });
+   }
+
+   /**
+    * A mapped column: dictionary codes for text columns, or values for int columns.
+    */
+   private class Column
+   {
+      final String name;
+      final MappedStrings dictionary;
+      final int values;
+
+      Column(String name, MappedStrings dictionary)
+      {
+         this.name = name;
+         this.dictionary = dictionary;
+         this.values = dictionary.end();
+      }
+
+      Column(String name, int values)
+      {
+         this.name = name;
+         this.dictionary = null;
+         this.values = values;
+      }
+
+      boolean isText()
+      {
+         return dictionary != null;
+      }
+
+      int raw(int row)
+      {
+         return buf.getInt(values + 4 * row);
+      }
+
+      String getString(int row)
+      {
+         if (!isText())
+         {
+            int v = raw(row);
+            return v == ABSENT_INT ? null : Integer.toString(v);
+         }
+         int code = raw(row);
+         return code == ABSENT_CODE ? null : dictionary.get(code);
+      }
+
+      Integer getInt(int row)
+      {
+         if (isText())
+            throw new IllegalArgumentException("Column is not an int column [" + name + "]");
+         int v = raw(row);
+         return v == ABSENT_INT ? null : Integer.valueOf(v);
+      }
+   }
+
+   /**
+    * @return The number of volumes in the catalog.
+    */
+   public int size()
+   {
+      return rows;
+   }
+
+   /**
+    * @return The names of the catalog's columns, in no particular order.
+    */
+   public Set<String> getColumns()
+   {
+      return columns.keySet();
+   }
+
+   /**
+    * @return Whether the catalog holds the given volume.
+    */
+   public boolean contains(String htrcVolumeId)
+   {
+      return find(htrcVolumeId) >= 0;
+   }
+
+   /**
+    * @return The row of the given volume, or {@code -1} if it is not in the catalog.
+    */
+   int find(String htrcVolumeId)
+   {
+      return ids.find(htrcVolumeId.getBytes(StandardCharsets.UTF_8));
+   }
+
+   /**
+    * @return Whether the given archive still has the size and modification time recorded for the
+    *         given row when the catalog was built.
+    */
+   boolean isCurrent(int row, Path archive)
+   {
+      try
+      {
+         return buf.getLong(stamps + 8 * row) == Files.size(archive)
+               && buf.getLong(stamps + 8 * (rows + row)) == Files.getLastModifiedTime(archive).toMillis();
+      }
+      catch (IOException e)
+      {
+         debug.log(Level.FINE, "Failed reading attributes of " + archive, e);
+         return false;
+      }
+   }
+
+   /**
+    * @return The value of the given column in the given row, or {@code null} if the value or the
+    *         column is absent. Int values are returned in decimal.
+    */
+   String getString(int row, String column)
+   {
+      Column c = columns.get(column);
+      return c == null ? null : c.getString(row);
+   }
+
+   /**
+    * @return The value of the given int column in the given row, or {@code null} if the value or
+    *         the column is absent.
+    */
+   Integer getInt(int row, String column)
+   {
+      Column c = columns.get(column);
+      return c == null ? null : c.getInt(row);
+   }
+
+   /**
+    * Start a query selecting all volumes and no columns.
+    */
+   public Query query()
+   {
+      return new Query();
+   }
+
+   /**
+    * A filter and projection over the catalog's rows. Filters are combined by conjunction, and
+    * are applied when the results are requested. Columns which do not exist in the catalog are
+    * treated as absent from every volume, since metadata keys vary between datasets.
+    * <p>
+    * Queries are not thread-safe, but the catalog may be queried concurrently.
+    */
+   public class Query
+   {
+      private final List<Filter> filters = new ArrayList<>();
+      private final Map<String, Column> selected = new LinkedHashMap<>();
+
+      private Query()
+      {
+      }
+
+      /**
+       * Keep volumes whose value of the given column is accepted. The predicate is evaluated
+       * once per distinct value, with {@code null} standing for absent values. Int columns are
+       * tested in decimal.
+       */
+      public Query filter(String column, Predicate<String> accept)
+      {
+         Objects.requireNonNull(accept);
+         filters.add(new Filter(columns.get(column), accept, null));
+         return this;
+      }
+
+      /**
+       * Keep volumes whose value of the given column is the given value. Text columns are
+       * matched by dictionary lookup rather than by testing each distinct value.
+       */
+      public Query filterEquals(String column, String value)
+      {
+         Objects.requireNonNull(value);
+         Column c = columns.get(column);
+         if (c == null || !c.isText())
+            return filter(column, value::equals);
+
+         int code = c.dictionary.find(value.getBytes(StandardCharsets.UTF_8));
+         // a value not in the dictionary matches nothing; its code would match absent values
+         filters.add(new Filter(c, null, code < 0 ? row -> false : row -> c.raw(row) == code));
+         return this;
+      }
+
+      /**
+       * Keep volumes with a value of the given int column, such as {@link #COLUMN_PAGE_COUNT},
+       * which is accepted. Volumes without a value are rejected.
+       *
+       * @throws IllegalArgumentException If the column is a text column.
+       */
+      public Query filterInt(String column, IntPredicate accept)
+      {
+         Objects.requireNonNull(accept);
+         Column c = columns.get(column);
+         if (c != null && c.isText())
+            throw new IllegalArgumentException("Column is not an int column [" + column + "]");
+         filters.add(new Filter(c, null, c == null ? row -> false : row ->
+         {
+            int v = c.raw(row);
+            return v != ABSENT_INT && accept.test(v);
+         }));
+         return this;
+      }
+
+      /**
+       * Select the columns available from the resulting {@link Result}s.
+       */
+      public Query select(String... columns)
+      {
+         for (String name : columns)
+            selected.put(name, MetadataCatalog.this.columns.get(name));
+         return this;
+      }
+
+      /**
+       * @return The number of volumes passing the filters.
+       */
+      public int count()
+      {
+         return (int)matches().count();
+      }
+
+      /**
+       * @return The identifiers of the volumes passing the filters, in catalog order.
+       */
+      public List<String> volumeIds()
+      {
+         List<String> result = new ArrayList<>();
+         matches().forEachOrdered(row -> result.add(ids.get(row)));
+         return result;
+      }
+
+      /**
+       * @return The volumes passing the filters, in catalog order, with the selected columns.
+       */
+      public Stream<Result> results()
+      {
+         Map<String, Column> projection = new HashMap<>(selected);
+         return matches().mapToObj(row -> new Result(row, projection));
+      }
+
+      private IntStream matches()
+      {
+         // text filters are evaluated over dictionaries up front, leaving integer tests per row
+         IntPredicate all = row -> true;
+         for (Filter f : filters)
+            all = all.and(f.resolve());
+         return IntStream.range(0, rows).filter(all);
+      }
+   }
+
+   private class Filter
+   {
+      private final Column column;
+      private final Predicate<String> accept;
+      private final IntPredicate rowTest;
+
+      Filter(Column column, Predicate<String> accept, IntPredicate rowTest)
+      {
+         this.column = column;
+         this.accept = accept;
+         this.rowTest = rowTest;
+      }
+
+      IntPredicate resolve()
+      {
+         if (rowTest != null)
+            return rowTest;
+
+         if (column == null)
+         {
+            boolean absent = accept.test(null);
+            return row -> absent;
+         }
+         if (!column.isText())
+            return row -> accept.test(column.getString(row));
+
+         boolean absent = accept.test(null);
+         boolean[] accepted = new boolean[column.dictionary.size()];
+         for (int i = 0; i < accepted.length; ++i)
+            accepted[i] = accept.test(column.dictionary.get(i));
+         return row ->
+         {
+            int code = column.raw(row);
+            return code == ABSENT_CODE ? absent : accepted[code];
+         };
+      }
+   }
+
+   /**
+    * A volume returned by a {@link Query}, holding the selected columns.
+    */
+   public class Result
+   {
+      private final int row;
+      private final Map<String, Column> projection;
+
+      private Result(int row, Map<String, Column> projection)
+      {
+         this.row = row;
+         this.projection = projection;
+      }
+
+      @Override
+      public String toString()
+      {
+         return "catalog result[" + getVolumeId() + "]";
+      }
+
+      public String getVolumeId()
+      {
+         return ids.get(row);
+      }
+
+      /**
+       * @return The value of a selected column, or {@code null} if absent. Int values are
+       *         returned in decimal.
+       * @throws IllegalArgumentException If the column was not selected.
+       */
+      public String get(String column)
+      {
+         Column c = column(column);
+         return c == null ? null : c.getString(row);
+      }
+
+      /**
+       * @return The value of a selected int column, or {@code null} if absent.
+       * @throws IllegalArgumentException If the column was not selected or is a text column.
+       */
+      public Integer getInt(String column)
+      {
+         Column c = column(column);
+         return c == null ? null : c.getInt(row);
+      }
+
+      private Column column(String column)
+      {
+         if (!projection.containsKey(column))
+            throw new IllegalArgumentException("Column was not selected [" + column + "]");
+         return projection.get(column);
+      }
+   }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
+
+/**
+ * An index of the byte offsets of each <tt>features.pages</tt> element within the decompressed
+ * stream of an archive, built during a first sequential parse. With the index, a single page is
+ * decoded by skipping the decompressed stream to the page's offset and parsing only that page's
+ * JSON, rather than parsing and retaining the whole volume.
+ * <p>
+ * The index also retains the volume-level values (metadata, <tt>features.dateCreated</tt> and
+ * <tt>features.pageCount</tt>) so these are available without decoding the archive.
+ * <p>
+ * The file layout (all values big-endian) is:
+ * <pre>
+ *   int     magic ("HTPI")
+ *   int     format version
+ *   long    source archive size
+ *   long    source archive last-modified time (millis)
+ *   str     features.schemaVersion
+ *   str     features.dateCreated
+ *   int     features.pageCount, or {@link Integer#MIN_VALUE} if absent
+ *   int     metadata entry count, followed by (str key, str value) pairs
+ *   int     page count
+ *   long[]  page start offsets [pages]
+ *   long[]  page end offsets [pages]
+ * </pre>
+ * using the string encoding of {@link SidecarCache}.
+ *
+ * @since 1.2
+ */
+class PageIndex
+{
+   private static final Logger debug = Logger.getLogger(PageIndex.class.getName());
+
+   static final int MAGIC = 0x48545049;
+   static final int FORMAT_VERSION = 1;
+   static final String SUFFIX = ".pidx";
+
+   final Map<String, String> metadata;
+   final String schemaVersion;
+   final String dateCreated;
+   final Integer pageCount;
+   private final long[] start;
+   private final long[] end;
+
+   PageIndex(Map<String, String> metadata, String schemaVersion, String dateCreated, Integer pageCount, long[] start, long[] end)
+   {
+      if (start.length != end.length)
+         throw new IllegalArgumentException("Mismatched page offsets");
+
+      this.metadata = Collections.unmodifiableMap(metadata);
+      this.schemaVersion = schemaVersion;
+      this.dateCreated = dateCreated;
+      this.pageCount = pageCount;
+      this.start = start;
+      this.end = end;
+   }
+
+   /**
+    * @return The number of entries in <tt>features.pages</tt>
+    */
+   int pages()
+   {
+      return start.length;
+   }
+
+   /**
+    * Decode a single page of the given archive.
+    *
+    * @param in The decoded content of the archive, from its start. The stream is not closed.
+    * @param archive The archive this index was built from.
+    * @param page The zero-based page index.
+    * @param options The data to keep from the page.
+    * @param vocabulary The vocabulary to resolve tokens against, or {@code null}.
+    * @return Volume data containing only the requested page, at index zero.
+    */
+   HeapVolumeData readPage(InputStream in, Path archive, int page, LoadOptions options, SharedVocabulary vocabulary) throws IOException
+   {
+      if (page < 0 || page >= start.length)
+         throw new IndexOutOfBoundsException("Page index ["+page+"] out of range [0,"+start.length+")");
+
+      debug.fine("loading page " + page + " of " + archive);
+      byte[] slice = new byte[(int)(end[page] - start[page])];
+      // compressed archives cannot seek, but skipping avoids tokenizing and retaining the preceding pages
+      long remaining = start[page];
+      while (remaining > 0)
+      {
+         long n = in.skip(remaining);
+         if (n <= 0)
+            throw new EOFException("Archive ended before page " + page + " " + archive);
+         remaining -= n;
+      }
+
+      int off = 0;
+      while (off < slice.length)
+      {
+         int n = in.read(slice, off, slice.length - off);
+         if (n < 0)
+            throw new EOFException("Archive ended within page " + page + " " + archive);
+         off += n;
+      }
+
+      return new VolumeParser(schemaVersion, options).setVocabulary(vocabulary).parsePage(new ByteArrayInputStream(slice), metadata, dateCreated, pageCount);
+   }
+
+   /**
+    * Open the index file for an archive if it exists and is current.
+    *
+    * @param file The index file.
+    * @param archive The source archive.
+    * @param schemaVersion The expected <tt>features.schemaVersion</tt> of the data.
+    * @return The index, or {@code null} if no current index is available.
+    */
+   static PageIndex open(Path file, Path archive, String schemaVersion)
+   {
+      try
+      {
+         if (!Files.isRegularFile(file))
+            return null;
+
+         try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+         {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+            {
+               debug.fine("Ignoring page index with unknown format " + file);
+               return null;
+            }
+
+            if (in.readLong() != Files.size(archive) || in.readLong() != Files.getLastModifiedTime(archive).toMillis())
+            {
+               debug.fine("Ignoring stale page index " + file);
+               return null;
+            }
+
+            String sv = SidecarCache.readString(in);
+            if (!Objects.equals(sv, schemaVersion))
+            {
+               debug.fine("Ignoring page index with schema version ["+sv+"] " + file);
+               return null;
+            }
+
+            String dc = SidecarCache.readString(in);
+            int pc = in.readInt();
+            Map<String, String> meta = new LinkedHashMap<>();
+            int entries = in.readInt();
+            for (int i = 0; i < entries; ++i)
+            {
+               String k = SidecarCache.readString(in);
+               meta.put(k, SidecarCache.readString(in));
+            }
+
+            int pages = in.readInt();
+            long[] start = new long[pages];
+            long[] end = new long[pages];
+            for (int i = 0; i < pages; ++i)
+               start[i] = in.readLong();
+            for (int i = 0; i < pages; ++i)
+               end[i] = in.readLong();
+
+            return new PageIndex(meta, sv, dc, pc == Integer.MIN_VALUE ? null : Integer.valueOf(pc), start, end);
+         }
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.WARNING, "Failed reading page index " + file, e);
+         return null;
+      }
+   }
+
+   /**
+    * Write this index for the given archive. Failures are logged and otherwise ignored.
+    */
+   void write(Path file, Path archive)
+   {
+      try
+      {
+         long size = Files.size(archive);
+         long modified = Files.getLastModifiedTime(archive).toMillis();
+         SidecarCache.writeAtomically(file, out ->
+         {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(size);
+            out.writeLong(modified);
+            SidecarCache.writeString(out, schemaVersion);
+            SidecarCache.writeString(out, dateCreated);
+            out.writeInt(pageCount == null ? Integer.MIN_VALUE : pageCount.intValue());
+            out.writeInt(metadata.size());
+            for (Map.Entry<String, String> entry : metadata.entrySet())
+            {
+               SidecarCache.writeString(out, entry.getKey());
+               SidecarCache.writeString(out, entry.getValue());
+            }
+            out.writeInt(start.length);
+            for (long v : start)
+               out.writeLong(v);
+            for (long v : end)
+               out.writeLong(v);
+         });
+         debug.fine("wrote " + file);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.WARNING, "Failed writing page index " + file, e);
+      }
+   }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Decompresses an in-memory or mapped bzip2 stream by decoding its blocks concurrently on a fork-join pool,
+ * supplying the decompressed bytes in order.
+ * <p>
+ * A bzip2 stream is a sequence of independently encoded blocks, each starting with a 48-bit magic
+ * number at an arbitrary bit offset. The stream is scanned for block boundaries, and each block is
+ * decoded by copying its bits into a single-block stream of its own. Because the magic number may
+ * also occur by chance within compressed data, the boundaries are verified against the stream's
+ * combined CRC before any block is decoded, and each block's own CRC is verified as it is decoded.
+ * <p>
+ * Only a few blocks beyond the one being read are decoded ahead, which bounds the memory held.
+ *
+ * @since 1.2
+ */
+class ParallelBZip2InputStream extends InputStream
+{
+   /**
+    * Thrown while reading when a block could not be decoded on its own. The stream may still be
+    * valid and should then be decoded sequentially.
+    */
+   static class BlockFormatException extends IOException
+   {
+      private static final long serialVersionUID = 1L;
+
+      BlockFormatException(String message, Throwable cause)
+      {
+         super(message, cause);
+      }
+   }
+
+   private static final long BLOCK_MAGIC = 0x314159265359L;
+   private static final long EOS_MAGIC = 0x177245385090L;
+   private static final long MAGIC_MASK = (1L << 48) - 1;
+   // "BZh" followed by the block size digit
+   private static final int HEADER_BITS = 32;
+
+   private final ByteBuffer archive;
+   private final long[] blockStart;
+   private final long[] blockEnd;
+   private final byte level;
+   private final ForkJoinPool pool;
+   private final int lookahead;
+
+   private final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+   private int nextBlock;
+   private int readBlock;
+   private byte[] current = new byte[0];
+   private int pos;
+
+   private ParallelBZip2InputStream(ByteBuffer archive, long[] blockStart, long[] blockEnd, ForkJoinPool pool, int lookahead)
+   {
+      this.archive = archive;
+      this.blockStart = blockStart;
+      this.blockEnd = blockEnd;
+      this.level = archive.get(3);
+      this.pool = pool;
+      this.lookahead = Math.max(1, lookahead);
+   }
+
+   /**
+    * Prepare to decompress a bzip2 archive in parallel.
+    *
+    * @param buffer The complete compressed archive, from its position to its limit. Must not be
+    *        modified while the stream is in use.
+    * @param pool The pool to decode blocks on.
+    * @param lookahead The number of blocks to decode ahead of the reader.
+    * @return The decompressed stream, or {@code null} if the archive is not a single bzip2 stream
+    *         of several blocks, in which case it should be decoded sequentially.
+    */
+   static ParallelBZip2InputStream open(ByteBuffer buffer, ForkJoinPool pool, int lookahead)
+   {
+      // blocks are decoded concurrently, so use absolute reads of a buffer with its own position
+      ByteBuffer archive = buffer.slice();
+      int length = archive.remaining();
+      if (length < 14 || archive.get(0) != 'B' || archive.get(1) != 'Z' || archive.get(2) != 'h'
+            || archive.get(3) < '1' || archive.get(3) > '9')
+         return null;
+
+      long[] starts = new long[16];
+      int blocks = 0;
+      long eos = -1;
+
+      // slide a window over the bits, checking each of the eight bit alignments ending in each byte
+      long window = 0;
+      for (int i = 0; i < length; ++i)
+      {
+         window = (window << 8) | (archive.get(i) & 0xFF);
+         if (i < 6)
+            continue;
+
+         for (int shift = 7; shift >= 0; --shift)
+         {
+            long candidate = (window >>> shift) & MAGIC_MASK;
+            long start = (i + 1) * 8L - shift - 48;
+            if (start < HEADER_BITS)
+               continue;
+
+            if (candidate == BLOCK_MAGIC)
+            {
+               if (blocks == starts.length)
+                  starts = Arrays.copyOf(starts, blocks * 2);
+               starts[blocks++] = start;
+            }
+            else if (candidate == EOS_MAGIC)
+               eos = start;
+         }
+      }
+
+      // the stream must start with a block, end with the end-of-stream marker and its CRC
+      // padded to a byte, and not be followed by another stream
+      if (blocks < 2 || starts[0] != HEADER_BITS || eos < 0 || (eos + 48 + 32 + 7) / 8 != length)
+         return null;
+
+      int count = 0;
+      while (count < blocks && starts[count] < eos)
+         count++;
+      if (count < 2)
+         return null;
+
+      long[] blockStart = Arrays.copyOf(starts, count);
+      long[] blockEnd = new long[count];
+      int combined = 0;
+      for (int b = 0; b < count; ++b)
+      {
+         blockEnd[b] = b + 1 < count ? blockStart[b + 1] : eos;
+         combined = ((combined << 1) | (combined >>> 31)) ^ (int)bits(archive, blockStart[b] + 48, 32);
+      }
+
+      // a boundary found by chance within compressed data would not reproduce the stored CRC
+      if (combined != (int)bits(archive, eos + 48, 32))
+         return null;
+
+      return new ParallelBZip2InputStream(archive, blockStart, blockEnd, pool, lookahead);
+   }
+
+   /**
+    * @return The number of blocks in the stream.
+    */
+   int blocks()
+   {
+      return blockStart.length;
+   }
+
+   /**
+    * Read up to 57 bits, big-endian, starting at the given bit offset.
+    */
+   private static long bits(ByteBuffer b, long bitPos, int n)
+   {
+      int byteIx = (int)(bitPos >>> 3);
+      int skip = (int)(bitPos & 7);
+      long v = 0;
+      int have = 0;
+      while (have < skip + n)
+      {
+         v = (v << 8) | (byteIx < b.limit() ? b.get(byteIx) & 0xFF : 0);
+         byteIx++;
+         have += 8;
+      }
+      return (v >>> (have - skip - n)) & ((1L << n) - 1);
+   }
+
+   /**
+    * Copy a block into a stream of its own: the stream header, the block's bits, and the end of
+    * stream marker with a combined CRC, which for a single block is the block's CRC.
+    */
+   private byte[] singleBlockStream(int block)
+   {
+      long start = blockStart[block];
+      long len = blockEnd[block] - start;
+      byte[] out = new byte[(int)((HEADER_BITS + len + 48 + 32 + 7) / 8)];
+      out[0] = 'B';
+      out[1] = 'Z';
+      out[2] = 'h';
+      out[3] = level;
+
+      // the header is whole bytes, so each output byte combines two shifted input bytes
+      int full = (int)(len >>> 3);
+      int in = (int)(start >>> 3);
+      int skip = (int)(start & 7);
+      for (int j = 0; j < full; ++j, ++in)
+      {
+         int hi = (archive.get(in) & 0xFF) << skip;
+         int lo = skip == 0 ? 0 : (archive.get(in + 1) & 0xFF) >>> (8 - skip);
+         out[4 + j] = (byte)(hi | lo);
+      }
+
+      long outPos = HEADER_BITS + 8L * full;
+      int rem = (int)(len & 7);
+      if (rem > 0)
+         outPos = put(out, outPos, bits(archive, start + 8L * full, rem), rem);
+      outPos = put(out, outPos, EOS_MAGIC, 48);
+      put(out, outPos, bits(archive, start + 48, 32), 32);
+      return out;
+   }
+
+   private static long put(byte[] b, long bitPos, long value, int n)
+   {
+      for (int i = n - 1; i >= 0; --i, ++bitPos)
+      {
+         if (((value >>> i) & 1) != 0)
+            b[(int)(bitPos >>> 3)] |= 0x80 >>> (bitPos & 7);
+      }
+      return bitPos;
+   }
+
+   private byte[] decode(int block) throws IOException
+   {
+      try (InputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(singleBlockStream(block))))
+      {
+         // blocks hold up to 900k bytes before their initial run-length encoding
+         byte[] buf = new byte[(level - '0') * 100_000 + 1024];
+         int len = 0;
+         int n;
+         while ((n = in.read(buf, len, buf.length - len)) >= 0)
+         {
+            len += n;
+            if (len == buf.length)
+               buf = Arrays.copyOf(buf, buf.length * 2);
+         }
+         return len == buf.length ? buf : Arrays.copyOf(buf, len);
+      }
+   }
+
+   private void fill()
+   {
+      while (pending.size() < lookahead && nextBlock < blockStart.length)
+      {
+         int block = nextBlock++;
+         pending.add(pool.submit(() -> decode(block)));
+      }
+   }
+
+   /**
+    * @return {@code false} at the end of the stream.
+    */
+   private boolean advance() throws IOException
+   {
+      fill();
+      ForkJoinTask<byte[]> task = pending.poll();
+      if (task == null)
+         return false;
+
+      int block = readBlock++;
+      try
+      {
+         current = task.get();
+         pos = 0;
+      }
+      catch (InterruptedException e)
+      {
+         close();
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while decoding archive blocks");
+      }
+      catch (ExecutionException e)
+      {
+         close();
+         throw new BlockFormatException("Failed decoding bzip2 block " + block + " of " + blockStart.length, e.getCause());
+      }
+
+      fill();
+      return true;
+   }
+
+   @Override
+   public int read() throws IOException
+   {
+      while (pos == current.length)
+      {
+         if (!advance())
+            return -1;
+      }
+      return current[pos++] & 0xFF;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException
+   {
+      if (len == 0)
+         return 0;
+
+      while (pos == current.length)
+      {
+         if (!advance())
+            return -1;
+      }
+
+      int n = Math.min(len, current.length - pos);
+      System.arraycopy(current, pos, b, off, n);
+      pos += n;
+      return n;
+   }
+
+   @Override
+   public int available()
+   {
+      return current.length - pos;
+   }
+
+   /**
+    * Cancel decoding of blocks which have not been read.
+    */
+   @Override
+   public void close()
+   {
+      for (ForkJoinTask<byte[]> task : pending)
+         task.cancel(true);
+      pending.clear();
+      nextBlock = blockStart.length;
+      current = new byte[0];
+      pos = 0;
+   }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only vocabulary file assigning dense integer identifiers to tokens, shared by all
+ * volumes parsed by a provider and by any other process which opens the same file. Volumes
+ * parsed against the vocabulary hold only identifiers; the token characters live in the mapped
+ * file, so they occupy the page cache once per node rather than the heap once per volume.
+ * <p>
+ * The file holds a header followed by one record per token, in identifier order:
+ * <pre>
+ *   header (64 bytes):
+ *     int     magic "HTGV"
+ *     int     format version
+ *     int     number of tokens
+ *     int     reserved
+ *     long    offset of the end of the last record
+ *   per token:
+ *     int     length in chars
+ *     chars   UTF-16 token
+ * </pre>
+ * Tokens are stored as UTF-16 so that lookups hash and compare the mapped characters without
+ * decoding them. The file is mapped with spare capacity beyond the last record; the end offset is
+ * updated only once a record is complete, so records left incomplete by a failed process are
+ * ignored and overwritten. The end offset is the only commit point: the number of tokens is
+ * updated after it, and is recounted from the records before it whenever the file is read.
+ * <p>
+ * Each instance indexes the records in a heap hash table of identifiers, which costs a few bytes
+ * per token. Lookups do not lock. Unknown tokens are appended while holding this instance's
+ * monitor and an exclusive lock on the file, having first indexed any records appended by other
+ * processes, so identifiers agree across all processes sharing the file.
+ *
+ * @since 1.2
+ */
+class SharedVocabulary implements TokenTable, Closeable
+{
+   private static final Logger debug = Logger.getLogger(SharedVocabulary.class.getName());
+
+   static final int MAGIC = 0x48544756; // "HTGV"
+   static final int FORMAT_VERSION = 1;
+
+   private static final int HEADER = 64;
+   private static final int COUNT = 8;
+   private static final int END = 16;
+   private static final int INITIAL_CAPACITY = 16 << 20;
+
+   // file locks are held by the JVM, so instances in one JVM sharing a file take turns locking it
+   private static final ConcurrentHashMap<Path, Object> fileMonitors = new ConcurrentHashMap<>();
+
+   private final Path file;
+   private final Object fileMonitor;
+   //@GuardedBy("this")
+   private FileChannel channel;
+   //@GuardedBy("this")
+   private boolean closed;
+
+   // replaced whenever the mapping or arrays grow; entries are added in place under this monitor
+   private volatile Index index;
+   private volatile int size;
+   //@GuardedBy("this")
+   private long indexedEnd = HEADER;
+
+   /**
+    * The mapping and the hash index of its records. Records are indexed in place before
+    * {@link SharedVocabulary#size} is increased to publish them, so a reader ignores slots
+    * holding identifiers beyond the size it read; a token so missed is looked up again under the
+    * monitor before being appended.
+    */
+   private static final class Index
+   {
+      final MappedByteBuffer buf;
+      // record offset of each identifier
+      final int[] offsets;
+      // slot holds (id + 1), zero marks an empty slot
+      final int[] table;
+      final int mask;
+
+      Index(MappedByteBuffer buf, int[] offsets, int[] table)
+      {
+         this.buf = buf;
+         this.offsets = offsets;
+         this.table = table;
+         this.mask = table.length - 1;
+      }
+   }
+
+   private SharedVocabulary(Path file, FileChannel channel)
+   {
+      this.file = file;
+      this.channel = channel;
+      this.fileMonitor = fileMonitors.computeIfAbsent(file.toAbsolutePath().normalize(), k -> new Object());
+   }
+
+   /**
+    * Open a vocabulary file, creating it if it does not exist.
+    *
+    * @throws IOException If the file could not be opened or is not a vocabulary file.
+    */
+   static SharedVocabulary open(Path file) throws IOException
+   {
+      Path parent = file.toAbsolutePath().getParent();
+      if (parent != null)
+         Files.createDirectories(parent);
+
+      FileChannel channel = openChannel(file);
+      SharedVocabulary vocabulary = new SharedVocabulary(file, channel);
+      try
+      {
+         synchronized (vocabulary)
+         {
+            synchronized (vocabulary.fileMonitor)
+            {
+               try (FileLock lock = channel.lock())
+               {
+                  MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_CAPACITY));
+                  if (buf.getInt(0) == 0 && buf.getLong(END) == 0)
+                  {
+                     buf.putInt(0, MAGIC);
+                     buf.putInt(4, FORMAT_VERSION);
+                     buf.putLong(END, HEADER);
+                  }
+                  else if (buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION)
+                     throw new IOException("Not a vocabulary file of version [" + FORMAT_VERSION + "]");
+
+                  vocabulary.index = new Index(buf, new int[1024], new int[2048]);
+                  vocabulary.refresh();
+               }
+            }
+         }
+      }
+      catch (IOException | RuntimeException e)
+      {
+         channel.close();
+         throw new IOException("Failed opening vocabulary [" + file + "]", e);
+      }
+
+      debug.info("Opened " + vocabulary);
+      return vocabulary;
+   }
+
+   private static FileChannel openChannel(Path file) throws IOException
+   {
+      return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "vocabulary[" + size + " tokens in " + file + "]";
+   }
+
+   @Override
+   public int size()
+   {
+      return size;
+   }
+
+   @Override
+   public String get(int id)
+   {
+      int n = size;
+      if (id < 0 || id >= n)
+         throw new IndexOutOfBoundsException("Token id ["+id+"] out of range [0,"+n+")");
+
+      Index ix = index;
+      int off = ix.offsets[id];
+      char[] chars = new char[ix.buf.getInt(off)];
+      for (int i = 0; i < chars.length; ++i)
+         chars[i] = ix.buf.getChar(off + 4 + 2 * i);
+      return new String(chars);
+   }
+
+   @Override
+   public CharSequence chars(int id, TokenChars scratch)
+   {
+      // consecutive triples often share a token
+      if (scratch.tokenId == id)
+         return scratch;
+
+      Index ix = index;
+      int off = ix.offsets[id];
+      int len = ix.buf.getInt(off);
+      char[] chars = scratch.reset(len);
+      for (int i = 0; i < len; ++i)
+         chars[i] = ix.buf.getChar(off + 4 + 2 * i);
+      scratch.setLength(len);
+      scratch.tokenId = id;
+      return scratch;
+   }
+
+   @Override
+   public int lookup(CharSequence token)
+   {
+      // identifiers not yet published by size may refer to incomplete records
+      int n = size;
+      Index ix = index;
+      int slot = TokenDictionary.hash(token) & ix.mask;
+      int v;
+      while ((v = ix.table[slot]) != 0)
+      {
+         if (v <= n && matches(ix.buf, ix.offsets[v - 1], token))
+            return v - 1;
+         slot = (slot + 1) & ix.mask;
+      }
+      return -1;
+   }
+
+   /**
+    * The vocabulary is shared by all volumes, so is not charged to any one of them.
+    */
+   @Override
+   public long estimatedBytes()
+   {
+      return 0;
+   }
+
+   /**
+    * Get the identifier for the given token, appending it to the file if not present. May be
+    * called concurrently.
+    *
+    * @throws IOException If the file could not be locked or extended.
+    */
+   int add(String token) throws IOException
+   {
+      int id = lookup(token);
+      if (id >= 0)
+         return id;
+
+      synchronized (this)
+      {
+         id = lookup(token);
+         if (id >= 0)
+            return id;
+
+         FileChannel ch = channel();
+         // don't let a pending interrupt close the channel; the caller sees the interrupt later
+         boolean interrupted = Thread.interrupted();
+         try
+         {
+            synchronized (fileMonitor)
+            {
+               try (FileLock lock = ch.lock())
+               {
+                  refresh();
+                  id = lookup(token);
+                  return id >= 0 ? id : append(token);
+               }
+            }
+         }
+         finally
+         {
+            if (interrupted)
+               Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   /**
+    * Release the file. Volumes parsed against the vocabulary remain readable.
+    */
+   @Override
+   public synchronized void close()
+   {
+      closed = true;
+      try
+      {
+         channel.close();
+      }
+      catch (IOException e)
+      {
+         debug.log(Level.WARNING, "Failed closing vocabulary [" + file + "]", e);
+      }
+   }
+
+   /**
+    * @return The channel, reopened if an interrupt of some other operation closed it.
+    */
+   private FileChannel channel() throws IOException
+   {
+      if (closed)
+         throw new ClosedChannelException();
+      if (!channel.isOpen())
+      {
+         debug.fine("Reopening " + this);
+         channel = openChannel(file);
+      }
+      return channel;
+   }
+
+   /**
+    * Index the records appended since the last refresh, by this or another process. Requires the
+    * file lock.
+    */
+   private void refresh() throws IOException
+   {
+      Index ix = index;
+      long end = ix.buf.getLong(END);
+      if (end > ix.buf.capacity())
+         ix = remap(channel().size());
+
+      int count = size;
+      long off = indexedEnd;
+      while (off < end)
+      {
+         ix = insert(ix, count++, (int)off);
+         off += 4 + 2L * ix.buf.getInt((int)off);
+      }
+
+      if (off != end)
+         throw new IOException("Corrupt vocabulary [" + file + "]: records end at [" + off + "] but expected [" + end + "]");
+
+      // a process which failed after publishing a record may not have updated the count
+      if (count != ix.buf.getInt(COUNT))
+      {
+         debug.warning("Repairing token count of " + file + ": [" + ix.buf.getInt(COUNT) + "] recorded but [" + count + "] found");
+         ix.buf.putInt(COUNT, count);
+      }
+
+      indexedEnd = end;
+      index = ix;
+      size = count;
+   }
+
+   private int append(String token) throws IOException
+   {
+      Index ix = index;
+      int off = (int)indexedEnd;
+      long end = off + 4 + 2L * token.length();
+      if (end > Integer.MAX_VALUE)
+         throw new IOException("Vocabulary full [" + file + "]");
+      if (end > ix.buf.capacity())
+         ix = remap(Math.min(Integer.MAX_VALUE, Math.max(end, 2L * ix.buf.capacity())));
+
+      MappedByteBuffer buf = ix.buf;
+      buf.putInt(off, token.length());
+      for (int i = 0; i < token.length(); ++i)
+         buf.putChar(off + 4 + 2 * i, token.charAt(i));
+
+      int id = size;
+      // publishes the record to other processes
+      buf.putLong(END, end);
+      buf.putInt(COUNT, id + 1);
+
+      index = insert(ix, id, off);
+      indexedEnd = end;
+      size = id + 1;
+      return id;
+   }
+
+   private Index remap(long capacity) throws IOException
+   {
+      Index ix = index;
+      MappedByteBuffer buf = channel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      debug.fine("Remapped " + this + " with capacity " + (capacity >> 20) + " MiB");
+      return index = new Index(buf, ix.offsets, ix.table);
+   }
+
+   /**
+    * Index a record, replacing the arrays if they are full.
+    *
+    * @return The index holding the record.
+    */
+   private static Index insert(Index ix, int id, int off)
+   {
+      int[] offsets = ix.offsets;
+      if (id == offsets.length)
+         offsets = Arrays.copyOf(offsets, id * 2);
+      offsets[id] = off;
+
+      // keep load factor at or below one half
+      if ((id + 1) * 2 > ix.table.length)
+         return rehash(new Index(ix.buf, offsets, new int[ix.table.length * 2]), id + 1);
+
+      if (offsets != ix.offsets)
+         ix = new Index(ix.buf, offsets, ix.table);
+      ix.table[freeSlot(ix, hash(ix.buf, off))] = id + 1;
+      return ix;
+   }
+
+   private static Index rehash(Index ix, int count)
+   {
+      for (int id = 0; id < count; ++id)
+         ix.table[freeSlot(ix, hash(ix.buf, ix.offsets[id]))] = id + 1;
+      return ix;
+   }
+
+   private static int freeSlot(Index ix, int hash)
+   {
+      int slot = hash & ix.mask;
+      while (ix.table[slot] != 0)
+         slot = (slot + 1) & ix.mask;
+      return slot;
+   }
+
+   /**
+    * The {@link TokenDictionary#hash(CharSequence)} of a record.
+    */
+   private static int hash(MappedByteBuffer buf, int off)
+   {
+      int len = buf.getInt(off);
+      int h = 0;
+      for (int i = 0; i < len; ++i)
+         h = 31 * h + buf.getChar(off + 4 + 2 * i);
+      return h ^ (h >>> 16);
+   }
+
+   private static boolean matches(MappedByteBuffer buf, int off, CharSequence token)
+   {
+      int len = token.length();
+      if (buf.getInt(off) != len)
+         return false;
+      for (int i = 0; i < len; ++i)
+      {
+         if (buf.getChar(off + 4 + 2 * i) != token.charAt(i))
+            return false;
+      }
+      return true;
+   }
+}
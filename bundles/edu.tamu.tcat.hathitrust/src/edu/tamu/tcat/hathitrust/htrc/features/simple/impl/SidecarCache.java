@@ -0,0 +1,398 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A transcoding cache which stores parsed {@link VolumeData} in a binary sidecar file so that later
+ * loads of the same archive memory-map the file rather than decompressing and parsing JSON.
+ * <p>
+ * Sidecar files are written either next to the archive or, if a cache root is configured, under
+ * the cache root at the archive's path relative to the provider root. The cache is best-effort:
+ * failures to read or write a sidecar are logged and the caller falls back to parsing the archive.
+ * <p>
+ * The file layout (all values big-endian) is:
+ * <pre>
+ *   int     magic ("HTEF")
+ *   int     format version
+ *   long    source archive size
+ *   long    source archive last-modified time (millis)
+ *   str     features.schemaVersion
+ *   str     features.dateCreated
+ *   int     features.pageCount, or {@link Integer#MIN_VALUE} if absent
+ *   int     metadata entry count, followed by (str key, str value) pairs
+ *   int     part-of-speech tag count, followed by str tags
+ *   int     page count, followed by str seq values
+ *   int     token count
+ *   int     triple count
+ *   int     token hash table capacity
+ *   ...     zero padding to a four byte boundary
+ *   int[]   token byte offsets into the token data [tokens + 1]
+ *   int[]   token hash table, slots hold (token id + 1) [capacity]
+ *   int[]   tokenCount [pages]
+ *   int[]   lineCount [pages]
+ *   int[]   section offsets [pages * 3 + 1]
+ *   int[]   triples [triples * 3]
+ *   byte[]  section flags [pages * 3]
+ *   byte[]  UTF-8 token data
+ * </pre>
+ * where <tt>str</tt> is an int byte length ({@code -1} for {@code null}) followed by UTF-8 bytes.
+ * Files whose format version, source size, source modification time or schema version do not
+ * match are treated as stale and are replaced.
+ *
+ * @since 1.2
+ */
+class SidecarCache
+{
+   private static final Logger debug = Logger.getLogger(SidecarCache.class.getName());
+
+   static final int MAGIC = 0x48544546;
+   /** Increment when the file layout or the meaning of any stored value changes. */
+   static final int FORMAT_VERSION = 1;
+   static final String SUFFIX = ".efc";
+
+   // DataOutputStream tracks size as an int; don't attempt to cache volumes near that limit
+   private static final long MAX_FILE_SIZE = Integer.MAX_VALUE - 1024;
+
+   private final Path root;
+   private final Path cacheRoot;
+
+   /**
+    * @param root The provider root under which archives are found.
+    * @param cacheRoot The root under which to write sidecar files, or {@code null} to write them
+    *        next to the archives.
+    */
+   SidecarCache(Path root, Path cacheRoot)
+   {
+      this.root = Objects.requireNonNull(root);
+      this.cacheRoot = cacheRoot;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "sidecar cache[" + (cacheRoot == null ? root : cacheRoot) + "]";
+   }
+
+   /**
+    * @return The sidecar file path for the given archive.
+    */
+   Path getCachePath(Path archive)
+   {
+      return resolve(root, cacheRoot, archive, SUFFIX);
+   }
+
+   /**
+    * Resolve the path of a file derived from an archive, such as a sidecar or an index.
+    *
+    * @param root The provider root under which archives are found.
+    * @param cacheRoot The root under which derived files are written, or {@code null} to place
+    *        them next to the archive.
+    * @param archive The source archive.
+    * @param suffix The suffix appended to the archive file name.
+    */
+   static Path resolve(Path root, Path cacheRoot, Path archive, String suffix)
+   {
+      String name = archive.getFileName().toString() + suffix;
+      if (cacheRoot == null)
+         return archive.resolveSibling(name);
+
+      Path rel = archive.startsWith(root) ? root.relativize(archive) : archive.getFileName();
+      return cacheRoot.resolve(rel.toString() + suffix);
+   }
+
+   /**
+    * Writes the content of a derived file.
+    */
+   @FunctionalInterface
+   interface DataWriter
+   {
+      void write(DataOutputStream out) throws IOException;
+   }
+
+   /**
+    * Write a file by writing to a temporary file in the same directory and moving it into place,
+    * so that readers never observe a partially written file.
+    */
+   static void writeAtomically(Path file, DataWriter writer) throws IOException
+   {
+      Files.createDirectories(file.getParent());
+      Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      try
+      {
+         try (OutputStream fout = Files.newOutputStream(tmp);
+              DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1 << 16)))
+         {
+            writer.write(out);
+         }
+
+         try
+         {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+         }
+         catch (AtomicMoveNotSupportedException e)
+         {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+         }
+         tmp = null;
+      }
+      finally
+      {
+         if (tmp != null)
+         {
+            try
+            {
+               Files.deleteIfExists(tmp);
+            }
+            catch (IOException e)
+            {
+               debug.log(Level.FINE, "Failed removing temporary file " + tmp, e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Open the sidecar for the given archive if one exists and is current.
+    *
+    * @param archive The source archive.
+    * @param schemaVersion The expected <tt>features.schemaVersion</tt> of the data.
+    * @return The mapped volume data, or {@code null} if no current sidecar is available.
+    */
+   VolumeData open(Path archive, String schemaVersion)
+   {
+      Path file = getCachePath(archive);
+      try
+      {
+         if (!Files.isRegularFile(file))
+            return null;
+
+         MappedByteBuffer buf;
+         try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+         {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+         }
+
+         if (buf.remaining() < 24 || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION)
+         {
+            debug.fine("Ignoring sidecar with unknown format " + file);
+            return null;
+         }
+
+         if (buf.getLong(8) != Files.size(archive) || buf.getLong(16) != Files.getLastModifiedTime(archive).toMillis())
+         {
+            debug.fine("Ignoring stale sidecar " + file);
+            return null;
+         }
+
+         MappedVolumeData data = new MappedVolumeData(buf);
+         if (!Objects.equals(data.schemaVersion, schemaVersion))
+         {
+            debug.fine("Ignoring sidecar with schema version ["+data.schemaVersion+"] " + file);
+            return null;
+         }
+
+         debug.fine("mapped " + file);
+         return data;
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.WARNING, "Failed reading sidecar " + file, e);
+         return null;
+      }
+   }
+
+   /**
+    * Write a sidecar for the given archive. Failures are logged and otherwise ignored.
+    */
+   void write(Path archive, VolumeData data)
+   {
+      Path file = getCachePath(archive);
+      try
+      {
+         int[] used = usedTokens(data);
+         int tokens = used == null ? data.tokens() : used.length;
+         // 12 bytes per triple dominates the file size
+         if (data.triples() * 12L + tokens * 16L > MAX_FILE_SIZE)
+         {
+            debug.fine("Volume too large to cache " + archive);
+            return;
+         }
+
+         long size = Files.size(archive);
+         long modified = Files.getLastModifiedTime(archive).toMillis();
+
+         writeAtomically(file, out -> writeData(out, data, used, size, modified));
+         debug.fine("wrote " + file);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.WARNING, "Failed writing sidecar " + file, e);
+      }
+   }
+
+   /**
+    * A volume parsed against a {@link SharedVocabulary} uses a few of the vocabulary's identifiers,
+    * but a sidecar must not depend on the vocabulary, so holds only the tokens the volume uses.
+    *
+    * @return The identifiers used by the volume's triples in ascending order, or {@code null} if
+    *         it uses all identifiers {@code [0, tokens())}.
+    */
+   private static int[] usedTokens(VolumeData data)
+   {
+      BitSet used = new BitSet(data.tokens());
+      int triples = data.triples();
+      for (int i = 0; i < triples; ++i)
+         used.set(data.tokenAt(i));
+      return used.cardinality() == data.tokens() ? null : used.stream().toArray();
+   }
+
+   /**
+    * @param used The token identifiers to write, renumbered by their index, or {@code null} to
+    *        write all tokens with their identifiers unchanged.
+    */
+   private static void writeData(DataOutputStream out, VolumeData data, int[] used, long size, long modified) throws IOException
+   {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(size);
+      out.writeLong(modified);
+
+      writeString(out, data.schemaVersion);
+      writeString(out, data.dateCreated);
+      out.writeInt(data.pageCount == null ? Integer.MIN_VALUE : data.pageCount.intValue());
+
+      out.writeInt(data.metadata.size());
+      for (Map.Entry<String, String> entry : data.metadata.entrySet())
+      {
+         writeString(out, entry.getKey());
+         writeString(out, entry.getValue());
+      }
+
+      int posTags = data.posTags();
+      out.writeInt(posTags);
+      for (int i = 0; i < posTags; ++i)
+         writeString(out, data.posTag(i));
+
+      int pages = data.pages();
+      out.writeInt(pages);
+      for (int i = 0; i < pages; ++i)
+         writeString(out, data.seq(i));
+
+      int tokens = used == null ? data.tokens() : used.length;
+      int triples = data.triples();
+      int capacity = Integer.highestOneBit(Math.max(16, tokens) * 2 - 1) << 1;
+      out.writeInt(tokens);
+      out.writeInt(triples);
+      out.writeInt(capacity);
+      while (out.size() % 4 != 0)
+         out.writeByte(0);
+
+      // encode tokens once; offsets are needed before the data
+      byte[][] encoded = new byte[tokens][];
+      int offset = 0;
+      out.writeInt(0);
+      for (int i = 0; i < tokens; ++i)
+      {
+         encoded[i] = data.token(used == null ? i : used[i]).getBytes(StandardCharsets.UTF_8);
+         offset += encoded[i].length;
+         out.writeInt(offset);
+      }
+
+      int[] table = new int[capacity];
+      int mask = capacity - 1;
+      for (int i = 0; i < tokens; ++i)
+      {
+         int slot = TokenDictionary.hash(data.token(used == null ? i : used[i])) & mask;
+         while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+         table[slot] = i + 1;
+      }
+      for (int v : table)
+         out.writeInt(v);
+
+      for (int i = 0; i < pages; ++i)
+         out.writeInt(data.tokenCount(i));
+      for (int i = 0; i < pages; ++i)
+         out.writeInt(data.lineCount(i));
+      for (int i = 0; i < pages; ++i)
+         for (int sec = 0; sec < VolumeData.SECTIONS; ++sec)
+            out.writeInt(data.sectionStart(i, sec));
+      out.writeInt(triples);
+
+      // renumbering in ascending order keeps the triples of each section sorted by identifier
+      for (int i = 0; i < triples; ++i)
+      {
+         out.writeInt(used == null ? data.tokenAt(i) : Arrays.binarySearch(used, data.tokenAt(i)));
+         out.writeInt(data.posAt(i));
+         out.writeInt(data.countAt(i));
+      }
+
+      for (int i = 0; i < pages; ++i)
+         for (int sec = 0; sec < VolumeData.SECTIONS; ++sec)
+            out.writeByte(data.sectionFlags(i, sec));
+
+      for (byte[] b : encoded)
+         out.write(b);
+   }
+
+   static void writeString(DataOutput out, String s) throws IOException
+   {
+      if (s == null)
+      {
+         out.writeInt(-1);
+         return;
+      }
+
+      byte[] b = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(b.length);
+      out.write(b);
+   }
+
+   /**
+    * Read a string written by {@link #writeString(DataOutput, String)}.
+    */
+   static String readString(DataInput in) throws IOException
+   {
+      int len = in.readInt();
+      if (len < 0)
+         return null;
+
+      byte[] b = new byte[len];
+      in.readFully(b);
+      return new String(b, StandardCharsets.UTF_8);
+   }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the state and cumulative counters of one stage of the
+ * {@link DefaultExtractedFeaturesProvider} load pipeline.
+ *
+ * @see DefaultExtractedFeaturesProvider#getLoadStatistics()
+ * @since 1.2
+ */
+public final class StageStatistics
+{
+   private final String name;
+   private final int threads;
+   private final int active;
+   private final int queueDepth;
+   private final int queueCapacity;
+   private final long completed;
+   private final long failed;
+   private final long bytes;
+   private final long busyNanos;
+
+   StageStatistics(String name, int threads, int active, int queueDepth, int queueCapacity,
+                   long completed, long failed, long bytes, long busyNanos)
+   {
+      this.name = name;
+      this.threads = threads;
+      this.active = active;
+      this.queueDepth = queueDepth;
+      this.queueCapacity = queueCapacity;
+      this.completed = completed;
+      this.failed = failed;
+      this.bytes = bytes;
+      this.busyNanos = busyNanos;
+   }
+
+   /**
+    * @return The stage name, "io" or "cpu".
+    */
+   public String getName()
+   {
+      return name;
+   }
+
+   public int getThreads()
+   {
+      return threads;
+   }
+
+   /**
+    * @return The approximate number of threads running a task of this stage.
+    */
+   public int getActive()
+   {
+      return active;
+   }
+
+   /**
+    * @return The number of tasks waiting for a thread of this stage.
+    */
+   public int getQueueDepth()
+   {
+      return queueDepth;
+   }
+
+   public int getQueueCapacity()
+   {
+      return queueCapacity;
+   }
+
+   /**
+    * @return The number of tasks this stage has completed successfully.
+    */
+   public long getCompleted()
+   {
+      return completed;
+   }
+
+   public long getFailed()
+   {
+      return failed;
+   }
+
+   /**
+    * @return The number of archive bytes processed by completed tasks.
+    */
+   public long getBytes()
+   {
+      return bytes;
+   }
+
+   /**
+    * @return The total time threads have spent running tasks of this stage.
+    */
+   public long getBusyTime(TimeUnit unit)
+   {
+      return unit.convert(busyNanos, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * @return The archive bytes processed per second of busy thread time, that is, the throughput
+    *         of a single thread of this stage. Zero if no task has run.
+    */
+   public double getBytesPerSecond()
+   {
+      return busyNanos == 0 ? 0 : bytes * 1e9 / busyNanos;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "stage[" + name + ", threads " + active + "/" + threads
+            + ", queue " + queueDepth + "/" + queueCapacity
+            + ", completed " + completed + ", failed " + failed
+            + ", " + bytes + " bytes in " + getBusyTime(TimeUnit.MILLISECONDS) + " ms]";
+   }
+}
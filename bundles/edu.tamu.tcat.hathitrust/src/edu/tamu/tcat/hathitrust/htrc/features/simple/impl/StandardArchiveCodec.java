@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * The archive encodings supported by default.
+ *
+ * @since 1.2
+ */
+public enum StandardArchiveCodec implements ArchiveCodec
+{
+   /**
+    * bzip2, as distributed by HTRC. Large archives are decoded block-parallel.
+    */
+   BZIP2("bzip2")
+   {
+      @Override
+      public boolean matches(ByteBuffer header)
+      {
+         int p = header.position();
+         return header.remaining() >= 4 && header.get(p) == 'B' && header.get(p + 1) == 'Z'
+               && header.get(p + 2) == 'h' && header.get(p + 3) >= '1' && header.get(p + 3) <= '9';
+      }
+
+      @Override
+      public InputStream decode(InputStream in) throws IOException
+      {
+         // concatenated streams, as written by parallel compressors, are decoded in full
+         return new BZip2CompressorInputStream(in, true);
+      }
+
+      @Override
+      public InputStream decode(ByteBuffer archive, ForkJoinPool pool) throws IOException
+      {
+         ParallelBZip2InputStream blocks = pool == null ? null : ParallelBZip2InputStream.open(archive, pool, 2 * pool.getParallelism());
+         return blocks != null ? blocks : decode(new ByteBufferInputStream(archive));
+      }
+   },
+
+   /**
+    * gzip, which decodes several times faster than bzip2 at a lower compression ratio.
+    */
+   GZIP("gzip")
+   {
+      @Override
+      public boolean matches(ByteBuffer header)
+      {
+         int p = header.position();
+         return header.remaining() >= 2 && (header.get(p) & 0xFF) == 0x1F && (header.get(p + 1) & 0xFF) == 0x8B;
+      }
+
+      @Override
+      public InputStream decode(InputStream in) throws IOException
+      {
+         return new GZIPInputStream(in, 1 << 16);
+      }
+   },
+
+   /**
+    * Uncompressed JSON, recognized by its opening brace after any byte order mark and white space.
+    */
+   JSON("json")
+   {
+      @Override
+      public boolean matches(ByteBuffer header)
+      {
+         int p = header.position();
+         int end = header.limit();
+         if (end - p >= 3 && (header.get(p) & 0xFF) == 0xEF && (header.get(p + 1) & 0xFF) == 0xBB && (header.get(p + 2) & 0xFF) == 0xBF)
+            p += 3;
+         while (p < end && Character.isWhitespace(header.get(p)))
+            ++p;
+         return p < end && header.get(p) == '{';
+      }
+
+      @Override
+      public InputStream decode(InputStream in)
+      {
+         // the parser detects and skips a byte order mark itself
+         return in;
+      }
+   };
+
+   private final String name;
+
+   private StandardArchiveCodec(String name)
+   {
+      this.name = name;
+   }
+
+   @Override
+   public String getName()
+   {
+      return name;
+   }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.util.Arrays;
+
+/**
+ * A reusable, mutable {@link CharSequence} into which tokens are decoded during a traversal so
+ * that visiting tokens held outside the heap does not allocate a string per token.
+ *
+ * @since 1.2
+ */
+class TokenChars implements CharSequence
+{
+   private char[] chars = new char[64];
+   private int length;
+   /** Identifier of the token currently held, or {@code -1} */
+   int tokenId = -1;
+
+   /**
+    * Clear the content and make room for at least the given number of characters.
+    *
+    * @return The backing array, to be filled from index zero.
+    */
+   char[] reset(int capacity)
+   {
+      if (chars.length < capacity)
+         chars = new char[Math.max(capacity, chars.length * 2)];
+      length = 0;
+      tokenId = -1;
+      return chars;
+   }
+
+   void setLength(int length)
+   {
+      this.length = length;
+   }
+
+   @Override
+   public int length()
+   {
+      return length;
+   }
+
+   @Override
+   public char charAt(int index)
+   {
+      if (index < 0 || index >= length)
+         throw new IndexOutOfBoundsException("Index ["+index+"] out of range [0,"+length+")");
+      return chars[index];
+   }
+
+   @Override
+   public CharSequence subSequence(int start, int end)
+   {
+      return toString().subSequence(start, end);
+   }
+
+   @Override
+   public String toString()
+   {
+      return new String(Arrays.copyOf(chars, length));
+   }
+}
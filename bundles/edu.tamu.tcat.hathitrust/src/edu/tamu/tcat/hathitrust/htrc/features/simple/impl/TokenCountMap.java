@@ -0,0 +1,299 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.util.Arrays;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PosCounts;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.TokenPosVisitor;
+
+/**
+ * Accumulates token counts, per part of speech, and the number of documents in which each token
+ * appears. Tokens are assigned dense identifiers by a {@link TokenDictionary}; totals and
+ * document frequencies are held in primitive arrays indexed by identifier, and counts per part of
+ * speech in an open-addressing table keyed by {@code (id, posOrdinal)}, so a token appearing as
+ * a few parts of speech costs a few table slots rather than {@link PosCounts#SIZE}.
+ * <p>
+ * Visiting a token already present does not allocate. Instances are not thread-safe; concurrent
+ * workers each accumulate into their own map and {@link #merge(TokenCountMap) merge} the results.
+ *
+ * @since 1.2
+ */
+class TokenCountMap implements TokenPosVisitor
+{
+   private static final long EMPTY = -1;
+
+   private final int expected;
+   private TokenDictionary dictionary;
+   // estimated heap retained by the token strings
+   private long tokenBytes;
+   private long[] totals;
+   private long[] documents;
+   // the document in which each token was last counted towards its document frequency
+   private int[] stamps;
+   private int document;
+
+   // (id << 8 | posOrdinal) -> count, EMPTY marks an empty slot
+   private long[] posKeys;
+   private long[] posValues;
+   private int posMask;
+   private int posSize;
+
+   TokenCountMap()
+   {
+      this(1024);
+   }
+
+   TokenCountMap(int expected)
+   {
+      this.expected = expected;
+      clear();
+   }
+
+   /**
+    * Discard all counts, releasing the storage they occupy. The current document is unchanged.
+    */
+   void clear()
+   {
+      dictionary = new TokenDictionary(expected);
+      tokenBytes = 0;
+      int n = Math.max(16, expected);
+      totals = new long[n];
+      documents = new long[n];
+      stamps = new int[n];
+
+      int cap = Integer.highestOneBit(Math.max(16, expected) * 4 - 1) << 1;
+      posKeys = new long[cap];
+      Arrays.fill(posKeys, EMPTY);
+      posValues = new long[cap];
+      posMask = cap - 1;
+      posSize = 0;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "token counts[" + size() + " tokens]";
+   }
+
+   /**
+    * Start counting a new document. Each token visited until the next call adds one to its
+    * document frequency, however often it is visited.
+    */
+   void startDocument()
+   {
+      document++;
+   }
+
+   @Override
+   public void visit(CharSequence token, int posOrdinal, int count)
+   {
+      int id = dictionary.lookup(token);
+      if (id < 0)
+         id = add(token.toString());
+      count(id, posOrdinal, count);
+      countDocument(id);
+   }
+
+   /**
+    * Add the counts of another map, whose documents are distinct from those of this map.
+    */
+   void merge(TokenCountMap other)
+   {
+      merge(other, false);
+   }
+
+   /**
+    * Add the counts of another map whose tokens all belong to the current document of this map,
+    * as when parts of a volume are counted separately. Document frequencies increase only for
+    * tokens not yet counted in the current document.
+    */
+   void mergeDocumentPart(TokenCountMap other)
+   {
+      merge(other, true);
+   }
+
+   private void merge(TokenCountMap other, boolean sameDocument)
+   {
+      int[] ids = new int[other.size()];
+      for (int i = 0; i < ids.length; ++i)
+      {
+         String token = other.dictionary.get(i);
+         int id = dictionary.lookup(token);
+         ids[i] = id < 0 ? add(token) : id;
+         if (sameDocument)
+            countDocument(ids[i]);
+         else
+            documents[ids[i]] += other.documents[i];
+      }
+
+      for (int slot = 0; slot < other.posKeys.length; ++slot)
+      {
+         long key = other.posKeys[slot];
+         if (key != EMPTY)
+            count(ids[(int)(key >>> 8)], (int)(key & 0xFF), other.posValues[slot]);
+      }
+   }
+
+   /**
+    * @return The number of distinct tokens. Valid identifiers are {@code [0, size())}.
+    */
+   int size()
+   {
+      return dictionary.size();
+   }
+
+   String getToken(int id)
+   {
+      return dictionary.get(id);
+   }
+
+   /**
+    * @return The identifier of the given token, or {@code -1} if it has not been counted.
+    */
+   int lookup(CharSequence token)
+   {
+      return dictionary.lookup(token);
+   }
+
+   long getTotal(int id)
+   {
+      return totals[id];
+   }
+
+   long getDocumentCount(int id)
+   {
+      return documents[id];
+   }
+
+   /**
+    * @return The count of the token with the given identifier as the given part of speech.
+    */
+   long getCount(int id, int posOrdinal)
+   {
+      int slot = find(posKey(id, posOrdinal));
+      return posKeys[slot] == EMPTY ? 0 : posValues[slot];
+   }
+
+   /**
+    * Visit the counts per part of speech of all tokens, in no particular order.
+    */
+   void forEachPosCount(PosCountVisitor visitor)
+   {
+      for (int slot = 0; slot < posKeys.length; ++slot)
+      {
+         long key = posKeys[slot];
+         if (key != EMPTY)
+            visitor.visit((int)(key >>> 8), (int)(key & 0xFF), posValues[slot]);
+      }
+   }
+
+   @FunctionalInterface
+   interface PosCountVisitor
+   {
+      void visit(int id, int posOrdinal, long count);
+   }
+
+   /**
+    * @return An estimate of the heap retained by this map, in bytes.
+    */
+   long estimatedBytes()
+   {
+      // per identifier: totals, documents, stamps, the dictionary's token array and hash table
+      return tokenBytes + 36L * totals.length + 16L * posKeys.length;
+   }
+
+   private int add(String token)
+   {
+      int id = dictionary.add(token);
+      tokenBytes += 40 + 2L * token.length();
+      if (id == totals.length)
+      {
+         int n = totals.length * 2;
+         totals = Arrays.copyOf(totals, n);
+         documents = Arrays.copyOf(documents, n);
+         stamps = Arrays.copyOf(stamps, n);
+      }
+      return id;
+   }
+
+   private void countDocument(int id)
+   {
+      if (stamps[id] != document)
+      {
+         stamps[id] = document;
+         documents[id]++;
+      }
+   }
+
+   private void count(int id, int posOrdinal, long count)
+   {
+      totals[id] += count;
+      long key = posKey(id, posOrdinal);
+      int slot = find(key);
+      if (posKeys[slot] != EMPTY)
+      {
+         posValues[slot] += count;
+         return;
+      }
+
+      posKeys[slot] = key;
+      posValues[slot] = count;
+      // keep load factor at or below one half
+      if (++posSize * 2 > posKeys.length)
+         rehash();
+   }
+
+   private static long posKey(int id, int posOrdinal)
+   {
+      return ((long)id << 8) | posOrdinal;
+   }
+
+   private int find(long key)
+   {
+      int slot = spread(key) & posMask;
+      long k;
+      while ((k = posKeys[slot]) != EMPTY && k != key)
+         slot = (slot + 1) & posMask;
+      return slot;
+   }
+
+   private static int spread(long key)
+   {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int)(h ^ (h >>> 32));
+   }
+
+   private void rehash()
+   {
+      long[] keys = posKeys;
+      long[] values = posValues;
+      int cap = keys.length * 2;
+      posKeys = new long[cap];
+      Arrays.fill(posKeys, EMPTY);
+      posValues = new long[cap];
+      posMask = cap - 1;
+      for (int slot = 0; slot < keys.length; ++slot)
+      {
+         if (keys[slot] != EMPTY)
+         {
+            int s = find(keys[slot]);
+            posKeys[s] = keys[slot];
+            posValues[s] = values[slot];
+         }
+      }
+   }
+}
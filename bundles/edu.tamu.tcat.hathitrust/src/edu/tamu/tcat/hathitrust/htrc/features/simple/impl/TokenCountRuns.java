@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PosCounts;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.TokenCounts.TokenCount;
+
+/**
+ * Token counts spilled to disk when they exceed the memory available to an aggregation. Each
+ * spill writes the counts of a {@link TokenCountMap}, sorted by token, to a gzip-compressed run
+ * file and clears the map. The runs are read back by a k-way merge, which sums the counts of a
+ * token over all runs, so only the head of each run is held in memory.
+ * <p>
+ * The counts of a single document must be spilled together, as document frequencies are summed
+ * across runs.
+ *
+ * @since 1.2
+ */
+class TokenCountRuns implements Closeable
+{
+   private static final Logger debug = Logger.getLogger(TokenCountRuns.class.getName());
+
+   private final Path dir;
+   private final AtomicInteger next = new AtomicInteger();
+   //@GuardedBy("this")
+   private final List<Path> runs = new ArrayList<>();
+
+   private TokenCountRuns(Path dir)
+   {
+      this.dir = dir;
+   }
+
+   /**
+    * @param parent The directory in which to create a directory for the run files.
+    */
+   static TokenCountRuns create(Path parent) throws IOException
+   {
+      Files.createDirectories(parent);
+      return new TokenCountRuns(Files.createTempDirectory(parent, "token-counts"));
+   }
+
+   @Override
+   public String toString()
+   {
+      return "token count runs[" + getRunCount() + " in " + dir + "]";
+   }
+
+   synchronized int getRunCount()
+   {
+      return runs.size();
+   }
+
+   /**
+    * Write the counts of a map to a new run and clear the map. May be called concurrently for
+    * different maps.
+    */
+   void spill(TokenCountMap map) throws IOException
+   {
+      long bytes = map.estimatedBytes();
+      TokenCounts.Sorted sorted = TokenCounts.of(map, 0);
+      map.clear();
+
+      Path run = dir.resolve("run-" + next.getAndIncrement() + ".gz");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(run), 1 << 16))))
+      {
+         sorted.write(out);
+      }
+
+      synchronized (this)
+      {
+         runs.add(run);
+      }
+      debug.fine("spilled " + sorted.size() + " tokens (~" + (bytes >> 20) + " MiB) to " + run);
+   }
+
+   /**
+    * @return The merged counts of all runs. Closing the counts deletes the runs.
+    */
+   TokenCounts toCounts(int volumeCount)
+   {
+      return new Merged(volumeCount);
+   }
+
+   /**
+    * Delete the run files and their directory.
+    */
+   @Override
+   public synchronized void close()
+   {
+      for (Path run : runs)
+         delete(run);
+      runs.clear();
+      delete(dir);
+   }
+
+   private static void delete(Path p)
+   {
+      try
+      {
+         Files.deleteIfExists(p);
+      }
+      catch (IOException e)
+      {
+         debug.log(Level.WARNING, "Failed deleting token count run [" + p + "]", e);
+      }
+   }
+
+   private class Merged extends TokenCounts
+   {
+      Merged(int volumeCount)
+      {
+         super(volumeCount);
+      }
+
+      @Override
+      public String toString()
+      {
+         return "token counts[" + getVolumeCount() + " volumes in " + getRunCount() + " runs in " + dir + "]";
+      }
+
+      @Override
+      public Stream<TokenCount> stream()
+      {
+         List<Path> files;
+         synchronized (TokenCountRuns.this)
+         {
+            files = new ArrayList<>(runs);
+         }
+
+         MergeIterator merge = new MergeIterator();
+         try
+         {
+            for (Path run : files)
+               merge.add(new RunReader(run));
+         }
+         catch (IOException | RuntimeException e)
+         {
+            merge.close();
+            throw new IllegalStateException("Failed opening token count runs in [" + dir + "]", e);
+         }
+
+         Spliterator<TokenCount> counts = Spliterators.spliteratorUnknownSize(merge, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT);
+         return StreamSupport.stream(counts, false).onClose(merge::close);
+      }
+
+      @Override
+      public void close()
+      {
+         TokenCountRuns.this.close();
+      }
+   }
+
+   /**
+    * Merges the runs in token order, summing the counts of each token over all runs.
+    */
+   private static class MergeIterator implements Iterator<TokenCount>
+   {
+      private final PriorityQueue<RunReader> heads = new PriorityQueue<>(Comparator.comparing((RunReader r) -> r.token));
+      private final List<RunReader> readers = new ArrayList<>();
+
+      void add(RunReader reader) throws IOException
+      {
+         readers.add(reader);
+         if (reader.advance())
+            heads.add(reader);
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+         return !heads.isEmpty();
+      }
+
+      @Override
+      public TokenCount next()
+      {
+         if (heads.isEmpty())
+            throw new NoSuchElementException();
+
+         String token = heads.peek().token;
+         long total = 0;
+         long documents = 0;
+         long[] counts = new long[PosCounts.SIZE];
+         while (!heads.isEmpty() && heads.peek().token.equals(token))
+         {
+            RunReader r = heads.poll();
+            documents += r.documents;
+            for (int pos = 0; pos < counts.length; ++pos)
+            {
+               counts[pos] += r.counts[pos];
+               total += r.counts[pos];
+            }
+
+            try
+            {
+               if (r.advance())
+                  heads.add(r);
+            }
+            catch (IOException e)
+            {
+               throw new IllegalStateException("Failed reading token count run [" + r.file + "]", e);
+            }
+         }
+         return new TokenCount(token, total, documents, counts);
+      }
+
+      void close()
+      {
+         for (RunReader r : readers)
+         {
+            try
+            {
+               r.in.close();
+            }
+            catch (IOException e)
+            {
+               debug.log(Level.WARNING, "Failed closing token count run [" + r.file + "]", e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Reads the tokens of a run in order, holding the counts of the current token.
+    */
+   private static class RunReader
+   {
+      final Path file;
+      final DataInputStream in;
+      final long[] counts = new long[PosCounts.SIZE];
+      int remaining;
+      String token;
+      long documents;
+
+      RunReader(Path file) throws IOException
+      {
+         this.file = file;
+         this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file), 1 << 16)));
+         try
+         {
+            this.remaining = in.readInt();
+         }
+         catch (IOException e)
+         {
+            in.close();
+            throw e;
+         }
+      }
+
+      /**
+       * @return Whether a token was read; {@code false} at the end of the run.
+       */
+      boolean advance() throws IOException
+      {
+         if (remaining == 0)
+            return false;
+         remaining--;
+
+         byte[] b = new byte[in.readInt()];
+         in.readFully(b);
+         token = new String(b, StandardCharsets.UTF_8);
+         documents = in.readLong();
+         Arrays.fill(counts, 0);
+         int n = in.readUnsignedByte();
+         for (int i = 0; i < n; ++i)
+         {
+            int pos = in.readUnsignedByte();
+            counts[pos] += in.readLong();
+         }
+         return true;
+      }
+   }
+}
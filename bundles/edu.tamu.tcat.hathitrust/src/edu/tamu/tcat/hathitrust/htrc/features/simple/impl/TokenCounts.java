@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PartOfSpeechCode;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PosCounts;
+
+/**
+ * Token counts aggregated over a set of volumes, ordered by token. Counts which were spilled to
+ * disk during aggregation are read back as they are streamed, and must be closed to release their
+ * files.
+ *
+ * @see CorpusAggregator
+ * @since 1.2
+ */
+public abstract class TokenCounts implements AutoCloseable
+{
+   private final int volumeCount;
+
+   TokenCounts(int volumeCount)
+   {
+      this.volumeCount = volumeCount;
+   }
+
+   /**
+    * Sort the counts of a map.
+    *
+    * @param volumeCount The number of volumes counted.
+    */
+   static Sorted of(TokenCountMap map, int volumeCount)
+   {
+      return Sorted.of(map, volumeCount);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "token counts[" + volumeCount + " volumes]";
+   }
+
+   /**
+    * @return The number of volumes counted.
+    */
+   public int getVolumeCount()
+   {
+      return volumeCount;
+   }
+
+   /**
+    * @return The counts of each token, ordered by {@link String#compareTo(String)} of the tokens.
+    *         Close the stream to release any files read.
+    */
+   public abstract Stream<TokenCount> stream();
+
+   /**
+    * @return The number of distinct tokens.
+    */
+   public long size()
+   {
+      try (Stream<TokenCount> counts = stream())
+      {
+         return counts.count();
+      }
+   }
+
+   /**
+    * @return The sum of the counts of all tokens.
+    */
+   public long getTotalCount()
+   {
+      try (Stream<TokenCount> counts = stream())
+      {
+         return counts.mapToLong(TokenCount::getCount).sum();
+      }
+   }
+
+   /**
+    * @return The counts of the given token, or {@code null} if it does not appear in any volume.
+    */
+   public TokenCount get(String token)
+   {
+      try (Stream<TokenCount> counts = stream())
+      {
+         Iterator<TokenCount> it = counts.iterator();
+         while (it.hasNext())
+         {
+            TokenCount c = it.next();
+            int d = c.getToken().compareTo(token);
+            if (d == 0)
+               return c;
+            if (d > 0)
+               break;
+         }
+         return null;
+      }
+   }
+
+   /**
+    * Release any files holding the counts.
+    */
+   @Override
+   public void close()
+   {
+      // no-op
+   }
+
+   /**
+    * Counts held in memory, sorted by token.
+    */
+   static class Sorted extends TokenCounts
+   {
+      private final String[] tokens;
+      private final long[] totals;
+      private final long[] documents;
+      // counts per part of speech of token i are at [posStart[i], posStart[i + 1])
+      private final int[] posStart;
+      private final byte[] posOrdinals;
+      private final long[] posCounts;
+
+      private Sorted(int volumeCount, String[] tokens, long[] totals, long[] documents, int[] posStart, byte[] posOrdinals, long[] posCounts)
+      {
+         super(volumeCount);
+         this.tokens = tokens;
+         this.totals = totals;
+         this.documents = documents;
+         this.posStart = posStart;
+         this.posOrdinals = posOrdinals;
+         this.posCounts = posCounts;
+      }
+
+      static Sorted of(TokenCountMap map, int volumeCount)
+      {
+         int size = map.size();
+         String[] tokens = new String[size];
+         for (int id = 0; id < size; ++id)
+            tokens[id] = map.getToken(id);
+         Arrays.parallelSort(tokens);
+
+         int[] rank = new int[size];
+         long[] totals = new long[size];
+         long[] documents = new long[size];
+         for (int i = 0; i < size; ++i)
+         {
+            int id = map.lookup(tokens[i]);
+            rank[id] = i;
+            totals[i] = map.getTotal(id);
+            documents[i] = map.getDocumentCount(id);
+         }
+
+         // bucket the counts per part of speech by token rank
+         int[] posStart = new int[size + 1];
+         map.forEachPosCount((id, pos, count) -> posStart[rank[id] + 1]++);
+         for (int i = 0; i < size; ++i)
+            posStart[i + 1] += posStart[i];
+
+         int[] next = Arrays.copyOf(posStart, size);
+         byte[] posOrdinals = new byte[posStart[size]];
+         long[] posCounts = new long[posStart[size]];
+         map.forEachPosCount((id, pos, count) ->
+         {
+            int i = next[rank[id]]++;
+            posOrdinals[i] = (byte)pos;
+            posCounts[i] = count;
+         });
+
+         return new Sorted(volumeCount, tokens, totals, documents, posStart, posOrdinals, posCounts);
+      }
+
+      @Override
+      public String toString()
+      {
+         return "token counts[" + tokens.length + " tokens in " + getVolumeCount() + " volumes]";
+      }
+
+      @Override
+      public long size()
+      {
+         return tokens.length;
+      }
+
+      @Override
+      public long getTotalCount()
+      {
+         long sum = 0;
+         for (long c : totals)
+            sum += c;
+         return sum;
+      }
+
+      @Override
+      public TokenCount get(String token)
+      {
+         int i = Arrays.binarySearch(tokens, token);
+         return i < 0 ? null : entry(i);
+      }
+
+      /**
+       * {@inheritDoc} The stream may be made parallel.
+       */
+      @Override
+      public Stream<TokenCount> stream()
+      {
+         return IntStream.range(0, tokens.length).mapToObj(this::entry);
+      }
+
+      private TokenCount entry(int i)
+      {
+         long[] counts = new long[PosCounts.SIZE];
+         for (int k = posStart[i]; k < posStart[i + 1]; ++k)
+            counts[posOrdinals[k]] += posCounts[k];
+         return new TokenCount(tokens[i], totals[i], documents[i], counts);
+      }
+
+      /**
+       * Write the counts in the format read by {@link TokenCountRuns}:
+       * <pre>
+       *   int     number of tokens
+       *   per token:
+       *     int     length of the UTF-8 token
+       *     bytes   UTF-8 token
+       *     long    document frequency
+       *     byte    number of parts of speech
+       *     per part of speech:
+       *       byte    part-of-speech ordinal
+       *       long    count
+       * </pre>
+       */
+      void write(DataOutputStream out) throws IOException
+      {
+         out.writeInt(tokens.length);
+         for (int i = 0; i < tokens.length; ++i)
+         {
+            byte[] token = tokens[i].getBytes(StandardCharsets.UTF_8);
+            out.writeInt(token.length);
+            out.write(token);
+            out.writeLong(documents[i]);
+            out.writeByte(posStart[i + 1] - posStart[i]);
+            for (int k = posStart[i]; k < posStart[i + 1]; ++k)
+            {
+               out.writeByte(posOrdinals[k]);
+               out.writeLong(posCounts[k]);
+            }
+         }
+      }
+   }
+
+   /**
+    * The aggregated counts of a single token.
+    */
+   public static final class TokenCount
+   {
+      private final String token;
+      private final long total;
+      private final long documents;
+      private final long[] posCounts;
+
+      TokenCount(String token, long total, long documents, long[] posCounts)
+      {
+         this.token = token;
+         this.total = total;
+         this.documents = documents;
+         this.posCounts = posCounts;
+      }
+
+      @Override
+      public String toString()
+      {
+         return token + "[count " + total + ", volumes " + documents + "]";
+      }
+
+      public String getToken()
+      {
+         return token;
+      }
+
+      /**
+       * @return The number of times the token appears, as any part of speech.
+       */
+      public long getCount()
+      {
+         return total;
+      }
+
+      public long getCount(PartOfSpeechCode code)
+      {
+         return posCounts[code.ordinal()];
+      }
+
+      /**
+       * @return The count of the token as parts of speech which do not match a {@link PartOfSpeechCode}.
+       */
+      public long getUnknownCount()
+      {
+         return posCounts[PartOfSpeechCode.UNKNOWN_ORDINAL];
+      }
+
+      /**
+       * @return A copy of the counts indexed by part-of-speech ordinal, of length {@link PosCounts#SIZE}.
+       */
+      public long[] getPosCounts()
+      {
+         return posCounts.clone();
+      }
+
+      /**
+       * @return The number of volumes in which the token appears.
+       */
+      public long getDocumentFrequency()
+      {
+         return documents;
+      }
+   }
+}
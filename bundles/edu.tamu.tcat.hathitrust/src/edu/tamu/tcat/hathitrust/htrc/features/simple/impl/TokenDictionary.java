@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.util.Arrays;
+
+/**
+ * A per-volume dictionary assigning dense integer identifiers to token strings. Identifiers are
+ * assigned in order of first insertion, starting at zero. Lookup is by an open-addressing hash
+ * index so that neither lookup nor identifier resolution allocates.
+ * <p>
+ * A dictionary is mutable while a volume is being parsed and is treated as immutable once the
+ * parsed volume has been published.
+ *
+ * @since 1.2
+ */
+class TokenDictionary implements TokenTable
+{
+   private String[] tokens;
+   private int size;
+   // slot holds (id + 1), zero marks an empty slot
+   private int[] table;
+   private int mask;
+
+   TokenDictionary()
+   {
+      this(1024);
+   }
+
+   TokenDictionary(int expected)
+   {
+      tokens = new String[Math.max(16, expected)];
+      int cap = Integer.highestOneBit(Math.max(16, expected) * 2 - 1) << 1;
+      table = new int[cap];
+      mask = cap - 1;
+   }
+
+   /**
+    * Computes the same value as {@link String#hashCode()} for any {@link CharSequence}, then
+    * spreads the bits so that sequential hashes do not cluster in the table.
+    */
+   static int hash(CharSequence s)
+   {
+      int h;
+      if (s instanceof String)
+         h = s.hashCode();
+      else
+      {
+         h = 0;
+         for (int i = 0; i < s.length(); ++i)
+            h = 31 * h + s.charAt(i);
+      }
+      return h ^ (h >>> 16);
+   }
+
+   /**
+    * @return The number of tokens in this dictionary. Valid identifiers are {@code [0, size())}
+    */
+   @Override
+   public int size()
+   {
+      return size;
+   }
+
+   /**
+    * @return The token with the given identifier.
+    */
+   @Override
+   public String get(int id)
+   {
+      if (id < 0 || id >= size)
+         throw new IndexOutOfBoundsException("Token id ["+id+"] out of range [0,"+size+")");
+      return tokens[id];
+   }
+
+   /**
+    * @return The identifier of the given token, or {@code -1} if it is not in the dictionary.
+    */
+   @Override
+   public int lookup(CharSequence token)
+   {
+      int slot = hash(token) & mask;
+      int v;
+      while ((v = table[slot]) != 0)
+      {
+         if (contentEquals(tokens[v - 1], token))
+            return v - 1;
+         slot = (slot + 1) & mask;
+      }
+      return -1;
+   }
+
+   @Override
+   public CharSequence chars(int id, TokenChars scratch)
+   {
+      return get(id);
+   }
+
+   /**
+    * Get the identifier for the given token, adding it to the dictionary if not present.
+    */
+   int add(String token)
+   {
+      int slot = hash(token) & mask;
+      int v;
+      while ((v = table[slot]) != 0)
+      {
+         if (tokens[v - 1].equals(token))
+            return v - 1;
+         slot = (slot + 1) & mask;
+      }
+
+      if (size == tokens.length)
+         tokens = Arrays.copyOf(tokens, Math.max(16, size * 2));
+      int id = size++;
+      tokens[id] = token;
+      table[slot] = id + 1;
+
+      // keep load factor at or below one half
+      if (size * 2 > table.length)
+         rehash();
+
+      return id;
+   }
+
+   /**
+    * Release unused capacity once no more tokens will be added.
+    */
+   void trim()
+   {
+      if (tokens.length > size)
+         tokens = Arrays.copyOf(tokens, size);
+   }
+
+   /**
+    * @return An estimate of the heap retained by this dictionary, in bytes.
+    */
+   @Override
+   public long estimatedBytes()
+   {
+      long bytes = 16L + 4L * tokens.length + 4L * table.length;
+      for (int i = 0; i < size; ++i)
+         bytes += 40 + tokens[i].length() * 2L;
+      return bytes;
+   }
+
+   private void rehash()
+   {
+      int cap = table.length * 2;
+      int[] t = new int[cap];
+      int m = cap - 1;
+      for (int id = 0; id < size; ++id)
+      {
+         int slot = hash(tokens[id]) & m;
+         while (t[slot] != 0)
+            slot = (slot + 1) & m;
+         t[slot] = id + 1;
+      }
+      table = t;
+      mask = m;
+   }
+
+   private static boolean contentEquals(String a, CharSequence b)
+   {
+      return (b instanceof String) ? a.equals(b) : a.contentEquals(b);
+   }
+}
@@ -0,0 +1,705 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import edu.tamu.tcat.hathitrust.HathiTrustClientException;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeaturesProvider;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PartOfSpeechCode;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PosCounts;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.TokenPosVisitor;
+
+/**
+ * An inverted index of the body tokens of a set of volumes, locating the pages on which each
+ * token appears without scanning the volumes.
+ * <p>
+ * The index is built once by {@link #build(ExtractedFeaturesProvider, Collection, Path)} and is
+ * memory-mapped when opened. Volumes which could not be read while building are recorded as
+ * failed, so that an incomplete index can be told apart; see {@link #getFailedVolumeIds()}.
+ * <p>
+ * Volumes are numbered by their position in the sorted list of volume identifiers. For each
+ * token, the index holds a posting for each page and part of speech it appears as, ordered by
+ * volume and page, encoded as variable-length integers relative to the previous posting. The
+ * file layout (all fixed-width values big-endian) is:
+ * <pre>
+ *   int     magic ("HTTI")
+ *   int     format version
+ *   long    offset of the volume identifiers
+ *   long    offset of the terms
+ *   long    offset of the posting offsets
+ *   long    offset of the postings
+ *   long    offset of the failed volumes
+ *   volume identifiers: strings, sorted by UTF-8 bytes
+ *   terms: strings, sorted by UTF-8 bytes
+ *   int[]   offset of each term's postings relative to the first posting [terms + 1]
+ *   postings, per term:
+ *     varint  volume ordinal, less that of the previous posting
+ *     varint  page index, less that of the previous posting if in the same volume
+ *     byte    part of speech: a {@link PartOfSpeechCode#ordinal()} or {@link PartOfSpeechCode#UNKNOWN_ORDINAL}
+ *     varint  count
+ *   failed volumes:
+ *     int     count
+ *     int[]   volume ordinals, ascending [count]
+ *   strings:
+ *     int     count
+ *     int[]   offsets of each string relative to the first byte [count + 1]
+ *     bytes   UTF-8 strings
+ * </pre>
+ * <p>
+ * The index is sized for worksets rather than a full corpus. While building, the compressed
+ * postings of every volume are held in heap until the index is written, so the heap must hold
+ * the whole posting section; and posting offsets are ints, so the file is limited to 2 GiB, and
+ * building a larger index fails with an {@link IOException}. Index a large corpus as several
+ * indexes over subsets of its volumes.
+ *
+ * @since 1.2
+ */
+public class TokenIndex
+{
+   private static final Logger debug = Logger.getLogger(TokenIndex.class.getName());
+
+   static final int MAGIC = 0x48545449;
+   static final int FORMAT_VERSION = 2;
+
+   private static final int HEADER_SIZE = 48;
+   // volumes decoded concurrently before their postings are appended in volume order
+   private static final int BATCH_SIZE = 256;
+
+   private final Path file;
+   private final ByteBuffer buf;
+   private final MappedStrings volumes;
+   private final MappedStrings terms;
+   private final int postingOffsets;
+   private final int postings;
+   private final int failed;
+
+   private TokenIndex(Path file, ByteBuffer buf) throws IOException
+   {
+      this.file = file;
+      this.buf = buf;
+      this.volumes = new MappedStrings(buf, checkOffset(buf.getLong(8)));
+      this.terms = new MappedStrings(buf, checkOffset(buf.getLong(16)));
+      this.postingOffsets = checkOffset(buf.getLong(24));
+      this.postings = checkOffset(buf.getLong(32));
+      this.failed = checkOffset(buf.getLong(40));
+   }
+
+   private int checkOffset(long offset) throws IOException
+   {
+      if (offset < HEADER_SIZE || offset > buf.limit())
+         throw new IOException("Invalid section offset [" + offset + "] in token index " + file);
+      return (int)offset;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "token index[" + terms.size() + " terms in " + volumes.size() + " volumes, " + file + "]";
+   }
+
+   /**
+    * Open an index built by {@link #build(ExtractedFeaturesProvider, Collection, Path)}.
+    *
+    * @throws IOException If the file does not exist or is not a token index.
+    */
+   public static TokenIndex open(Path file) throws IOException
+   {
+      ByteBuffer buf;
+      try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      }
+
+      if (buf.remaining() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION)
+         throw new IOException("Not a token index, or an unknown format version " + file);
+      return new TokenIndex(file, buf);
+   }
+
+   /**
+    * Build an index of the body tokens of the given volumes. Volumes are streamed from the
+    * provider unordered and in parallel, in batches whose postings are then appended in volume
+    * order. Volumes which cannot be loaded are logged, have no postings, and are recorded in the
+    * index as failed.
+    * <p>
+    * Postings are held in memory, compressed, until the index is written, and the index may not
+    * exceed 2 GiB.
+    *
+    * @param provider The source of the volumes.
+    * @param htrcVolumeIds The volumes to index; duplicates are ignored.
+    * @param file The index file to write.
+    * @return The identifiers of the volumes which could not be loaded, sorted by UTF-8 bytes;
+    *         empty if the index is complete.
+    * @throws IOException If the index cannot be written, or would exceed 2 GiB.
+    */
+   public static List<String> build(ExtractedFeaturesProvider provider, Collection<String> htrcVolumeIds, Path file) throws IOException
+   {
+      long start = System.nanoTime();
+      byte[][] vids = sortedUnique(htrcVolumeIds);
+      Map<String, Integer> ordinals = new HashMap<>();
+      for (int i = 0; i < vids.length; ++i)
+         ordinals.put(new String(vids[i], StandardCharsets.UTF_8), Integer.valueOf(i));
+
+      LoadOptions options = LoadOptions.builder().setSections(LoadOptions.Section.BODY).build();
+      Map<String, PostingWriter> index = new HashMap<>();
+      List<Integer> failed = new ArrayList<>();
+      for (int from = 0; from < vids.length; from += BATCH_SIZE)
+      {
+         int to = Math.min(vids.length, from + BATCH_SIZE);
+         List<String> batch = new ArrayList<>(to - from);
+         for (int i = from; i < to; ++i)
+            batch.add(new String(vids[i], StandardCharsets.UTF_8));
+
+         VolumePostings[] results = new VolumePostings[batch.size()];
+         int base = from;
+         try (Stream<ExtractedFeatures> stream = provider.stream(batch, options, false))
+         {
+            stream.parallel().forEach(ef ->
+            {
+               int ordinal = ordinals.get(ef.getVolumeId()).intValue();
+               VolumePostings vp = new VolumePostings();
+               try
+               {
+                  ef.forEachTokenPos(vp);
+                  results[ordinal - base] = vp;
+               }
+               catch (HathiTrustClientException | RuntimeException e)
+               {
+                  debug.log(Level.WARNING, "Recording volume as failed after failing to read [" + ef.getVolumeId() + "]", e);
+               }
+            });
+         }
+
+         for (int i = 0; i < results.length; ++i)
+         {
+            // failed to load, or not supplied by the provider
+            if (results[i] == null)
+            {
+               failed.add(Integer.valueOf(base + i));
+               continue;
+            }
+            for (Map.Entry<String, int[]> e : results[i].postings.entrySet())
+               index.computeIfAbsent(e.getKey(), k -> new PostingWriter()).append(base + i, e.getValue());
+         }
+      }
+
+      write(file, vids, index, failed);
+      debug.info("Built token index of " + index.size() + " terms in " + vids.length + " volumes (" + failed.size() + " failed) in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms " + file);
+
+      List<String> result = new ArrayList<>(failed.size());
+      for (Integer i : failed)
+         result.add(new String(vids[i.intValue()], StandardCharsets.UTF_8));
+      return result;
+   }
+
+   private static byte[][] sortedUnique(Collection<String> strings)
+   {
+      Set<String> unique = new LinkedHashSet<>(strings);
+      byte[][] result = new byte[unique.size()][];
+      int i = 0;
+      for (String s : unique)
+         result[i++] = s.getBytes(StandardCharsets.UTF_8);
+      Arrays.sort(result, MappedStrings::compare);
+      return result;
+   }
+
+   /**
+    * Accumulates the postings of a single volume: per token, (page, part of speech, count)
+    * triples in page order.
+    */
+   private static class VolumePostings implements TokenPosVisitor
+   {
+      final Map<String, int[]> postings = new HashMap<>();
+      private int page;
+
+      @Override
+      public void startPage(int page)
+      {
+         this.page = page;
+      }
+
+      @Override
+      public void visit(CharSequence token, int posOrdinal, int count)
+      {
+         String key = token.toString();
+         int[] p = postings.get(key);
+         // the first element holds the number of values in use
+         if (p == null)
+            postings.put(key, p = new int[7]);
+         else if (p[0] + 4 > p.length)
+            postings.put(key, p = Arrays.copyOf(p, p.length * 2));
+
+         int n = p[0];
+         p[n + 1] = page;
+         p[n + 2] = posOrdinal;
+         p[n + 3] = count;
+         p[0] = n + 3;
+      }
+   }
+
+   /**
+    * Encodes the postings of a single term as volumes are appended in order.
+    */
+   private static class PostingWriter
+   {
+      private byte[] bytes = new byte[16];
+      private int length;
+      private int lastVolume;
+      private int lastPage;
+
+      void append(int volume, int[] triples)
+      {
+         for (int i = 1; i < triples[0]; i += 3)
+         {
+            int page = triples[i];
+            writeVarint(volume - lastVolume);
+            writeVarint(volume == lastVolume ? page - lastPage : page);
+            writeByte(triples[i + 1]);
+            writeVarint(triples[i + 2]);
+            lastVolume = volume;
+            lastPage = page;
+         }
+      }
+
+      private void writeByte(int b)
+      {
+         if (length == bytes.length)
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+         bytes[length++] = (byte)b;
+      }
+
+      private void writeVarint(int v)
+      {
+         while ((v & ~0x7F) != 0)
+         {
+            writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+         }
+         writeByte(v);
+      }
+   }
+
+   private static void write(Path file, byte[][] vids, Map<String, PostingWriter> index, List<Integer> failed) throws IOException
+   {
+      byte[][] termBytes = new byte[index.size()][];
+      PostingWriter[] writers = new PostingWriter[termBytes.length];
+      int n = 0;
+      for (String term : index.keySet())
+         termBytes[n++] = term.getBytes(StandardCharsets.UTF_8);
+      Arrays.sort(termBytes, MappedStrings::compare);
+      for (int i = 0; i < termBytes.length; ++i)
+         writers[i] = index.get(new String(termBytes[i], StandardCharsets.UTF_8));
+
+      long volumesOffset = HEADER_SIZE;
+      long termsOffset = volumesOffset + MappedStrings.size(vids);
+      long postingOffsetsOffset = termsOffset + MappedStrings.size(termBytes);
+      long postingsOffset = postingOffsetsOffset + 4L * (termBytes.length + 1);
+      long end = postingsOffset;
+      for (PostingWriter w : writers)
+         end += w.length;
+      long failedOffset = end;
+      end += 4L * (failed.size() + 1);
+      if (end > Integer.MAX_VALUE)
+         throw new IOException("Token index too large [" + end + " bytes] " + file);
+
+      SidecarCache.writeAtomically(file, out ->
+      {
+         out.writeInt(MAGIC);
+         out.writeInt(FORMAT_VERSION);
+         out.writeLong(volumesOffset);
+         out.writeLong(termsOffset);
+         out.writeLong(postingOffsetsOffset);
+         out.writeLong(postingsOffset);
+         out.writeLong(failedOffset);
+         MappedStrings.write(out, vids);
+         MappedStrings.write(out, termBytes);
+
+         int off = 0;
+         out.writeInt(off);
+         for (PostingWriter w : writers)
+         {
+            off += w.length;
+            out.writeInt(off);
+         }
+         for (PostingWriter w : writers)
+            out.write(w.bytes, 0, w.length);
+
+         out.writeInt(failed.size());
+         for (Integer i : failed)
+            out.writeInt(i.intValue());
+      });
+   }
+
+   /**
+    * @return The number of volumes indexed.
+    */
+   public int volumeCount()
+   {
+      return volumes.size();
+   }
+
+   /**
+    * @return The identifiers of the volumes which could not be loaded when the index was built,
+    *         in ordinal order. These volumes have ordinals but no postings.
+    */
+   public List<String> getFailedVolumeIds()
+   {
+      int n = buf.getInt(failed);
+      List<String> result = new ArrayList<>(n);
+      for (int i = 0; i < n; ++i)
+         result.add(volumes.get(buf.getInt(failed + 4 * (i + 1))));
+      return result;
+   }
+
+   /**
+    * @return Whether every volume was loaded when the index was built.
+    */
+   public boolean isComplete()
+   {
+      return buf.getInt(failed) == 0;
+   }
+
+   /**
+    * @return The number of distinct tokens indexed.
+    */
+   public int termCount()
+   {
+      return terms.size();
+   }
+
+   /**
+    * @return The identifier of the volume with the given ordinal.
+    */
+   public String getVolumeId(int volumeOrdinal)
+   {
+      return volumes.get(volumeOrdinal);
+   }
+
+   /**
+    * @return The ordinal of the given volume, or {@code -1} if it was not indexed.
+    */
+   public int getVolumeOrdinal(String htrcVolumeId)
+   {
+      return volumes.find(htrcVolumeId.getBytes(StandardCharsets.UTF_8));
+   }
+
+   /**
+    * @return Whether the token appears in any indexed volume. Tokens are matched exactly,
+    *         including case.
+    */
+   public boolean contains(String token)
+   {
+      return terms.find(token.getBytes(StandardCharsets.UTF_8)) >= 0;
+   }
+
+   /**
+    * Find the pages on which a token appears as any part of speech. Tokens are matched exactly,
+    * including case.
+    */
+   public Hits find(String token)
+   {
+      return find(token, null);
+   }
+
+   /**
+    * Find the pages on which a token appears as one of the given parts of speech, counting only
+    * those parts of speech.
+    *
+    * @param partsOfSpeech The parts of speech to match, or {@code null} to match all, including
+    *        raw codes which do not match a {@link PartOfSpeechCode}.
+    */
+   public Hits find(String token, Set<PartOfSpeechCode> partsOfSpeech)
+   {
+      int term = terms.find(token.getBytes(StandardCharsets.UTF_8));
+      if (term < 0)
+         return new Hits(new long[0], new int[0], 0);
+
+      boolean[] accept = new boolean[PosCounts.SIZE];
+      for (int i = 0; i < accept.length; ++i)
+         accept[i] = partsOfSpeech == null || i < PartOfSpeechCode.UNKNOWN_ORDINAL && partsOfSpeech.contains(PartOfSpeechCode.values()[i]);
+
+      int pos = postings + buf.getInt(postingOffsets + 4 * term);
+      int end = postings + buf.getInt(postingOffsets + 4 * (term + 1));
+
+      // postings are ordered by page, with several parts of speech of a page adjacent
+      long[] pages = new long[16];
+      int[] counts = new int[16];
+      int n = 0;
+      int volume = 0;
+      int page = 0;
+      int[] cursor = { pos };
+      while (cursor[0] < end)
+      {
+         int dv = readVarint(cursor);
+         int dp = readVarint(cursor);
+         volume += dv;
+         page = dv == 0 ? page + dp : dp;
+         int posOrdinal = buf.get(cursor[0]++);
+         int count = readVarint(cursor);
+         if (!accept[posOrdinal])
+            continue;
+
+         long key = ((long)volume << 32) | page;
+         if (n > 0 && pages[n - 1] == key)
+         {
+            counts[n - 1] += count;
+            continue;
+         }
+         if (n == pages.length)
+         {
+            pages = Arrays.copyOf(pages, n * 2);
+            counts = Arrays.copyOf(counts, n * 2);
+         }
+         pages[n] = key;
+         counts[n] = count;
+         n++;
+      }
+      return new Hits(pages, counts, n);
+   }
+
+   private int readVarint(int[] cursor)
+   {
+      int v = 0;
+      int shift = 0;
+      int b;
+      do
+      {
+         b = buf.get(cursor[0]++);
+         v |= (b & 0x7F) << shift;
+         shift += 7;
+      }
+      while ((b & 0x80) != 0);
+      return v;
+   }
+
+   /**
+    * Find the pages on which all the given tokens appear.
+    */
+   public Hits findAll(String... tokens)
+   {
+      Hits result = null;
+      for (String t : tokens)
+         result = result == null ? find(t) : result.and(find(t));
+      return result == null ? new Hits(new long[0], new int[0], 0) : result;
+   }
+
+   /**
+    * Find the pages on which any of the given tokens appears.
+    */
+   public Hits findAny(String... tokens)
+   {
+      Hits result = new Hits(new long[0], new int[0], 0);
+      for (String t : tokens)
+         result = result.or(find(t));
+      return result;
+   }
+
+   /**
+    * A set of pages matching a query, ordered by volume ordinal and page index, with the number of
+    * times the matched tokens appear on each page.
+    */
+   public class Hits
+   {
+      // volume ordinal in the high bits, page index in the low bits
+      private final long[] pages;
+      private final int[] counts;
+      private final int size;
+
+      private Hits(long[] pages, int[] counts, int size)
+      {
+         this.pages = pages;
+         this.counts = counts;
+         this.size = size;
+      }
+
+      @Override
+      public String toString()
+      {
+         return "hits[" + size + " pages]";
+      }
+
+      /**
+       * @return The number of pages.
+       */
+      public int size()
+      {
+         return size;
+      }
+
+      public int getVolumeOrdinal(int i)
+      {
+         checkIndex(i);
+         return (int)(pages[i] >>> 32);
+      }
+
+      public String getVolumeId(int i)
+      {
+         return volumes.get(getVolumeOrdinal(i));
+      }
+
+      /**
+       * @return The zero-based index of the page within its volume.
+       */
+      public int getPageIndex(int i)
+      {
+         checkIndex(i);
+         return (int)pages[i];
+      }
+
+      /**
+       * @return The number of times the matched tokens appear on the page.
+       */
+      public int getCount(int i)
+      {
+         checkIndex(i);
+         return counts[i];
+      }
+
+      private void checkIndex(int i)
+      {
+         if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Hit index ["+i+"] out of range [0,"+size+")");
+      }
+
+      /**
+       * @return The identifiers of the volumes containing any of these pages, in ordinal order.
+       */
+      public Set<String> getVolumeIds()
+      {
+         Set<String> result = new LinkedHashSet<>();
+         int last = -1;
+         for (int i = 0; i < size; ++i)
+         {
+            int v = (int)(pages[i] >>> 32);
+            if (v != last)
+               result.add(volumes.get(v));
+            last = v;
+         }
+         return result;
+      }
+
+      /**
+       * @return The pages in both this and the other set, with the counts of both.
+       */
+      public Hits and(Hits other)
+      {
+         int cap = Math.min(size, other.size);
+         long[] p = new long[cap];
+         int[] c = new int[cap];
+         int n = 0;
+         for (int i = 0, j = 0; i < size && j < other.size; )
+         {
+            long a = pages[i];
+            long b = other.pages[j];
+            if (a < b)
+               ++i;
+            else if (a > b)
+               ++j;
+            else
+            {
+               p[n] = a;
+               c[n++] = counts[i++] + other.counts[j++];
+            }
+         }
+         return new Hits(p, c, n);
+      }
+
+      /**
+       * @return The pages in either this or the other set, with the counts of both.
+       */
+      public Hits or(Hits other)
+      {
+         long[] p = new long[size + other.size];
+         int[] c = new int[p.length];
+         int n = 0;
+         int i = 0;
+         int j = 0;
+         while (i < size || j < other.size)
+         {
+            long a = i < size ? pages[i] : Long.MAX_VALUE;
+            long b = j < other.size ? other.pages[j] : Long.MAX_VALUE;
+            if (a < b)
+            {
+               p[n] = a;
+               c[n++] = counts[i++];
+            }
+            else if (a > b)
+            {
+               p[n] = b;
+               c[n++] = other.counts[j++];
+            }
+            else
+            {
+               p[n] = a;
+               c[n++] = counts[i++] + other.counts[j++];
+            }
+         }
+         return new Hits(p, c, n);
+      }
+
+      /**
+       * @return The pages in this set but not in the other.
+       */
+      public Hits andNot(Hits other)
+      {
+         long[] p = new long[size];
+         int[] c = new int[size];
+         int n = 0;
+         for (int i = 0, j = 0; i < size; ++i)
+         {
+            while (j < other.size && other.pages[j] < pages[i])
+               ++j;
+            if (j < other.size && other.pages[j] == pages[i])
+               continue;
+            p[n] = pages[i];
+            c[n++] = counts[i];
+         }
+         return new Hits(p, c, n);
+      }
+   }
+
+   /**
+    * @return The indexed tokens starting with the given prefix, in UTF-8 byte order.
+    */
+   public List<String> getTokens(String prefix)
+   {
+      byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+      List<String> result = new ArrayList<>();
+      for (int i = terms.lowerBound(key); i < terms.size() && terms.startsWith(i, key); ++i)
+         result.add(terms.get(i));
+      return result;
+   }
+}
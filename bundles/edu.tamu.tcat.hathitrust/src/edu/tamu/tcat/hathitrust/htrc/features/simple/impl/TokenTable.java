@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+/**
+ * Resolves the token identifiers of {@link HeapVolumeData}: either a per-volume
+ * {@link TokenDictionary} or a {@link SharedVocabulary} used by many volumes.
+ *
+ * @since 1.2
+ */
+interface TokenTable
+{
+   /**
+    * @return The number of tokens. Valid identifiers are {@code [0, size())}
+    */
+   int size();
+
+   /**
+    * @return The token with the given identifier.
+    */
+   String get(int id);
+
+   /**
+    * @return The identifier of the given token, or {@code -1} if it is not in the table.
+    */
+   int lookup(CharSequence token);
+
+   /**
+    * Get a token for use during a traversal, as for {@link VolumeData#tokenChars(int, TokenChars)}.
+    */
+   CharSequence chars(int id, TokenChars scratch);
+
+   /**
+    * @return An estimate of the heap retained by this table on behalf of a single volume, in bytes.
+    */
+   long estimatedBytes();
+}
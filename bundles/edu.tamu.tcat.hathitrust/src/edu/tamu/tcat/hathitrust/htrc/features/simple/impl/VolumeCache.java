@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A reference-counted cache of loaded volumes bounded by their estimated retained heap size.
+ * <p>
+ * Each {@link #acquire(Object, Supplier)} adds a reference to the volume which the holder releases
+ * by closing it. Volumes with no references remain cached and are evicted in least-recently-used
+ * order once the estimated size of all cached volumes exceeds the budget. Referenced volumes are
+ * never evicted, so the budget may be exceeded while callers hold more than it allows.
+ * <p>
+ * Sizes are recorded as loads complete rather than queried from the volumes, so the cache lock is
+ * never held while acquiring the lock of a volume.
+ *
+ * @since 1.2
+ */
+class VolumeCache
+{
+   private static final Logger debug = Logger.getLogger(VolumeCache.class.getName());
+
+   private final long budget;
+
+   //@GuardedBy("this")
+   private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+   //@GuardedBy("this")
+   private long retainedBytes;
+   //@GuardedBy("this")
+   private long hits;
+   //@GuardedBy("this")
+   private long misses;
+   //@GuardedBy("this")
+   private long evictions;
+
+   private static class Entry
+   {
+      final DefaultExtractedFeatures ef;
+      int refs;
+      long bytes;
+
+      Entry(DefaultExtractedFeatures ef)
+      {
+         this.ef = ef;
+      }
+   }
+
+   /**
+    * @param budget The estimated heap size, in bytes, of unreferenced volumes above which volumes
+    *        are evicted.
+    */
+   VolumeCache(long budget)
+   {
+      this.budget = budget;
+   }
+
+   /**
+    * Get the cached volume with the given key, creating and caching it if absent, and add a reference.
+    *
+    * @param key The {@link DefaultExtractedFeatures#getCacheKey()} of the volume.
+    */
+   DefaultExtractedFeatures acquire(Object key, Supplier<DefaultExtractedFeatures> factory)
+   {
+      synchronized (this)
+      {
+         Entry entry = entries.get(key);
+         if (entry != null)
+            hits++;
+         else
+         {
+            misses++;
+            entry = new Entry(factory.get());
+            entries.put(key, entry);
+         }
+
+         entry.refs++;
+         return entry.ef;
+      }
+   }
+
+   /**
+    * Remove a reference from a volume returned by {@link #acquire(Object, Supplier)}.
+    *
+    * @return The number of references remaining, or {@code -1} if the volume is not cached.
+    */
+   int release(DefaultExtractedFeatures ef)
+   {
+      int refs;
+      synchronized (this)
+      {
+         Entry entry = entries.get(ef.getCacheKey());
+         if (entry == null || entry.ef != ef)
+         {
+            debug.log(Level.WARNING, "Extracted features closing but not in cache [" + ef.getVolumeId() + "]");
+            return -1;
+         }
+
+         if (entry.refs == 0)
+         {
+            debug.log(Level.WARNING, "Extracted features closed more often than acquired [" + ef.getVolumeId() + "]");
+            return 0;
+         }
+         refs = --entry.refs;
+      }
+
+      trim();
+      return refs;
+   }
+
+   /**
+    * Record data loaded by a cached volume, adding its estimated size to the volume's retained size.
+    */
+   void loaded(DefaultExtractedFeatures ef, long bytes)
+   {
+      synchronized (this)
+      {
+         // loads complete shortly after the volume was acquired, so the access ordering is harmless
+         Entry entry = entries.get(ef.getCacheKey());
+
+         // evicted while loading
+         if (entry == null || entry.ef != ef)
+            return;
+
+         entry.bytes += bytes;
+         retainedBytes += bytes;
+      }
+
+      trim();
+   }
+
+   /**
+    * Evict least recently used unreferenced volumes until the retained size is within budget.
+    */
+   private void trim()
+   {
+      List<DefaultExtractedFeatures> evicted = new ArrayList<>();
+      synchronized (this)
+      {
+         Iterator<Entry> it = entries.values().iterator();
+         while (retainedBytes > budget && it.hasNext())
+         {
+            Entry entry = it.next();
+            if (entry.refs > 0)
+               continue;
+
+            it.remove();
+            retainedBytes -= entry.bytes;
+            evictions++;
+            evicted.add(entry.ef);
+         }
+      }
+
+      // volumes are locked independently of the cache
+      for (DefaultExtractedFeatures ef : evicted)
+      {
+         debug.fine("Evicting [" + ef.getVolumeId() + "]");
+         ef.evict();
+      }
+   }
+
+   /**
+    * Evict all volumes, regardless of references.
+    *
+    * @return The number of volumes which were still referenced.
+    */
+   int clear()
+   {
+      List<DefaultExtractedFeatures> evicted = new ArrayList<>();
+      int dangling = 0;
+      synchronized (this)
+      {
+         for (Entry entry : entries.values())
+         {
+            if (entry.refs > 0)
+               dangling++;
+            evicted.add(entry.ef);
+         }
+         entries.clear();
+         retainedBytes = 0;
+      }
+
+      for (DefaultExtractedFeatures ef : evicted)
+         ef.evict();
+      return dangling;
+   }
+
+   synchronized CacheStatistics getStatistics()
+   {
+      int referenced = 0;
+      for (Entry entry : entries.values())
+      {
+         if (entry.refs > 0)
+            referenced++;
+      }
+
+      return new CacheStatistics(entries.size(), referenced, retainedBytes, budget, hits, misses, evictions);
+   }
+}
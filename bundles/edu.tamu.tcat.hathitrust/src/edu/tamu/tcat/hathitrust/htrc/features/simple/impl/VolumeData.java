@@ -0,0 +1,346 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PartOfSpeechCode;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PosCounts;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.TokenPosVisitor;
+
+/**
+ * The content of a single HTRC Extracted Features archive (either "basic" or "advanced")
+ * in a compact, columnar form.
+ * <p>
+ * Token strings are held once per volume in a dictionary, and part-of-speech tags once per
+ * volume in a tag table. The <tt>tokenPosCount</tt> data of every page section is held as
+ * {@code (tokenId, posId, count)} triples, where each page section is a contiguous run of
+ * triples sorted by token identifier. A token appearing as several parts of speech occupies
+ * consecutive triples.
+ * <p>
+ * Implementations hold the columns either on heap ({@link HeapVolumeData}, as produced by
+ * {@link VolumeParser}) or in a memory-mapped sidecar file ({@link MappedVolumeData}).
+ *
+ * @since 1.2
+ */
+abstract class VolumeData
+{
+   static final int SECTION_HEADER = 0;
+   static final int SECTION_BODY = 1;
+   static final int SECTION_FOOTER = 2;
+   static final int SECTIONS = 3;
+
+   /** Section flag set if the section element was present on the page */
+   static final byte FLAG_PRESENT = 1;
+   /** Section flag set if the section element contained <tt>tokenPosCount</tt> */
+   static final byte FLAG_TOKEN_POS = 2;
+
+   /** Scalar values of the top-level <tt>metadata</tt> element; non-scalar values are not retained. */
+   final Map<String, String> metadata;
+   /** Value of <tt>features.schemaVersion</tt> */
+   final String schemaVersion;
+   /** Value of <tt>features.dateCreated</tt> */
+   final String dateCreated;
+   /** Value of <tt>features.pageCount</tt>, or {@code null} if not present. */
+   final Integer pageCount;
+
+   private volatile int[] posOrdinals;
+
+   VolumeData(Map<String, String> metadata, String schemaVersion, String dateCreated, Integer pageCount)
+   {
+      this.metadata = Collections.unmodifiableMap(metadata);
+      this.schemaVersion = schemaVersion;
+      this.dateCreated = dateCreated;
+      this.pageCount = pageCount;
+   }
+
+   /**
+    * @return The number of entries in <tt>features.pages</tt>
+    */
+   abstract int pages();
+
+   abstract String seq(int page);
+
+   abstract int tokenCount(int page);
+
+   abstract int lineCount(int page);
+
+   /**
+    * @return The identifier of the given token, or {@code -1} if it does not appear in this volume.
+    *         A volume parsed against a {@link SharedVocabulary} may also return the identifier of
+    *         a token which it does not contain.
+    */
+   abstract int lookupToken(CharSequence token);
+
+   /**
+    * @return The token with the given identifier.
+    */
+   abstract String token(int tokenId);
+
+   /**
+    * @return The number of token identifiers, which are {@code [0, tokens())}. This is the number
+    *         of distinct tokens in this volume, unless it was parsed against a
+    *         {@link SharedVocabulary}, whose identifiers it uses.
+    */
+   abstract int tokens();
+
+   /**
+    * @return The raw part-of-speech tag with the given identifier.
+    */
+   abstract String posTag(int posId);
+
+   /**
+    * @return The number of distinct part-of-speech tags in this volume.
+    */
+   abstract int posTags();
+
+   /**
+    * @return The {@link #FLAG_PRESENT} and {@link #FLAG_TOKEN_POS} flags of a page section.
+    */
+   abstract int sectionFlags(int page, int section);
+
+   /**
+    * @return The first triple of the given page section.
+    */
+   abstract int sectionStart(int page, int section);
+
+   /**
+    * @return One past the last triple of the given page section.
+    */
+   abstract int sectionEnd(int page, int section);
+
+   /**
+    * @return The total number of triples in this volume.
+    */
+   abstract int triples();
+
+   abstract int tokenAt(int triple);
+
+   abstract int posAt(int triple);
+
+   abstract int countAt(int triple);
+
+   /**
+    * @return An estimate of the heap retained by this volume, in bytes.
+    */
+   abstract long estimatedBytes();
+
+   /**
+    * Get a token for use during a traversal. The default returns {@link #token(int)}; data held
+    * outside the heap decodes into the scratch buffer instead.
+    *
+    * @param scratch A buffer reused for the duration of a traversal.
+    * @return The token, valid until the next call with the same buffer.
+    */
+   CharSequence tokenChars(int tokenId, TokenChars scratch)
+   {
+      return token(tokenId);
+   }
+
+   /**
+    * @return The {@link PartOfSpeechCode} ordinal of each part-of-speech tag, indexed by posId, with
+    *         {@link PartOfSpeechCode#UNKNOWN_ORDINAL} for tags that are not known codes.
+    */
+   int[] posOrdinals()
+   {
+      // benign race; concurrent callers compute equal arrays
+      int[] ords = posOrdinals;
+      if (ords == null)
+      {
+         ords = new int[posTags()];
+         for (int i = 0; i < ords.length; ++i)
+         {
+            ords[i] = PartOfSpeechCode.ordinalOf(posTag(i));
+         }
+         posOrdinals = ords;
+      }
+      return ords;
+   }
+
+   /**
+    * Visit the triples of a page section.
+    *
+    * @param scratch A buffer reused across the tokens visited.
+    */
+   void forEachTokenPos(int page, int section, TokenPosVisitor visitor, TokenChars scratch)
+   {
+      int[] ords = posOrdinals();
+      int end = sectionEnd(page, section);
+      for (int i = sectionStart(page, section); i < end; ++i)
+         visitor.visit(tokenChars(tokenAt(i), scratch), ords[posAt(i)], countAt(i));
+   }
+
+   /**
+    * @param section One of "header", "body", or "footer"
+    * @return The section index used to address section data.
+    */
+   static int sectionIndex(String section)
+   {
+      switch (section)
+      {
+         case "header": return SECTION_HEADER;
+         case "body": return SECTION_BODY;
+         case "footer": return SECTION_FOOTER;
+         default:
+            throw new IllegalArgumentException("Unknown section ["+section+"]");
+      }
+   }
+
+   boolean hasSection(int page, int section)
+   {
+      return (sectionFlags(page, section) & FLAG_PRESENT) != 0;
+   }
+
+   boolean hasTokenPosCount(int page, int section)
+   {
+      return (sectionFlags(page, section) & FLAG_TOKEN_POS) != 0;
+   }
+
+   /**
+    * Binary search the triples {@code [start, end)} for the given token identifier.
+    *
+    * @return The index of the first triple with the given token, or {@code -1} if not present.
+    */
+   int find(int start, int end, int tokenId)
+   {
+      int lo = start;
+      int hi = end - 1;
+      int found = -1;
+      while (lo <= hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         int t = tokenAt(mid);
+         if (t < tokenId)
+            lo = mid + 1;
+         else if (t > tokenId)
+            hi = mid - 1;
+         else
+         {
+            // keep searching left for the first triple of this token
+            found = mid;
+            hi = mid - 1;
+         }
+      }
+      return found;
+   }
+
+   /**
+    * @return The total count across all parts of speech of the given token in a page section.
+    */
+   int count(int page, int section, String token)
+   {
+      int id = lookupToken(token);
+      if (id < 0)
+         return 0;
+
+      int end = sectionEnd(page, section);
+      int ix = find(sectionStart(page, section), end, id);
+      if (ix < 0)
+         return 0;
+
+      int count = 0;
+      for (int i = ix; i < end && tokenAt(i) == id; ++i)
+         count += countAt(i);
+      return count;
+   }
+
+   /**
+    * Add the counts per part of speech of the given token in a page section to the holder.
+    */
+   void addPosCounts(int page, int section, String token, PosCounts counts)
+   {
+      int id = lookupToken(token);
+      if (id < 0)
+         return;
+
+      int end = sectionEnd(page, section);
+      int ix = find(sectionStart(page, section), end, id);
+      if (ix < 0)
+         return;
+
+      int[] ords = posOrdinals();
+      for (int i = ix; i < end && tokenAt(i) == id; ++i)
+         counts.add(ords[posAt(i)], countAt(i));
+   }
+
+   /**
+    * @return An unmodifiable view of the distinct tokens in a page section.
+    */
+   Set<String> tokenSet(int page, int section)
+   {
+      final int start = sectionStart(page, section);
+      final int end = sectionEnd(page, section);
+      return new AbstractSet<String>()
+      {
+         private int size = -1;
+
+         @Override
+         public boolean contains(Object o)
+         {
+            if (!(o instanceof String))
+               return false;
+            int id = lookupToken((String)o);
+            return id >= 0 && find(start, end, id) >= 0;
+         }
+
+         @Override
+         public Iterator<String> iterator()
+         {
+            return new Iterator<String>()
+            {
+               private int ix = start;
+
+               @Override
+               public boolean hasNext()
+               {
+                  return ix < end;
+               }
+
+               @Override
+               public String next()
+               {
+                  if (ix >= end)
+                     throw new NoSuchElementException();
+                  int id = tokenAt(ix);
+                  // skip additional parts of speech for the same token
+                  while (ix < end && tokenAt(ix) == id)
+                     ix++;
+                  return token(id);
+               }
+            };
+         }
+
+         @Override
+         public int size()
+         {
+            if (size < 0)
+            {
+               int n = 0;
+               for (int i = start; i < end; ++i)
+                  if (i == start || tokenAt(i) != tokenAt(i - 1))
+                     n++;
+               size = n;
+            }
+            return size;
+         }
+      };
+   }
+}
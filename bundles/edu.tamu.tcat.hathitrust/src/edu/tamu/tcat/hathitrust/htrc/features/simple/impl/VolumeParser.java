@@ -0,0 +1,717 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import edu.tamu.tcat.hathitrust.HathiTrustClientException;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PartOfSpeechCode;
+
+/**
+ * A streaming parser for HTRC Extracted Features JSON data. The parser reads the Jackson
+ * token stream directly into the columnar {@link HeapVolumeData} rather than materializing a
+ * generic tree of maps and lists, and skips any subtree not exposed by the "simple" API.
+ * <p>
+ * {@link LoadOptions} are pushed into the parser: sections which are not selected are skipped
+ * without tokenizing their content, and tokens or parts of speech rejected by the filters are
+ * neither added to the dictionary nor stored.
+ * <p>
+ * Instances are not thread-safe and are used to parse a single archive.
+ *
+ * @since 1.2
+ */
+class VolumeParser
+{
+   // JsonFactory is thread-safe and relatively expensive to create
+   private static final JsonFactory factory = new JsonFactory();
+
+   private final String expectedVersion;
+   private final LoadOptions options;
+   private final boolean[] keepSection = new boolean[VolumeData.SECTIONS];
+   private final boolean filterTokens;
+   private final boolean filterPos;
+   // whether each posId passes the part-of-speech filter, if filtering
+   private boolean[] posAccepted = new boolean[64];
+   private int resolvedPos;
+
+   // replaced for each page when reading pages one at a time
+   private TokenDictionary dictionary = new TokenDictionary();
+   // if set, assigns token identifiers in place of the dictionary
+   private SharedVocabulary vocabulary;
+   private final TokenDictionary posTags = new TokenDictionary(64);
+
+   // columns for the volume under construction
+   private int pages;
+   private String[] seq = new String[64];
+   private int[] tokenCount = new int[64];
+   private int[] lineCount = new int[64];
+   private byte[] sectionFlags = new byte[64 * VolumeData.SECTIONS];
+   private int[] sectionOffsets = new int[64 * VolumeData.SECTIONS + 1];
+   private int[] triples = new int[3 * 4096];
+   private int tripleCount;
+
+   // per-page scratch holding each section's sorted triples until the page is complete
+   private final int[][] pageSections = new int[VolumeData.SECTIONS][3 * 256];
+   private final int[] pageSectionLength = new int[VolumeData.SECTIONS];
+   private final byte[] pageFlags = new byte[VolumeData.SECTIONS];
+
+   // decompressed byte offsets of each page element, if recording
+   private long[] pageStart;
+   private long[] pageEnd;
+
+   // per-section scratch used to sort tokens by identifier
+   private long[] sortKeys = new long[256];
+   private int[] entryStart = new int[257];
+   private int[] entries = new int[2 * 512];
+
+   /**
+    * @param expectedVersion The required value of <tt>features.schemaVersion</tt>
+    */
+   VolumeParser(String expectedVersion)
+   {
+      this(expectedVersion, LoadOptions.ALL);
+   }
+
+   /**
+    * @param expectedVersion The required value of <tt>features.schemaVersion</tt>
+    * @param options The data to keep.
+    */
+   VolumeParser(String expectedVersion, LoadOptions options)
+   {
+      this.expectedVersion = Objects.requireNonNull(expectedVersion);
+      this.options = Objects.requireNonNull(options);
+      keepSection[VolumeData.SECTION_HEADER] = options.accepts(LoadOptions.Section.HEADER);
+      keepSection[VolumeData.SECTION_BODY] = options.accepts(LoadOptions.Section.BODY);
+      keepSection[VolumeData.SECTION_FOOTER] = options.accepts(LoadOptions.Section.FOOTER);
+      filterTokens = options.getVocabulary() != null || !options.getStopwords().isEmpty();
+      filterPos = options.getPartsOfSpeech() != null;
+   }
+
+   /**
+    * Resolve tokens against a vocabulary shared with other volumes rather than a dictionary of
+    * this volume's own, adding those it does not hold.
+    *
+    * @param vocabulary The vocabulary, or {@code null} to use a dictionary.
+    * @return this parser
+    */
+   VolumeParser setVocabulary(SharedVocabulary vocabulary)
+   {
+      this.vocabulary = vocabulary;
+      return this;
+   }
+
+   /**
+    * Record the byte offsets of each <tt>features.pages</tt> element in the decompressed stream
+    * while parsing. Offsets are available from {@link #getPageStarts()} and {@link #getPageEnds()}
+    * once parsing completes.
+    *
+    * @return this parser
+    */
+   VolumeParser recordPageOffsets()
+   {
+      pageStart = new long[64];
+      pageEnd = new long[64];
+      return this;
+   }
+
+   /**
+    * @return The offset of the first byte of each page element, or {@code null} if offsets were not recorded.
+    */
+   long[] getPageStarts()
+   {
+      return pageStart == null ? null : Arrays.copyOf(pageStart, pages);
+   }
+
+   /**
+    * @return The offset one past the last byte of each page element, or {@code null} if offsets were not recorded.
+    */
+   long[] getPageEnds()
+   {
+      return pageEnd == null ? null : Arrays.copyOf(pageEnd, pages);
+   }
+
+   /**
+    * Parse the given (decompressed) stream. The stream is not closed.
+    *
+    * @throws HathiTrustClientException If the data does not conform to the expected schema.
+    * @throws IOException If the stream could not be read or is not valid JSON.
+    */
+   HeapVolumeData parse(InputStream in) throws HathiTrustClientException, IOException
+   {
+      try (JsonParser p = factory.createParser(in))
+      {
+         p.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+         expect(p, p.nextToken(), JsonToken.START_OBJECT);
+
+         Map<String, String> metadata = new LinkedHashMap<>();
+         Features features = null;
+         while (p.nextToken() == JsonToken.FIELD_NAME)
+         {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            if ("metadata".equals(name) && t == JsonToken.START_OBJECT)
+               parseMetadata(p, metadata);
+            else if ("features".equals(name) && t == JsonToken.START_OBJECT)
+               features = parseFeatures(p);
+            else
+               p.skipChildren();
+         }
+
+         // validate schema
+         if (features == null)
+            throw new HathiTrustClientException("Data missing element 'features'");
+         validateVersion(features.schemaVersion);
+
+         return build(metadata, features);
+      }
+   }
+
+   /**
+    * Parse only the volume-level values of the given (decompressed) stream: the top-level
+    * <tt>metadata</tt> and the scalar fields of <tt>features</tt>. Reading stops as soon as all
+    * of these have been found, so when they precede <tt>features.pages</tt>, as in HTRC data, the
+    * pages are not read at all. Pages which precede them are skipped without being decoded. The
+    * schema version is validated as soon as it is read. The stream is not closed.
+    *
+    * @return Data containing the volume-level values and no pages.
+    * @throws HathiTrustClientException If the data does not conform to the expected schema.
+    * @throws IOException If the stream could not be read or is not valid JSON.
+    */
+   HeapVolumeData parseHeader(InputStream in) throws HathiTrustClientException, IOException
+   {
+      try (JsonParser p = factory.createParser(in))
+      {
+         p.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+         expect(p, p.nextToken(), JsonToken.START_OBJECT);
+
+         Map<String, String> metadata = null;
+         Features features = null;
+         while ((metadata == null || features == null) && p.nextToken() == JsonToken.FIELD_NAME)
+         {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            if ("metadata".equals(name) && t == JsonToken.START_OBJECT)
+               parseMetadata(p, metadata = new LinkedHashMap<>());
+            else if ("features".equals(name) && t == JsonToken.START_OBJECT)
+               features = parseFeatureScalars(p, metadata != null);
+            else
+               p.skipChildren();
+         }
+
+         if (features == null)
+            throw new HathiTrustClientException("Data missing element 'features'");
+         validateVersion(features.schemaVersion);
+
+         return build(metadata == null ? new LinkedHashMap<>() : metadata, features);
+      }
+   }
+
+   /**
+    * Parse a stream containing a single element of <tt>features.pages</tt>, such as a slice of the
+    * decompressed archive located by a {@link PageIndex}. The returned data contains one page,
+    * at index zero, and the supplied volume-level values. The stream is not closed.
+    */
+   HeapVolumeData parsePage(InputStream in, Map<String, String> metadata, String dateCreated, Integer pageCount)
+         throws IOException
+   {
+      try (JsonParser p = factory.createParser(in))
+      {
+         p.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+         expect(p, p.nextToken(), JsonToken.START_OBJECT);
+         parsePage(p);
+
+         Features f = new Features();
+         f.schemaVersion = expectedVersion;
+         f.dateCreated = dateCreated;
+         f.pageCount = pageCount;
+         return build(metadata, f);
+      }
+   }
+
+   /**
+    * Start parsing the pages of the given (decompressed) stream one at a time, for a single
+    * forward pass. The stream is read only as far as each page requires, and each page is
+    * returned as separate data, so memory use is bounded by the largest page rather than the
+    * volume. The stream is not closed.
+    *
+    * @throws HathiTrustClientException If the schema version is read before the pages and does
+    *         not match.
+    * @throws IOException If the stream could not be read or is not valid JSON.
+    */
+   PageReader readPages(InputStream in) throws HathiTrustClientException, IOException
+   {
+      JsonParser p = factory.createParser(in);
+      try
+      {
+         p.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+         expect(p, p.nextToken(), JsonToken.START_OBJECT);
+         PageReader reader = new PageReader(p);
+         reader.findPages();
+         return reader;
+      }
+      catch (HathiTrustClientException | IOException | RuntimeException e)
+      {
+         p.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Reads the elements of <tt>features.pages</tt> in order. The volume-level values are not
+    * retained; pages are returned with none.
+    */
+   class PageReader implements Closeable
+   {
+      private final JsonParser p;
+      private String schemaVersion;
+      // whether the parser is within the features element, and within its pages
+      private boolean inFeatures;
+      private boolean inPages;
+
+      private PageReader(JsonParser p)
+      {
+         this.p = p;
+      }
+
+      /**
+       * Advance to the first page, or to the end of the data if there are none.
+       */
+      private void findPages() throws HathiTrustClientException, IOException
+      {
+         while (!inPages)
+         {
+            JsonToken t = p.nextToken();
+            if (t == JsonToken.END_OBJECT && inFeatures)
+            {
+               inFeatures = false;
+               continue;
+            }
+            if (t != JsonToken.FIELD_NAME)
+               break;
+
+            String name = p.getCurrentName();
+            t = p.nextToken();
+            if (!inFeatures && "features".equals(name) && t == JsonToken.START_OBJECT)
+               inFeatures = true;
+            else if (inFeatures && "schemaVersion".equals(name))
+            {
+               schemaVersion = t.isScalarValue() ? p.getText() : null;
+               validateVersion(schemaVersion);
+            }
+            else if (inFeatures && "pages".equals(name) && t == JsonToken.START_ARRAY)
+               inPages = true;
+            else
+               p.skipChildren();
+         }
+      }
+
+      /**
+       * @return Data containing the next page, at index zero, or {@code null} after the last page.
+       * @throws HathiTrustClientException If the data does not conform to the expected schema.
+       * @throws IOException If the stream could not be read or is not valid JSON.
+       */
+      HeapVolumeData next() throws HathiTrustClientException, IOException
+      {
+         while (inPages)
+         {
+            JsonToken t = p.nextToken();
+            if (t == JsonToken.END_ARRAY)
+            {
+               // the schema version may follow the pages
+               inPages = false;
+               findPages();
+               continue;
+            }
+
+            expect(p, t, JsonToken.START_OBJECT);
+            if (Thread.currentThread().isInterrupted())
+               throw new InterruptedIOException("Interrupted while parsing page");
+
+            pages = 0;
+            tripleCount = 0;
+            dictionary = new TokenDictionary();
+            parsePage(p);
+
+            Features f = new Features();
+            f.schemaVersion = expectedVersion;
+            return build(Collections.emptyMap(), f);
+         }
+
+         validateVersion(schemaVersion);
+         return null;
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         p.close();
+      }
+   }
+
+   private HeapVolumeData build(Map<String, String> metadata, Features features)
+   {
+      dictionary.trim();
+      TokenTable tokens = vocabulary == null ? dictionary : vocabulary;
+      String[] pos = new String[posTags.size()];
+      for (int i = 0; i < pos.length; ++i)
+         pos[i] = posTags.get(i);
+
+      int sections = pages * VolumeData.SECTIONS;
+      sectionOffsets[sections] = tripleCount;
+      return new HeapVolumeData(metadata,
+                                features.schemaVersion,
+                                features.dateCreated,
+                                features.pageCount,
+                                tokens,
+                                pos,
+                                Arrays.copyOf(seq, pages),
+                                Arrays.copyOf(tokenCount, pages),
+                                Arrays.copyOf(lineCount, pages),
+                                Arrays.copyOf(sectionFlags, sections),
+                                Arrays.copyOf(sectionOffsets, sections + 1),
+                                Arrays.copyOf(triples, tripleCount * 3));
+   }
+
+   private void validateVersion(String sv) throws HathiTrustClientException
+   {
+      if (!Objects.equals(sv, expectedVersion))
+         throw new HathiTrustClientException("Unexpected schema version ["+sv+"] expecting ["+expectedVersion+"]");
+   }
+
+   private static void expect(JsonParser p, JsonToken actual, JsonToken expected) throws JsonParseException
+   {
+      if (actual != expected)
+         throw new JsonParseException(p, "Expected " + expected + " but found " + actual);
+   }
+
+   private static void parseMetadata(JsonParser p, Map<String, String> metadata) throws IOException
+   {
+      while (p.nextToken() == JsonToken.FIELD_NAME)
+      {
+         String name = p.getCurrentName();
+         JsonToken t = p.nextToken();
+         if (t.isScalarValue())
+         {
+            if (t != JsonToken.VALUE_NULL)
+               metadata.put(name, p.getText());
+         }
+         else
+            p.skipChildren();
+      }
+   }
+
+   /**
+    * Holder for the scalar fields of <tt>features</tt> while parsing.
+    */
+   private static class Features
+   {
+      String schemaVersion;
+      String dateCreated;
+      Integer pageCount;
+
+      boolean isComplete()
+      {
+         return schemaVersion != null && dateCreated != null && pageCount != null;
+      }
+   }
+
+   /**
+    * Read the scalar fields of <tt>features</tt>, skipping <tt>pages</tt>.
+    *
+    * @param stop Whether to return as soon as all scalar fields are found, leaving the rest of
+    *        the element unread.
+    */
+   private Features parseFeatureScalars(JsonParser p, boolean stop) throws IOException, HathiTrustClientException
+   {
+      Features f = new Features();
+      while (!(stop && f.isComplete()) && p.nextToken() == JsonToken.FIELD_NAME)
+      {
+         String name = p.getCurrentName();
+         JsonToken t = p.nextToken();
+         switch (name)
+         {
+            case "schemaVersion":
+               f.schemaVersion = t.isScalarValue() ? p.getText() : null;
+               validateVersion(f.schemaVersion);
+               break;
+            case "dateCreated":
+               f.dateCreated = t.isScalarValue() ? p.getText() : null;
+               break;
+            case "pageCount":
+               f.pageCount = t.isNumeric() ? Integer.valueOf(p.getIntValue()) : null;
+               break;
+            default:
+               break;
+         }
+         p.skipChildren();
+      }
+      return f;
+   }
+
+   private Features parseFeatures(JsonParser p) throws IOException, HathiTrustClientException
+   {
+      Features f = new Features();
+      while (p.nextToken() == JsonToken.FIELD_NAME)
+      {
+         String name = p.getCurrentName();
+         JsonToken t = p.nextToken();
+         switch (name)
+         {
+            case "schemaVersion":
+               f.schemaVersion = t.isScalarValue() ? p.getText() : null;
+               // fail before decoding pages if the version is known to be wrong
+               validateVersion(f.schemaVersion);
+               p.skipChildren();
+               break;
+            case "dateCreated":
+               f.dateCreated = t.isScalarValue() ? p.getText() : null;
+               p.skipChildren();
+               break;
+            case "pageCount":
+               f.pageCount = t.isNumeric() ? Integer.valueOf(p.getIntValue()) : null;
+               p.skipChildren();
+               break;
+            case "pages":
+               if (t == JsonToken.START_ARRAY)
+                  parsePages(p);
+               else
+                  p.skipChildren();
+               break;
+            default:
+               p.skipChildren();
+         }
+      }
+      return f;
+   }
+
+   private void parsePages(JsonParser p) throws IOException
+   {
+      JsonToken t;
+      while ((t = p.nextToken()) != JsonToken.END_ARRAY)
+      {
+         expect(p, t, JsonToken.START_OBJECT);
+         // allow a cancelled load to stop between pages
+         if (Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("Interrupted while parsing page " + pages);
+
+         if (pageStart != null)
+         {
+            if (pages == pageStart.length)
+            {
+               pageStart = Arrays.copyOf(pageStart, pages * 2);
+               pageEnd = Arrays.copyOf(pageEnd, pages * 2);
+            }
+            pageStart[pages] = p.getTokenLocation().getByteOffset();
+         }
+
+         parsePage(p);
+
+         // appendPage has advanced the page count
+         if (pageEnd != null)
+            pageEnd[pages - 1] = p.getCurrentLocation().getByteOffset();
+      }
+   }
+
+   private void parsePage(JsonParser p) throws IOException
+   {
+      String pageSeq = null;
+      int pageTokens = 0;
+      int pageLines = 0;
+      Arrays.fill(pageSectionLength, 0);
+      Arrays.fill(pageFlags, (byte)0);
+
+      while (p.nextToken() == JsonToken.FIELD_NAME)
+      {
+         String name = p.getCurrentName();
+         JsonToken t = p.nextToken();
+         switch (name)
+         {
+            case "seq":
+               pageSeq = t.isScalarValue() ? p.getText() : null;
+               break;
+            case "tokenCount":
+               pageTokens = t.isNumeric() ? p.getIntValue() : 0;
+               break;
+            case "lineCount":
+               pageLines = t.isNumeric() ? p.getIntValue() : 0;
+               break;
+            case "header":
+               parseSection(p, t, VolumeData.SECTION_HEADER);
+               break;
+            case "body":
+               parseSection(p, t, VolumeData.SECTION_BODY);
+               break;
+            case "footer":
+               parseSection(p, t, VolumeData.SECTION_FOOTER);
+               break;
+            default:
+               break;
+         }
+         p.skipChildren();
+      }
+
+      appendPage(pageSeq, pageTokens, pageLines);
+   }
+
+   private void appendPage(String pageSeq, int pageTokens, int pageLines)
+   {
+      if (pages == seq.length)
+      {
+         int cap = pages * 2;
+         seq = Arrays.copyOf(seq, cap);
+         tokenCount = Arrays.copyOf(tokenCount, cap);
+         lineCount = Arrays.copyOf(lineCount, cap);
+         sectionFlags = Arrays.copyOf(sectionFlags, cap * VolumeData.SECTIONS);
+         sectionOffsets = Arrays.copyOf(sectionOffsets, cap * VolumeData.SECTIONS + 1);
+      }
+
+      seq[pages] = pageSeq;
+      tokenCount[pages] = pageTokens;
+      lineCount[pages] = pageLines;
+
+      // sections are laid out in index order regardless of their order in the JSON data
+      for (int sec = 0; sec < VolumeData.SECTIONS; ++sec)
+      {
+         int ix = pages * VolumeData.SECTIONS + sec;
+         sectionFlags[ix] = pageFlags[sec];
+         sectionOffsets[ix] = tripleCount;
+
+         int len = pageSectionLength[sec];
+         ensureTriples(len / 3);
+         System.arraycopy(pageSections[sec], 0, triples, tripleCount * 3, len);
+         tripleCount += len / 3;
+      }
+
+      pages++;
+   }
+
+   private boolean acceptsPos(int posId)
+   {
+      // tags are few and are added in order, so resolve each once on first sight
+      if (posId >= posAccepted.length)
+         posAccepted = Arrays.copyOf(posAccepted, Math.max(posId + 1, posAccepted.length * 2));
+      for (; resolvedPos <= posId; ++resolvedPos)
+         posAccepted[resolvedPos] = options.acceptsPartOfSpeech(PartOfSpeechCode.ordinalOf(posTags.get(resolvedPos)));
+      return posAccepted[posId];
+   }
+
+   private void ensureTriples(int additional)
+   {
+      int required = (tripleCount + additional) * 3;
+      if (required > triples.length)
+         triples = Arrays.copyOf(triples, Math.max(required, triples.length * 2));
+   }
+
+   private void parseSection(JsonParser p, JsonToken t, int section) throws IOException
+   {
+      // unselected sections are skipped by the caller, as though absent
+      if (t != JsonToken.START_OBJECT || !keepSection[section])
+         return;
+
+      pageFlags[section] |= VolumeData.FLAG_PRESENT;
+      int tokens = 0;
+      int count = 0;
+      while (p.nextToken() == JsonToken.FIELD_NAME)
+      {
+         String name = p.getCurrentName();
+         t = p.nextToken();
+         if (!"tokenPosCount".equals(name) || t != JsonToken.START_OBJECT || !options.isTokenPosCount())
+         {
+            p.skipChildren();
+            continue;
+         }
+
+         pageFlags[section] |= VolumeData.FLAG_TOKEN_POS;
+         while (p.nextToken() == JsonToken.FIELD_NAME)
+         {
+            String token = p.getCurrentName();
+            if (p.nextToken() != JsonToken.START_OBJECT || (filterTokens && !options.acceptsToken(token)))
+            {
+               p.skipChildren();
+               continue;
+            }
+
+            int first = count;
+            while (p.nextToken() == JsonToken.FIELD_NAME)
+            {
+               int posId = posTags.add(p.getCurrentName());
+               t = p.nextToken();
+               if (!t.isNumeric() || (filterPos && !acceptsPos(posId)))
+               {
+                  p.skipChildren();
+                  continue;
+               }
+
+               if ((count + 1) * 2 > entries.length)
+                  entries = Arrays.copyOf(entries, entries.length * 2);
+               entries[count * 2] = posId;
+               entries[count * 2 + 1] = p.getIntValue();
+               count++;
+            }
+
+            // a token without counts has no triples; don't add it to the dictionary
+            if (count == first)
+               continue;
+
+            if (tokens + 1 >= sortKeys.length)
+            {
+               sortKeys = Arrays.copyOf(sortKeys, sortKeys.length * 2);
+               entryStart = Arrays.copyOf(entryStart, sortKeys.length + 1);
+            }
+            entryStart[tokens] = first;
+            // token identifier in the high bits so sorting orders by token; local index in the low bits
+            int tokenId = vocabulary == null ? dictionary.add(token) : vocabulary.add(token);
+            sortKeys[tokens] = ((long)tokenId << 32) | tokens;
+            tokens++;
+         }
+         entryStart[tokens] = count;
+      }
+
+      // sort tokens by identifier and emit (tokenId, posId, count) triples
+      Arrays.sort(sortKeys, 0, tokens);
+      int[] out = pageSections[section];
+      if (out.length < count * 3)
+         out = pageSections[section] = new int[Math.max(count * 3, out.length * 2)];
+
+      int len = 0;
+      for (int i = 0; i < tokens; ++i)
+      {
+         int tokenId = (int)(sortKeys[i] >>> 32);
+         int local = (int)sortKeys[i];
+         for (int e = entryStart[local]; e < entryStart[local + 1]; ++e)
+         {
+            out[len++] = tokenId;
+            out[len++] = entries[e * 2];
+            out[len++] = entries[e * 2 + 1];
+         }
+      }
+      pageSectionLength[section] = len;
+   }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.htrc.features.simple.impl;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.tamu.tcat.hathitrust.HathiTrustClientException;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
+
+/**
+ * A {@link Spliterator} over the volumes of a sequence of identifiers which keeps a window of
+ * volumes loading ahead of the consumer, and releases each volume once the consumer's action for
+ * it returns.
+ * <p>
+ * In ordered mode volumes are supplied in identifier order and the spliterator does not split;
+ * loading is still concurrent in the provider's pipeline. In unordered mode volumes are supplied
+ * as their loads complete, and the spliterator splits into siblings which draw identifiers from
+ * the same source, so a parallel stream processes volumes on several threads.
+ *
+ * @since 1.2
+ */
+class VolumeSpliterator implements Spliterator<ExtractedFeatures>, AutoCloseable
+{
+   private static final Logger debug = Logger.getLogger(VolumeSpliterator.class.getName());
+
+   /**
+    * The identifiers and bookkeeping shared by a spliterator and the siblings split from it.
+    */
+   private static class Source
+   {
+      // marks a split count not yet decided
+      private static final int UNDECIDED = Integer.MIN_VALUE;
+
+      private final Iterator<String> ids;
+      // further splits allowed across all siblings
+      private final AtomicInteger splits = new AtomicInteger(UNDECIDED);
+      // acquired volumes not yet released, across all siblings
+      private final Set<Pending> outstanding = ConcurrentHashMap.newKeySet();
+
+      Source(Iterator<String> ids)
+      {
+         this.ids = ids;
+      }
+
+      synchronized String next()
+      {
+         return ids.hasNext() ? ids.next() : null;
+      }
+
+      /**
+       * Claim one of the splits allowed. The first attempt, made by the thread starting the
+       * stream's terminal operation, allows one split fewer than the parallelism of the pool that
+       * thread belongs to, or of the common pool, which runs parallel streams started elsewhere.
+       *
+       * @return Whether a split was claimed.
+       */
+      boolean claimSplit()
+      {
+         if (splits.get() == UNDECIDED)
+         {
+            int parallelism = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool().getParallelism()
+                                                           : ForkJoinPool.getCommonPoolParallelism();
+            splits.compareAndSet(UNDECIDED, parallelism - 1);
+         }
+
+         if (splits.getAndDecrement() <= 0)
+         {
+            splits.incrementAndGet();
+            return false;
+         }
+         return true;
+      }
+   }
+
+   private static class Pending
+   {
+      final DefaultExtractedFeatures ef;
+
+      Pending(DefaultExtractedFeatures ef)
+      {
+         this.ef = ef;
+      }
+   }
+
+   private final DefaultExtractedFeaturesProvider provider;
+   private final LoadOptions options;
+   private final Source source;
+   private final int prefetch;
+   private final boolean ordered;
+
+   // ordered: acquired volumes in identifier order
+   private final ArrayDeque<Pending> window = new ArrayDeque<>();
+   // unordered: acquired volumes whose loads have completed
+   private final LinkedBlockingQueue<Pending> ready = new LinkedBlockingQueue<>();
+   private int inFlight;
+   private boolean exhausted;
+
+   /**
+    * @param prefetch The number of volumes to keep loading ahead of the consumer of each
+    *        spliterator.
+    * @param ordered Whether to supply volumes in identifier order.
+    */
+   VolumeSpliterator(DefaultExtractedFeaturesProvider provider, Iterable<String> ids, LoadOptions options,
+                     int prefetch, boolean ordered)
+   {
+      this(provider, new Source(ids.iterator()), options, prefetch, ordered);
+   }
+
+   private VolumeSpliterator(DefaultExtractedFeaturesProvider provider, Source source, LoadOptions options,
+                             int prefetch, boolean ordered)
+   {
+      this.provider = provider;
+      this.source = source;
+      this.options = options;
+      this.prefetch = Math.max(1, prefetch);
+      this.ordered = ordered;
+   }
+
+   /**
+    * Acquire volumes and start their loads until the window is full.
+    */
+   private void fill()
+   {
+      while (!exhausted && inFlight < prefetch)
+      {
+         String id = source.next();
+         if (id == null)
+         {
+            exhausted = true;
+            return;
+         }
+
+         DefaultExtractedFeatures ef;
+         try
+         {
+            ef = provider.acquire(id, options);
+         }
+         catch (HathiTrustClientException e)
+         {
+            throw new IllegalStateException("Failed accessing volume [" + id + "]", e);
+         }
+
+         Pending pending = new Pending(ef);
+         source.outstanding.add(pending);
+         inFlight++;
+         if (ordered)
+         {
+            window.add(pending);
+            ef.prefetch();
+         }
+         else
+         {
+            // load failures are reported when the consumer accesses the volume
+            ef.prefetch().whenComplete((r, e) -> ready.add(pending));
+         }
+      }
+   }
+
+   @Override
+   public boolean tryAdvance(Consumer<? super ExtractedFeatures> action)
+   {
+      fill();
+      if (inFlight == 0)
+         return false;
+
+      Pending next;
+      if (ordered)
+         next = window.poll();
+      else
+      {
+         try
+         {
+            next = ready.take();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for volumes to load", e);
+         }
+      }
+      inFlight--;
+
+      // keep the pipeline busy while the consumer works
+      fill();
+      try
+      {
+         action.accept(next.ef);
+      }
+      finally
+      {
+         release(next);
+      }
+      return true;
+   }
+
+   @Override
+   public Spliterator<ExtractedFeatures> trySplit()
+   {
+      if (ordered || exhausted)
+         return null;
+
+      if (!source.claimSplit())
+         return null;
+      return new VolumeSpliterator(provider, source, options, prefetch, false);
+   }
+
+   @Override
+   public long estimateSize()
+   {
+      return Long.MAX_VALUE;
+   }
+
+   @Override
+   public int characteristics()
+   {
+      int c = NONNULL | IMMUTABLE;
+      return ordered ? c | ORDERED : c;
+   }
+
+   /**
+    * Release all volumes acquired by this spliterator and its siblings which have not been
+    * supplied to a consumer.
+    */
+   @Override
+   public void close()
+   {
+      for (Pending pending : source.outstanding)
+         release(pending);
+   }
+
+   private void release(Pending pending)
+   {
+      if (!source.outstanding.remove(pending))
+         return;
+
+      try
+      {
+         pending.ef.close();
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.WARNING, "Failed releasing [" + pending.ef + "]", e);
+      }
+   }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.HathiTrustClientException;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+
+/**
+ * Checks that volumes are resolved through the archive manifest without probing the file system,
+ * and that the manifest follows volumes added and removed.
+ */
+public class ArchiveManifestTests
+{
+   private static final String[] IDS = {"mdp.39015000000041", "hvd.ah3d1a", "uc2.ark:/13960/t0000001"};
+
+   private TestVolumes.Corpus corpus;
+   private Path root;
+   private Path manifest;
+   private List<ObjectNode> volumes;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-manifest", Arrays.asList(IDS), i -> 3, 40);
+      root = corpus.getRoot();
+      manifest = root.resolve("archives.manifest");
+      volumes = corpus.getVolumes();
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+   }
+
+   private DefaultExtractedFeaturesProvider createProvider(TestVolumes.CountingSource source)
+   {
+      return new DefaultExtractedFeaturesProvider.Builder(root)
+            .setManifest(manifest)
+            .setArchiveSource(source)
+            .build();
+   }
+
+   private static void assertMissing(DefaultExtractedFeaturesProvider provider, String id) throws Exception
+   {
+      try (ExtractedFeatures ef = provider.getExtractedFeatures(id))
+      {
+         ef.pageCount();
+         Assert.fail("Expected volume to be missing [" + id + "]");
+      }
+      catch (HathiTrustClientException | IllegalStateException e)
+      {
+         // expected
+      }
+   }
+
+   @Test
+   public void testVolumesResolvedWithoutProbing() throws Exception
+   {
+      // the manifest is built by walking the dataset when the provider is created
+      TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = createProvider(source))
+      {
+         Assert.assertTrue(Files.isRegularFile(manifest));
+         for (JsonNode volume : volumes)
+            TestVolumes.assertLoads(provider, volume);
+         Assert.assertEquals(0, source.probes());
+      }
+   }
+
+   @Test
+   public void testProbedVolumesMerged() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = createProvider(new TestVolumes.CountingSource()))
+      {
+         // builds the manifest
+      }
+
+      ObjectNode added = TestVolumes.generate("mdp.39015000000042", 2, 49);
+      corpus.write(added);
+
+      TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = createProvider(source))
+      {
+         TestVolumes.assertLoads(provider, added);
+         Assert.assertTrue(source.probes() > 0);
+         Assert.assertEquals(1, provider.refreshManifest());
+         Assert.assertEquals(0, provider.refreshManifest());
+      }
+
+      source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = createProvider(source))
+      {
+         TestVolumes.assertLoads(provider, added);
+         TestVolumes.assertLoads(provider, volumes.get(0));
+         Assert.assertEquals(0, source.probes());
+      }
+   }
+
+   @Test
+   public void testMissingVolumeNotProbedAgain() throws Exception
+   {
+      TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = createProvider(source))
+      {
+         assertMissing(provider, "mdp.39015000000049");
+         int probes = source.probes();
+         Assert.assertTrue(probes > 0);
+
+         assertMissing(provider, "mdp.39015000000049");
+         Assert.assertEquals(probes, source.probes());
+      }
+   }
+
+   @Test
+   public void testRemovedArchiveProbedAgain() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = createProvider(new TestVolumes.CountingSource()))
+      {
+         // builds the manifest
+      }
+      Files.delete(TestVolumes.archivePath(root, IDS[1], TestVolumes.BASIC));
+
+      TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = createProvider(source))
+      {
+         // the manifest still places the archive, which is not found when read
+         assertMissing(provider, IDS[1]);
+         Assert.assertEquals(0, source.probes());
+
+         // so the volume is probed on its next request
+         assertMissing(provider, IDS[1]);
+         Assert.assertTrue(source.probes() > 0);
+         Assert.assertEquals(1, provider.refreshManifest());
+      }
+
+      // the refreshed manifest no longer holds the volume
+      source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = createProvider(source))
+      {
+         assertMissing(provider, IDS[1]);
+         Assert.assertTrue(source.probes() > 0);
+         TestVolumes.assertLoads(provider, volumes.get(2));
+      }
+   }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PartOfSpeechCode;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PosCounts;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.CorpusAggregator;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.TokenCounts;
+
+/**
+ * Checks corpus token counts against counts taken directly from the volumes' JSON.
+ */
+public class CorpusAggregatorTests
+{
+   private static final int VOLUMES = 6;
+
+   private TestVolumes.Corpus corpus;
+   private Path root;
+   private List<String> ids;
+   private List<ObjectNode> volumes;
+   private ForkJoinPool pool;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      ids = new ArrayList<>();
+      for (int i = 0; i < VOLUMES; i++)
+         ids.add(String.format("mdp.390150000002%02d", Integer.valueOf(i)));
+      corpus = TestVolumes.Corpus.create("ef-aggregate", ids, i -> 3 + 2 * i, 200);
+      root = corpus.getRoot();
+      volumes = corpus.getVolumes();
+      // pages without body data, in volumes split into page ranges and not
+      for (int i = 0; i < VOLUMES; i += 2)
+      {
+         ((ObjectNode)volumes.get(i).get("features").get("pages").get(i / 2)).remove("body");
+         corpus.write(volumes.get(i));
+      }
+      pool = new ForkJoinPool(3);
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      pool.shutdown();
+      corpus.delete();
+   }
+
+   private TokenCounts aggregate(Consumer<CorpusAggregator.Builder> config) throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider(root))
+      {
+         CorpusAggregator.Builder builder = new CorpusAggregator.Builder(provider).setPool(pool);
+         config.accept(builder);
+         return builder.build().aggregate(ids);
+      }
+   }
+
+   /**
+    * Count the body tokens of the volumes' JSON: the count of each part of speech, then the
+    * document frequency.
+    */
+   private Map<String, long[]> expected()
+   {
+      Map<String, long[]> result = new TreeMap<>();
+      for (JsonNode volume : volumes)
+      {
+         Set<String> seen = new HashSet<>();
+         for (JsonNode page : volume.path("features").path("pages"))
+         {
+            for (Iterator<Map.Entry<String, JsonNode>> it = page.path("body").path("tokenPosCount").fields(); it.hasNext(); )
+            {
+               Map.Entry<String, JsonNode> token = it.next();
+               long[] counts = result.computeIfAbsent(token.getKey(), k -> new long[PosCounts.SIZE + 1]);
+               for (Iterator<Map.Entry<String, JsonNode>> tags = token.getValue().fields(); tags.hasNext(); )
+               {
+                  Map.Entry<String, JsonNode> tag = tags.next();
+                  counts[PartOfSpeechCode.ordinalOf(tag.getKey())] += tag.getValue().asLong();
+               }
+               if (seen.add(token.getKey()))
+                  counts[PosCounts.SIZE]++;
+            }
+         }
+      }
+      return result;
+   }
+
+   private static void assertCounts(Map<String, long[]> expected, TokenCounts actual)
+   {
+      Assert.assertEquals(expected.size(), actual.size());
+      long total = 0;
+      List<String> tokens = new ArrayList<>();
+      for (Iterator<TokenCounts.TokenCount> it = actual.stream().iterator(); it.hasNext(); )
+      {
+         TokenCounts.TokenCount c = it.next();
+         tokens.add(c.getToken());
+         long[] counts = expected.get(c.getToken());
+         Assert.assertNotNull(c.getToken(), counts);
+         long sum = 0;
+         for (int i = 0; i < PosCounts.SIZE; i++)
+         {
+            Assert.assertEquals(c.getToken(), counts[i], c.getPosCounts()[i]);
+            sum += counts[i];
+         }
+         Assert.assertEquals(c.getToken(), sum, c.getCount());
+         Assert.assertEquals(c.getToken(), counts[PosCounts.SIZE], c.getDocumentFrequency());
+         total += sum;
+      }
+      Assert.assertEquals(new ArrayList<>(expected.keySet()), tokens);
+      Assert.assertEquals(total, actual.getTotalCount());
+
+      for (Map.Entry<String, long[]> e : expected.entrySet())
+         Assert.assertEquals(e.getValue()[PosCounts.SIZE], actual.get(e.getKey()).getDocumentFrequency());
+      Assert.assertNull(actual.get("no such token"));
+   }
+
+   @Test
+   public void testVolumesCounted() throws Exception
+   {
+      try (TokenCounts counts = aggregate(b -> b.setPageRangeSize(Integer.MAX_VALUE)))
+      {
+         Assert.assertEquals(VOLUMES, counts.getVolumeCount());
+         assertCounts(expected(), counts);
+      }
+   }
+
+   @Test
+   public void testPageRangesSkipPagesWithoutBody() throws Exception
+   {
+      // every volume of more than two pages is split into single pages
+      try (TokenCounts counts = aggregate(b -> b.setPageRangeSize(1)))
+      {
+         Assert.assertEquals(VOLUMES, counts.getVolumeCount());
+         assertCounts(expected(), counts);
+      }
+   }
+
+   @Test
+   public void testSpilledRunsMerged() throws Exception
+   {
+      Path spill = Files.createTempDirectory(root, "spill");
+      // any counts exceed the budget, so they are spilled as each volume or part is counted
+      try (TokenCounts counts = aggregate(b -> b.setMemoryBudget(1).setSpillDirectory(spill).setPageRangeSize(2)))
+      {
+         List<Path> runs;
+         try (Stream<Path> files = Files.walk(spill))
+         {
+            runs = files.filter(Files::isRegularFile).collect(Collectors.toList());
+         }
+         Assert.assertTrue("Expected several runs " + runs, runs.size() > 1);
+
+         Assert.assertEquals(VOLUMES, counts.getVolumeCount());
+         assertCounts(expected(), counts);
+         // the runs may be streamed more than once
+         assertCounts(expected(), counts);
+      }
+
+      // closing the counts deletes the runs
+      try (Stream<Path> files = Files.list(spill))
+      {
+         Assert.assertEquals(0, files.count());
+      }
+   }
+}
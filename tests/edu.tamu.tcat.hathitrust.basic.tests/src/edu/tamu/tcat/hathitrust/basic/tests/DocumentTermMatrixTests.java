@@ -0,0 +1,298 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DocumentTermMatrix;
+
+/**
+ * Checks exported document-term matrices, read back from each format, against counts taken
+ * directly from the volumes' JSON.
+ */
+public class DocumentTermMatrixTests
+{
+   private static final int VOLUMES = 5;
+
+   private TestVolumes.Corpus corpus;
+   private Path root;
+   private Path out;
+   private List<String> ids;
+   private Map<String, JsonNode> volumes;
+   private ForkJoinPool pool;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      ids = new ArrayList<>();
+      for (int i = 0; i < VOLUMES; i++)
+         ids.add(String.format("mdp.390150000002%02d", Integer.valueOf(40 + i)));
+      corpus = TestVolumes.Corpus.create("ef-dtm", ids, i -> 2 + i, 240);
+      root = corpus.getRoot();
+      out = root.resolve("matrix");
+      ObjectNode withoutBody = corpus.get(1);
+      ((ObjectNode)withoutBody.get("features").get("pages").get(0)).remove("body");
+      corpus.write(withoutBody);
+
+      volumes = new HashMap<>();
+      for (ObjectNode volume : corpus.getVolumes())
+         volumes.put(volume.get("id").asText(), volume);
+      // rows follow the given order, not identifier order
+      Collections.reverse(ids);
+      pool = new ForkJoinPool(3);
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      pool.shutdown();
+      corpus.delete();
+   }
+
+   private DocumentTermMatrix.Shape export(DocumentTermMatrix.Format format, DocumentTermMatrix.Granularity granularity,
+                                           Collection<String> vocabulary, List<String> volumeIds) throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider(root))
+      {
+         return new DocumentTermMatrix.Builder(provider)
+               .setPool(pool)
+               .setFormat(format)
+               .setGranularity(granularity)
+               .setVocabulary(vocabulary)
+               .build()
+               .export(volumeIds, out);
+      }
+   }
+
+   /**
+    * The expected rows: labels, and the counts of each token summed over parts of speech.
+    */
+   private void expected(List<String> volumeIds, boolean pages, Collection<String> vocabulary,
+                         List<String> labels, List<Map<String, Long>> rows)
+   {
+      for (String id : volumeIds)
+      {
+         JsonNode pageNodes = volumes.get(id).path("features").path("pages");
+         Map<String, Long> row = new HashMap<>();
+         for (int p = 0; p < pageNodes.size(); p++)
+         {
+            for (Iterator<Map.Entry<String, JsonNode>> it = pageNodes.get(p).path("body").path("tokenPosCount").fields(); it.hasNext(); )
+            {
+               Map.Entry<String, JsonNode> token = it.next();
+               if (vocabulary != null && !vocabulary.contains(token.getKey()))
+                  continue;
+               for (Iterator<JsonNode> counts = token.getValue().elements(); counts.hasNext(); )
+                  row.merge(token.getKey(), Long.valueOf(counts.next().asLong()), Long::sum);
+            }
+            if (pages)
+            {
+               labels.add(id + "\t" + p);
+               rows.add(row);
+               row = new HashMap<>();
+            }
+         }
+         if (!pages)
+         {
+            labels.add(id);
+            rows.add(row);
+         }
+      }
+   }
+
+   private List<String> lines(String file) throws Exception
+   {
+      return Files.readAllLines(out.resolve(file), StandardCharsets.UTF_8);
+   }
+
+   private static ByteBuffer littleEndian(Path file) throws Exception
+   {
+      return ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   /**
+    * Read the exported matrix as rows of counts by token.
+    */
+   private List<Map<String, Long>> read(DocumentTermMatrix.Format format, DocumentTermMatrix.Shape shape) throws Exception
+   {
+      List<String> columns = lines(DocumentTermMatrix.COLUMNS);
+      Assert.assertEquals(shape.getColumns(), columns.size());
+      List<Map<String, Long>> rows = new ArrayList<>();
+      List<List<Integer>> rowColumns = new ArrayList<>();
+      for (long r = 0; r < shape.getRows(); r++)
+      {
+         rows.add(new HashMap<>());
+         rowColumns.add(new ArrayList<>());
+      }
+
+      long nonZeros = 0;
+      switch (format)
+      {
+         case CSR:
+            ByteBuffer indptr = littleEndian(out.resolve(DocumentTermMatrix.INDPTR));
+            ByteBuffer indices = littleEndian(out.resolve(DocumentTermMatrix.INDICES));
+            ByteBuffer data = littleEndian(out.resolve(DocumentTermMatrix.DATA));
+            Assert.assertEquals(8 * (shape.getRows() + 1), indptr.limit());
+            Assert.assertEquals(0, indptr.getLong(0));
+            nonZeros = indptr.getLong(8 * (int)shape.getRows());
+            Assert.assertEquals(4 * nonZeros, indices.limit());
+            Assert.assertEquals(4 * nonZeros, data.limit());
+            for (int r = 0; r < shape.getRows(); r++)
+            {
+               for (long i = indptr.getLong(8 * r); i < indptr.getLong(8 * (r + 1)); i++)
+               {
+                  int col = indices.getInt(4 * (int)i);
+                  rowColumns.get(r).add(Integer.valueOf(col));
+                  rows.get(r).put(columns.get(col), Long.valueOf(data.getInt(4 * (int)i)));
+               }
+            }
+            break;
+
+         case MATRIX_MARKET:
+            List<String> mtx = lines(DocumentTermMatrix.MATRIX_MARKET);
+            Assert.assertEquals("%%MatrixMarket matrix coordinate integer general", mtx.get(0));
+            Assert.assertEquals(shape.getRows() + " " + shape.getColumns() + " " + shape.getNonZeros(), mtx.get(1));
+            for (String line : mtx.subList(2, mtx.size()))
+            {
+               String[] v = line.split(" ");
+               // one-based indices
+               int r = Integer.parseInt(v[0]) - 1;
+               int col = Integer.parseInt(v[1]) - 1;
+               rowColumns.get(r).add(Integer.valueOf(col));
+               rows.get(r).put(columns.get(col), Long.valueOf(v[2]));
+               nonZeros++;
+            }
+            Assert.assertFalse(Files.exists(out.resolve(DocumentTermMatrix.MATRIX_MARKET + ".entries")));
+            break;
+
+         case LIBSVM:
+            List<String> svm = lines(DocumentTermMatrix.LIBSVM);
+            Assert.assertEquals(shape.getRows(), svm.size());
+            for (int r = 0; r < svm.size(); r++)
+            {
+               String[] v = svm.get(r).split(" ");
+               Assert.assertEquals("0", v[0]);
+               for (int i = 1; i < v.length; i++)
+               {
+                  String[] pair = v[i].split(":");
+                  // one-based columns
+                  int col = Integer.parseInt(pair[0]) - 1;
+                  rowColumns.get(r).add(Integer.valueOf(col));
+                  rows.get(r).put(columns.get(col), Long.valueOf(pair[1]));
+                  nonZeros++;
+               }
+            }
+            break;
+      }
+      Assert.assertEquals(shape.getNonZeros(), nonZeros);
+
+      // columns ascend within each row
+      for (List<Integer> cols : rowColumns)
+      {
+         for (int i = 1; i < cols.size(); i++)
+            Assert.assertTrue(cols.get(i - 1).intValue() < cols.get(i).intValue());
+      }
+      return rows;
+   }
+
+   private void check(DocumentTermMatrix.Format format, DocumentTermMatrix.Granularity granularity,
+                      Collection<String> vocabulary) throws Exception
+   {
+      DocumentTermMatrix.Shape shape = export(format, granularity, vocabulary, ids);
+      Assert.assertTrue(shape.getNonZeros() > 0);
+
+      List<String> labels = new ArrayList<>();
+      List<Map<String, Long>> rows = new ArrayList<>();
+      expected(ids, granularity == DocumentTermMatrix.Granularity.PAGE, vocabulary, labels, rows);
+      Assert.assertEquals(rows.size(), shape.getRows());
+      Assert.assertEquals(labels, lines(DocumentTermMatrix.ROWS));
+      Assert.assertEquals(format + " " + granularity, rows, read(format, shape));
+
+      List<String> columns = lines(DocumentTermMatrix.COLUMNS);
+      if (vocabulary != null)
+         Assert.assertEquals(new ArrayList<>(vocabulary), columns);
+      else
+      {
+         // every column is used, in order of first appearance
+         Assert.assertEquals(columns.size(), columns.stream().distinct().count());
+         Assert.assertEquals(columns.size(), rows.stream().flatMap(r -> r.keySet().stream()).distinct().count());
+      }
+   }
+
+   @Test
+   public void testCsr() throws Exception
+   {
+      check(DocumentTermMatrix.Format.CSR, DocumentTermMatrix.Granularity.VOLUME, null);
+      check(DocumentTermMatrix.Format.CSR, DocumentTermMatrix.Granularity.PAGE, null);
+   }
+
+   @Test
+   public void testMatrixMarket() throws Exception
+   {
+      check(DocumentTermMatrix.Format.MATRIX_MARKET, DocumentTermMatrix.Granularity.VOLUME, null);
+      check(DocumentTermMatrix.Format.MATRIX_MARKET, DocumentTermMatrix.Granularity.PAGE, null);
+   }
+
+   @Test
+   public void testLibSvm() throws Exception
+   {
+      check(DocumentTermMatrix.Format.LIBSVM, DocumentTermMatrix.Granularity.VOLUME, null);
+      check(DocumentTermMatrix.Format.LIBSVM, DocumentTermMatrix.Granularity.PAGE, null);
+   }
+
+   @Test
+   public void testFixedVocabulary() throws Exception
+   {
+      List<String> vocabulary = Arrays.asList("w1", "the", "no-such-token", "w2");
+      for (DocumentTermMatrix.Format format : DocumentTermMatrix.Format.values())
+         check(format, DocumentTermMatrix.Granularity.PAGE, vocabulary);
+   }
+
+   @Test
+   public void testExportReplacesFiles() throws Exception
+   {
+      export(DocumentTermMatrix.Format.CSR, DocumentTermMatrix.Granularity.PAGE, null, ids);
+      List<String> fewer = ids.subList(0, 2);
+      DocumentTermMatrix.Shape shape = export(DocumentTermMatrix.Format.CSR, DocumentTermMatrix.Granularity.VOLUME, null, fewer);
+
+      List<String> labels = new ArrayList<>();
+      List<Map<String, Long>> rows = new ArrayList<>();
+      expected(fewer, false, null, labels, rows);
+      Assert.assertEquals(labels, lines(DocumentTermMatrix.ROWS));
+      Assert.assertEquals(rows, read(DocumentTermMatrix.Format.CSR, shape));
+   }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures.ExtractedPageFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures.ExtractedPagePartOfSpeechData;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PartOfSpeechCode;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.TokenPosVisitor;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.HashingVectorizer;
+
+/**
+ * Checks the indices and signs of hashed features against MurmurHash3 x86_32 reference values,
+ * as scikit-learn's {@code murmurhash3_32} and {@code HashingVectorizer} derive them.
+ */
+public class HashingVectorizerTests
+{
+   private static final String FOX = "The quick brown fox jumps over the lazy dog";
+   // hashes to Integer.MIN_VALUE with seed zero
+   private static final String MIN_VALUE_TOKEN = "1b0chg";
+   private static final int COUNT = 3;
+
+   /**
+    * A page section holding one token, as a noun.
+    */
+   private static class Token implements ExtractedPagePartOfSpeechData
+   {
+      private final String token;
+
+      Token(String token)
+      {
+         this.token = token;
+      }
+
+      @Override
+      public void forEachTokenPos(TokenPosVisitor visitor)
+      {
+         visitor.visit(token, PartOfSpeechCode.NN.ordinal(), COUNT);
+      }
+
+      @Override
+      public ExtractedPageFeatures getPage()
+      {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public boolean isBody()
+      {
+         return true;
+      }
+
+      @Override
+      public boolean isHeader()
+      {
+         return false;
+      }
+
+      @Override
+      public boolean isFooter()
+      {
+         return false;
+      }
+
+      @Override
+      public Set<String> tokens()
+      {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Map<String, Integer> getPosCount(String t)
+      {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int getCount(String t)
+      {
+         throw new UnsupportedOperationException();
+      }
+   }
+
+   private static void assertFeature(HashingVectorizer vectorizer, String token, int index, int value) throws Exception
+   {
+      HashingVectorizer.SparseVector v = vectorizer.vectorize(new Token(token));
+      Assert.assertEquals(token, 1, v.size());
+      Assert.assertEquals(token, index, v.getIndex(0));
+      Assert.assertEquals(token, value, v.getValue(0));
+   }
+
+   /**
+    * Assert the hash of a token, read back from a vector wide enough that the index is the
+    * absolute value of the hash and the sign is that of the count.
+    */
+   private static void assertHash(HashingVectorizer.Builder builder, String token, int hash) throws Exception
+   {
+      HashingVectorizer vectorizer = builder.setDimension(Integer.MAX_VALUE).build();
+      assertFeature(vectorizer, token, Math.abs(hash), hash < 0 ? -COUNT : COUNT);
+   }
+
+   @Test
+   public void testMurmur3Reference() throws Exception
+   {
+      assertHash(new HashingVectorizer.Builder(), "hello", 0x248bfa47);
+      assertHash(new HashingVectorizer.Builder().setSeed(42), "hello", 0xe2dbd2e1);
+      assertHash(new HashingVectorizer.Builder(), "", 0);
+      assertHash(new HashingVectorizer.Builder().setSeed(42), "", 0x087fcd5c);
+      assertHash(new HashingVectorizer.Builder(), FOX, 0x2e4ff723);
+      assertHash(new HashingVectorizer.Builder().setSeed(42), FOX, 0x347ca102);
+      // the part of speech is appended to the token
+      assertHash(new HashingVectorizer.Builder().setPartOfSpeech(true), "hello", 0x8167c5a3);
+   }
+
+   @Test
+   public void testIndexAndSign() throws Exception
+   {
+      HashingVectorizer vectorizer = new HashingVectorizer.Builder().setDimension(1 << 20).build();
+      assertFeature(vectorizer, "hello", 0x248bfa47 % (1 << 20), COUNT);
+      vectorizer = new HashingVectorizer.Builder().setDimension(1000).setSeed(42).build();
+      assertFeature(vectorizer, "hello", 488910111 % 1000, -COUNT);
+      vectorizer = new HashingVectorizer.Builder().setDimension(1000).setSeed(42).setSigned(false).build();
+      assertFeature(vectorizer, "hello", 488910111 % 1000, COUNT);
+   }
+
+   @Test
+   public void testMinValueIndex() throws Exception
+   {
+      // (Integer.MAX_VALUE - (dimension - 1)) % dimension, where Math.abs(MIN_VALUE) % 10 is -8
+      HashingVectorizer vectorizer = new HashingVectorizer.Builder().setDimension(10).build();
+      assertFeature(vectorizer, MIN_VALUE_TOKEN, 8, -COUNT);
+      vectorizer = new HashingVectorizer.Builder().setDimension(1 << 20).build();
+      assertFeature(vectorizer, MIN_VALUE_TOKEN, 0, -COUNT);
+      vectorizer = new HashingVectorizer.Builder().setDimension(Integer.MAX_VALUE).setSigned(false).build();
+      assertFeature(vectorizer, MIN_VALUE_TOKEN, 1, COUNT);
+   }
+}
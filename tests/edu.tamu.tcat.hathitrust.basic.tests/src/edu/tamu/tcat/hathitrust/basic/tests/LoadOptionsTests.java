@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.HathiTrustClientException;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PartOfSpeechCode;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+
+/**
+ * Checks volumes loaded with options selecting part of their data: volume-level values only, and
+ * tokens and parts of speech filtered while parsing.
+ */
+public class LoadOptionsTests
+{
+   private static final String[] IDS = {"mdp.39015000000501", "mdp.39015000000502"};
+
+   private TestVolumes.Corpus corpus;
+   private TestVolumes.CountingSource source;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-options", Arrays.asList(IDS), i -> 12, 500);
+
+      // volume-level values following the pages, which are then skipped
+      ObjectNode late = corpus.get(1);
+      late.set("features", TestVolumes.moveFirst((ObjectNode)late.get("features"), "pages"));
+      corpus.write(TestVolumes.moveFirst(late, "features"));
+      source = new TestVolumes.CountingSource();
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+   }
+
+   private DefaultExtractedFeaturesProvider createProvider()
+   {
+      return new DefaultExtractedFeaturesProvider.Builder(corpus.getRoot())
+            .setArchiveSource(source)
+            .build();
+   }
+
+   /**
+    * Check the body of a loaded page against the JSON it was written from, keeping only the
+    * tokens and parts of speech the options accept.
+    */
+   private static void assertFilteredPage(JsonNode expected, ExtractedFeatures.ExtractedPageFeatures actual, LoadOptions options) throws Exception
+   {
+      Assert.assertEquals(expected.get("seq").asText(), actual.seq());
+      Assert.assertEquals(expected.get("tokenCount").asInt(), actual.tokenCount());
+
+      ExtractedFeatures.ExtractedPagePartOfSpeechData data = actual.getBodyData();
+      Set<String> tokens = new HashSet<>();
+      Iterator<Map.Entry<String, JsonNode>> body = expected.path("body").path("tokenPosCount").fields();
+      while (body.hasNext())
+      {
+         Map.Entry<String, JsonNode> token = body.next();
+         Map<String, Integer> tags = new HashMap<>();
+         token.getValue().fields().forEachRemaining(e ->
+         {
+            if (options.acceptsPartOfSpeech(PartOfSpeechCode.ordinalOf(e.getKey())))
+               tags.put(e.getKey(), Integer.valueOf(e.getValue().asInt()));
+         });
+
+         if (!options.acceptsToken(token.getKey()) || tags.isEmpty())
+         {
+            Assert.assertEquals(0, data.getCount(token.getKey()));
+            Assert.assertTrue(data.getPosCount(token.getKey()).isEmpty());
+            continue;
+         }
+
+         tokens.add(token.getKey());
+         Assert.assertEquals(tags, data.getPosCount(token.getKey()));
+         Assert.assertEquals(tags.values().stream().mapToInt(Integer::intValue).sum(), data.getCount(token.getKey()));
+      }
+      Assert.assertEquals(tokens, data.tokens());
+   }
+
+   /**
+    * @return The first token of the first page with any tokens, at or after the given page.
+    */
+   private static String firstToken(JsonNode volume, int page)
+   {
+      JsonNode pages = volume.get("features").get("pages");
+      for (int i = page; i < pages.size(); i++)
+      {
+         Iterator<String> tokens = pages.get(i).path("body").path("tokenPosCount").fieldNames();
+         if (tokens.hasNext())
+            return tokens.next();
+      }
+      throw new IllegalStateException("No tokens in [" + volume.get("id").asText() + "]");
+   }
+
+   private void assertFiltered(LoadOptions options) throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = createProvider())
+      {
+         for (JsonNode volume : corpus.getVolumes())
+         {
+            try (ExtractedFeatures ef = provider.getExtractedFeatures(volume.get("id").asText(), options))
+            {
+               JsonNode pages = volume.get("features").get("pages");
+               Assert.assertEquals(pages.size(), ef.pageCount());
+               for (int i = 0; i < pages.size(); i++)
+                  assertFilteredPage(pages.get(i), ef.getPage(i), options);
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testMetadataOnly() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = createProvider())
+      {
+         for (int i = 0; i < IDS.length; i++)
+         {
+            JsonNode expected = corpus.get(i);
+            int reads = source.reads();
+            try (ExtractedFeatures ef = provider.getExtractedFeatures(IDS[i], LoadOptions.METADATA))
+            {
+               Assert.assertEquals(IDS[i], ef.getVolumeId());
+               Assert.assertEquals(expected.path("metadata").path("title").asText(), ef.getMetadata().title());
+               Assert.assertEquals(expected.path("metadata").path("dateCreated").asText(), ef.dateCreated());
+               Assert.assertEquals(expected.path("features").path("pageCount").asInt(), ef.pageCount());
+               Assert.assertEquals(reads + 1, source.reads());
+
+               // page-level values are decoded separately when first accessed, but no sections are kept
+               JsonNode page = expected.get("features").get("pages").get(5);
+               ExtractedFeatures.ExtractedPageFeatures actual = ef.getPage(5);
+               Assert.assertEquals(page.get("seq").asText(), actual.seq());
+               Assert.assertEquals(page.get("tokenCount").asInt(), actual.tokenCount());
+               Assert.assertEquals(page.get("lineCount").asInt(), actual.lineCount());
+               Assert.assertEquals(reads + 2, source.reads());
+               Assert.assertTrue(page.path("body").has("tokenPosCount"));
+               try
+               {
+                  actual.getBodyData().tokens();
+                  Assert.fail("Expected no body data on a metadata-only volume");
+               }
+               catch (HathiTrustClientException e)
+               {
+                  // expected
+               }
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testStopwords() throws Exception
+   {
+      // tokens present in each volume
+      List<String> stopwords = Arrays.asList(firstToken(corpus.get(0), 0), firstToken(corpus.get(1), 0));
+      assertFiltered(LoadOptions.builder().setStopwords(stopwords).build());
+   }
+
+   @Test
+   public void testPartsOfSpeech() throws Exception
+   {
+      // raw codes outside PartOfSpeechCode, such as XYZ, are discarded as well
+      assertFiltered(LoadOptions.builder().setPartsOfSpeech(Arrays.asList(PartOfSpeechCode.NN, PartOfSpeechCode.VB)).build());
+   }
+
+   @Test
+   public void testStopwordsAndPartsOfSpeech() throws Exception
+   {
+      String stopword = firstToken(corpus.get(0), 4);
+      assertFiltered(LoadOptions.builder()
+            .setStopwords(Arrays.asList(stopword))
+            .setPartsOfSpeech(Arrays.asList(PartOfSpeechCode.JJ, PartOfSpeechCode.NNS, PartOfSpeechCode.DT))
+            .build());
+   }
+}
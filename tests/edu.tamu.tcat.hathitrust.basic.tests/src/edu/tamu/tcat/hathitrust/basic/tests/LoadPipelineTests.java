@@ -0,0 +1,275 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.ArchiveSource;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.FileArchiveSource;
+
+/**
+ * Checks how the provider's load pipeline behaves when its queues are full.
+ */
+public class LoadPipelineTests
+{
+   private static final String[] IDS = {"mdp.39015000000011", "mdp.39015000000012", "mdp.39015000000013", "mdp.39015000000014"};
+
+   private TestVolumes.Corpus corpus;
+   private Path root;
+   private List<ObjectNode> volumes;
+   private GatedSource source;
+
+   /**
+    * Reads archives only once their gate opens, recording the threads reading them.
+    */
+   private static class GatedSource implements ArchiveSource
+   {
+      private final ArchiveSource delegate = new FileArchiveSource();
+      private final Map<Path, CountDownLatch> gates = new ConcurrentHashMap<>();
+      private final Map<Path, CountDownLatch> started = new ConcurrentHashMap<>();
+      private final Set<Thread> readers = ConcurrentHashMap.newKeySet();
+
+      void gate(Path archive)
+      {
+         gates.put(archive, new CountDownLatch(1));
+         started.put(archive, new CountDownLatch(1));
+      }
+
+      void release(Path archive)
+      {
+         gates.get(archive).countDown();
+      }
+
+      void releaseAll()
+      {
+         gates.values().forEach(CountDownLatch::countDown);
+      }
+
+      boolean awaitRead(Path archive) throws InterruptedException
+      {
+         return started.get(archive).await(10, TimeUnit.SECONDS);
+      }
+
+      boolean hasRead(Path archive)
+      {
+         return started.get(archive).getCount() == 0;
+      }
+
+      @Override
+      public boolean exists(Path archive)
+      {
+         return delegate.exists(archive);
+      }
+
+      @Override
+      public ByteBuffer read(Path archive) throws IOException
+      {
+         readers.add(Thread.currentThread());
+         CountDownLatch gate = gates.get(archive);
+         if (gate != null)
+         {
+            started.get(archive).countDown();
+            try
+            {
+               gate.await();
+            }
+            catch (InterruptedException e)
+            {
+               throw new IOException("Interrupted reading [" + archive + "]", e);
+            }
+         }
+         return delegate.read(archive);
+      }
+
+      @Override
+      public InputStream open(Path archive) throws IOException
+      {
+         readers.add(Thread.currentThread());
+         return delegate.open(archive);
+      }
+
+      @Override
+      public boolean isFileBacked()
+      {
+         return delegate.isFileBacked();
+      }
+   }
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-pipeline", Arrays.asList(IDS), i -> 5, 0);
+      root = corpus.getRoot();
+      volumes = corpus.getVolumes();
+      source = new GatedSource();
+      for (int i = 0; i < IDS.length; i++)
+         source.gate(archive(i));
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      source.releaseAll();
+      corpus.delete();
+   }
+
+   /**
+    * A provider with one thread per stage and room for one queued load in each.
+    */
+   private DefaultExtractedFeaturesProvider createProvider(boolean eager)
+   {
+      return new DefaultExtractedFeaturesProvider.Builder(root)
+            .setArchiveSource(source)
+            .setEagerLoading(eager)
+            .setIoThreads(1)
+            .setCpuThreads(1)
+            .setQueueCapacity(1)
+            .build();
+   }
+
+   private Path archive(int volume)
+   {
+      return TestVolumes.archivePath(root, IDS[volume], TestVolumes.BASIC);
+   }
+
+   @Test
+   public void testCallerWaitsForQueueSpace() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = createProvider(true))
+      {
+         List<ExtractedFeatures> loaded = new ArrayList<>();
+         // the first load occupies the only I/O thread
+         loaded.add(provider.getExtractedFeatures(IDS[0]));
+         Assert.assertTrue(source.awaitRead(archive(0)));
+
+         // the second load fills the queue, so the third waits for space
+         AtomicInteger submitted = new AtomicInteger();
+         Thread caller = new Thread(() ->
+         {
+            try
+            {
+               for (int i = 1; i < IDS.length; i++)
+               {
+                  ExtractedFeatures ef = provider.getExtractedFeatures(IDS[i]);
+                  synchronized (loaded)
+                  {
+                     loaded.add(ef);
+                  }
+                  submitted.incrementAndGet();
+               }
+            }
+            catch (Exception e)
+            {
+               throw new IllegalStateException(e);
+            }
+         });
+         caller.start();
+
+         Thread.sleep(300);
+         Assert.assertEquals(1, submitted.get());
+         Assert.assertTrue(caller.isAlive());
+
+         // finishing the first read frees the I/O thread, which takes the queued load
+         source.release(archive(0));
+         Assert.assertTrue(source.awaitRead(archive(1)));
+         source.releaseAll();
+         caller.join(10_000);
+         Assert.assertFalse(caller.isAlive());
+         Assert.assertEquals(IDS.length - 1, submitted.get());
+
+         for (int i = 0; i < IDS.length; i++)
+         {
+            try (ExtractedFeatures ef = loaded.get(i))
+            {
+               TestVolumes.assertSameVolume(volumes.get(i), ef);
+            }
+         }
+
+         // loads run on the pipeline's threads, never on the threads requesting them
+         Assert.assertFalse(source.readers.contains(Thread.currentThread()));
+         Assert.assertFalse(source.readers.contains(caller));
+      }
+   }
+
+   @Test
+   public void testAsyncReturnsBeforeLoading() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = createProvider(false))
+      {
+         List<CompletableFuture<ExtractedFeatures>> futures = new ArrayList<>();
+         futures.add(provider.getExtractedFeaturesAsync(IDS[0]));
+         Assert.assertTrue(source.awaitRead(archive(0)));
+         futures.add(provider.getExtractedFeaturesAsync(IDS[1]));
+
+         // with the queue full, requests return at once and their loads are held
+         Thread caller = new Thread(() ->
+         {
+            for (int i = 2; i < IDS.length; i++)
+               futures.add(provider.getExtractedFeaturesAsync(IDS[i]));
+         });
+         caller.start();
+         caller.join(10_000);
+         Assert.assertFalse(caller.isAlive());
+         Assert.assertEquals(IDS.length, futures.size());
+         for (CompletableFuture<ExtractedFeatures> f : futures)
+            Assert.assertFalse(f.isDone());
+
+         // a held load is dropped once cancelled
+         futures.get(3).cancel(true);
+
+         // finishing the first read frees the I/O thread, and the held load enters the queue
+         Thread.sleep(100);
+         Assert.assertFalse(source.hasRead(archive(2)));
+         source.release(archive(0));
+         Assert.assertTrue(source.awaitRead(archive(1)));
+         source.releaseAll();
+         for (int i = 0; i < 3; i++)
+         {
+            try (ExtractedFeatures ef = futures.get(i).get(10, TimeUnit.SECONDS))
+            {
+               TestVolumes.assertSameVolume(volumes.get(i), ef);
+            }
+         }
+         Assert.assertTrue(futures.get(3).isCancelled());
+         Assert.assertFalse(source.hasRead(archive(3)));
+
+         Assert.assertFalse(source.readers.contains(Thread.currentThread()));
+         Assert.assertFalse(source.readers.contains(caller));
+      }
+   }
+}
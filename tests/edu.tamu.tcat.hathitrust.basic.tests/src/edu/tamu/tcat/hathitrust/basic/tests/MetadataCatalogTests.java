@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.MetadataCatalog;
+
+/**
+ * Checks the values held by a metadata catalog against the archives it was built from, and that
+ * volumes whose archives changed are answered from the archives.
+ */
+public class MetadataCatalogTests
+{
+   private static final String[] IDS = {"mdp.39015000000171", "hvd.ah3d1b", "uc2.ark:/13960/t0000171"};
+
+   private TestVolumes.Corpus corpus;
+   private Path root;
+   private Path file;
+   private ObjectNode[] volumes;
+   private Path[] archives;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-catalog");
+      root = corpus.getRoot();
+      file = root.resolve("metadata.catalog");
+      volumes = new ObjectNode[IDS.length];
+      archives = new Path[IDS.length];
+      for (int i = 0; i < IDS.length; i++)
+      {
+         volumes[i] = TestVolumes.generate(IDS[i], 2 + i, 170 + i);
+         ((ObjectNode)volumes[i].get("metadata")).put("pubDate", Integer.toString(1900 + i));
+      }
+      ((ObjectNode)volumes[1].get("metadata")).put("language", "fre");
+      ((ObjectNode)volumes[2].get("metadata")).remove("pubDate");
+
+      archives[0] = corpus.write(volumes[0]);
+      archives[1] = corpus.write(volumes[1]);
+      // read from the advanced archive when there is no basic one
+      archives[2] = TestVolumes.write(root, volumes[2], TestVolumes.ADVANCED, TestVolumes.toJson(volumes[2]));
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+   }
+
+   private DefaultExtractedFeaturesProvider createProvider(TestVolumes.CountingSource source)
+   {
+      return new DefaultExtractedFeaturesProvider.Builder(root)
+            .setCatalog(file)
+            .setArchiveSource(source)
+            .build();
+   }
+
+   /**
+    * Read the volume's volume-level values through a provider answering them from the catalog.
+    *
+    * @return The number of archives the provider read.
+    */
+   private int load(JsonNode expected) throws Exception
+   {
+      TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = createProvider(source);
+           ExtractedFeatures ef = provider.getExtractedFeatures(expected.get("id").asText()))
+      {
+         Assert.assertNotNull(provider.getCatalog());
+         Assert.assertEquals(expected.path("metadata").path("title").asText(), ef.getMetadata().title());
+         Assert.assertEquals(expected.path("metadata").path("dateCreated").asText(), ef.dateCreated());
+         Assert.assertEquals(expected.path("features").path("pageCount").asInt(), ef.pageCount());
+      }
+      return source.reads();
+   }
+
+   @Test
+   public void testRoundTrip() throws Exception
+   {
+      MetadataCatalog.build(root, file);
+      MetadataCatalog catalog = MetadataCatalog.open(file);
+      Assert.assertEquals(IDS.length, catalog.size());
+      Assert.assertTrue(catalog.getColumns().containsAll(Arrays.asList("title", "language", "pubDate",
+            MetadataCatalog.COLUMN_PAGE_COUNT, MetadataCatalog.COLUMN_FEATURES_DATE_CREATED)));
+
+      for (JsonNode volume : volumes)
+      {
+         String id = volume.get("id").asText();
+         Assert.assertTrue(catalog.contains(id));
+         JsonNode metadata = volume.get("metadata");
+         MetadataCatalog.Result r = catalog.query()
+               .select("title", "language", "pubDate", MetadataCatalog.COLUMN_PAGE_COUNT, MetadataCatalog.COLUMN_FEATURES_DATE_CREATED)
+               .results()
+               .filter(v -> v.getVolumeId().equals(id))
+               .findFirst()
+               .get();
+         Assert.assertEquals(metadata.get("title").asText(), r.get("title"));
+         Assert.assertEquals(metadata.get("language").asText(), r.get("language"));
+         Assert.assertEquals(metadata.has("pubDate") ? metadata.get("pubDate").asText() : null, r.get("pubDate"));
+         Assert.assertEquals(Integer.valueOf(volume.path("features").path("pageCount").asInt()), r.getInt(MetadataCatalog.COLUMN_PAGE_COUNT));
+         Assert.assertEquals(volume.path("features").path("dateCreated").asText(), r.get(MetadataCatalog.COLUMN_FEATURES_DATE_CREATED));
+      }
+      Assert.assertFalse(catalog.contains("mdp.39015000000179"));
+
+      List<String> eng = catalog.query().filterEquals("language", "eng").volumeIds();
+      Assert.assertEquals(Arrays.asList(IDS[0], IDS[2]).stream().sorted().collect(Collectors.toList()), eng);
+      Assert.assertEquals(1, catalog.query().filterInt(MetadataCatalog.COLUMN_PAGE_COUNT, c -> c > 3).count());
+      Assert.assertEquals(0, catalog.query().filterEquals("noSuchColumn", "x").count());
+
+      // the provider answers volume-level values without reading archives
+      for (JsonNode volume : volumes)
+         Assert.assertEquals(0, load(volume));
+   }
+
+   @Test
+   public void testValueNotInDictionary() throws Exception
+   {
+      MetadataCatalog.build(root, file);
+      MetadataCatalog catalog = MetadataCatalog.open(file);
+
+      // the column exists, but is absent from one volume
+      Assert.assertTrue(catalog.getColumns().contains("pubDate"));
+      Assert.assertEquals(1, catalog.query().filter("pubDate", v -> v == null).count());
+      Assert.assertEquals(0, catalog.query().filterEquals("pubDate", "1850").count());
+      Assert.assertEquals(Arrays.asList(IDS[1]), catalog.query().filterEquals("pubDate", "1901").volumeIds());
+      Assert.assertEquals(0, catalog.query().filterEquals("language", "xxx").count());
+   }
+
+   @Test
+   public void testTouchedArchiveInvalidates() throws Exception
+   {
+      MetadataCatalog.build(root, file);
+      FileTime modified = Files.getLastModifiedTime(archives[0]);
+
+      // new content; and the same content, touched
+      ObjectNode changed = volumes[0].deepCopy();
+      String title = changed.get("metadata").get("title").asText();
+      ((ObjectNode)changed.get("metadata")).put("title", title.replace("Title", "Entry"));
+      TestVolumes.writeArchive(root, changed, TestVolumes.BASIC, TestVolumes.toJson(changed));
+      Files.setLastModifiedTime(archives[0], FileTime.fromMillis(modified.toMillis() + 5000));
+      Files.setLastModifiedTime(archives[1], FileTime.fromMillis(modified.toMillis() + 5000));
+
+      Assert.assertEquals(1, load(changed));
+      Assert.assertEquals(1, load(volumes[1]));
+      Assert.assertEquals(0, load(volumes[2]));
+
+      // a rebuilt catalog holds the new values
+      MetadataCatalog.build(root, file);
+      Assert.assertEquals(0, load(changed));
+   }
+
+   @Test
+   public void testResizedArchiveInvalidates() throws Exception
+   {
+      MetadataCatalog.build(root, file);
+      FileTime modified = Files.getLastModifiedTime(archives[2]);
+
+      // only the size tells the archives apart
+      ObjectNode changed = TestVolumes.generate(IDS[2], 9, 179);
+      TestVolumes.write(root, changed, TestVolumes.ADVANCED, TestVolumes.toJson(changed));
+      Files.setLastModifiedTime(archives[2], modified);
+
+      Assert.assertEquals(1, load(changed));
+      Assert.assertEquals(0, load(volumes[0]));
+   }
+}
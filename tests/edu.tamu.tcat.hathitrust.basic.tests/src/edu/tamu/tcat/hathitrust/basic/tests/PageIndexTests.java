@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+
+/**
+ * Checks pages decoded individually through page index files against the archives the indexes
+ * were written from.
+ */
+public class PageIndexTests
+{
+   private static final String ID = "mdp.39015000000031";
+   // pages read individually before the provider decodes the full volume
+   private static final int PAGE_READS = 8;
+
+   private TestVolumes.Corpus corpus;
+   private Path root;
+   private Path archive;
+   private Path index;
+   private ObjectNode volume;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-pidx");
+      root = corpus.getRoot();
+      volume = TestVolumes.generate(ID, 40, 31);
+      ((ObjectNode)volume.get("features").get("pages").get(2)).remove("body");
+      archive = corpus.write(volume);
+      index = archive.resolveSibling(archive.getFileName() + ".pidx");
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+   }
+
+   private DefaultExtractedFeaturesProvider createProvider(TestVolumes.CountingSource source)
+   {
+      return new DefaultExtractedFeaturesProvider.Builder(root)
+            .setPageIndex(true)
+            .setArchiveSource(source)
+            .build();
+   }
+
+   /**
+    * Decode the full volume, which writes its page index.
+    */
+   private void writeIndex(JsonNode expected) throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = createProvider(new TestVolumes.CountingSource());
+           ExtractedFeatures ef = provider.getExtractedFeatures(ID))
+      {
+         TestVolumes.assertSameVolume(expected, ef);
+      }
+   }
+
+   @Test
+   public void testPagesFromIndex() throws Exception
+   {
+      writeIndex(volume);
+      Assert.assertTrue(Files.isRegularFile(index));
+
+      TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = createProvider(source);
+           ExtractedFeatures ef = provider.getExtractedFeatures(ID))
+      {
+         // volume-level values are held by the index
+         Assert.assertEquals(volume.path("metadata").path("title").asText(), ef.getMetadata().title());
+         Assert.assertEquals(volume.path("features").path("pageCount").asInt(), ef.pageCount());
+         Assert.assertEquals(0, source.reads());
+
+         JsonNode pages = volume.path("features").path("pages");
+         for (int i = 0; i < PAGE_READS; i++)
+         {
+            int page = (i * 7) % pages.size();
+            TestVolumes.assertSamePage(pages.get(page), ef.getPage(page));
+         }
+         Assert.assertEquals(PAGE_READS, source.reads());
+      }
+   }
+
+   @Test
+   public void testFullDecodeKeepsCurrentIndex() throws Exception
+   {
+      writeIndex(volume);
+      FileTime written = FileTime.fromMillis(Files.getLastModifiedTime(index).toMillis() - 60_000);
+      Files.setLastModifiedTime(index, written);
+      byte[] bytes = Files.readAllBytes(index);
+
+      // reading more pages than the limit decodes the full volume
+      TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = createProvider(source);
+           ExtractedFeatures ef = provider.getExtractedFeatures(ID))
+      {
+         TestVolumes.assertSameVolume(volume, ef);
+      }
+      Assert.assertEquals(PAGE_READS + 1, source.reads());
+
+      Assert.assertEquals(written, Files.getLastModifiedTime(index));
+      Assert.assertArrayEquals(bytes, Files.readAllBytes(index));
+   }
+
+   @Test
+   public void testStaleIndexRewritten() throws Exception
+   {
+      writeIndex(volume);
+      FileTime written = FileTime.fromMillis(Files.getLastModifiedTime(index).toMillis() - 60_000);
+      Files.setLastModifiedTime(index, written);
+
+      ObjectNode changed = TestVolumes.generate(ID, 12, 32);
+      corpus.write(changed);
+      writeIndex(changed);
+      Assert.assertFalse(written.equals(Files.getLastModifiedTime(index)));
+
+      TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = createProvider(source);
+           ExtractedFeatures ef = provider.getExtractedFeatures(ID))
+      {
+         Assert.assertEquals(12, ef.pageCount());
+         TestVolumes.assertSamePage(changed.path("features").path("pages").get(11), ef.getPage(11));
+      }
+      Assert.assertEquals(1, source.reads());
+   }
+}
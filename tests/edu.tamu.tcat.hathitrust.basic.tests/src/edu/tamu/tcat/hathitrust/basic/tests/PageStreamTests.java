@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures.ExtractedPageFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.CacheStatistics;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+
+/**
+ * Checks pages streamed from a volume's archive against the JSON they were written from, and that
+ * neither the stream nor the volume holds pages the stream has passed.
+ */
+public class PageStreamTests
+{
+   private static final String ID = "mdp.39015000000401";
+   private static final int PAGES = 30;
+
+   private TestVolumes.Corpus corpus;
+   private JsonNode pages;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-pages");
+      ObjectNode volume = TestVolumes.generate(ID, PAGES, 400);
+      ((ObjectNode)volume.get("features").get("pages").get(3)).remove("body");
+      corpus.write(volume);
+      pages = volume.get("features").get("pages");
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+   }
+
+   @Test
+   public void testPagesInOrder() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider(corpus.getRoot()))
+      {
+         int read = 0;
+         try (Stream<ExtractedPageFeatures> stream = provider.streamPages(ID, LoadOptions.ALL))
+         {
+            Iterator<ExtractedPageFeatures> it = stream.iterator();
+            while (it.hasNext())
+               TestVolumes.assertSamePage(pages.get(read++), it.next());
+
+            // the volume itself was not loaded
+            CacheStatistics stats = provider.getCacheStatistics();
+            Assert.assertEquals(1, stats.getReferenced());
+            Assert.assertEquals(0, stats.getRetainedBytes());
+         }
+         Assert.assertEquals(PAGES, read);
+         Assert.assertEquals(0, provider.getCacheStatistics().getReferenced());
+      }
+   }
+
+   @Test
+   public void testPassedPagesReleased() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider(corpus.getRoot());
+           Stream<ExtractedPageFeatures> stream = provider.streamPages(ID, LoadOptions.ALL))
+      {
+         List<WeakReference<ExtractedPageFeatures>> passed = new ArrayList<>();
+         Iterator<ExtractedPageFeatures> it = stream.iterator();
+         ExtractedPageFeatures page = it.next();
+         while (it.hasNext())
+         {
+            passed.add(new WeakReference<>(page));
+            page = it.next();
+         }
+         Assert.assertEquals(PAGES - 1, passed.size());
+
+         // held only by the weak references, while the last page is still in use
+         for (int i = 0; i < 20 && passed.stream().anyMatch(ref -> ref.get() != null); i++)
+         {
+            System.gc();
+            Thread.sleep(20);
+         }
+         for (int i = 0; i < passed.size(); i++)
+            Assert.assertNull("Page [" + i + "] still held", passed.get(i).get());
+         TestVolumes.assertSamePage(pages.get(PAGES - 1), page);
+      }
+   }
+}
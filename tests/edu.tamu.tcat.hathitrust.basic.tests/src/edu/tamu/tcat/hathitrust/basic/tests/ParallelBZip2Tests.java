@@ -0,0 +1,367 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.StandardArchiveCodec;
+
+/**
+ * Checks block-parallel bzip2 decoding through {@link StandardArchiveCodec#BZIP2}, including
+ * archives whose compressed data holds the block magic number by chance.
+ * <p>
+ * A chance block magic is placed in the symbol map of a block header: the map holds a 16 bit
+ * mask for each group of 16 byte values the block uses, so data using exactly the right bytes
+ * in 0x80-0xBF spells out the magic, and the bytes used in 0xB0-0xCF then form the 32 bits
+ * read as the false block's CRC.
+ */
+public class ParallelBZip2Tests
+{
+   private static final long BLOCK_MAGIC = 0x314159265359L;
+   private static final String PARALLEL = "ParallelBZip2InputStream";
+   // marks the bytes toggled to give the data a chosen CRC
+   private static final String SLOTS_PREFIX = "qz";
+   private static final int SLOTS = 48;
+
+   private ForkJoinPool pool;
+   private TestVolumes.Corpus corpus;
+   private Path root;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      pool = new ForkJoinPool(4);
+      corpus = TestVolumes.Corpus.create("ef-bzip2");
+      root = corpus.getRoot();
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      pool.shutdownNow();
+      corpus.delete();
+   }
+
+   private InputStream decode(byte[] archive) throws IOException
+   {
+      return StandardArchiveCodec.BZIP2.decode(ByteBuffer.wrap(archive), pool);
+   }
+
+   private static byte[] readAll(InputStream in) throws IOException
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[7919];
+      int n;
+      while ((n = in.read(buf)) >= 0)
+         out.write(buf, 0, n);
+      return out.toByteArray();
+   }
+
+   @Test
+   public void testMultiBlock() throws Exception
+   {
+      byte[] json = TestVolumes.toJson(TestVolumes.generate("mdp.39015000000051", 400, 51));
+      byte[] archive = TestVolumes.bzip2(json, 1);
+      Assert.assertTrue(countBlockMagic(archive) >= 3);
+
+      try (InputStream in = decode(archive))
+      {
+         Assert.assertEquals(PARALLEL, in.getClass().getSimpleName());
+         Assert.assertArrayEquals(json, readAll(in));
+      }
+
+      // decodes from the buffer's position, with single byte reads
+      byte[] prefixed = new byte[archive.length + 5];
+      System.arraycopy(archive, 0, prefixed, 5, archive.length);
+      ByteBuffer buffer = ByteBuffer.wrap(prefixed);
+      buffer.position(5);
+      try (InputStream in = StandardArchiveCodec.BZIP2.decode(buffer, pool))
+      {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         int b;
+         while ((b = in.read()) >= 0)
+            out.write(b);
+         Assert.assertArrayEquals(json, out.toByteArray());
+      }
+   }
+
+   @Test
+   public void testSingleBlock() throws Exception
+   {
+      byte[] json = TestVolumes.toJson(TestVolumes.generate("mdp.39015000000052", 3, 52));
+      byte[] archive = TestVolumes.bzip2(json, 9);
+      Assert.assertEquals(1, countBlockMagic(archive));
+
+      try (InputStream in = decode(archive))
+      {
+         Assert.assertFalse(PARALLEL.equals(in.getClass().getSimpleName()));
+         Assert.assertArrayEquals(json, readAll(in));
+      }
+   }
+
+   @Test
+   public void testConcatenatedStreams() throws Exception
+   {
+      byte[] first = TestVolumes.toJson(TestVolumes.generate("mdp.39015000000053", 300, 53));
+      byte[] second = TestVolumes.toJson(TestVolumes.generate("mdp.39015000000054", 300, 54));
+      ByteArrayOutputStream archive = new ByteArrayOutputStream();
+      archive.write(TestVolumes.bzip2(first, 1));
+      archive.write(TestVolumes.bzip2(second, 1));
+      ByteArrayOutputStream json = new ByteArrayOutputStream();
+      json.write(first);
+      json.write(second);
+
+      try (InputStream in = decode(archive.toByteArray()))
+      {
+         Assert.assertArrayEquals(json.toByteArray(), readAll(in));
+      }
+   }
+
+   @Test
+   public void testBlockMagicInCompressedData() throws Exception
+   {
+      // the false block's CRC does not match, so the stream is decoded sequentially
+      byte[] json = craft(chooseCrc());
+      byte[] archive = TestVolumes.bzip2(json, 1);
+      Assert.assertEquals(2, countBlockMagic(archive));
+
+      try (InputStream in = decode(archive))
+      {
+         Assert.assertFalse(PARALLEL.equals(in.getClass().getSimpleName()));
+         Assert.assertArrayEquals(json, readAll(in));
+      }
+   }
+
+   @Test
+   public void testBlockFormatFallback() throws Exception
+   {
+      // with a forged CRC, the false block passes the stream's CRC check but cannot be decoded
+      int crc = chooseCrc();
+      byte[] json = forgeCrc(craft(crc), crc);
+      byte[] archive = TestVolumes.bzip2(json, 1);
+      Assert.assertEquals(2, countBlockMagic(archive));
+      Assert.assertEquals(crc, (int)bits(archive, 32 + 48, 32));
+
+      try (InputStream in = decode(archive))
+      {
+         Assert.assertEquals(PARALLEL, in.getClass().getSimpleName());
+         readAll(in);
+         Assert.fail("Expected the false block to fail decoding");
+      }
+      catch (IOException e)
+      {
+         // expected
+      }
+
+      // the provider decodes such archives sequentially
+      JsonNode expected = TestVolumes.parse(json);
+      TestVolumes.writeArchive(root, expected, TestVolumes.BASIC, archive);
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider.Builder(root)
+                                                                .setParallelDecodeThreshold(1)
+                                                                .build();
+           ExtractedFeatures ef = provider.getExtractedFeatures(expected.get("id").asText()))
+      {
+         TestVolumes.assertSameVolume(expected, ef);
+      }
+   }
+
+   /**
+    * @return The number of bit offsets at which the block magic number occurs.
+    */
+   private static int countBlockMagic(byte[] archive)
+   {
+      int count = 0;
+      for (long bit = 0; bit + 48 <= archive.length * 8L; ++bit)
+      {
+         if (bits(archive, bit, 48) == BLOCK_MAGIC)
+            count++;
+      }
+      return count;
+   }
+
+   private static long bits(byte[] b, long bitPos, int n)
+   {
+      long v = 0;
+      for (int i = 0; i < n; ++i, ++bitPos)
+         v = (v << 1) | ((b[(int)(bitPos >>> 3)] >>> (7 - (bitPos & 7))) & 1);
+      return v;
+   }
+
+   /**
+    * @return The block CRC whose false block CRC, following the chance magic number, makes the
+    *         stream's combined CRC match, chosen so that the data can use the bytes it needs.
+    */
+   private static int chooseCrc()
+   {
+      for (int crc = 1; ; ++crc)
+      {
+         int f = falseCrc(crc);
+         // both halves are symbol map masks of used groups; 0xC0 and 0xC1 never occur in UTF-8
+         if ((f >>> 16) != 0 && (f & 0xFFFF) != 0 && (f & 0xC000) == 0)
+            return crc;
+      }
+   }
+
+   /**
+    * The combined CRC of a stream is rotated and combined with each block's CRC in turn, so for
+    * a single real block followed by the false one, the stored combined CRC, which is the real
+    * block's CRC, is reproduced when the false block's CRC is this.
+    */
+   private static int falseCrc(int crc)
+   {
+      return crc ^ Integer.rotateLeft(crc, 1);
+   }
+
+   /**
+    * @return A volume whose bytes in 0x80-0xCF spell out the block magic number and the false
+    *         CRC for the given block CRC in the symbol map of its bzip2 block.
+    */
+   private static byte[] craft(int crc) throws IOException
+   {
+      int f = falseCrc(crc);
+      StringBuilder chars = new StringBuilder();
+      // five groups of 16 byte values, from 0x80
+      for (int i = 0; i < 80; ++i)
+      {
+         if (!used(f, i))
+            continue;
+
+         int b = 0x80 + i;
+         // continuation bytes follow a lead byte above 0xCF; lead bytes precede 0x82, which is
+         // always used
+         int cp = b < 0xC0 ? 0x400 | (b & 0x3F) : ((b & 0x1F) << 6) | 0x02;
+         chars.appendCodePoint(cp);
+      }
+
+      Map<String, Map<String, Integer>> body = new HashMap<>();
+      for (int i = 0; i < chars.length(); i += 3)
+         body.putAll(TestVolumes.tokens(chars.substring(i, Math.min(chars.length(), i + 3)), "NN", 1 + i % 5));
+
+      StringBuilder slots = new StringBuilder(SLOTS_PREFIX);
+      for (int i = 0; i < SLOTS; ++i)
+         slots.append("xa");
+      body.putAll(TestVolumes.tokens(slots.toString(), "NN", 1));
+      body.putAll(TestVolumes.tokens("plain", "JJ", 2));
+
+      byte[] json = TestVolumes.toJson(TestVolumes.volume("mdp.39015000000055", TestVolumes.page(1, body),
+                                                          TestVolumes.page(2, TestVolumes.tokens("more", "NN", 3))));
+      for (byte b : json)
+      {
+         int v = b & 0xFF;
+         if (v >= 0x80 && v < 0xD0 && !used(f, v - 0x80))
+            throw new IllegalStateException("Unexpected byte " + Integer.toHexString(v));
+      }
+      return json;
+   }
+
+   /**
+    * @return Whether the byte value 0x80 + i is to be used, making the symbol map from 0x80 spell
+    *         out the block magic number followed by the false CRC.
+    */
+   private static boolean used(int falseCrc, int i)
+   {
+      long bit = i < 48 ? BLOCK_MAGIC >>> (47 - i) : falseCrc >>> (79 - i);
+      return (bit & 1) != 0;
+   }
+
+   /**
+    * Give the data the chosen bzip2 CRC by changing some of its slots from 'a' to 'b'. The CRC is
+    * affine over GF(2), so the slots to change are the solution of a linear system.
+    */
+   private static byte[] forgeCrc(byte[] json, int crc)
+   {
+      String text = new String(json, StandardCharsets.ISO_8859_1);
+      int first = text.indexOf(SLOTS_PREFIX + "xa") + SLOTS_PREFIX.length() + 1;
+
+      int base = bzip2Crc(json);
+      // basis vectors by leading bit, and the slots combined into each
+      int[] basis = new int[32];
+      long[] combined = new long[32];
+      for (int s = 0; s < SLOTS; ++s)
+      {
+         byte[] toggled = json.clone();
+         toggled[first + 2 * s] = 'b';
+         int v = bzip2Crc(toggled) ^ base;
+         long m = 1L << s;
+         for (int bit = 31; bit >= 0 && v != 0; --bit)
+         {
+            if ((v >>> bit & 1) == 0)
+               continue;
+            if (basis[bit] == 0)
+            {
+               basis[bit] = v;
+               combined[bit] = m;
+               break;
+            }
+            v ^= basis[bit];
+            m ^= combined[bit];
+         }
+      }
+
+      int t = crc ^ base;
+      long m = 0;
+      for (int bit = 31; bit >= 0; --bit)
+      {
+         if ((t >>> bit & 1) == 0)
+            continue;
+         if (basis[bit] == 0)
+            throw new IllegalStateException("Slots do not span the CRC");
+         t ^= basis[bit];
+         m ^= combined[bit];
+      }
+
+      byte[] forged = json.clone();
+      for (int s = 0; s < SLOTS; ++s)
+      {
+         if ((m >>> s & 1) != 0)
+            forged[first + 2 * s] = 'b';
+      }
+      Assert.assertEquals(crc, bzip2Crc(forged));
+      return forged;
+   }
+
+   /**
+    * The CRC bzip2 stores for a block: CRC-32 computed most significant bit first.
+    */
+   private static int bzip2Crc(byte[] data)
+   {
+      int crc = 0xFFFFFFFF;
+      for (byte b : data)
+      {
+         crc ^= (b & 0xFF) << 24;
+         for (int i = 0; i < 8; ++i)
+            crc = crc < 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+      }
+      return ~crc;
+   }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+
+/**
+ * Checks volumes parsed against a shared vocabulary file against the archives they were parsed
+ * from, across providers reopening the file.
+ */
+public class SharedVocabularyTests
+{
+   private static final String[] IDS = {"mdp.39015000000231", "hvd.ah3d1d"};
+
+   private TestVolumes.Corpus corpus;
+   private Path root;
+   private Path file;
+   private List<ObjectNode> volumes;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-vocabulary", Arrays.asList(IDS), i -> 8, 230);
+      root = corpus.getRoot();
+      file = root.resolve("tokens.vocabulary");
+      volumes = corpus.getVolumes();
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+   }
+
+   private DefaultExtractedFeaturesProvider.Builder builder()
+   {
+      return new DefaultExtractedFeaturesProvider.Builder(root).setVocabulary(file);
+   }
+
+   /**
+    * @return The number of tokens in the vocabulary file's header.
+    */
+   private int tokenCount() throws Exception
+   {
+      try (InputStream in = Files.newInputStream(file); DataInputStream data = new DataInputStream(in))
+      {
+         Assert.assertEquals(0x48544756, data.readInt());
+         data.readInt();
+         return data.readInt();
+      }
+   }
+
+   @Test
+   public void testRoundTrip() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = builder().build())
+      {
+         for (JsonNode volume : volumes)
+            TestVolumes.assertLoads(provider, volume);
+      }
+      int tokens = tokenCount();
+      Assert.assertTrue(tokens > 0);
+
+      // a reopened vocabulary resolves the same tokens without appending them again
+      try (DefaultExtractedFeaturesProvider provider = builder().build())
+      {
+         for (int i = volumes.size() - 1; i >= 0; i--)
+            TestVolumes.assertLoads(provider, volumes.get(i));
+      }
+      Assert.assertEquals(tokens, tokenCount());
+   }
+
+   @Test
+   public void testProvidersShareFile() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider first = builder().build();
+           DefaultExtractedFeaturesProvider second = builder().build())
+      {
+         TestVolumes.assertLoads(first, volumes.get(0));
+         TestVolumes.assertLoads(second, volumes.get(1));
+         TestVolumes.assertLoads(first, volumes.get(1));
+         TestVolumes.assertLoads(second, volumes.get(0));
+      }
+      int shared = tokenCount();
+
+      // neither provider appended a token the other had appended
+      file = root.resolve("single.vocabulary");
+      try (DefaultExtractedFeaturesProvider provider = builder().build())
+      {
+         for (JsonNode volume : volumes)
+            TestVolumes.assertLoads(provider, volume);
+      }
+      Assert.assertEquals(tokenCount(), shared);
+   }
+
+   @Test
+   public void testCountRecoveredFromEnd() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = builder().build())
+      {
+         TestVolumes.assertLoads(provider, volumes.get(0));
+      }
+      int tokens = tokenCount();
+
+      // as left by a process which failed after counting a record it had not yet published
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE))
+      {
+         channel.write(ByteBuffer.allocate(4).putInt(0, tokens + 1), 8);
+      }
+
+      try (DefaultExtractedFeaturesProvider provider = builder().build())
+      {
+         TestVolumes.assertLoads(provider, volumes.get(0));
+      }
+      Assert.assertEquals(tokens, tokenCount());
+      try (DefaultExtractedFeaturesProvider provider = builder().build())
+      {
+         TestVolumes.assertLoads(provider, volumes.get(1));
+         TestVolumes.assertLoads(provider, volumes.get(0));
+      }
+      Assert.assertTrue(tokenCount() > tokens);
+   }
+
+   @Test
+   public void testChangedArchiveAppendsTokens() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = builder().build())
+      {
+         TestVolumes.assertLoads(provider, volumes.get(0));
+      }
+      int tokens = tokenCount();
+
+      Path archive = TestVolumes.archivePath(root, IDS[0], TestVolumes.BASIC);
+      FileTime modified = Files.getLastModifiedTime(archive);
+      ObjectNode changed = TestVolumes.generate(IDS[0], 12, 239);
+      ((ObjectNode)changed.get("features").get("pages").get(0)).set("body",
+            TestVolumes.page(1, TestVolumes.tokens("vocabulary-only", "NN", 4)).get("body"));
+      corpus.write(changed);
+      Files.setLastModifiedTime(archive, FileTime.fromMillis(modified.toMillis() + 5000));
+
+      try (DefaultExtractedFeaturesProvider provider = builder().build())
+      {
+         TestVolumes.assertLoads(provider, changed);
+      }
+      Assert.assertTrue(tokenCount() > tokens);
+   }
+
+   @Test
+   public void testSidecarIndependentOfVocabulary() throws Exception
+   {
+      Path cacheRoot = Files.createTempDirectory(root, "cache");
+      try (DefaultExtractedFeaturesProvider provider = builder().setCacheRoot(cacheRoot).build())
+      {
+         TestVolumes.assertLoads(provider, volumes.get(0));
+      }
+
+      // the sidecar is read by a provider without the vocabulary
+      Files.delete(file);
+      TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider.Builder(root)
+                                                                .setCacheRoot(cacheRoot)
+                                                                .setArchiveSource(source)
+                                                                .build())
+      {
+         TestVolumes.assertLoads(provider, volumes.get(0));
+      }
+      Assert.assertEquals(0, source.reads());
+   }
+}
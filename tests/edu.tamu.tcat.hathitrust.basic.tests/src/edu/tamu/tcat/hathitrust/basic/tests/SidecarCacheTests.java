@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+
+/**
+ * Checks that volumes read back from sidecar files match the archives they were written from,
+ * and that changed archives are parsed again.
+ */
+public class SidecarCacheTests
+{
+   private static final String ID = "mdp.39015000000021";
+
+   private TestVolumes.Corpus corpus;
+   private Path root;
+   private Path cacheRoot;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-sidecar");
+      root = corpus.getRoot();
+      cacheRoot = Files.createTempDirectory("ef-sidecar-cache");
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+      TestVolumes.delete(cacheRoot);
+   }
+
+   /**
+    * Load the volume through a new provider writing sidecars under the cache root.
+    *
+    * @return The number of archives the provider read.
+    */
+   private int load(JsonNode expected) throws Exception
+   {
+      TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider.Builder(root)
+                                                                .setCacheRoot(cacheRoot)
+                                                                .setArchiveSource(source)
+                                                                .build();
+           ExtractedFeatures ef = provider.getExtractedFeatures(expected.get("id").asText()))
+      {
+         TestVolumes.assertSameVolume(expected, ef);
+      }
+      return source.reads();
+   }
+
+   private Path sidecar(Path archive)
+   {
+      return cacheRoot.resolve(root.relativize(archive).toString() + ".efc");
+   }
+
+   /**
+    * A small volume whose single token can be replaced by another of the same length.
+    */
+   private static ObjectNode volume(String token, int count)
+   {
+      Map<String, Map<String, Integer>> body = TestVolumes.tokens(token, "NN", count);
+      body.putAll(TestVolumes.tokens("café", "JJ", 2));
+      return TestVolumes.volume(ID, TestVolumes.page(1, body), TestVolumes.page(2, null));
+   }
+
+   @Test
+   public void testRoundTrip() throws Exception
+   {
+      ObjectNode volume = TestVolumes.generate(ID, 30, 21);
+      ((ObjectNode)volume.get("features").get("pages").get(3)).remove("body");
+      Path archive = corpus.write(volume);
+
+      Assert.assertEquals(1, load(volume));
+      Assert.assertTrue(Files.isRegularFile(sidecar(archive)));
+
+      // read from the sidecar alone
+      Assert.assertEquals(0, load(volume));
+   }
+
+   @Test
+   public void testSidecarNextToArchive() throws Exception
+   {
+      ObjectNode volume = TestVolumes.generate(ID, 4, 22);
+      Path archive = corpus.write(volume);
+
+      for (int reads : new int[] {1, 0})
+      {
+         TestVolumes.CountingSource source = new TestVolumes.CountingSource();
+         try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider.Builder(root)
+                                                                   .setSidecarCache(true)
+                                                                   .setArchiveSource(source)
+                                                                   .build();
+              ExtractedFeatures ef = provider.getExtractedFeatures(ID))
+         {
+            TestVolumes.assertSameVolume(volume, ef);
+         }
+         Assert.assertEquals(reads, source.reads());
+         Assert.assertTrue(Files.isRegularFile(archive.resolveSibling(archive.getFileName() + ".efc")));
+      }
+   }
+
+   @Test
+   public void testTouchedArchiveInvalidates() throws Exception
+   {
+      // plain JSON archives, so that the edit keeps the archive's size
+      ObjectNode before = volume("alpha", 3);
+      ObjectNode after = volume("omega", 7);
+      byte[] json = TestVolumes.toJson(after);
+      Assert.assertEquals(TestVolumes.toJson(before).length, json.length);
+
+      Path archive = TestVolumes.writeArchive(root, before, TestVolumes.BASIC, TestVolumes.toJson(before));
+      Assert.assertEquals(1, load(before));
+      FileTime modified = Files.getLastModifiedTime(archive);
+      byte[] cached = Files.readAllBytes(sidecar(archive));
+
+      TestVolumes.writeArchive(root, after, TestVolumes.BASIC, json);
+      Files.setLastModifiedTime(archive, FileTime.fromMillis(modified.toMillis() + 5000));
+      Assert.assertEquals(1, load(after));
+
+      // the stale sidecar was replaced
+      Assert.assertFalse(Arrays.equals(cached, Files.readAllBytes(sidecar(archive))));
+      Assert.assertEquals(0, load(after));
+   }
+
+   @Test
+   public void testResizedArchiveInvalidates() throws Exception
+   {
+      ObjectNode before = volume("alpha", 3);
+      ObjectNode after = TestVolumes.generate(ID, 6, 23);
+
+      Path archive = corpus.write(before);
+      Assert.assertEquals(1, load(before));
+      FileTime modified = Files.getLastModifiedTime(archive);
+
+      // only the size tells the archives apart
+      corpus.write(after);
+      Files.setLastModifiedTime(archive, modified);
+      Assert.assertEquals(1, load(after));
+      Assert.assertEquals(0, load(after));
+   }
+}
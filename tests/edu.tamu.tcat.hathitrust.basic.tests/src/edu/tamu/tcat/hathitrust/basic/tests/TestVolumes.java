@@ -0,0 +1,508 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Assert;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.HathiTrustClientException;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeaturesProvider;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.ArchiveSource;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.FileArchiveSource;
+import edu.tamu.tcat.pairtree.Pairtree;
+
+/**
+ * Builds small extracted features volumes, writes them as bzip2 archives in the pairtree layout
+ * the provider reads, and checks loaded volumes against a plain {@link ObjectMapper} parse of
+ * the same JSON.
+ */
+public class TestVolumes
+{
+   public static final String BASIC = "basic";
+   public static final String ADVANCED = "advanced";
+
+   private static final ObjectMapper mapper = new ObjectMapper();
+
+   private static final String[] TAGS = {"DT", "NN", "NNS", "VB", "JJ", "IN", ",", ".", "NNP", "PRP$", "-LRB-", "XYZ"};
+
+   /**
+    * @return A volume with the given pages and the usual field order: {@code id},
+    *         {@code metadata}, then {@code features} with its scalars before {@code pages}.
+    */
+   public static ObjectNode volume(String id, ObjectNode... pages)
+   {
+      ObjectNode vol = mapper.createObjectNode();
+      vol.put("id", id);
+      vol.set("metadata", metadata(id));
+      vol.set("features", features(pages));
+      return vol;
+   }
+
+   /**
+    * @return A volume of generated pages, the same for the same seed.
+    */
+   public static ObjectNode generate(String id, int pageCount, long seed)
+   {
+      Random r = new Random(seed);
+      ObjectNode[] pages = new ObjectNode[pageCount];
+      for (int i = 0; i < pageCount; i++)
+      {
+         Map<String, Map<String, Integer>> body = new HashMap<>();
+         int n = r.nextInt(120);
+         for (int t = 0; t < n; t++)
+         {
+            int w = (int)Math.min(5000, Math.abs(r.nextGaussian()) * 300);
+            String token = w == 0 ? "the" : "w" + Integer.toString(w, 36) + (w % 7 == 0 ? "é" : "");
+            body.computeIfAbsent(token, k -> new HashMap<>()).merge(TAGS[r.nextInt(TAGS.length)], Integer.valueOf(1 + r.nextInt(9)), Integer::sum);
+         }
+         pages[i] = page(i + 1, body);
+      }
+      return volume(id, pages);
+   }
+
+   /**
+    * @param body Body token counts by token and part of speech tag, or {@code null} for a page
+    *        without a body section.
+    */
+   public static ObjectNode page(int seq, Map<String, Map<String, Integer>> body)
+   {
+      ObjectNode page = mapper.createObjectNode();
+      page.put("seq", String.format("%08d", Integer.valueOf(seq)));
+      page.put("tokenCount", 10 * seq + 3);
+      page.put("lineCount", seq % 40);
+      page.put("emptyLineCount", 0);
+      page.putArray("languages").addObject().put("en", "1.00");
+      page.set("header", section(tokens("Chapter", "NN", 1)));
+      if (body != null)
+         page.set("body", section(body));
+      page.set("footer", section(tokens(Integer.toString(seq), "CD", 1)));
+      return page;
+   }
+
+   /**
+    * @return Token counts holding a single token and tag, to add to with {@link Map#put}.
+    */
+   public static Map<String, Map<String, Integer>> tokens(String token, String tag, int count)
+   {
+      Map<String, Map<String, Integer>> tokens = new HashMap<>();
+      tokens.computeIfAbsent(token, k -> new HashMap<>()).put(tag, Integer.valueOf(count));
+      return tokens;
+   }
+
+   private static ObjectNode section(Map<String, Map<String, Integer>> tokens)
+   {
+      ObjectNode section = mapper.createObjectNode();
+      section.put("tokenCount", tokens.size());
+      section.put("lineCount", 1);
+      section.put("capAlphaSeq", 0);
+      ObjectNode counts = section.putObject("tokenPosCount");
+      tokens.forEach((token, tags) ->
+      {
+         ObjectNode t = counts.putObject(token);
+         tags.forEach((tag, n) -> t.put(tag, n.intValue()));
+      });
+      return section;
+   }
+
+   private static ObjectNode metadata(String id)
+   {
+      ObjectNode meta = mapper.createObjectNode();
+      meta.put("schemaVersion", "1.2");
+      meta.put("dateCreated", "2015-03-01T12:00");
+      meta.put("title", "Title of " + id);
+      meta.put("language", "eng");
+      meta.putArray("names").add("Smith, J.");
+      return meta;
+   }
+
+   private static ObjectNode features(ObjectNode... pages)
+   {
+      ObjectNode features = mapper.createObjectNode();
+      features.put("schemaVersion", "2.0");
+      features.put("dateCreated", "2015-02-12T13:30");
+      features.put("pageCount", pages.length);
+      ArrayNode array = features.putArray("pages");
+      for (ObjectNode p : pages)
+         array.add(p);
+      return features;
+   }
+
+   /**
+    * @return A copy of the object with the named field moved first, keeping the order of the
+    *         other fields.
+    */
+   public static ObjectNode moveFirst(ObjectNode node, String field)
+   {
+      ObjectNode moved = mapper.createObjectNode();
+      moved.set(field, node.get(field));
+      Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+      while (fields.hasNext())
+      {
+         Map.Entry<String, JsonNode> e = fields.next();
+         if (!e.getKey().equals(field))
+            moved.set(e.getKey(), e.getValue());
+      }
+      return moved;
+   }
+
+   /**
+    * @return The serialized volume.
+    */
+   public static byte[] toJson(JsonNode volume) throws IOException
+   {
+      return mapper.writeValueAsBytes(volume);
+   }
+
+   /**
+    * @return The serialized volume with characters outside ASCII written as unicode escapes,
+    *         and supplementary characters as escaped surrogate pairs.
+    */
+   public static byte[] toAsciiJson(JsonNode volume) throws IOException
+   {
+      return mapper.writer().with(JsonGenerator.Feature.ESCAPE_NON_ASCII).writeValueAsBytes(volume);
+   }
+
+   /**
+    * @return The volume parsed from serialized JSON.
+    */
+   public static JsonNode parse(byte[] json) throws IOException
+   {
+      return mapper.readTree(json);
+   }
+
+   /**
+    * @param blockSize The bzip2 block size, in units of 100,000 bytes.
+    * @return The compressed bytes.
+    */
+   public static byte[] bzip2(byte[] data, int blockSize) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (OutputStream out = new BZip2CompressorOutputStream(bytes, blockSize))
+      {
+         out.write(data);
+      }
+      return bytes.toByteArray();
+   }
+
+   /**
+    * @return The path the provider reads the given archive type of a volume from.
+    */
+   public static Path archivePath(Path root, String volumeId, String type)
+   {
+      int dot = volumeId.indexOf('.');
+      String source = volumeId.substring(0, dot);
+      String objectId = volumeId.substring(dot + 1);
+      String clean = Pairtree.toCleanEncodedId(objectId);
+      return root.resolve(type).resolve(source).resolve("pairtree_root").resolve(Pairtree.toPPath(objectId))
+                 .resolve(clean).resolve(source + "." + clean + "." + type + ".json.bz2");
+   }
+
+   /**
+    * Write the volume as a basic archive under the root, in bzip2 blocks of 100,000 bytes.
+    *
+    * @return The archive path.
+    */
+   public static Path write(Path root, JsonNode volume) throws IOException
+   {
+      return write(root, volume, BASIC, toJson(volume));
+   }
+
+   /**
+    * Write serialized JSON as an archive of the given type under the root.
+    *
+    * @return The archive path.
+    */
+   public static Path write(Path root, JsonNode volume, String type, byte[] json) throws IOException
+   {
+      return writeArchive(root, volume, type, bzip2(json, 1));
+   }
+
+   /**
+    * Write archive bytes, in any encoding the provider detects, as an archive of the given type
+    * under the root. Plain JSON may be written, which is convenient for edits that keep the size
+    * of the archive.
+    *
+    * @return The archive path.
+    */
+   public static Path writeArchive(Path root, JsonNode volume, String type, byte[] archive) throws IOException
+   {
+      Path file = archivePath(root, volume.get("id").asText(), type);
+      Files.createDirectories(file.getParent());
+      Files.write(file, archive);
+      return file;
+   }
+
+   /**
+    * An {@link ArchiveSource} reading files, which counts the archives probed and read.
+    */
+   public static class CountingSource implements ArchiveSource
+   {
+      private final ArchiveSource delegate = new FileArchiveSource();
+      private final AtomicInteger reads = new AtomicInteger();
+      private final AtomicInteger probes = new AtomicInteger();
+
+      /**
+       * @return The number of archives read or opened.
+       */
+      public int reads()
+      {
+         return reads.get();
+      }
+
+      /**
+       * @return The number of archive paths probed for existence.
+       */
+      public int probes()
+      {
+         return probes.get();
+      }
+
+      @Override
+      public boolean exists(Path archive)
+      {
+         probes.incrementAndGet();
+         return delegate.exists(archive);
+      }
+
+      @Override
+      public ByteBuffer read(Path archive) throws IOException
+      {
+         reads.incrementAndGet();
+         return delegate.read(archive);
+      }
+
+      @Override
+      public InputStream open(Path archive) throws IOException
+      {
+         reads.incrementAndGet();
+         return delegate.open(archive);
+      }
+
+      @Override
+      public boolean isFileBacked()
+      {
+         return delegate.isFileBacked();
+      }
+   }
+
+   /**
+    * Load a volume through the provider and check it against the JSON it was written from.
+    */
+   public static void assertLoads(ExtractedFeaturesProvider provider, JsonNode expected) throws Exception
+   {
+      try (ExtractedFeatures ef = provider.getExtractedFeatures(expected.get("id").asText()))
+      {
+         assertSameVolume(expected, ef);
+      }
+   }
+
+   /**
+    * Check a loaded volume's values and body tokens against the JSON it was written from.
+    */
+   public static void assertSameVolume(JsonNode expected, ExtractedFeatures actual) throws HathiTrustClientException
+   {
+      String id = expected.get("id").asText();
+      Assert.assertEquals(id, actual.getVolumeId());
+      Assert.assertEquals(expected.path("metadata").path("title").asText(), actual.getMetadata().title());
+      Assert.assertEquals(expected.path("metadata").path("dateCreated").asText(), actual.dateCreated());
+
+      JsonNode pages = expected.path("features").path("pages");
+      Assert.assertEquals(expected.path("features").path("pageCount").asInt(), actual.pageCount());
+      for (int i = 0; i < pages.size(); i++)
+         assertSamePage(pages.get(i), actual.getPage(i));
+   }
+
+   /**
+    * Check a loaded page's values and body tokens against the JSON it was written from.
+    */
+   public static void assertSamePage(JsonNode expected, ExtractedFeatures.ExtractedPageFeatures actual) throws HathiTrustClientException
+   {
+      Assert.assertEquals(expected.get("seq").asText(), actual.seq());
+      Assert.assertEquals(expected.get("tokenCount").asInt(), actual.tokenCount());
+      Assert.assertEquals(expected.get("lineCount").asInt(), actual.lineCount());
+
+      JsonNode body = expected.path("body").path("tokenPosCount");
+      ExtractedFeatures.ExtractedPagePartOfSpeechData data = actual.getBodyData();
+      if (body.isMissingNode())
+      {
+         try
+         {
+            data.tokens();
+            Assert.fail("Expected no body data on page [" + expected.get("seq").asText() + "]");
+         }
+         catch (HathiTrustClientException e)
+         {
+            // expected
+         }
+         return;
+      }
+
+      Set<String> tokens = new HashSet<>();
+      body.fieldNames().forEachRemaining(tokens::add);
+      Assert.assertEquals(tokens, data.tokens());
+      for (String token : tokens)
+      {
+         Map<String, Integer> tags = new HashMap<>();
+         int count = 0;
+         Iterator<Map.Entry<String, JsonNode>> fields = body.get(token).fields();
+         while (fields.hasNext())
+         {
+            Map.Entry<String, JsonNode> e = fields.next();
+            tags.put(e.getKey(), Integer.valueOf(e.getValue().asInt()));
+            count += e.getValue().asInt();
+         }
+         Assert.assertEquals(tags, data.getPosCount(token));
+         Assert.assertEquals(count, data.getCount(token));
+      }
+   }
+
+   /**
+    * A temporary archive root holding generated volumes. Tests create one before each test and
+    * {@link #delete()} it after.
+    */
+   public static class Corpus
+   {
+      private final Path root;
+      private final List<ObjectNode> volumes = new ArrayList<>();
+
+      private Corpus(Path root)
+      {
+         this.root = root;
+      }
+
+      /**
+       * Create an empty root in a new temporary directory.
+       */
+      public static Corpus create(String prefix) throws IOException
+      {
+         return new Corpus(Files.createTempDirectory(prefix));
+      }
+
+      /**
+       * Create a root holding a generated basic archive of each volume. The i-th volume has the
+       * given number of pages and is generated from {@code seed + i}.
+       */
+      public static Corpus create(String prefix, List<String> ids, IntUnaryOperator pageCounts, long seed) throws IOException
+      {
+         Corpus corpus = create(prefix);
+         for (int i = 0; i < ids.size(); i++)
+            corpus.write(generate(ids.get(i), pageCounts.applyAsInt(i), seed + i));
+         return corpus;
+      }
+
+      public Path getRoot()
+      {
+         return root;
+      }
+
+      /**
+       * @return The volumes written, in the order first written.
+       */
+      public List<ObjectNode> getVolumes()
+      {
+         return Collections.unmodifiableList(volumes);
+      }
+
+      public ObjectNode get(int i)
+      {
+         return volumes.get(i);
+      }
+
+      /**
+       * Write the basic archive of a volume, replacing any volume of the same identifier.
+       *
+       * @return The archive written.
+       */
+      public Path write(ObjectNode volume) throws IOException
+      {
+         Path archive = TestVolumes.write(root, volume);
+         String id = volume.get("id").asText();
+         for (int i = 0; i < volumes.size(); i++)
+         {
+            if (volumes.get(i).get("id").asText().equals(id))
+            {
+               volumes.set(i, volume);
+               return archive;
+            }
+         }
+         volumes.add(volume);
+         return archive;
+      }
+
+      /**
+       * Delete the root and its contents.
+       */
+      public void delete() throws IOException
+      {
+         TestVolumes.delete(root);
+      }
+   }
+
+   /**
+    * Delete a temporary directory and its contents.
+    */
+   public static void delete(Path dir) throws IOException
+   {
+      if (dir == null || !Files.exists(dir))
+         return;
+
+      Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+      {
+         @Override
+         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+         {
+            Files.delete(file);
+            return FileVisitResult.CONTINUE;
+         }
+
+         @Override
+         public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException
+         {
+            Files.delete(d);
+            return FileVisitResult.CONTINUE;
+         }
+      });
+   }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PartOfSpeechCode;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.TokenIndex;
+
+/**
+ * Checks the postings of a token index against the volumes it was built from, and that volumes
+ * which cannot be read are recorded as failed.
+ */
+public class TokenIndexTests
+{
+   private static final String[] IDS = {"mdp.39015000000181", "hvd.ah3d1c", "uc2.ark:/13960/t0000181"};
+   private static final String MISSING = "mdp.39015000000189";
+
+   private TestVolumes.Corpus corpus;
+   private Path root;
+   private Path file;
+   private List<ObjectNode> volumes;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-tokens", Arrays.asList(IDS), i -> 6 + i, 180);
+      root = corpus.getRoot();
+      file = root.resolve("tokens.index");
+      volumes = corpus.getVolumes();
+      // pages without body data have no postings
+      ((ObjectNode)volumes.get(0).get("features").get("pages").get(1)).remove("body");
+      corpus.write(volumes.get(0));
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+   }
+
+   private List<String> build(String... ids) throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider(root))
+      {
+         return TokenIndex.build(provider, Arrays.asList(ids), file);
+      }
+   }
+
+   /**
+    * The expected hits of a token: counts by volume identifier and page index, summed over the
+    * accepted part of speech tags.
+    */
+   private Map<String, Map<Integer, Integer>> expected(String token, PartOfSpeechCode pos)
+   {
+      Map<String, Map<Integer, Integer>> result = new TreeMap<>();
+      for (JsonNode volume : volumes)
+      {
+         JsonNode pages = volume.path("features").path("pages");
+         for (int p = 0; p < pages.size(); p++)
+         {
+            JsonNode tags = pages.get(p).path("body").path("tokenPosCount").path(token);
+            for (Iterator<Map.Entry<String, JsonNode>> it = tags.fields(); it.hasNext(); )
+            {
+               Map.Entry<String, JsonNode> e = it.next();
+               if (pos == null || PartOfSpeechCode.ordinalOf(e.getKey()) == pos.ordinal())
+                  result.computeIfAbsent(volume.get("id").asText(), k -> new TreeMap<>())
+                        .merge(Integer.valueOf(p), Integer.valueOf(e.getValue().asInt()), Integer::sum);
+            }
+         }
+      }
+      return result;
+   }
+
+   private static Map<String, Map<Integer, Integer>> actual(TokenIndex.Hits hits)
+   {
+      Map<String, Map<Integer, Integer>> result = new TreeMap<>();
+      for (int i = 0; i < hits.size(); i++)
+      {
+         if (i > 0)
+         {
+            // ordered by volume ordinal and page
+            long prev = ((long)hits.getVolumeOrdinal(i - 1) << 32) | hits.getPageIndex(i - 1);
+            Assert.assertTrue(prev < (((long)hits.getVolumeOrdinal(i) << 32) | hits.getPageIndex(i)));
+         }
+         result.computeIfAbsent(hits.getVolumeId(i), k -> new TreeMap<>())
+               .put(Integer.valueOf(hits.getPageIndex(i)), Integer.valueOf(hits.getCount(i)));
+      }
+      return result;
+   }
+
+   @Test
+   public void testRoundTrip() throws Exception
+   {
+      Assert.assertEquals(Collections.emptyList(), build(IDS));
+      TokenIndex index = TokenIndex.open(file);
+      Assert.assertTrue(index.isComplete());
+      Assert.assertEquals(Collections.emptyList(), index.getFailedVolumeIds());
+      Assert.assertEquals(IDS.length, index.volumeCount());
+      for (String id : IDS)
+         Assert.assertEquals(id, index.getVolumeId(index.getVolumeOrdinal(id)));
+      Assert.assertEquals(-1, index.getVolumeOrdinal(MISSING));
+
+      List<String> tokens = new ArrayList<>();
+      for (JsonNode volume : volumes)
+      {
+         for (JsonNode page : volume.path("features").path("pages"))
+            page.path("body").path("tokenPosCount").fieldNames().forEachRemaining(tokens::add);
+      }
+      List<String> distinct = new ArrayList<>();
+      tokens.stream().distinct().sorted(TokenIndexTests::compareUtf8).forEach(distinct::add);
+      Assert.assertEquals(distinct.size(), index.termCount());
+      Assert.assertEquals(distinct, index.getTokens(""));
+
+      for (String token : distinct)
+      {
+         Assert.assertTrue(token, index.contains(token));
+         Assert.assertEquals(token, expected(token, null), actual(index.find(token)));
+         Assert.assertEquals(token, expected(token, PartOfSpeechCode.NN), actual(index.find(token, EnumSet.of(PartOfSpeechCode.NN))));
+      }
+      Assert.assertFalse(index.contains("THE"));
+      Assert.assertEquals(0, index.find("THE").size());
+
+      // a page without body data has no postings
+      Assert.assertFalse(actual(index.find("the")).getOrDefault(IDS[0], Collections.emptyMap()).containsKey(Integer.valueOf(1)));
+
+      // the most frequent token other than "the"
+      String common = tokens.stream().filter(t -> !t.equals("the"))
+            .max((a, b) -> Collections.frequency(tokens, a) - Collections.frequency(tokens, b)).get();
+      TokenIndex.Hits both = index.findAll("the", common);
+      Map<String, Map<Integer, Integer>> expected = expected("the", null);
+      Map<String, Map<Integer, Integer>> other = expected(common, null);
+      int n = 0;
+      for (Map.Entry<String, Map<Integer, Integer>> v : expected.entrySet())
+      {
+         for (Integer page : v.getValue().keySet())
+         {
+            if (other.getOrDefault(v.getKey(), Collections.emptyMap()).containsKey(page))
+               n++;
+         }
+      }
+      Assert.assertTrue(n > 0);
+      Assert.assertEquals(n, both.size());
+      Assert.assertEquals(actual(index.find("the")).keySet(), both.or(index.find("the")).getVolumeIds());
+   }
+
+   @Test
+   public void testFailedVolumesRecorded() throws Exception
+   {
+      // one volume is missing and another cannot be parsed
+      TestVolumes.writeArchive(root, volumes.get(1), TestVolumes.BASIC, "{\"id\": ".getBytes(StandardCharsets.UTF_8));
+      List<String> failed = build(IDS[0], IDS[1], IDS[2], MISSING);
+      List<String> sorted = new ArrayList<>(Arrays.asList(IDS[1], MISSING));
+      sorted.sort(TokenIndexTests::compareUtf8);
+      Assert.assertEquals(sorted, failed);
+
+      TokenIndex index = TokenIndex.open(file);
+      Assert.assertFalse(index.isComplete());
+      Assert.assertEquals(failed, index.getFailedVolumeIds());
+      Assert.assertEquals(4, index.volumeCount());
+      Assert.assertFalse(actual(index.find("the")).containsKey(IDS[1]));
+
+      // rebuilt once the volume can be read
+      corpus.write(volumes.get(1));
+      Assert.assertEquals(Collections.emptyList(), build(IDS));
+      index = TokenIndex.open(file);
+      Assert.assertTrue(index.isComplete());
+      Assert.assertEquals(expected("the", null), actual(index.find("the")));
+   }
+
+   private static int compareUtf8(String a, String b)
+   {
+      byte[] x = a.getBytes(StandardCharsets.UTF_8);
+      byte[] y = b.getBytes(StandardCharsets.UTF_8);
+      for (int i = 0; i < Math.min(x.length, y.length); i++)
+      {
+         int c = (x[i] & 0xFF) - (y[i] & 0xFF);
+         if (c != 0)
+            return c;
+      }
+      return x.length - y.length;
+   }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import edu.tamu.tcat.hathitrust.HathiTrustClientException;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.CacheStatistics;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+
+/**
+ * Checks which volumes the provider's cache evicts under a budget, as reported by its statistics:
+ * closed volumes in least-recently-used order, and never volumes which are still open.
+ */
+public class VolumeCacheTests
+{
+   private static final String[] IDS = {"mdp.39015000000301", "mdp.39015000000302", "mdp.39015000000303"};
+
+   private TestVolumes.Corpus corpus;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-cache", Arrays.asList(IDS), i -> 6, 300);
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+   }
+
+   private DefaultExtractedFeaturesProvider createProvider(long budget)
+   {
+      return new DefaultExtractedFeaturesProvider.Builder(corpus.getRoot())
+            .setCacheBudget(budget)
+            .build();
+   }
+
+   /**
+    * Wait for the cache to reach a state. Sizes are recorded as loads complete, which may be
+    * shortly after the caller has read the loaded data.
+    *
+    * @return The statistics satisfying the condition, or the last statistics read.
+    */
+   private static CacheStatistics await(DefaultExtractedFeaturesProvider provider, Predicate<CacheStatistics> condition) throws InterruptedException
+   {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      CacheStatistics stats = provider.getCacheStatistics();
+      while (!condition.test(stats) && System.nanoTime() < deadline)
+      {
+         Thread.sleep(10);
+         stats = provider.getCacheStatistics();
+      }
+      return stats;
+   }
+
+   /**
+    * @return The estimated size of each volume, as recorded by a cache which evicts nothing.
+    */
+   private long[] sizes() throws Exception
+   {
+      long[] sizes = new long[IDS.length];
+      try (DefaultExtractedFeaturesProvider provider = createProvider(Long.MAX_VALUE))
+      {
+         long retained = 0;
+         for (int i = 0; i < IDS.length; i++)
+         {
+            TestVolumes.assertLoads(provider, corpus.get(i));
+            long before = retained;
+            retained = await(provider, s -> s.getRetainedBytes() > before).getRetainedBytes();
+            sizes[i] = retained - before;
+            Assert.assertTrue(sizes[i] > 0);
+         }
+
+         CacheStatistics stats = provider.getCacheStatistics();
+         Assert.assertEquals(IDS.length, stats.getEntries());
+         Assert.assertEquals(0, stats.getReferenced());
+         Assert.assertEquals(0, stats.getEvictions());
+      }
+      return sizes;
+   }
+
+   @Test
+   public void testUnreferencedEvictedOverBudget() throws Exception
+   {
+      long[] sizes = sizes();
+      long budget = sizes[0] + sizes[1] + sizes[2] - 1;
+      try (DefaultExtractedFeaturesProvider provider = createProvider(budget))
+      {
+         for (JsonNode volume : corpus.getVolumes())
+            TestVolumes.assertLoads(provider, volume);
+
+         // the least recently used volume goes
+         CacheStatistics stats = await(provider, s -> s.getEvictions() > 0);
+         Assert.assertEquals(1, stats.getEvictions());
+         Assert.assertEquals(2, stats.getEntries());
+         Assert.assertEquals(sizes[1] + sizes[2], stats.getRetainedBytes());
+         Assert.assertEquals(budget, stats.getBudget());
+
+         TestVolumes.assertLoads(provider, corpus.get(2));
+         Assert.assertEquals(1, provider.getCacheStatistics().getHits());
+         TestVolumes.assertLoads(provider, corpus.get(0));
+         Assert.assertEquals(IDS.length + 1, provider.getCacheStatistics().getMisses());
+      }
+   }
+
+   @Test
+   public void testReferencedNotEvicted() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = createProvider(0);
+           ExtractedFeatures held = provider.getExtractedFeatures(IDS[0]))
+      {
+         TestVolumes.assertSameVolume(corpus.get(0), held);
+         CacheStatistics stats = await(provider, s -> s.getRetainedBytes() > 0);
+         Assert.assertTrue(stats.getRetainedBytes() > stats.getBudget());
+         Assert.assertEquals(1, stats.getReferenced());
+
+         // other volumes are evicted as they close, while the held volume stays over budget
+         TestVolumes.assertLoads(provider, corpus.get(1));
+         TestVolumes.assertLoads(provider, corpus.get(2));
+         stats = await(provider, s -> s.getEvictions() == 2);
+         Assert.assertEquals(2, stats.getEvictions());
+         Assert.assertEquals(1, stats.getEntries());
+         Assert.assertEquals(1, stats.getReferenced());
+
+         TestVolumes.assertSameVolume(corpus.get(0), held);
+         try (ExtractedFeatures again = provider.getExtractedFeatures(IDS[0]))
+         {
+            Assert.assertSame(held, again);
+         }
+         Assert.assertEquals(2, provider.getCacheStatistics().getEvictions());
+      }
+   }
+
+   @Test
+   public void testReleasedBecomesEvictable() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = createProvider(0))
+      {
+         ExtractedFeatures held = provider.getExtractedFeatures(IDS[0]);
+         TestVolumes.assertSameVolume(corpus.get(0), held);
+         Assert.assertEquals(0, await(provider, s -> s.getRetainedBytes() > 0).getEvictions());
+
+         held.close();
+         CacheStatistics stats = await(provider, s -> s.getEvictions() > 0);
+         Assert.assertEquals(1, stats.getEvictions());
+         Assert.assertEquals(0, stats.getEntries());
+         Assert.assertEquals(0, stats.getRetainedBytes());
+
+         // loaded again, as a new volume
+         try (ExtractedFeatures again = provider.getExtractedFeatures(IDS[0]))
+         {
+            Assert.assertNotSame(held, again);
+            TestVolumes.assertSameVolume(corpus.get(0), again);
+         }
+         Assert.assertEquals(2, provider.getCacheStatistics().getMisses());
+      }
+   }
+
+   @Test
+   public void testCloseClearsCache() throws Exception
+   {
+      DefaultExtractedFeaturesProvider provider = createProvider(Long.MAX_VALUE);
+      try (ExtractedFeatures held = provider.getExtractedFeatures(IDS[0]))
+      {
+         TestVolumes.assertSameVolume(corpus.get(0), held);
+         TestVolumes.assertLoads(provider, corpus.get(1));
+         CacheStatistics stats = await(provider, s -> s.getEntries() == 2 && s.getRetainedBytes() > 0);
+         Assert.assertEquals(2, stats.getEntries());
+         Assert.assertEquals(1, stats.getReferenced());
+
+         // evicts every volume, held or not
+         provider.close();
+         stats = provider.getCacheStatistics();
+         Assert.assertEquals(0, stats.getEntries());
+         Assert.assertEquals(0, stats.getRetainedBytes());
+         try
+         {
+            held.pageCount();
+            Assert.fail("Expected evicted volume to fail");
+         }
+         catch (HathiTrustClientException e)
+         {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+         }
+      }
+   }
+}
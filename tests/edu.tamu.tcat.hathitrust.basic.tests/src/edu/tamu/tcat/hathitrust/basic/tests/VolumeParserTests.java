@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.PartOfSpeechCode;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+
+/**
+ * Checks volumes parsed by the provider against an {@link com.fasterxml.jackson.databind.ObjectMapper}
+ * parse of the same JSON.
+ */
+public class VolumeParserTests
+{
+   private TestVolumes.Corpus corpus;
+   private Path root;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      corpus = TestVolumes.Corpus.create("ef-parser");
+      root = corpus.getRoot();
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+   }
+
+   /**
+    * Load the volume, written as serialized, and check it against the serialized JSON.
+    */
+   private void assertParses(ObjectNode volume) throws Exception
+   {
+      assertParses(volume, TestVolumes.toJson(volume));
+   }
+
+   private void assertParses(ObjectNode volume, byte[] json) throws Exception
+   {
+      TestVolumes.write(root, volume, TestVolumes.BASIC, json);
+      JsonNode expected = TestVolumes.parse(json);
+
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider(root);
+           ExtractedFeatures ef = provider.getExtractedFeatures(volume.get("id").asText()))
+      {
+         TestVolumes.assertSameVolume(expected, ef);
+      }
+   }
+
+   @Test
+   public void testGenerated() throws Exception
+   {
+      assertParses(TestVolumes.generate("mdp.39015000000001", 20, 1));
+   }
+
+   @Test
+   public void testPageHandles() throws Exception
+   {
+      ObjectNode volume = TestVolumes.generate("mdp.39015000000004", 20, 4);
+      corpus.write(volume);
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider(root);
+           ExtractedFeatures ef = provider.getExtractedFeatures(volume.get("id").asText()))
+      {
+         // before the page count is known, and once it is
+         Assert.assertSame(ef.getPage(18), ef.getPage(18));
+         Assert.assertEquals(20, ef.pageCount());
+         Assert.assertSame(ef.getPage(19), ef.getPage(19));
+         Assert.assertSame(ef.getPage(18), ef.getPage(18));
+
+         // indices beyond the pages are not held by the volume
+         Assert.assertNotSame(ef.getPage(60000), ef.getPage(60000));
+         TestVolumes.assertSamePage(volume.get("features").get("pages").get(19), ef.getPage(19));
+      }
+   }
+
+   @Test
+   public void testPagesBeforeScalars() throws Exception
+   {
+      ObjectNode volume = TestVolumes.generate("mdp.39015000000002", 12, 2);
+      volume.set("features", TestVolumes.moveFirst((ObjectNode)volume.get("features"), "pages"));
+      Assert.assertEquals("pages", volume.get("features").fieldNames().next());
+      assertParses(volume);
+   }
+
+   @Test
+   public void testFeaturesBeforeMetadata() throws Exception
+   {
+      ObjectNode volume = TestVolumes.moveFirst(TestVolumes.generate("hvd.ah3d1a", 7, 3), "features");
+      volume.set("features", TestVolumes.moveFirst((ObjectNode)volume.get("features"), "pages"));
+      Assert.assertEquals("features", volume.fieldNames().next());
+      assertParses(volume);
+   }
+
+   private static Map<String, Map<String, Integer>> nonAsciiTokens()
+   {
+      Map<String, Map<String, Integer>> body = TestVolumes.tokens("café", "NN", 2);
+      body.putAll(TestVolumes.tokens("naïve", "JJ", 1));
+      body.putAll(TestVolumes.tokens("日本語", "NNP", 3));
+      // supplementary characters, encoded in four UTF-8 bytes
+      body.putAll(TestVolumes.tokens("𝔘𝔫", "NNP", 4));
+      body.putAll(TestVolumes.tokens("😀", "SYM", 1));
+      body.putAll(TestVolumes.tokens("quote\"back\\slash", "NN", 1));
+      body.putAll(TestVolumes.tokens("tab\tnewline\n", "NN", 1));
+      return body;
+   }
+
+   @Test
+   public void testNonAsciiTokens() throws Exception
+   {
+      assertParses(TestVolumes.volume("uc2.ark:/13960/t0000001", TestVolumes.page(1, nonAsciiTokens())));
+   }
+
+   @Test
+   public void testEscapedNonAsciiTokens() throws Exception
+   {
+      ObjectNode volume = TestVolumes.volume("uc2.ark:/13960/t0000002", TestVolumes.page(1, nonAsciiTokens()));
+      byte[] json = TestVolumes.toAsciiJson(volume);
+      Assert.assertTrue(new String(json, "US-ASCII").contains("\\uD835\\uDD18"));
+      assertParses(volume, json);
+   }
+
+   @Test
+   public void testTagsOutsidePartOfSpeechCodes() throws Exception
+   {
+      Map<String, Map<String, Integer>> body = TestVolumes.tokens(".", ".", 5);
+      body.putAll(TestVolumes.tokens(",", ",", 4));
+      body.putAll(TestVolumes.tokens("odd", "XYZ", 2));
+      body.get("odd").put("NN", Integer.valueOf(1));
+      Assert.assertEquals(PartOfSpeechCode.UNKNOWN_ORDINAL, PartOfSpeechCode.ordinalOf("XYZ"));
+
+      assertParses(TestVolumes.volume("mdp.39015000000003", TestVolumes.page(1, body)));
+   }
+
+   @Test
+   public void testPageWithoutBody() throws Exception
+   {
+      ObjectNode volume = TestVolumes.volume("mdp.39015000000004",
+                                             TestVolumes.page(1, TestVolumes.tokens("first", "NN", 1)),
+                                             TestVolumes.page(2, null),
+                                             TestVolumes.page(3, TestVolumes.tokens("third", "JJ", 2)));
+      assertParses(volume);
+   }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.hathitrust.basic.tests;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import edu.tamu.tcat.hathitrust.htrc.features.simple.ExtractedFeatures;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.LoadOptions;
+import edu.tamu.tcat.hathitrust.htrc.features.simple.impl.DefaultExtractedFeaturesProvider;
+
+/**
+ * Checks streams of volumes supplied by the provider.
+ */
+public class VolumeStreamTests
+{
+   private static final int VOLUMES = 24;
+
+   private TestVolumes.Corpus corpus;
+   private Path root;
+   private List<String> ids;
+   private Map<String, JsonNode> volumes;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      ids = new ArrayList<>();
+      for (int i = 0; i < VOLUMES; i++)
+         ids.add(String.format("mdp.390150000001%02d", Integer.valueOf(i)));
+      corpus = TestVolumes.Corpus.create("ef-stream", ids, i -> 3, 0);
+      root = corpus.getRoot();
+      volumes = new HashMap<>();
+      for (JsonNode volume : corpus.getVolumes())
+         volumes.put(volume.get("id").asText(), volume);
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      corpus.delete();
+   }
+
+   @Test
+   public void testOrderedStream() throws Exception
+   {
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider(root);
+           Stream<ExtractedFeatures> stream = provider.stream(ids, LoadOptions.ALL, true))
+      {
+         List<String> seen = new ArrayList<>();
+         stream.forEach(ef ->
+         {
+            seen.add(ef.getVolumeId());
+            check(ef);
+         });
+         Assert.assertEquals(ids, seen);
+      }
+   }
+
+   @Test
+   public void testUnorderedStreamSplitsForCallingPool() throws Exception
+   {
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try (DefaultExtractedFeaturesProvider provider = new DefaultExtractedFeaturesProvider(root))
+      {
+         Set<Thread> threads = ConcurrentHashMap.newKeySet();
+         List<String> seen = pool.submit(() ->
+         {
+            try (Stream<ExtractedFeatures> stream = provider.stream(ids, LoadOptions.ALL, false))
+            {
+               return stream.parallel().map(ef ->
+               {
+                  threads.add(Thread.currentThread());
+                  check(ef);
+                  sleep();
+                  return ef.getVolumeId();
+               }).collect(Collectors.toList());
+            }
+         }).get();
+
+         Assert.assertEquals(VOLUMES, seen.size());
+         Assert.assertEquals(volumes.keySet(), seen.stream().collect(Collectors.toSet()));
+
+         // split for the pool running the stream, not the common pool
+         Assert.assertTrue("Expected several threads " + threads, threads.size() > 1);
+         for (Thread t : threads)
+            Assert.assertTrue(t.getName(), !t.getName().contains("commonPool"));
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+
+   private void check(ExtractedFeatures ef)
+   {
+      try
+      {
+         TestVolumes.assertSameVolume(volumes.get(ef.getVolumeId()), ef);
+      }
+      catch (Exception e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static void sleep()
+   {
+      try
+      {
+         Thread.sleep(20);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+}